@@ -0,0 +1,74 @@
+package com.fairbilling.benchmark;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds deterministic synthetic logs for the benchmarks.
+ */
+final class BenchmarkLogs {
+
+    private static final long SEED = 20240229L;
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+    private BenchmarkLogs() {
+    }
+
+    /**
+     * Produces {@code lineCount} well-formed lines over {@code userCount} users.
+     *
+     * <p>Each user holds at most {@code concurrency} open sessions; with probability {@code orphanRatio} an event
+     * ignores that state, which yields unmatched starts and ends.
+     */
+    static List<String> lines(int lineCount, int userCount, double orphanRatio, int concurrency) {
+        Random random = new Random(SEED);
+        int[] openSessions = new int[userCount];
+        List<String> lines = new ArrayList<>(lineCount);
+        StringBuilder line = new StringBuilder(32);
+        for (int i = 0; i < lineCount; i++) {
+            int timestamp = (int) ((long) i * SECONDS_PER_DAY / lineCount);
+            int user = random.nextInt(userCount);
+            boolean start;
+            if (random.nextDouble() < orphanRatio) {
+                start = random.nextBoolean();
+            } else if (openSessions[user] == 0) {
+                start = true;
+            } else if (openSessions[user] >= concurrency) {
+                start = false;
+            } else {
+                start = random.nextBoolean();
+            }
+            openSessions[user] = Math.max(0, openSessions[user] + (start ? 1 : -1));
+
+            line.setLength(0);
+            appendTwoDigits(line, timestamp / 3600).append(':');
+            appendTwoDigits(line, (timestamp / 60) % 60).append(':');
+            appendTwoDigits(line, timestamp % 60);
+            line.append(" USER").append(user).append(start ? " Start" : " End");
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    static Path write(List<String> lines) throws IOException {
+        Path file = Files.createTempFile("fair-billing-bench", ".log");
+        file.toFile().deleteOnExit();
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+            for (String line : lines) {
+                writer.write(line);
+                writer.newLine();
+            }
+        }
+        return file;
+    }
+
+    private static StringBuilder appendTwoDigits(StringBuilder target, int value) {
+        return target.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+}
@@ -0,0 +1,227 @@
+package com.fairbilling.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.fairbilling.app.FairBilling;
+import com.fairbilling.domain.EntryBatch;
+import com.fairbilling.domain.LogEntry;
+import com.fairbilling.domain.PartitionedBatch;
+import com.fairbilling.domain.PartitionedEntryConsumer;
+import com.fairbilling.domain.UserBillingSummary;
+import com.fairbilling.io.BinaryLogReader;
+import com.fairbilling.io.BinaryLogWriter;
+import com.fairbilling.io.LogFileParser;
+import com.fairbilling.report.ReportFormat;
+import com.fairbilling.report.ReportPrinter;
+import com.fairbilling.report.ReportWriter;
+import com.fairbilling.report.SummaryOrder;
+import com.fairbilling.report.SummaryQuery;
+import com.fairbilling.service.BillingCalculator;
+import com.fairbilling.service.BillingSession;
+import com.fairbilling.service.ShardedBillingSession;
+import com.fairbilling.util.UsernameTable;
+
+/**
+ * Whole-file parsing, billing, reporting and end-to-end runs over {@link LogFixture} logs.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BillingPipelineBenchmark {
+
+    private static final PrintStream DISCARD = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+    private static final WritableByteChannel DISCARD_CHANNEL = Channels.newChannel(DISCARD);
+    private static final SummaryQuery TOP_USERS = SummaryQuery.all().top(100);
+    private static final SummaryQuery SORTED_USERS = SummaryQuery.all().sortedBy(SummaryOrder.SECONDS);
+
+    private final LogFileParser logFileParser = new LogFileParser();
+    private final BinaryLogReader binaryLogReader = new BinaryLogReader();
+    private final BillingCalculator billingCalculator = new BillingCalculator();
+    private final ReportPrinter reportPrinter = new ReportPrinter();
+    private final ReportWriter jsonLinesWriter = ReportFormat.JSONL.newWriter();
+    private final FairBilling application = new FairBilling();
+    private List<LogEntry> entries;
+    private List<UserBillingSummary> summaries;
+    private Path binaryFile;
+
+    @Setup(Level.Trial)
+    public void prepare(LogFixture fixture) throws IOException {
+        entries = logFileParser.parse(fixture.logFile);
+        summaries = billingCalculator.calculate(entries);
+        binaryFile = Files.createTempFile("fair-billing-bench", ".fbl");
+        new BinaryLogWriter(logFileParser).convert(fixture.logFile, binaryFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteBinaryLog() throws IOException {
+        Files.deleteIfExists(binaryFile);
+    }
+
+    @Benchmark
+    public List<LogEntry> logFileParserParse(LogFixture fixture) throws IOException {
+        return logFileParser.parse(fixture.logFile);
+    }
+
+    @Benchmark
+    public List<UserBillingSummary> logFileParserScan(LogFixture fixture) throws IOException {
+        UsernameTable usernames = new UsernameTable();
+        BillingSession session = billingCalculator.newSession(usernames);
+        logFileParser.scan(fixture.logFile, usernames, session::accept);
+        return session.finish();
+    }
+
+    @Benchmark
+    public List<UserBillingSummary> logFileParserScanParallel(LogFixture fixture) throws IOException {
+        UsernameTable usernames = new UsernameTable();
+        BillingSession session = billingCalculator.newSession(usernames);
+        logFileParser.scanParallel(fixture.logFile, usernames, session::accept);
+        return session.finish();
+    }
+
+    @Benchmark
+    public List<UserBillingSummary> logFileParserScanParallelSharded(LogFixture fixture, Shards shards)
+            throws IOException {
+        UsernameTable usernames = new UsernameTable();
+        try (ShardedBillingSession session = new ShardedBillingSession(usernames, shards.count)) {
+            logFileParser.scanParallel(fixture.logFile, usernames, new PartitionedSession(session));
+            return session.finish();
+        }
+    }
+
+    @Benchmark
+    public List<UserBillingSummary> logFileParserScanPipelined(LogFixture fixture) throws IOException {
+        UsernameTable usernames = new UsernameTable();
+        BillingSession session = billingCalculator.newSession(usernames);
+        logFileParser.scanPipelined(fixture.logFile, usernames, session::accept, 4, 4096);
+        return session.finish();
+    }
+
+    @Benchmark
+    public List<UserBillingSummary> binaryLogReaderRead() throws IOException {
+        UsernameTable usernames = new UsernameTable();
+        BillingSession session = billingCalculator.newSession(usernames);
+        binaryLogReader.read(binaryFile, usernames, session::accept);
+        return session.finish();
+    }
+
+    @Benchmark
+    public List<UserBillingSummary> billingCalculatorCalculate() {
+        return billingCalculator.calculate(entries);
+    }
+
+    @Benchmark
+    public List<UserBillingSummary> billingCalculatorCalculateSharded(Shards shards) {
+        return billingCalculator.calculate(entries, shards.count);
+    }
+
+    @Benchmark
+    public void reportPrinterPrint() {
+        reportPrinter.print(summaries, DISCARD);
+    }
+
+    /**
+     * The per-row {@code printf} that {@link ReportPrinter} used before it wrote through a {@link ReportWriter}.
+     */
+    @Benchmark
+    public void printfReport() {
+        for (UserBillingSummary summary : summaries) {
+            DISCARD.printf("%s %d %d%n", summary.getUsername(), summary.getSessionCount(),
+                    summary.getTotalDurationSeconds());
+        }
+    }
+
+    @Benchmark
+    public List<UserBillingSummary> summaryQueryTop() {
+        return TOP_USERS.select(summaries);
+    }
+
+    @Benchmark
+    public List<UserBillingSummary> summaryQuerySorted() {
+        return SORTED_USERS.select(summaries);
+    }
+
+    @Benchmark
+    public void jsonLinesReportWriterWrite() throws IOException {
+        jsonLinesWriter.write(summaries, DISCARD_CHANNEL);
+    }
+
+    @Benchmark
+    public void fairBillingRun(LogFixture fixture, Blackhole blackhole) {
+        blackhole.consume(application.run(fixture.logFile.toString(), DISCARD, DISCARD));
+    }
+
+    /**
+     * Number of worker threads for the sharded benchmarks.
+     */
+    @State(Scope.Benchmark)
+    public static class Shards {
+
+        @Param({"1", "2", "4", "8"})
+        public int count;
+    }
+
+    /**
+     * Hands a sharded session's partitioned batches straight through, as {@code TimedBilling} does without timing.
+     */
+    private static final class PartitionedSession implements PartitionedEntryConsumer {
+        private final ShardedBillingSession session;
+
+        private PartitionedSession(ShardedBillingSession session) {
+            this.session = session;
+        }
+
+        @Override
+        public int partitionCount() {
+            return session.partitionCount();
+        }
+
+        @Override
+        public int partitionOf(int usernameHash) {
+            return session.partitionOf(usernameHash);
+        }
+
+        @Override
+        public void accept(PartitionedBatch batch) {
+            session.accept(batch);
+        }
+
+        @Override
+        public void accept(EntryBatch batch) {
+            session.accept(batch);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.fairbilling.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fairbilling.io.LogFileParser;
+import com.fairbilling.service.BillingSession;
+
+/**
+ * Wall-clock cost of billing a plain log against the same log gzip compressed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompressedInputBenchmark {
+
+    @Param({"1000000"})
+    public int lines;
+
+    @Param({"100000"})
+    public int users;
+
+    private final LogFileParser logFileParser = new LogFileParser();
+    private Path plainFile;
+    private Path gzipFile;
+
+    @Setup(Level.Trial)
+    public void createLogs() throws IOException {
+        plainFile = BenchmarkLogs.write(BenchmarkLogs.lines(lines, users, 0.05, 4));
+        gzipFile = Files.createTempFile("fair-billing-bench", ".log.gz");
+        gzipFile.toFile().deleteOnExit();
+        try (InputStream input = Files.newInputStream(plainFile);
+             OutputStream output = new GZIPOutputStream(Files.newOutputStream(gzipFile))) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                output.write(buffer, 0, read);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteLogs() throws IOException {
+        Files.deleteIfExists(plainFile);
+        Files.deleteIfExists(gzipFile);
+    }
+
+    @Benchmark
+    public Object plain() throws IOException {
+        return bill(plainFile);
+    }
+
+    @Benchmark
+    public Object gzip() throws IOException {
+        return bill(gzipFile);
+    }
+
+    private Object bill(Path file) throws IOException {
+        BillingSession session = new BillingSession();
+        logFileParser.scan(file, session.getUsernames(), session::accept);
+        return session.finish();
+    }
+}
@@ -0,0 +1,84 @@
+package com.fairbilling.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.fairbilling.io.LogEntryParser;
+import com.fairbilling.io.LogLineScanner;
+import com.fairbilling.io.ParsedLine;
+import com.fairbilling.util.TimeParser;
+
+/**
+ * Per-line parsing cost of the regex parser, the time parser and the byte-level scanner.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LineParsingBenchmark {
+
+    private static final int LINE_COUNT = 4096;
+
+    @Param({"100", "100000"})
+    public int users;
+
+    private final LogEntryParser entryParser = new LogEntryParser();
+    private final LogLineScanner lineScanner = new LogLineScanner();
+    private final ParsedLine parsedLine = new ParsedLine();
+    private String[] lines;
+    private String[] times;
+    private byte[][] lineBytes;
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void createLines() {
+        List<String> generated = BenchmarkLogs.lines(LINE_COUNT, users, 0.05, 4);
+        lines = generated.toArray(new String[0]);
+        times = new String[LINE_COUNT];
+        lineBytes = new byte[LINE_COUNT][];
+        for (int i = 0; i < LINE_COUNT; i++) {
+            times[i] = lines[i].substring(0, 8);
+            lineBytes[i] = lines[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    @Benchmark
+    public Object logEntryParserParse() {
+        return entryParser.parse(lines[next()]);
+    }
+
+    @Benchmark
+    public Object timeParserParseToSeconds() {
+        return TimeParser.parseToSeconds(times[next()]);
+    }
+
+    @Benchmark
+    public void logLineScannerScan(Blackhole blackhole) {
+        byte[] bytes = lineBytes[next()];
+        blackhole.consume(lineScanner.scan(bytes, 0, bytes.length, parsedLine));
+        blackhole.consume(parsedLine.getSecondsSinceMidnight());
+    }
+
+    private int next() {
+        int index = cursor;
+        cursor = (index + 1) & (LINE_COUNT - 1);
+        return index;
+    }
+}
@@ -0,0 +1,46 @@
+package com.fairbilling.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Shared benchmark state: a synthetic log on disk and in memory, parameterised by size and shape.
+ */
+@State(Scope.Benchmark)
+public class LogFixture {
+
+    @Param({"10000", "1000000"})
+    public int lines;
+
+    @Param({"100", "100000"})
+    public int users;
+
+    @Param({"0.01", "0.2"})
+    public double orphanRatio;
+
+    @Param({"1", "8"})
+    public int concurrency;
+
+    List<String> logLines;
+    Path logFile;
+
+    @Setup(Level.Trial)
+    public void createLog() throws IOException {
+        logLines = BenchmarkLogs.lines(lines, users, orphanRatio, concurrency);
+        logFile = BenchmarkLogs.write(logLines);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteLog() throws IOException {
+        Files.deleteIfExists(logFile);
+    }
+}
@@ -0,0 +1,74 @@
+package com.fairbilling.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.fairbilling.io.LogFileParser;
+
+/**
+ * Line splitting and field scanning with each scan kernel. The kernel is fixed per JVM, so every benchmark forks with
+ * its own {@code fairbilling.scanKernel}. The SWAR and vector kernels need Java 17 and fall back to the best
+ * available kernel on older JDKs.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class ScanKernelBenchmark {
+
+    @Param({"100000"})
+    public int lines;
+
+    private final LogFileParser logFileParser = new LogFileParser();
+    private Path logFile;
+
+    @Setup(Level.Trial)
+    public void createLog() throws IOException {
+        logFile = BenchmarkLogs.write(BenchmarkLogs.lines(lines, 100_000, 0.01, 1));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteLog() throws IOException {
+        Files.deleteIfExists(logFile);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dfairbilling.scanKernel=scalar")
+    public void scalarKernelScan(Blackhole blackhole) throws IOException {
+        scan(blackhole);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dfairbilling.scanKernel=swar")
+    public void swarKernelScan(Blackhole blackhole) throws IOException {
+        scan(blackhole);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector", "-Dfairbilling.scanKernel=vector"})
+    public void vectorKernelScan(Blackhole blackhole) throws IOException {
+        scan(blackhole);
+    }
+
+    private void scan(Blackhole blackhole) throws IOException {
+        logFileParser.scan(logFile, line -> blackhole.consume(line.getSecondsSinceMidnight()));
+    }
+}
@@ -0,0 +1,191 @@
+package com.fairbilling.app;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.fairbilling.domain.UserBillingSummary;
+
+/**
+ * Bills many log files in one JVM on a bounded worker pool.
+ *
+ * <p>Every file is billed independently with its own earliest/latest bounds. Reports are printed in input order under
+ * a {@code == path ==} header, followed by an optional {@code == TOTAL ==} section that sums sessions and seconds per
+ * user across all files in order of first appearance.
+ */
+final class BatchBilling {
+
+    private static final String GLOB_CHARACTERS = "*?[{";
+
+    private final FairBilling application;
+    private final int threads;
+
+    BatchBilling(FairBilling application, int threads) {
+        this.application = Objects.requireNonNull(application, "application");
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        this.threads = threads;
+    }
+
+    int run(List<String> inputs, boolean aggregate, PrintStream output, PrintStream error) {
+        Objects.requireNonNull(inputs, "inputs");
+        Objects.requireNonNull(output, "output");
+        Objects.requireNonNull(error, "error");
+
+        int exitCode = 0;
+        List<Path> files = new ArrayList<>();
+        for (String input : inputs) {
+            try {
+                files.addAll(expand(input));
+            } catch (NoSuchFileException e) {
+                error.println("Error: File not found: " + input);
+                exitCode = 1;
+            } catch (IOException | UncheckedIOException e) {
+                error.println("Error: Unable to read file: " + input);
+                exitCode = 1;
+            } catch (PatternSyntaxException e) {
+                error.println("Error: Invalid pattern: " + input);
+                exitCode = 1;
+            }
+        }
+
+        Map<String, long[]> totals = new LinkedHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, files.size())));
+        try {
+            Deque<Future<List<UserBillingSummary>>> pending = new ArrayDeque<>();
+            int submitted = 0;
+            for (Path file : files) {
+                while (pending.size() >= threads * 2) {
+                    exitCode |= report(files.get(submitted - pending.size()), pending.removeFirst(), totals,
+                            output, error);
+                }
+                pending.addLast(executor.submit(() -> application.bill(file)));
+                submitted++;
+            }
+            while (!pending.isEmpty()) {
+                exitCode |= report(files.get(submitted - pending.size()), pending.removeFirst(), totals,
+                        output, error);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (aggregate) {
+            List<UserBillingSummary> summaries = new ArrayList<>(totals.size());
+            for (Map.Entry<String, long[]> total : totals.entrySet()) {
+                long[] sums = total.getValue();
+                if (sums[0] > Integer.MAX_VALUE || sums[1] > Integer.MAX_VALUE) {
+                    error.println("Error: Total exceeds the reportable range for user: " + total.getKey());
+                    exitCode = 1;
+                    continue;
+                }
+                int[] buckets = new int[sums.length - 2];
+                for (int bucket = 0; bucket < buckets.length; bucket++) {
+                    buckets[bucket] = (int) sums[bucket + 2];
+                }
+                summaries.add(new UserBillingSummary(total.getKey(), (int) sums[0], (int) sums[1], buckets));
+            }
+            output.println("== TOTAL ==");
+            application.report(summaries, output);
+        }
+        return exitCode;
+    }
+
+    private int report(Path file, Future<List<UserBillingSummary>> result, Map<String, long[]> totals,
+            PrintStream output, PrintStream error) {
+        List<UserBillingSummary> summaries;
+        try {
+            summaries = result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error.println("Error: Interrupted while billing: " + file);
+            return 1;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NoSuchFileException) {
+                error.println("Error: File not found: " + file);
+            } else if (cause instanceof IOException || cause instanceof UncheckedIOException) {
+                error.println("Error: Unable to read file: " + file);
+            } else {
+                error.println("Error: Failed to bill file: " + file + ": " + cause);
+            }
+            return 1;
+        }
+
+        output.println("== " + file + " ==");
+        application.report(summaries, output);
+        for (UserBillingSummary summary : summaries) {
+            long[] total = totals.computeIfAbsent(summary.getUsername(),
+                    key -> new long[2 + summary.getBucketCount()]);
+            total[0] += summary.getSessionCount();
+            total[1] += summary.getTotalDurationSeconds();
+            for (int bucket = 0; bucket < summary.getBucketCount(); bucket++) {
+                total[bucket + 2] += summary.getBucketSeconds(bucket);
+            }
+        }
+        return 0;
+    }
+
+    static List<Path> expand(String input) throws IOException {
+        int globStart = firstGlobCharacter(input);
+        if (globStart < 0) {
+            Path path = Paths.get(input);
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> children = Files.list(path)) {
+                    return children.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+                }
+            }
+            if (!Files.exists(path)) {
+                throw new NoSuchFileException(input);
+            }
+            List<Path> single = new ArrayList<>();
+            single.add(path);
+            return single;
+        }
+
+        int baseEnd = Math.max(input.lastIndexOf('/', globStart), input.lastIndexOf('\\', globStart));
+        Path base = baseEnd < 0 ? Paths.get(".") : Paths.get(input.substring(0, baseEnd + 1));
+        String pattern = input.substring(baseEnd + 1);
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        if (!Files.isDirectory(base)) {
+            throw new NoSuchFileException(input);
+        }
+        try (Stream<Path> candidates = Files.walk(base)) {
+            return candidates
+                    .filter(Files::isRegularFile)
+                    .filter(candidate -> matcher.matches(base.relativize(candidate)))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static int firstGlobCharacter(String input) {
+        for (int i = 0; i < input.length(); i++) {
+            if (GLOB_CHARACTERS.indexOf(input.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
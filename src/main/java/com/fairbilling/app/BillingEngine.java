@@ -0,0 +1,185 @@
+package com.fairbilling.app;
+
+import java.util.List;
+import java.util.Objects;
+
+import com.fairbilling.domain.EntryBatch;
+import com.fairbilling.domain.UserBillingSummary;
+import com.fairbilling.io.LogLineScanner;
+import com.fairbilling.io.ParsedLine;
+import com.fairbilling.service.BillingCalculator;
+import com.fairbilling.service.BillingSession;
+import com.fairbilling.util.UsernameTable;
+
+/**
+ * Push-style billing for events that are already in memory, such as inside an ingestion pipeline.
+ *
+ * <p>Events can be pushed as raw log lines, as a time with a username held in bytes, as a time with a user id from
+ * {@link #userId(String)}, or as {@link EntryBatch}es of such ids. None of these allocate per event; only a user's
+ * first event stores its name. Like a log file, the engine drops events whose time goes backwards, so pushing a log's
+ * lines bills them exactly like {@link FairBilling} bills the file.
+ *
+ * <p>{@link #snapshot()} returns provisional summaries and {@link #finish()} final ones. After {@link #reset()} the
+ * engine bills a new, independent stream. Instances are not thread-safe.
+ */
+public final class BillingEngine {
+
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+    private final BillingCalculator billingCalculator;
+    private final LogLineScanner lineScanner = new LogLineScanner();
+    private final ParsedLine line = new ParsedLine();
+    private UsernameTable usernames;
+    private BillingSession session;
+    private int lastTimestamp;
+    private long acceptedEvents;
+    private long rejectedEvents;
+    private boolean finished;
+
+    public BillingEngine() {
+        this(new BillingCalculator());
+    }
+
+    /**
+     * An engine whose sessions come from {@code billingCalculator}, for example to break seconds down into buckets.
+     */
+    public BillingEngine(BillingCalculator billingCalculator) {
+        this.billingCalculator = Objects.requireNonNull(billingCalculator, "billingCalculator");
+        reset();
+    }
+
+    /**
+     * Discards all events so that the engine starts billing a new stream.
+     */
+    public void reset() {
+        usernames = new UsernameTable();
+        session = billingCalculator.newSession(usernames);
+        lastTimestamp = -1;
+        acceptedEvents = 0;
+        rejectedEvents = 0;
+        finished = false;
+    }
+
+    /**
+     * The id of {@code username} in this stream, for {@link #accept(int, int, boolean)} and batches. Ids are lost on
+     * {@link #reset()}.
+     */
+    public int userId(String username) {
+        Objects.requireNonNull(username, "username");
+        return usernames.resolve(username);
+    }
+
+    public UsernameTable getUsernames() {
+        return usernames;
+    }
+
+    /**
+     * Pushes one log line, {@code buffer[from..to)} without its line terminator.
+     *
+     * @return whether the line was billed, rather than dropped as malformed or out of order
+     */
+    public boolean acceptLine(byte[] buffer, int from, int to) {
+        Objects.requireNonNull(buffer, "buffer");
+        if (!lineScanner.scan(buffer, from, to, line)) {
+            ensureNotFinished();
+            rejectedEvents++;
+            return false;
+        }
+        return accept(line.getSecondsSinceMidnight(), line.getBuffer(), line.getUsernameStart(),
+                line.getUsernameEnd(), line.isStartEvent());
+    }
+
+    /**
+     * Pushes one event whose username is {@code username[from..to)}.
+     *
+     * @return whether the event was billed, rather than dropped as out of order
+     */
+    public boolean accept(int secondsSinceMidnight, byte[] username, int from, int to, boolean startEvent) {
+        Objects.requireNonNull(username, "username");
+        if (!inOrder(secondsSinceMidnight)) {
+            return false;
+        }
+        session.accept(secondsSinceMidnight, usernames.resolve(username, from, to), startEvent);
+        return true;
+    }
+
+    /**
+     * Pushes one event of a user resolved with {@link #userId(String)}.
+     *
+     * @return whether the event was billed, rather than dropped as out of order
+     */
+    public boolean accept(int secondsSinceMidnight, int userId, boolean startEvent) {
+        if (userId < 0 || userId >= usernames.size()) {
+            throw new IllegalArgumentException("Unknown user id: " + userId);
+        }
+        if (!inOrder(secondsSinceMidnight)) {
+            return false;
+        }
+        session.accept(secondsSinceMidnight, userId, startEvent);
+        return true;
+    }
+
+    /**
+     * Pushes a batch whose user ids come from {@link #userId(String)} or {@link #getUsernames()}.
+     *
+     * @return the number of events billed; the others were out of order
+     */
+    public int accept(EntryBatch batch) {
+        Objects.requireNonNull(batch, "batch");
+        int billed = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            if (accept(batch.getSecondsSinceMidnight(i), batch.getUserId(i), batch.isStartEvent(i))) {
+                billed++;
+            }
+        }
+        return billed;
+    }
+
+    public long getAcceptedEvents() {
+        return acceptedEvents;
+    }
+
+    /**
+     * Lines that were malformed and events that were out of order.
+     */
+    public long getRejectedEvents() {
+        return rejectedEvents;
+    }
+
+    /**
+     * Provisional summaries as if the stream ended now; the engine keeps accepting events.
+     */
+    public List<UserBillingSummary> snapshot() {
+        ensureNotFinished();
+        return session.snapshot();
+    }
+
+    /**
+     * Final summaries of the stream. The engine accepts no more events until {@link #reset()}.
+     */
+    public List<UserBillingSummary> finish() {
+        ensureNotFinished();
+        finished = true;
+        return session.finish();
+    }
+
+    private boolean inOrder(int secondsSinceMidnight) {
+        ensureNotFinished();
+        if (secondsSinceMidnight < 0 || secondsSinceMidnight >= SECONDS_PER_DAY) {
+            throw new IllegalArgumentException("secondsSinceMidnight must be within one day: " + secondsSinceMidnight);
+        }
+        if (secondsSinceMidnight < lastTimestamp) {
+            rejectedEvents++;
+            return false;
+        }
+        lastTimestamp = secondsSinceMidnight;
+        acceptedEvents++;
+        return true;
+    }
+
+    private void ensureNotFinished() {
+        if (finished) {
+            throw new IllegalStateException("billing engine has already been finished; reset it first");
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.fairbilling.app;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import com.fairbilling.domain.UserBillingSummary;
+import com.fairbilling.metrics.BillingMetrics;
+import com.fairbilling.report.ReportFormat;
+import com.fairbilling.report.StatsPrinter;
+import com.fairbilling.report.SummaryQuery;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Long-running billing service on the JDK's built-in HTTP server, so that every request is billed by the same
+ * warmed-up parser and calculator instead of a freshly started JVM.
+ *
+ * <p>{@code POST /bill} bills the uploaded log, inflating it first when sent with {@code Content-Encoding: gzip}.
+ * {@code GET /bill?path=FILE} bills a file below the configured root directory; without a root, local files are not
+ * served. Both accept the report options {@code format}, {@code top}, {@code sort}, {@code min-sessions} and
+ * {@code min-seconds} as query parameters. {@code GET /metrics} returns the {@code --stats} lines.
+ *
+ * <p>Billing runs on a fixed pool of workers with a bounded queue. Admission is decided up front: once every worker
+ * and queue slot is taken, further requests are answered with {@code 503} instead of piling up. Each admitted
+ * request's latency, from admission until its response is written, is recorded in {@link BillingMetrics} and
+ * returned in a {@code Server-Timing} header.
+ */
+final class BillingServer implements AutoCloseable {
+
+    static final String BILL_PATH = "/bill";
+    static final String METRICS_PATH = "/metrics";
+
+    private static final Set<String> REQUEST_OPTIONS = new HashSet<>(Arrays.asList(
+            "format", "top", "sort", "min-sessions", "min-seconds", "path"));
+    private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+    private static final int WARM_UP_ROUNDS = 5;
+
+    private final FairBilling application;
+    private final BillingMetrics metrics;
+    private final Path root;
+    private final ThreadPoolExecutor workers;
+    private final Semaphore admissions;
+    private final HttpServer server;
+
+    /**
+     * Binds the server without starting it. {@code root} may be {@code null} to serve uploads only.
+     */
+    BillingServer(FairBilling application, InetSocketAddress address, int threads, int maxQueued, Path root)
+            throws IOException {
+        this.application = Objects.requireNonNull(application, "application");
+        Objects.requireNonNull(address, "address");
+        if (threads <= 0 || maxQueued < 0) {
+            throw new IllegalArgumentException("threads must be positive and maxQueued not negative");
+        }
+        this.metrics = application.getMetrics();
+        this.root = root == null ? null : root.toRealPath();
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, maxQueued)), new WorkerThreadFactory());
+        this.admissions = new Semaphore(threads + maxQueued);
+        this.server = HttpServer.create(address, 0);
+        // Handlers only admit requests and hand them to the workers, so they can run on the dispatcher thread.
+        server.setExecutor(null);
+        server.createContext(BILL_PATH, this::admit);
+        server.createContext(METRICS_PATH, this::serveMetrics);
+    }
+
+    void start() {
+        server.start();
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Bills a synthetic log a few times on a throwaway application, so that the hot paths are compiled before the
+     * first real request and the service's metrics stay untouched.
+     */
+    void warmUp() throws IOException {
+        LogSegment segment = new LogSegmentGenerator(new LogGenerator.Options()).generate(0);
+        FairBilling warmUp = new FairBilling();
+        for (int round = 0; round < WARM_UP_ROUNDS; round++) {
+            List<UserBillingSummary> summaries =
+                    warmUp.bill(new ByteArrayInputStream(segment.bytes(), 0, segment.length()));
+            for (ReportFormat format : ReportFormat.values()) {
+                format.newWriter().write(summaries, Channels.newChannel(new ByteArrayOutputStream()));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        workers.shutdownNow();
+    }
+
+    private void admit(HttpExchange exchange) {
+        long admitted = System.nanoTime();
+        if (!admissions.tryAcquire()) {
+            metrics.recordRejectedRequest();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            respondError(exchange, 503, "Too many billing requests in progress");
+            exchange.close();
+            return;
+        }
+        try {
+            workers.execute(() -> {
+                try {
+                    serve(exchange, admitted);
+                } finally {
+                    admissions.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Only happens while shutting down; the semaphore keeps the queue from overflowing.
+            admissions.release();
+            respondError(exchange, 503, "Billing service is shutting down");
+            exchange.close();
+        }
+    }
+
+    private void serve(HttpExchange exchange, long admitted) {
+        int status = 500;
+        String message = null;
+        try {
+            CommandLine request = parseQuery(exchange.getRequestURI().getRawQuery());
+            ReportFormat format = ReportFormat.fromName(request.option("format", "text"));
+            SummaryQuery query = FairBilling.query(request);
+            List<UserBillingSummary> summaries = null;
+            if ("POST".equals(exchange.getRequestMethod()) && !request.hasOption("path")) {
+                summaries = application.bill(requestBody(exchange));
+            } else if ("GET".equals(exchange.getRequestMethod()) && request.hasOption("path")) {
+                summaries = application.bill(localFile(request.option("path", "")));
+            } else {
+                status = 405;
+                message = "Use POST " + BILL_PATH + " with a log, or GET " + BILL_PATH + "?path=FILE";
+            }
+            if (summaries != null) {
+                long reportStarted = System.nanoTime();
+                exchange.getResponseHeaders().set("Content-Type", format.getContentType());
+                exchange.getResponseHeaders().set("Server-Timing",
+                        String.format(Locale.ROOT, "bill;dur=%.1f", (reportStarted - admitted) / 1e6));
+                exchange.sendResponseHeaders(200, 0);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    format.newWriter().write(query.selectsAll() ? summaries : query.select(summaries),
+                            Channels.newChannel(body));
+                    // Record before the final chunk goes out, so that a client never sees a request not yet counted.
+                    long finished = System.nanoTime();
+                    metrics.addReportNanos(finished - reportStarted);
+                    metrics.recordRequest(finished - admitted, true);
+                    status = 200;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            status = 400;
+            message = e.getMessage();
+        } catch (NoSuchFileException e) {
+            status = 404;
+            message = "File not found: " + e.getFile();
+        } catch (AccessDeniedException e) {
+            status = 403;
+            message = e.getReason() != null ? e.getReason() : "Access denied: " + e.getFile();
+        } catch (IOException | RuntimeException e) {
+            message = "Unable to bill log: " + e;
+        } finally {
+            if (status != 200) {
+                metrics.recordRequest(System.nanoTime() - admitted, false);
+                respondError(exchange, status, message);
+            }
+            exchange.close();
+        }
+    }
+
+    private void serveMetrics(HttpExchange exchange) {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                respondError(exchange, 405, "Use GET " + METRICS_PATH);
+                return;
+            }
+            ByteArrayOutputStream stats = new ByteArrayOutputStream();
+            PrintStream output = new PrintStream(stats, false, StandardCharsets.UTF_8.name());
+            new StatsPrinter().print(metrics, output);
+            output.flush();
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+            respond(exchange, 200, stats.toByteArray());
+        } catch (IOException e) {
+            // The client went away; nothing left to tell it.
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static InputStream requestBody(HttpExchange exchange) throws IOException {
+        InputStream body = exchange.getRequestBody();
+        String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        if (encoding == null || encoding.equalsIgnoreCase("identity")) {
+            return body;
+        }
+        if (encoding.equalsIgnoreCase("gzip")) {
+            return new GZIPInputStream(body, INPUT_BUFFER_SIZE);
+        }
+        throw new IllegalArgumentException("Unsupported Content-Encoding: " + encoding);
+    }
+
+    /**
+     * Resolves a requested file below the root. The path is checked before it touches the file system, so that a
+     * request cannot probe which files exist outside the root, and again once links are followed, so that none can
+     * lead outside it.
+     */
+    private Path localFile(String requested) throws IOException {
+        if (root == null) {
+            throw new AccessDeniedException(requested, null, "Local files are not served without a root directory");
+        }
+        Path file = root.resolve(requested).normalize();
+        if (file.startsWith(root)) {
+            file = file.toRealPath();
+        }
+        if (!file.startsWith(root)) {
+            throw new AccessDeniedException(requested, null, "Path is outside the served directory: " + requested);
+        }
+        return file;
+    }
+
+    private static CommandLine parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        List<String> args = new ArrayList<>();
+        if (rawQuery != null && !rawQuery.isEmpty()) {
+            for (String parameter : rawQuery.split("&")) {
+                if (!parameter.isEmpty()) {
+                    args.add("--" + URLDecoder.decode(parameter, StandardCharsets.UTF_8.name()));
+                }
+            }
+        }
+        return CommandLine.parse(args.toArray(new String[0]), REQUEST_OPTIONS);
+    }
+
+    private static void respondError(HttpExchange exchange, int status, String message) {
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+            respond(exchange, status, (message + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            // Headers were already sent or the client went away; closing the exchange is all that is left.
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+
+    /**
+     * Names billing workers and keeps them from holding the JVM open.
+     */
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger created = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "fair-billing-server-" + created.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.fairbilling.app;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+import com.fairbilling.io.ScanPosition;
+import com.fairbilling.service.BillingState;
+
+/**
+ * Resumable progress of a billing run: where to continue reading and the billing state accumulated up to there.
+ *
+ * <p>Files are written to a sibling temporary file, forced to disk and then moved over the target atomically, so a
+ * crash at any moment leaves either the previous checkpoint or the new one. A checkpoint records the size and
+ * modification time of the log it was taken from, so that it is never resumed against a replaced or edited log.
+ */
+final class Checkpoint {
+
+    private static final int MAGIC = 0x4642434B;
+    private static final int VERSION = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ScanPosition position;
+    private final BillingState state;
+    private final long logSize;
+    private final long logModified;
+
+    Checkpoint(ScanPosition position, BillingState state, long logSize, long logModified) {
+        this.position = Objects.requireNonNull(position, "position");
+        this.state = Objects.requireNonNull(state, "state");
+        this.logSize = logSize;
+        this.logModified = logModified;
+    }
+
+    ScanPosition getPosition() {
+        return position;
+    }
+
+    BillingState getState() {
+        return state;
+    }
+
+    /**
+     * Whether {@code logFile} is still the log this checkpoint was taken from.
+     */
+    boolean matches(Path logFile) throws IOException {
+        return logSize == Files.size(logFile) && logModified == Files.getLastModifiedTime(logFile).toMillis();
+    }
+
+    void write(Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(logSize);
+            output.writeLong(logModified);
+            output.writeLong(position.getOffset());
+            output.writeInt(position.getLastTimestamp());
+            state.writeTo(output);
+            output.flush();
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static Checkpoint read(Path file) throws IOException {
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Not a checkpoint file: " + file);
+            }
+            long logSize = input.readLong();
+            long logModified = input.readLong();
+            long offset = input.readLong();
+            int lastTimestamp = input.readInt();
+            if (offset < 0) {
+                throw new IOException("Corrupt checkpoint file: " + file);
+            }
+            return new Checkpoint(new ScanPosition(offset, lastTimestamp), BillingState.readFrom(input), logSize,
+                    logModified);
+        }
+    }
+}
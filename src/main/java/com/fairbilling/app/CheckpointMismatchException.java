@@ -0,0 +1,15 @@
+package com.fairbilling.app;
+
+import java.io.IOException;
+
+/**
+ * Signals that a checkpoint was taken from a different version of the log than the one being resumed.
+ */
+final class CheckpointMismatchException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    CheckpointMismatchException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,71 @@
+package com.fairbilling.app;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Writes checkpoints on a background thread so that the parsing thread never waits for the disk.
+ *
+ * <p>Only the newest submitted checkpoint matters: one submitted while an earlier one is still queued replaces it.
+ * Write failures are reported when the writer is closed.
+ */
+final class CheckpointWriter implements Closeable {
+
+    private final Path file;
+    private final ExecutorService executor;
+    private final AtomicReference<Checkpoint> pending = new AtomicReference<>();
+    private volatile IOException failure;
+
+    CheckpointWriter(Path file) {
+        this.file = Objects.requireNonNull(file, "file");
+        this.executor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "fair-billing-checkpoint-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void submit(Checkpoint checkpoint) {
+        Objects.requireNonNull(checkpoint, "checkpoint");
+        if (pending.getAndSet(checkpoint) == null) {
+            executor.execute(this::writePending);
+        }
+    }
+
+    private void writePending() {
+        Checkpoint checkpoint = pending.getAndSet(null);
+        if (checkpoint == null || failure != null) {
+            return;
+        }
+        try {
+            checkpoint.write(file);
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * Waits for queued checkpoints to reach the disk.
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                // Keep waiting: abandoning a write half way would only leave the temporary file behind.
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing checkpoint: " + file, e);
+        }
+        if (failure != null) {
+            throw new IOException("Unable to write checkpoint: " + file, failure);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.fairbilling.app;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Objects;
+
+import com.fairbilling.domain.SummaryCollector;
+import com.fairbilling.domain.UserBillingSummary;
+import com.fairbilling.io.LogFileParser;
+import com.fairbilling.io.ScanPosition;
+import com.fairbilling.service.BillingCalculator;
+import com.fairbilling.service.BillingSession;
+
+/**
+ * Bills a single log while periodically saving a {@link Checkpoint}, optionally resuming from an earlier one.
+ *
+ * <p>Each checkpoint captures the billing state on the parsing thread, which only copies primitive arrays, and is
+ * serialised by a {@link CheckpointWriter}. The checkpoint file is removed once the run completes, so a later
+ * {@code --resume} of the same command starts from the beginning. A checkpoint taken from a log whose size or
+ * modification time has since changed is refused with a {@link CheckpointMismatchException}.
+ */
+final class CheckpointedBilling {
+
+    private final LogFileParser logFileParser;
+    private final BillingCalculator billingCalculator;
+
+    CheckpointedBilling(LogFileParser logFileParser, BillingCalculator billingCalculator) {
+        this.logFileParser = Objects.requireNonNull(logFileParser, "logFileParser");
+        this.billingCalculator = Objects.requireNonNull(billingCalculator, "billingCalculator");
+    }
+
+    List<UserBillingSummary> run(Path path, Path checkpointFile, boolean resume, long intervalBytes)
+            throws IOException {
+        return run(path, checkpointFile, resume, intervalBytes, SummaryCollector.all());
+    }
+
+    /**
+     * Bills like {@link #run(Path, Path, boolean, long)}, keeping only the summaries that {@code collector} wants.
+     */
+    List<UserBillingSummary> run(Path path, Path checkpointFile, boolean resume, long intervalBytes,
+            SummaryCollector collector) throws IOException {
+        Objects.requireNonNull(path, "path");
+        Objects.requireNonNull(checkpointFile, "checkpointFile");
+
+        long logSize = Files.size(path);
+        long logModified = Files.getLastModifiedTime(path).toMillis();
+        ScanPosition start = ScanPosition.START;
+        BillingSession session;
+        if (resume && Files.exists(checkpointFile)) {
+            Checkpoint checkpoint = Checkpoint.read(checkpointFile);
+            if (!checkpoint.matches(path)) {
+                throw new CheckpointMismatchException("Checkpoint " + checkpointFile
+                        + " was taken from a different version of " + path);
+            }
+            start = checkpoint.getPosition();
+            session = billingCalculator.restoreSession(checkpoint.getState());
+        } else {
+            session = billingCalculator.newSession();
+        }
+
+        TimedBilling billing = new TimedBilling(session, logFileParser.getMetrics());
+        try (CheckpointWriter writer = new CheckpointWriter(checkpointFile)) {
+            logFileParser.scan(path, start, session.getUsernames(), billing, intervalBytes,
+                    position -> writer.submit(new Checkpoint(position, session.captureState(), logSize,
+                            logModified)));
+        }
+        List<UserBillingSummary> summaries = billing.finish(collector);
+        Files.deleteIfExists(checkpointFile);
+        return summaries;
+    }
+}
@@ -0,0 +1,77 @@
+package com.fairbilling.app;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Parsed command line: positional arguments plus {@code --name} and {@code --name=value} options.
+ */
+final class CommandLine {
+
+    private final List<String> arguments;
+    private final Map<String, String> options;
+
+    private CommandLine(List<String> arguments, Map<String, String> options) {
+        this.arguments = Collections.unmodifiableList(arguments);
+        this.options = Collections.unmodifiableMap(options);
+    }
+
+    static CommandLine parse(String[] args, Set<String> knownOptions) {
+        Objects.requireNonNull(args, "args");
+        Objects.requireNonNull(knownOptions, "knownOptions");
+
+        List<String> arguments = new ArrayList<>();
+        Map<String, String> options = new LinkedHashMap<>();
+        boolean optionsEnded = false;
+        for (String arg : args) {
+            if (optionsEnded || !arg.startsWith("--")) {
+                arguments.add(arg);
+            } else if (arg.equals("--")) {
+                optionsEnded = true;
+            } else {
+                int separator = arg.indexOf('=');
+                String name = separator < 0 ? arg.substring(2) : arg.substring(2, separator);
+                String value = separator < 0 ? "" : arg.substring(separator + 1);
+                if (!knownOptions.contains(name)) {
+                    throw new IllegalArgumentException("Unrecognised option: --" + name);
+                }
+                options.put(name, value);
+            }
+        }
+        return new CommandLine(arguments, options);
+    }
+
+    List<String> arguments() {
+        return arguments;
+    }
+
+    boolean hasOption(String name) {
+        return options.containsKey(name);
+    }
+
+    String option(String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
+    int intOption(String name, int defaultValue) {
+        String value = options.get(name);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed <= 0) {
+                throw new IllegalArgumentException("--" + name + " must be positive");
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("--" + name + " must be a number: " + value);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.fairbilling.app;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.fairbilling.domain.EntryBatch;
+import com.fairbilling.domain.UserBillingSummary;
+
+/**
+ * Reference billing model the generator uses to predict the report for the entries it emits.
+ *
+ * <p>Deliberately written as a direct transcription of the pairing rules, independent of
+ * {@link com.fairbilling.service.BillingSession}, so that it can serve as an oracle in scale tests.
+ */
+final class ExpectedBilling {
+
+    private final int[] firstSeenOrder;
+    private final boolean[] seen;
+    private final int[] sessions;
+    private final int[] seconds;
+    private final int[][] openStarts;
+    private final int[] openStartCounts;
+    private final int[] orphanEndCounts;
+    private final long[] orphanEndSums;
+    private int seenCount;
+    private int earliest = -1;
+    private int latest = -1;
+
+    ExpectedBilling(int users) {
+        firstSeenOrder = new int[users];
+        seen = new boolean[users];
+        sessions = new int[users];
+        seconds = new int[users];
+        openStarts = new int[users][];
+        openStartCounts = new int[users];
+        orphanEndCounts = new int[users];
+        orphanEndSums = new long[users];
+    }
+
+    void accept(EntryBatch entries) {
+        for (int i = 0; i < entries.size(); i++) {
+            int timestamp = entries.getSecondsSinceMidnight(i);
+            int user = entries.getUserId(i);
+            if (earliest < 0) {
+                earliest = timestamp;
+            }
+            latest = timestamp;
+            if (!seen[user]) {
+                seen[user] = true;
+                firstSeenOrder[seenCount++] = user;
+            }
+
+            if (entries.isStartEvent(i)) {
+                pushStart(user, timestamp);
+            } else if (openStartCounts[user] > 0) {
+                int start = openStarts[user][--openStartCounts[user]];
+                sessions[user]++;
+                seconds[user] += timestamp - start;
+            } else {
+                orphanEndCounts[user]++;
+                orphanEndSums[user] += timestamp;
+            }
+        }
+    }
+
+    List<UserBillingSummary> finish() {
+        List<UserBillingSummary> summaries = new ArrayList<>(seenCount);
+        for (int i = 0; i < seenCount; i++) {
+            int user = firstSeenOrder[i];
+            sessions[user] += orphanEndCounts[user];
+            seconds[user] += (int) (orphanEndSums[user] - (long) orphanEndCounts[user] * earliest);
+            for (int j = 0; j < openStartCounts[user]; j++) {
+                sessions[user]++;
+                seconds[user] += latest - openStarts[user][j];
+            }
+            summaries.add(new UserBillingSummary("USER" + user, sessions[user], seconds[user]));
+        }
+        return summaries;
+    }
+
+    private void pushStart(int user, int timestamp) {
+        int[] stack = openStarts[user];
+        if (stack == null) {
+            stack = new int[4];
+            openStarts[user] = stack;
+        } else if (openStartCounts[user] == stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+            openStarts[user] = stack;
+        }
+        stack[openStartCounts[user]++] = timestamp;
+    }
+}
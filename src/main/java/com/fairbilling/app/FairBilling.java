@@ -1,28 +1,90 @@
 package com.fairbilling.app;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
-import com.fairbilling.domain.LogEntry;
+import javax.management.JMException;
+
+import com.fairbilling.domain.SummaryCollector;
 import com.fairbilling.domain.UserBillingSummary;
+import com.fairbilling.io.BinaryLogWriter;
 import com.fairbilling.io.LogFileParser;
+import com.fairbilling.io.TimeIndex;
+import com.fairbilling.metrics.BillingMetrics;
+import com.fairbilling.report.ReportFormat;
 import com.fairbilling.report.ReportPrinter;
+import com.fairbilling.report.StatsPrinter;
+import com.fairbilling.report.SummaryOrder;
+import com.fairbilling.report.SummaryQuery;
+import com.fairbilling.service.BillingAggregator;
 import com.fairbilling.service.BillingCalculator;
+import com.fairbilling.service.MemoryBudgetExceededException;
+import com.fairbilling.service.SpilledSummaries;
+import com.fairbilling.service.SpillingBillingSession;
+import com.fairbilling.util.TimeParser;
+import com.fairbilling.util.UsernameTable;
 
 /**
  * Application entry point for the Fair Billing solution.
  */
 public final class FairBilling {
 
+    private static final long PARALLEL_SCAN_THRESHOLD = 64L * 1024 * 1024;
+    private static final String USAGE = "Usage: java com.fairbilling.app.FairBilling <log_file_path>\n"
+            + "       java com.fairbilling.app.FairBilling --batch [--aggregate] [--threads=N] <file|dir|glob>...\n"
+            + "       java com.fairbilling.app.FairBilling --follow [--interval=SECONDS] <log_file_path>\n"
+            + "       java com.fairbilling.app.FairBilling --convert=<binary_file> <log_file_path>\n"
+            + "       java com.fairbilling.app.FairBilling [--checkpoint=FILE] [--resume] <log_file_path>\n"
+            + "       java com.fairbilling.app.FairBilling --pipeline [--queue-depth=N] [--batch-size=N]"
+            + " <log_file_path>\n"
+            + "       java com.fairbilling.app.FairBilling --serve [--port=N] [--host=ADDRESS] [--threads=N]"
+            + " [--max-queued=N] [--root=DIR]\n"
+            + "       java com.fairbilling.app.FairBilling --window=HH:MM:SS-HH:MM:SS [--index=FILE] <log_file_path>\n"
+            + "       java com.fairbilling.app.FairBilling --memory-budget=MB [--spill-dir=DIR] <log_file_path>\n"
+            + "       java com.fairbilling.app.FairBilling --merge [--shards=N] <log_file_path>...\n"
+            + "Add --cache=DIR [--cache-size=MB] to reuse the results of single, pipelined, batch or service runs.\n"
+            + "Add --shards=N to a single or pipelined run to aggregate users on N threads.\n"
+            + "Add --buckets[=SECONDS] to break each user's seconds down by hour, or by buckets of SECONDS.\n"
+            + "Add --format=text|csv|jsonl to choose the report format, --sort=seconds|sessions to rank users,\n"
+            + "--top=N to keep the N highest ranked and --min-sessions=N or --min-seconds=N to drop users below.\n"
+            + "Add --stats to print run metrics to stderr, or --jmx to publish them as an MBean.";
+    private static final Set<String> OPTIONS = new HashSet<>(Arrays.asList(
+            "batch", "aggregate", "threads", "follow", "interval", "convert", "checkpoint", "resume", "stats", "jmx",
+            "pipeline", "queue-depth", "batch-size", "shards", "format", "top", "sort", "min-sessions", "min-seconds",
+            "serve", "host", "port", "max-queued", "root", "window", "index",
+            "cache", "cache-size", "memory-budget", "spill-dir", "buckets", "merge"));
+    private static final int DEFAULT_FOLLOW_INTERVAL_SECONDS = 5;
+    private static final int DEFAULT_QUEUE_DEPTH = 4;
+    private static final int DEFAULT_BATCH_SIZE = 4096;
+    private static final int DEFAULT_PORT = 8080;
+    private static final String JMX_REMOTE_PROPERTY = "com.sun.management.jmxremote";
+    private static final long CHECKPOINT_INTERVAL_BYTES = 256L * 1024 * 1024;
+    private static final int DEFAULT_CACHE_SIZE_MB = 256;
+    private static final int DEFAULT_MEMORY_BUDGET_MB = 512;
+    private static final int DEFAULT_BUCKET_WIDTH_SECONDS = 3600;
+
     private final LogFileParser logFileParser;
     private final BillingCalculator billingCalculator;
     private final ReportPrinter reportPrinter;
+    private final ResultCache resultCache;
 
     public FairBilling() {
         this(new LogFileParser(), new BillingCalculator(), new ReportPrinter());
@@ -31,41 +93,617 @@ public final class FairBilling {
     FairBilling(LogFileParser logFileParser,
             BillingCalculator billingCalculator,
             ReportPrinter reportPrinter) {
+        this(logFileParser, billingCalculator, reportPrinter, null);
+    }
+
+    private FairBilling(LogFileParser logFileParser,
+            BillingCalculator billingCalculator,
+            ReportPrinter reportPrinter,
+            ResultCache resultCache) {
         this.logFileParser = Objects.requireNonNull(logFileParser, "logFileParser");
         this.billingCalculator = Objects.requireNonNull(billingCalculator, "billingCalculator");
         this.reportPrinter = Objects.requireNonNull(reportPrinter, "reportPrinter");
+        this.resultCache = resultCache;
     }
 
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.err.println("Usage: java com.fairbilling.app.FairBilling <log_file_path>");
-            System.exit(1);
-        }
-
         FairBilling application = new FairBilling();
-        int exitCode = application.run(args[0], System.out, System.err);
+        int exitCode = application.execute(args, System.out, System.err);
         if (exitCode != 0) {
             System.exit(exitCode);
         }
     }
 
+    public BillingMetrics getMetrics() {
+        return logFileParser.getMetrics();
+    }
+
+    int execute(String[] args, PrintStream output, PrintStream error) {
+        CommandLine commandLine;
+        FairBilling application;
+        try {
+            commandLine = CommandLine.parse(args, OPTIONS);
+            application = withReport(ReportFormat.fromName(commandLine.option("format", "text")),
+                    query(commandLine));
+            if (commandLine.hasOption("buckets")) {
+                application = application.withBuckets(
+                        commandLine.intOption("buckets", DEFAULT_BUCKET_WIDTH_SECONDS));
+            }
+            if (commandLine.hasOption("cache")) {
+                String directory = commandLine.option("cache", null);
+                if (directory == null) {
+                    throw new IllegalArgumentException("--cache needs a directory");
+                }
+                long maxBytes = commandLine.intOption("cache-size", DEFAULT_CACHE_SIZE_MB) * 1024L * 1024;
+                application = application.withCache(new ResultCache(Paths.get(directory), maxBytes, getMetrics()));
+            }
+        } catch (IllegalArgumentException e) {
+            error.println("Error: " + e.getMessage());
+            error.println(USAGE);
+            return 1;
+        } catch (IOException e) {
+            error.println("Error: Unable to open result cache: " + e.getMessage());
+            return 1;
+        }
+        if (commandLine.hasOption("jmx") || System.getProperty(JMX_REMOTE_PROPERTY) != null) {
+            // Starting the platform MBean server costs a few hundred milliseconds, so only pay for it on request.
+            try {
+                getMetrics().register();
+            } catch (JMException e) {
+                error.println("Warning: Unable to register metrics MBean: " + e.getMessage());
+            }
+        }
+        int exitCode = application.execute(commandLine, output, error);
+        if (commandLine.hasOption("stats")) {
+            output.flush();
+            new StatsPrinter().print(getMetrics(), error);
+        }
+        return exitCode;
+    }
+
+    /**
+     * Shares the parser, and with it the metrics, but prints reports in the given format and selection.
+     */
+    private FairBilling withReport(ReportFormat format, SummaryQuery query) {
+        if (format == ReportFormat.TEXT && query.selectsAll()) {
+            return this;
+        }
+        return new FairBilling(logFileParser, billingCalculator, new ReportPrinter(format.newWriter(), query),
+                resultCache);
+    }
+
+    /**
+     * Shares the parser, report and cache, but breaks billed seconds down into time-of-day buckets.
+     */
+    private FairBilling withBuckets(int bucketWidthSeconds) {
+        return new FairBilling(logFileParser, new BillingCalculator(bucketWidthSeconds), reportPrinter, resultCache);
+    }
+
+    /**
+     * Shares the parser and report, but answers repeated billing of unchanged logs from {@code cache}.
+     */
+    private FairBilling withCache(ResultCache cache) {
+        return new FairBilling(logFileParser, billingCalculator, reportPrinter, cache);
+    }
+
+    static SummaryQuery query(CommandLine commandLine) {
+        SummaryQuery query = SummaryQuery.all()
+                .withMinSessions(commandLine.intOption("min-sessions", 0))
+                .withMinSeconds(commandLine.intOption("min-seconds", 0));
+        String sort = commandLine.option("sort", null);
+        if (sort != null) {
+            query = query.sortedBy(SummaryOrder.fromName(sort));
+        }
+        if (commandLine.hasOption("top")) {
+            query = query.top(commandLine.intOption("top", 0));
+        }
+        return query;
+    }
+
+    private int execute(CommandLine commandLine, PrintStream output, PrintStream error) {
+        int shards;
+        try {
+            if (commandLine.hasOption("buckets") && (commandLine.hasOption("serve") || commandLine.hasOption("cache")
+                    || commandLine.hasOption("checkpoint") || commandLine.hasOption("resume")
+                    || commandLine.hasOption("memory-budget") || commandLine.hasOption("convert"))) {
+                throw new IllegalArgumentException("--buckets applies to single, pipelined, window, follow and batch"
+                        + " runs");
+            }
+            if (commandLine.hasOption("cache-size") && !commandLine.hasOption("cache")) {
+                throw new IllegalArgumentException("--cache-size requires --cache");
+            }
+            if (commandLine.hasOption("cache") && (commandLine.hasOption("follow") || commandLine.hasOption("convert")
+                    || commandLine.hasOption("checkpoint") || commandLine.hasOption("resume")
+                    || commandLine.hasOption("window") || commandLine.hasOption("memory-budget")
+                    || commandLine.hasOption("merge"))) {
+                throw new IllegalArgumentException("--cache applies to single, pipelined, batch and service runs");
+            }
+            if (commandLine.hasOption("serve")) {
+                if (!commandLine.arguments().isEmpty() || commandLine.hasOption("batch")
+                        || commandLine.hasOption("follow") || commandLine.hasOption("convert")
+                        || commandLine.hasOption("checkpoint") || commandLine.hasOption("resume")
+                        || commandLine.hasOption("window") || commandLine.hasOption("memory-budget")
+                        || commandLine.hasOption("merge") || commandLine.hasOption("shards")
+                        || commandLine.hasOption("pipeline") || commandLine.hasOption("queue-depth")
+                        || commandLine.hasOption("batch-size")) {
+                    throw new IllegalArgumentException("--serve takes no log file and runs on its own");
+                }
+                int threads = commandLine.intOption("threads", Runtime.getRuntime().availableProcessors());
+                return serve(commandLine.option("host", null), commandLine.intOption("port", DEFAULT_PORT), threads,
+                        commandLine.intOption("max-queued", threads * 4), commandLine.option("root", null), error);
+            }
+            if (commandLine.hasOption("port") || commandLine.hasOption("host")
+                    || commandLine.hasOption("max-queued") || commandLine.hasOption("root")) {
+                throw new IllegalArgumentException("--port, --host, --max-queued and --root require --serve");
+            }
+            if (commandLine.hasOption("merge")) {
+                if (commandLine.arguments().isEmpty() || commandLine.hasOption("batch")
+                        || commandLine.hasOption("aggregate") || commandLine.hasOption("threads")
+                        || commandLine.hasOption("follow") || commandLine.hasOption("interval")
+                        || commandLine.hasOption("convert") || commandLine.hasOption("checkpoint")
+                        || commandLine.hasOption("resume") || commandLine.hasOption("pipeline")
+                        || commandLine.hasOption("queue-depth") || commandLine.hasOption("batch-size")
+                        || commandLine.hasOption("window") || commandLine.hasOption("index")
+                        || commandLine.hasOption("memory-budget") || commandLine.hasOption("spill-dir")) {
+                    throw new IllegalArgumentException("--merge needs log files and applies to a single pass");
+                }
+                return runMerged(commandLine.arguments(), commandLine.intOption("shards", 1), output, error);
+            }
+            if (commandLine.hasOption("batch")) {
+                if (commandLine.arguments().isEmpty()) {
+                    throw new IllegalArgumentException("--batch needs at least one input");
+                }
+                int threads = commandLine.intOption("threads", Runtime.getRuntime().availableProcessors());
+                return new BatchBilling(this, threads)
+                        .run(commandLine.arguments(), commandLine.hasOption("aggregate"), output, error);
+            }
+            if (commandLine.arguments().size() != 1 || commandLine.hasOption("aggregate")
+                    || commandLine.hasOption("threads")) {
+                throw new IllegalArgumentException("expected a single log file path");
+            }
+            shards = commandLine.intOption("shards", 1);
+            if (shards > 1 && (commandLine.hasOption("convert") || commandLine.hasOption("checkpoint")
+                    || commandLine.hasOption("resume") || commandLine.hasOption("follow"))) {
+                throw new IllegalArgumentException("--shards applies to a single or pipelined run");
+            }
+            if (commandLine.hasOption("window")) {
+                if (shards > 1 || commandLine.hasOption("convert") || commandLine.hasOption("checkpoint")
+                        || commandLine.hasOption("resume") || commandLine.hasOption("pipeline")
+                        || commandLine.hasOption("follow") || commandLine.hasOption("interval")) {
+                    throw new IllegalArgumentException("--window applies to a sequential single run");
+                }
+                int[] window = parseWindow(commandLine.option("window", null));
+                String logFile = commandLine.arguments().get(0);
+                String indexFile = commandLine.option("index", logFile + ".tidx");
+                return runWindowed(logFile, indexFile, window[0], window[1], output, error);
+            }
+            if (commandLine.hasOption("index")) {
+                throw new IllegalArgumentException("--index requires --window");
+            }
+            if (commandLine.hasOption("memory-budget")) {
+                if (shards > 1 || commandLine.hasOption("convert") || commandLine.hasOption("checkpoint")
+                        || commandLine.hasOption("resume") || commandLine.hasOption("pipeline")
+                        || commandLine.hasOption("follow") || commandLine.hasOption("interval")) {
+                    throw new IllegalArgumentException("--memory-budget applies to a sequential single run");
+                }
+                long memoryBudget = commandLine.intOption("memory-budget", DEFAULT_MEMORY_BUDGET_MB) * 1024L * 1024;
+                String spillDirectory = commandLine.option("spill-dir", System.getProperty("java.io.tmpdir"));
+                return runSpilling(commandLine.arguments().get(0), memoryBudget, Paths.get(spillDirectory), output,
+                        error);
+            }
+            if (commandLine.hasOption("spill-dir")) {
+                throw new IllegalArgumentException("--spill-dir requires --memory-budget");
+            }
+            if (commandLine.hasOption("convert")) {
+                String target = commandLine.option("convert", null);
+                if (target == null || commandLine.hasOption("follow") || commandLine.hasOption("interval")
+                        || commandLine.hasOption("checkpoint") || commandLine.hasOption("resume")
+                        || commandLine.hasOption("pipeline")) {
+                    throw new IllegalArgumentException("--convert needs a target and cannot be combined");
+                }
+                return convert(commandLine.arguments().get(0), target, error);
+            }
+            if (commandLine.hasOption("checkpoint") || commandLine.hasOption("resume")) {
+                if (commandLine.hasOption("follow") || commandLine.hasOption("interval")
+                        || commandLine.hasOption("pipeline")) {
+                    throw new IllegalArgumentException("checkpoints apply to a sequential single run");
+                }
+                String logFile = commandLine.arguments().get(0);
+                String checkpointFile = commandLine.option("checkpoint", logFile + ".checkpoint");
+                return runCheckpointed(logFile, checkpointFile, commandLine.hasOption("resume"),
+                        CHECKPOINT_INTERVAL_BYTES, output, error);
+            }
+            if (commandLine.hasOption("pipeline")) {
+                if (commandLine.hasOption("follow") || commandLine.hasOption("interval")) {
+                    throw new IllegalArgumentException("--pipeline applies to a single run");
+                }
+                int queueDepth = commandLine.intOption("queue-depth", DEFAULT_QUEUE_DEPTH);
+                int batchSize = commandLine.intOption("batch-size", DEFAULT_BATCH_SIZE);
+                return runPipelined(commandLine.arguments().get(0), queueDepth, batchSize, shards, output, error);
+            }
+            if (commandLine.hasOption("queue-depth") || commandLine.hasOption("batch-size")) {
+                throw new IllegalArgumentException("--queue-depth and --batch-size require --pipeline");
+            }
+            if (commandLine.hasOption("follow")) {
+                int interval = commandLine.intOption("interval", DEFAULT_FOLLOW_INTERVAL_SECONDS);
+                return follow(commandLine.arguments().get(0), interval * 1000L, Long.MAX_VALUE, output, error);
+            }
+            if (commandLine.hasOption("interval")) {
+                throw new IllegalArgumentException("--interval requires --follow");
+            }
+        } catch (IllegalArgumentException e) {
+            error.println("Error: " + e.getMessage());
+            error.println(USAGE);
+            return 1;
+        }
+        return runSharded(commandLine.arguments().get(0), shards, output, error);
+    }
+
+    /**
+     * Parses {@code HH:MM:SS-HH:MM:SS} into its first and last second.
+     */
+    private static int[] parseWindow(String window) {
+        int separator = window == null ? -1 : window.indexOf('-');
+        if (separator < 0) {
+            throw new IllegalArgumentException("--window needs HH:MM:SS-HH:MM:SS");
+        }
+        OptionalInt start = TimeParser.parseToSeconds(window.substring(0, separator));
+        OptionalInt end = TimeParser.parseToSeconds(window.substring(separator + 1));
+        if (!start.isPresent() || !end.isPresent() || start.getAsInt() > end.getAsInt()) {
+            throw new IllegalArgumentException("invalid --window: " + window);
+        }
+        return new int[] {start.getAsInt(), end.getAsInt()};
+    }
+
+    /**
+     * Runs the billing service until the JVM is stopped; see {@link BillingServer}.
+     */
+    int serve(String host, int port, int threads, int maxQueued, String root, PrintStream error) {
+        InetSocketAddress address = host == null
+                ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+                : new InetSocketAddress(host, port);
+        try {
+            BillingServer server = new BillingServer(this, address, threads, maxQueued,
+                    root == null ? null : Paths.get(root));
+            Runtime.getRuntime().addShutdownHook(new Thread(server::close, "fair-billing-server-shutdown"));
+            server.warmUp();
+            server.start();
+            error.println("Billing service listening on port " + server.getPort());
+            new CountDownLatch(1).await();
+            return 0;
+        } catch (NoSuchFileException e) {
+            error.println("Error: Directory not found: " + root);
+            return 1;
+        } catch (IOException e) {
+            error.println("Error: Unable to start billing service: " + e.getMessage());
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+    }
+
+    int follow(String filePath, long intervalMillis, long maxRefreshes, PrintStream output, PrintStream error) {
+        Path path = Paths.get(filePath);
+        try {
+            new FollowBilling(logFileParser, billingCalculator, reportPrinter)
+                    .run(path, intervalMillis, maxRefreshes, output);
+            return 0;
+        } catch (NoSuchFileException e) {
+            error.println("Error: File not found: " + path);
+            return 1;
+        } catch (IOException e) {
+            error.println("Error: Unable to read file: " + path);
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+    }
+
+    int convert(String sourcePath, String targetPath, PrintStream error) {
+        Path source = Paths.get(sourcePath);
+        try {
+            new BinaryLogWriter(logFileParser).convert(source, Paths.get(targetPath));
+            return 0;
+        } catch (NoSuchFileException e) {
+            error.println("Error: File not found: " + source);
+            return 1;
+        } catch (IOException e) {
+            error.println("Error: Unable to convert file: " + source);
+            return 1;
+        }
+    }
+
+    int runCheckpointed(String filePath, String checkpointFile, boolean resume, long intervalBytes,
+            PrintStream output, PrintStream error) {
+        CheckpointedBilling billing = new CheckpointedBilling(logFileParser, billingCalculator);
+        return run(filePath, path -> billing.run(path, Paths.get(checkpointFile), resume, intervalBytes,
+                reportCollector()), output, error);
+    }
+
+    int runPipelined(String filePath, int queueDepth, int batchSize, int shards, PrintStream output,
+            PrintStream error) {
+        return run(filePath, path -> billPipelined(path, queueDepth, batchSize, shards, reportCollector()), output,
+                error);
+    }
+
+    int runWindowed(String filePath, String indexFile, int windowStart, int windowEnd, PrintStream output,
+            PrintStream error) {
+        return run(filePath, path -> billWindow(path, Paths.get(indexFile), windowStart, windowEnd,
+                reportCollector()), output, error);
+    }
+
+    int runSpilling(String filePath, long memoryBudget, Path spillDirectory, PrintStream output,
+            PrintStream error) {
+        return run(filePath, path -> billSpilling(path, memoryBudget, spillDirectory), output, error);
+    }
+
+    /**
+     * Bills several time-ordered logs, such as one per gateway, as a single log; see {@link #billMerged(List, int)}.
+     */
+    int runMerged(List<String> filePaths, int shards, PrintStream output, PrintStream error) {
+        Objects.requireNonNull(filePaths, "filePaths");
+        Objects.requireNonNull(output, "output");
+        Objects.requireNonNull(error, "error");
+
+        List<Path> paths = new ArrayList<>(filePaths.size());
+        for (String filePath : filePaths) {
+            paths.add(Paths.get(filePath));
+        }
+        try {
+            report(billMerged(paths, shards, reportCollector()), output);
+            return 0;
+        } catch (UncheckedIOException e) {
+            return reportMergeFailure(e.getCause(), paths, error);
+        } catch (IOException e) {
+            return reportMergeFailure(e, paths, error);
+        }
+    }
+
+    /**
+     * Reports why merged logs could not be billed, naming the failing file where the exception does.
+     */
+    private static int reportMergeFailure(IOException e, List<Path> paths, PrintStream error) {
+        if (e instanceof NoSuchFileException) {
+            error.println("Error: File not found: " + ((NoSuchFileException) e).getFile());
+        } else {
+            error.println("Error: Unable to merge files: " + (e.getMessage() == null ? paths : e.getMessage()));
+        }
+        return 1;
+    }
+
+    int runSharded(String filePath, int shards, PrintStream output, PrintStream error) {
+        return run(filePath, path -> bill(path, shards, reportCollector()), output, error);
+    }
+
     public int run(String filePath, PrintStream output, PrintStream error) {
+        return run(filePath, path -> bill(path, 1, reportCollector()), output, error);
+    }
+
+    private int run(String filePath, ReportBiller biller, PrintStream output, PrintStream error) {
         Objects.requireNonNull(filePath, "filePath");
         Objects.requireNonNull(output, "output");
         Objects.requireNonNull(error, "error");
 
         Path path = Paths.get(filePath);
         try {
-            List<LogEntry> entries = logFileParser.parse(path);
-            Collection<UserBillingSummary> summaries = billingCalculator.calculate(entries);
-            reportPrinter.print(summaries, output);
+            Collection<UserBillingSummary> summaries = biller.bill(path);
+            try {
+                report(summaries, output);
+            } finally {
+                if (summaries instanceof Closeable) {
+                    ((Closeable) summaries).close();
+                }
+            }
             return 0;
+        } catch (UncheckedIOException e) {
+            error.println("Error: Unable to read file: " + path);
+            return 1;
         } catch (NoSuchFileException e) {
             error.println("Error: File not found: " + path);
             return 1;
+        } catch (CheckpointMismatchException | MemoryBudgetExceededException e) {
+            error.println("Error: " + e.getMessage());
+            return 1;
         } catch (IOException e) {
             error.println("Error: Unable to read file: " + path);
             return 1;
         }
     }
+
+    /**
+     * Bills a single log file with its own earliest/latest bounds.
+     */
+    public List<UserBillingSummary> bill(Path path) throws IOException {
+        return bill(path, 1);
+    }
+
+    /**
+     * Bills a single log file with users aggregated on {@code shards} threads.
+     */
+    List<UserBillingSummary> bill(Path path, int shards) throws IOException {
+        return bill(path, shards, SummaryCollector.all());
+    }
+
+    /**
+     * Bills a single log file, keeping the summaries that {@code collector} wants unless the results are cached.
+     */
+    private List<UserBillingSummary> bill(Path path, int shards, SummaryCollector collector) throws IOException {
+        Objects.requireNonNull(path, "path");
+
+        if (resultCache != null) {
+            return resultCache.bill(path, uncached -> billUncached(uncached, shards, SummaryCollector.all()));
+        }
+        return billUncached(path, shards, collector);
+    }
+
+    private List<UserBillingSummary> billUncached(Path path, int shards, SummaryCollector collector)
+            throws IOException {
+        UsernameTable usernames = new UsernameTable();
+        try (BillingAggregator session = billingCalculator.newSession(usernames, shards)) {
+            TimedBilling billing = new TimedBilling(session, getMetrics());
+            if (Files.size(path) >= PARALLEL_SCAN_THRESHOLD) {
+                logFileParser.scanParallel(path, usernames, billing);
+            } else {
+                logFileParser.scan(path, usernames, billing);
+            }
+            return billing.finish(collector);
+        }
+    }
+
+    /**
+     * Bills a text log read from a stream, such as an upload, with its own earliest/latest bounds.
+     */
+    public List<UserBillingSummary> bill(InputStream input) throws IOException {
+        Objects.requireNonNull(input, "input");
+
+        UsernameTable usernames = new UsernameTable();
+        TimedBilling billing = new TimedBilling(billingCalculator.newSession(usernames), getMetrics());
+        logFileParser.scan(input, usernames, billing);
+        return billing.finish();
+    }
+
+    /**
+     * Bills several time-ordered text logs in one pass over their entries merged by time, so that a session may
+     * start in one log and end in another. Only one read buffer per log is held in memory.
+     */
+    List<UserBillingSummary> billMerged(List<Path> paths, int shards) throws IOException {
+        return billMerged(paths, shards, SummaryCollector.all());
+    }
+
+    private List<UserBillingSummary> billMerged(List<Path> paths, int shards, SummaryCollector collector)
+            throws IOException {
+        Objects.requireNonNull(paths, "paths");
+
+        UsernameTable usernames = new UsernameTable();
+        try (BillingAggregator session = billingCalculator.newSession(usernames, shards)) {
+            TimedBilling billing = new TimedBilling(session, getMetrics());
+            logFileParser.scanMerged(paths, usernames, billing);
+            return billing.finish(collector);
+        }
+    }
+
+    /**
+     * Bills a single log with reading, parsing and billing overlapped on three threads.
+     */
+    List<UserBillingSummary> billPipelined(Path path, int queueDepth, int batchSize, int shards)
+            throws IOException {
+        return billPipelined(path, queueDepth, batchSize, shards, SummaryCollector.all());
+    }
+
+    private List<UserBillingSummary> billPipelined(Path path, int queueDepth, int batchSize, int shards,
+            SummaryCollector collector) throws IOException {
+        Objects.requireNonNull(path, "path");
+
+        if (resultCache != null) {
+            return resultCache.bill(path, uncached -> billPipelinedUncached(uncached, queueDepth, batchSize, shards,
+                    SummaryCollector.all()));
+        }
+        return billPipelinedUncached(path, queueDepth, batchSize, shards, collector);
+    }
+
+    private List<UserBillingSummary> billPipelinedUncached(Path path, int queueDepth, int batchSize, int shards,
+            SummaryCollector collector) throws IOException {
+        UsernameTable usernames = new UsernameTable();
+        try (BillingAggregator session = billingCalculator.newSession(usernames, shards)) {
+            TimedBilling billing = new TimedBilling(session, getMetrics());
+            logFileParser.scanPipelined(path, usernames, billing, queueDepth, batchSize);
+            return billing.finish(collector);
+        }
+    }
+
+    /**
+     * Bills the entries of a plain text log between two times of day, using and if needed building the time index
+     * in {@code indexFile} to parse only that part of the log. Sessions crossing the window's edges are clipped to
+     * them, or to the log's first and last entries where those lie inside the window.
+     */
+    List<UserBillingSummary> billWindow(Path path, Path indexFile, int windowStart, int windowEnd)
+            throws IOException {
+        return billWindow(path, indexFile, windowStart, windowEnd, SummaryCollector.all());
+    }
+
+    private List<UserBillingSummary> billWindow(Path path, Path indexFile, int windowStart, int windowEnd,
+            SummaryCollector collector) throws IOException {
+        Objects.requireNonNull(path, "path");
+        Objects.requireNonNull(indexFile, "indexFile");
+
+        TimeIndex index = logFileParser.openTimeIndex(path, indexFile);
+        // Where the window reaches past the log, sessions are clipped to the log's own edges as in a full run. A
+        // window that misses the log entirely receives no entries, so its bounds are never used.
+        int earliest = Math.max(windowStart, index.getFirstTimestamp());
+        int latest = Math.min(windowEnd, index.getLastTimestamp());
+        if (earliest > latest) {
+            earliest = windowStart;
+            latest = windowEnd;
+        }
+        UsernameTable usernames = new UsernameTable();
+        TimedBilling billing = new TimedBilling(
+                billingCalculator.newWindowSession(usernames, earliest, latest), getMetrics());
+        logFileParser.scanWindow(path, index, windowStart, windowEnd, usernames, billing);
+        return billing.finish(collector);
+    }
+
+    /**
+     * Bills a text log with its billing state kept within about {@code memoryBudget} bytes, spilling users to files
+     * under {@code spillDirectory} when there are more than fit; see {@link SpillingBillingSession}. The summaries
+     * stream from those files and must be closed to delete them.
+     */
+    SpilledSummaries billSpilling(Path path, long memoryBudget, Path spillDirectory) throws IOException {
+        Objects.requireNonNull(path, "path");
+        Objects.requireNonNull(spillDirectory, "spillDirectory");
+
+        long started = System.nanoTime();
+        SpillingBillingSession session = billingCalculator.newSpillingSession(memoryBudget, spillDirectory);
+        boolean finished = false;
+        try {
+            logFileParser.scan(path, line -> session.accept(line.getSecondsSinceMidnight(), line.getBuffer(),
+                    line.getUsernameStart(), line.getUsernameEnd(), line.isStartEvent()));
+            long scanned = System.nanoTime();
+            SpilledSummaries summaries = session.finish();
+            finished = true;
+            // Billing before the spill is interleaved with parsing and counted with it.
+            getMetrics().addParseNanos(scanned - started);
+            getMetrics().addCalculateNanos(System.nanoTime() - scanned);
+            getMetrics().recordSession(summaries.size(), session.getPeakOpenSessions());
+            return summaries;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            if (!finished) {
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * A collector for a run whose summaries only feed the report, so that the report's query can drop users before
+     * their summaries are built. Cached results must hold every user, so then it keeps them all.
+     */
+    private SummaryCollector reportCollector() {
+        return resultCache == null ? reportPrinter.newCollector() : SummaryCollector.all();
+    }
+
+    /**
+     * Prints a report and accounts its time to the report phase.
+     */
+    void report(Collection<UserBillingSummary> summaries, PrintStream output) {
+        long started = System.nanoTime();
+        reportPrinter.print(summaries, output);
+        getMetrics().addReportNanos(System.nanoTime() - started);
+    }
+
+    /**
+     * One way of billing a single log file.
+     */
+    interface Biller {
+        List<UserBillingSummary> bill(Path path) throws IOException;
+    }
+
+    /**
+     * One way of billing a single log file for a report, whose summaries may need closing once printed.
+     */
+    private interface ReportBiller {
+        Collection<UserBillingSummary> bill(Path path) throws IOException;
+    }
 }
@@ -0,0 +1,75 @@
+package com.fairbilling.app;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.Objects;
+
+import com.fairbilling.io.LogFileParser;
+import com.fairbilling.io.LogFollower;
+import com.fairbilling.io.ParsedLine;
+import com.fairbilling.report.ReportPrinter;
+import com.fairbilling.service.BillingCalculator;
+import com.fairbilling.service.BillingSession;
+import com.fairbilling.util.UsernameTable;
+
+/**
+ * Bills a growing log incrementally and prints a provisional report at a fixed interval.
+ *
+ * <p>Provisional reports settle open starts at the latest timestamp seen so far. When the followed file is truncated
+ * or rotated, the report for the previous file is printed as final and billing starts over for the new file.
+ */
+final class FollowBilling {
+
+    private final LogFileParser logFileParser;
+    private final BillingCalculator billingCalculator;
+    private final ReportPrinter reportPrinter;
+    private UsernameTable usernames;
+    private BillingSession session;
+    private PrintStream output;
+
+    FollowBilling(LogFileParser logFileParser, BillingCalculator billingCalculator, ReportPrinter reportPrinter) {
+        this.logFileParser = Objects.requireNonNull(logFileParser, "logFileParser");
+        this.billingCalculator = Objects.requireNonNull(billingCalculator, "billingCalculator");
+        this.reportPrinter = Objects.requireNonNull(reportPrinter, "reportPrinter");
+    }
+
+    /**
+     * Follows the file until the thread is interrupted or {@code maxRefreshes} reports have been printed.
+     */
+    void run(Path path, long intervalMillis, long maxRefreshes, PrintStream output)
+            throws IOException, InterruptedException {
+        this.output = Objects.requireNonNull(output, "output");
+        startSession();
+        try (LogFollower follower = logFileParser.follow(path, this::accept, this::rotate)) {
+            boolean first = true;
+            for (long refresh = 0; refresh < maxRefreshes && !Thread.currentThread().isInterrupted(); refresh++) {
+                if (!first) {
+                    Thread.sleep(intervalMillis);
+                }
+                if (follower.poll() > 0 || first) {
+                    output.println("== provisional ==");
+                    reportPrinter.print(session.snapshot(), output);
+                    output.flush();
+                }
+                first = false;
+            }
+        }
+    }
+
+    private void accept(ParsedLine line) {
+        int userId = usernames.resolve(line.getBuffer(), line.getUsernameStart(), line.getUsernameEnd());
+        session.accept(line.getSecondsSinceMidnight(), userId, line.isStartEvent());
+    }
+
+    private void rotate() {
+        output.println("== final ==");
+        reportPrinter.print(session.finish(), output);
+        startSession();
+    }
+
+    private void startSession() {
+        usernames = new UsernameTable();
+        session = billingCalculator.newSession(usernames);
+    }
+}
@@ -0,0 +1,257 @@
+package com.fairbilling.app;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.fairbilling.report.ReportPrinter;
+
+/**
+ * Writes deterministic synthetic logs for scale and soak testing.
+ *
+ * <p>The log is cut into fixed-size segments that are generated in parallel, each from its own seeded random stream,
+ * and written in order; the output therefore depends only on the options, never on the thread count. When requested,
+ * the expected billing report is computed from the generated events and written alongside the log.
+ */
+public final class LogGenerator {
+
+    static final int SEGMENT_LINES = 1 << 18;
+
+    public static void main(String[] args) {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.err.println(Options.USAGE);
+            System.exit(1);
+            return;
+        }
+
+        try {
+            new LogGenerator().generate(options);
+        } catch (IOException e) {
+            System.err.println("Error: Unable to write file: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    public void generate(Options options) throws IOException {
+        Objects.requireNonNull(options, "options");
+
+        LogSegmentGenerator generator = new LogSegmentGenerator(options);
+        ExpectedBilling expected = options.expectedOutput != null ? new ExpectedBilling(options.users) : null;
+        long segmentCount = (options.lines + SEGMENT_LINES - 1) / SEGMENT_LINES;
+        ExecutorService executor = Executors.newFixedThreadPool(options.threads);
+        try (FileChannel channel = FileChannel.open(options.output, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Deque<Future<LogSegment>> pending = new ArrayDeque<>();
+            long next = 0;
+            while (next < segmentCount || !pending.isEmpty()) {
+                while (next < segmentCount && pending.size() < options.threads * 2) {
+                    long segmentIndex = next++;
+                    pending.addLast(executor.submit(() -> generator.generate(segmentIndex)));
+                }
+                LogSegment segment = await(pending.removeFirst());
+                ByteBuffer buffer = ByteBuffer.wrap(segment.bytes(), 0, segment.length());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                if (expected != null) {
+                    expected.accept(segment.acceptedEntries());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (expected != null) {
+            try (OutputStream stream = Files.newOutputStream(options.expectedOutput);
+                    PrintStream report = new PrintStream(stream, false, "US-ASCII")) {
+                new ReportPrinter().print(expected.finish(), report);
+            }
+        }
+    }
+
+    private static LogSegment await(Future<LogSegment> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating log", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to generate log segment", e.getCause());
+        }
+    }
+
+    /**
+     * Generator settings, parsed from {@code --name=value} arguments.
+     */
+    public static final class Options {
+
+        static final String USAGE = "Usage: java com.fairbilling.app.LogGenerator --output=<log_file_path>"
+                + " [--expected=<report_path>] [--lines=N | --size=BYTES[K|M|G]] [--seed=N] [--users=N]"
+                + " [--zipf=S] [--max-depth=N] [--orphan-start-rate=P] [--orphan-end-rate=P]"
+                + " [--invalid-rate=P] [--out-of-order-rate=P] [--threads=N]";
+
+        private static final int ESTIMATED_LINE_OVERHEAD = 20;
+
+        Path output;
+        Path expectedOutput;
+        long lines = 1_000_000;
+        long seed = 1;
+        int users = 1000;
+        double zipfExponent = 1.0;
+        int maxDepth = 3;
+        double orphanStartRate = 0.01;
+        double orphanEndRate = 0.01;
+        double invalidRate = 0.001;
+        double outOfOrderRate = 0.001;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        public static Options parse(String[] args) {
+            Objects.requireNonNull(args, "args");
+            Options options = new Options();
+            long sizeInBytes = -1;
+            boolean linesGiven = false;
+            for (String arg : args) {
+                int separator = arg.indexOf('=');
+                if (!arg.startsWith("--") || separator < 0) {
+                    throw new IllegalArgumentException("Unrecognised argument: " + arg);
+                }
+                String name = arg.substring(2, separator);
+                String value = arg.substring(separator + 1);
+                switch (name) {
+                    case "output":
+                        options.output = Paths.get(value);
+                        break;
+                    case "expected":
+                        options.expectedOutput = Paths.get(value);
+                        break;
+                    case "lines":
+                        options.lines = positiveLong(name, value);
+                        linesGiven = true;
+                        break;
+                    case "size":
+                        sizeInBytes = parseSize(value);
+                        break;
+                    case "seed":
+                        options.seed = Long.parseLong(value);
+                        break;
+                    case "users":
+                        options.users = positiveInt(name, value);
+                        break;
+                    case "zipf":
+                        options.zipfExponent = nonNegativeDouble(name, value);
+                        break;
+                    case "max-depth":
+                        options.maxDepth = positiveInt(name, value);
+                        break;
+                    case "orphan-start-rate":
+                        options.orphanStartRate = probability(name, value);
+                        break;
+                    case "orphan-end-rate":
+                        options.orphanEndRate = probability(name, value);
+                        break;
+                    case "invalid-rate":
+                        options.invalidRate = probability(name, value);
+                        break;
+                    case "out-of-order-rate":
+                        options.outOfOrderRate = probability(name, value);
+                        break;
+                    case "threads":
+                        options.threads = positiveInt(name, value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unrecognised option: --" + name);
+                }
+            }
+            if (options.output == null) {
+                throw new IllegalArgumentException("--output is required");
+            }
+            if (linesGiven && sizeInBytes > 0) {
+                throw new IllegalArgumentException("--lines and --size cannot be combined");
+            }
+            if (sizeInBytes > 0) {
+                long lineLength = ESTIMATED_LINE_OVERHEAD + Integer.toString(options.users).length();
+                options.lines = Math.max(1, sizeInBytes / lineLength);
+            }
+            return options;
+        }
+
+        private static long positiveLong(String name, String value) {
+            long parsed = parseNumber(name, value);
+            if (parsed <= 0) {
+                throw new IllegalArgumentException("--" + name + " must be a positive integer");
+            }
+            return parsed;
+        }
+
+        private static int positiveInt(String name, String value) {
+            long parsed = positiveLong(name, value);
+            if (parsed > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("--" + name + " is too large: " + value);
+            }
+            return (int) parsed;
+        }
+
+        private static long parseNumber(String name, String value) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("--" + name + " must be a number: " + value);
+            }
+        }
+
+        private static double nonNegativeDouble(String name, String value) {
+            double parsed;
+            try {
+                parsed = Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("--" + name + " must be a number: " + value);
+            }
+            if (parsed < 0 || Double.isNaN(parsed) || Double.isInfinite(parsed)) {
+                throw new IllegalArgumentException("--" + name + " must not be negative");
+            }
+            return parsed;
+        }
+
+        private static double probability(String name, String value) {
+            double parsed = nonNegativeDouble(name, value);
+            if (parsed > 1) {
+                throw new IllegalArgumentException("--" + name + " must be between 0 and 1");
+            }
+            return parsed;
+        }
+
+        private static long parseSize(String value) {
+            String normalized = value.trim().toUpperCase(Locale.ROOT);
+            long multiplier = 1;
+            if (normalized.endsWith("K")) {
+                multiplier = 1L << 10;
+            } else if (normalized.endsWith("M")) {
+                multiplier = 1L << 20;
+            } else if (normalized.endsWith("G")) {
+                multiplier = 1L << 30;
+            }
+            if (multiplier != 1) {
+                normalized = normalized.substring(0, normalized.length() - 1);
+            }
+            return positiveLong("size", normalized) * multiplier;
+        }
+    }
+}
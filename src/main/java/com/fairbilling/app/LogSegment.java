@@ -0,0 +1,31 @@
+package com.fairbilling.app;
+
+import com.fairbilling.domain.EntryBatch;
+
+/**
+ * Text of one generated log segment, optionally with the entries billing is expected to accept from it.
+ */
+final class LogSegment {
+
+    private final byte[] bytes;
+    private final int length;
+    private final EntryBatch acceptedEntries;
+
+    LogSegment(byte[] bytes, int length, EntryBatch acceptedEntries) {
+        this.bytes = bytes;
+        this.length = length;
+        this.acceptedEntries = acceptedEntries;
+    }
+
+    byte[] bytes() {
+        return bytes;
+    }
+
+    int length() {
+        return length;
+    }
+
+    EntryBatch acceptedEntries() {
+        return acceptedEntries;
+    }
+}
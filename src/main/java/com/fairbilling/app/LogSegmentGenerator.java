@@ -0,0 +1,182 @@
+package com.fairbilling.app;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import com.fairbilling.domain.EntryBatch;
+
+/**
+ * Generates the lines of a single log segment from a random stream derived from the seed and segment index.
+ *
+ * <p>Timestamps advance linearly with the global line number across one day. Users are drawn from a Zipf
+ * distribution, each user keeps at most {@code maxDepth} open sessions within a segment, and sessions still open
+ * when the segment ends are closed there unless they are selected to stay orphaned.
+ */
+final class LogSegmentGenerator {
+
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+    private static final int MAX_BACKWARD_STEP = 600;
+    private static final byte[] USER_PREFIX = {'U', 'S', 'E', 'R'};
+    private static final byte[] START_TOKEN = {' ', 'S', 't', 'a', 'r', 't', '\n'};
+    private static final byte[] END_TOKEN = {' ', 'E', 'n', 'd', '\n'};
+    private static final byte[][] INVALID_LINES = {
+        "25:00:00 USER0 Start\n".getBytes(StandardCharsets.US_ASCII),
+        "12:00 USER0 End\n".getBytes(StandardCharsets.US_ASCII),
+        "12:00:00 USER0 Pause\n".getBytes(StandardCharsets.US_ASCII),
+        "12:00:00 Start\n".getBytes(StandardCharsets.US_ASCII),
+        "corrupted line\n".getBytes(StandardCharsets.US_ASCII),
+    };
+
+    private final LogGenerator.Options options;
+    private final double[] cumulativeWeights;
+    private final ThreadLocal<int[]> depths;
+
+    LogSegmentGenerator(LogGenerator.Options options) {
+        this.options = options;
+        this.cumulativeWeights = options.zipfExponent > 0 ? zipfCumulativeWeights(options) : null;
+        this.depths = ThreadLocal.withInitial(() -> new int[options.users]);
+    }
+
+    LogSegment generate(long segmentIndex) {
+        SplittableRandom random = new SplittableRandom(options.seed + GOLDEN_GAMMA * (segmentIndex + 1));
+        long firstLine = segmentIndex * LogGenerator.SEGMENT_LINES;
+        long lastLine = Math.min(options.lines, firstLine + LogGenerator.SEGMENT_LINES);
+        int[] depth = depths.get();
+        int[] touched = new int[64];
+        int touchedCount = 0;
+        EntryBatch accepted = options.expectedOutput != null ? new EntryBatch(LogGenerator.SEGMENT_LINES) : null;
+        SegmentBuffer out = new SegmentBuffer(LogGenerator.SEGMENT_LINES * 24);
+
+        int lastAccepted = -1;
+        int timestamp = 0;
+        for (long line = firstLine; line < lastLine; line++) {
+            timestamp = (int) (line * SECONDS_PER_DAY / options.lines);
+            double roll = random.nextDouble();
+            if (roll < options.invalidRate) {
+                out.write(INVALID_LINES[random.nextInt(INVALID_LINES.length)]);
+                continue;
+            }
+            if (roll < options.invalidRate + options.outOfOrderRate && lastAccepted > 0) {
+                int backwards = Math.max(0, lastAccepted - 1 - random.nextInt(MAX_BACKWARD_STEP));
+                out.writeEvent(backwards, nextUser(random), random.nextBoolean());
+                continue;
+            }
+
+            int user = nextUser(random);
+            boolean start;
+            if (depth[user] == 0) {
+                start = random.nextDouble() >= options.orphanEndRate;
+            } else if (depth[user] >= options.maxDepth) {
+                start = false;
+            } else {
+                start = random.nextBoolean();
+            }
+            if (start) {
+                if (depth[user] == 0) {
+                    if (touchedCount == touched.length) {
+                        touched = Arrays.copyOf(touched, touchedCount * 2);
+                    }
+                    touched[touchedCount++] = user;
+                }
+                depth[user]++;
+            } else if (depth[user] > 0) {
+                depth[user]--;
+            }
+            out.writeEvent(timestamp, user, start);
+            if (accepted != null) {
+                accepted.add(timestamp, user, start);
+            }
+            lastAccepted = timestamp;
+        }
+
+        for (int i = 0; i < touchedCount; i++) {
+            int user = touched[i];
+            for (; depth[user] > 0; depth[user]--) {
+                if (random.nextDouble() >= options.orphanStartRate) {
+                    out.writeEvent(timestamp, user, false);
+                    if (accepted != null) {
+                        accepted.add(timestamp, user, false);
+                    }
+                }
+            }
+        }
+        return new LogSegment(out.bytes, out.length, accepted);
+    }
+
+    private int nextUser(SplittableRandom random) {
+        if (cumulativeWeights == null) {
+            return random.nextInt(options.users);
+        }
+        int index = Arrays.binarySearch(cumulativeWeights, random.nextDouble());
+        return Math.min(index < 0 ? -index - 1 : index, options.users - 1);
+    }
+
+    private static double[] zipfCumulativeWeights(LogGenerator.Options options) {
+        double[] cumulative = new double[options.users];
+        double total = 0;
+        for (int rank = 1; rank <= options.users; rank++) {
+            total += 1.0 / Math.pow(rank, options.zipfExponent);
+            cumulative[rank - 1] = total;
+        }
+        for (int i = 0; i < cumulative.length; i++) {
+            cumulative[i] /= total;
+        }
+        return cumulative;
+    }
+
+    private static final class SegmentBuffer {
+        private byte[] bytes;
+        private int length;
+
+        private SegmentBuffer(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        private void write(byte[] source) {
+            ensureCapacity(source.length);
+            System.arraycopy(source, 0, bytes, length, source.length);
+            length += source.length;
+        }
+
+        private void writeEvent(int timestamp, int user, boolean start) {
+            ensureCapacity(32);
+            writeTwoDigits(timestamp / 3600);
+            bytes[length++] = ':';
+            writeTwoDigits((timestamp / 60) % 60);
+            bytes[length++] = ':';
+            writeTwoDigits(timestamp % 60);
+            bytes[length++] = ' ';
+            System.arraycopy(USER_PREFIX, 0, bytes, length, USER_PREFIX.length);
+            length += USER_PREFIX.length;
+            writeDigits(user);
+            byte[] token = start ? START_TOKEN : END_TOKEN;
+            System.arraycopy(token, 0, bytes, length, token.length);
+            length += token.length;
+        }
+
+        private void writeTwoDigits(int value) {
+            bytes[length++] = (byte) ('0' + value / 10);
+            bytes[length++] = (byte) ('0' + value % 10);
+        }
+
+        private void writeDigits(int value) {
+            int digits = 1;
+            for (int remaining = value / 10; remaining > 0; remaining /= 10) {
+                digits++;
+            }
+            for (int i = length + digits - 1; i >= length; i--) {
+                bytes[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            length += digits;
+        }
+
+        private void ensureCapacity(int additional) {
+            if (length + additional > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + additional));
+            }
+        }
+    }
+}
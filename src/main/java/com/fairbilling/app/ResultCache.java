@@ -0,0 +1,238 @@
+package com.fairbilling.app;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import com.fairbilling.domain.UserBillingSummary;
+import com.fairbilling.metrics.BillingMetrics;
+
+/**
+ * On-disk cache of billing results for logs that do not change, so that billing the same file again reads only a
+ * small sample of it instead of parsing it.
+ *
+ * <p>Entries are keyed by the log's size, modification time and a CRC32 of its first and last 64 KiB. Copies that keep
+ * their timestamp share an entry, while appending, truncating or rewriting a log changes its key. Each entry holds the
+ * summaries in report order followed by a CRC32 of the entry. Entries that fail the check are deleted and recomputed.
+ *
+ * <p>Reading an entry refreshes its modification time. Once the directory holds more than {@code maxBytes} of entries,
+ * the least recently used ones are deleted. Entries are written to a temporary file and moved into place, so several
+ * processes can share one directory.
+ */
+final class ResultCache {
+
+    private static final int MAGIC = 0x46425243;
+    private static final int VERSION = 2;
+    private static final String SUFFIX = ".fbr";
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    private final Path directory;
+    private final long maxBytes;
+    private final BillingMetrics metrics;
+
+    ResultCache(Path directory, long maxBytes, BillingMetrics metrics) throws IOException {
+        this.directory = Objects.requireNonNull(directory, "directory");
+        this.metrics = Objects.requireNonNull(metrics, "metrics");
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Returns the cached summaries of {@code path}, or bills it with {@code biller} and caches the result unless the
+     * log changed while it was billed.
+     */
+    List<UserBillingSummary> bill(Path path, FairBilling.Biller biller) throws IOException {
+        Objects.requireNonNull(path, "path");
+        Objects.requireNonNull(biller, "biller");
+
+        String key = keyOf(path);
+        Path entry = directory.resolve(key + SUFFIX);
+        List<UserBillingSummary> cached = read(entry);
+        if (cached != null) {
+            metrics.recordCacheHit();
+            return cached;
+        }
+        metrics.recordCacheMiss();
+        List<UserBillingSummary> summaries = biller.bill(path);
+        if (key.equals(keyOf(path))) {
+            write(entry, key, summaries);
+        }
+        return summaries;
+    }
+
+    static String keyOf(Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer sample = ByteBuffer.allocate(SAMPLE_SIZE);
+            update(crc, channel, sample, 0, Math.min(size, SAMPLE_SIZE));
+            long tailStart = Math.max(SAMPLE_SIZE, size - SAMPLE_SIZE);
+            update(crc, channel, sample, tailStart, size - tailStart);
+        }
+        return String.format("%016x-%016x-%08x", attributes.size(), attributes.lastModifiedTime().toMillis(),
+                crc.getValue());
+    }
+
+    private static void update(CRC32 crc, FileChannel channel, ByteBuffer sample, long position, long length)
+            throws IOException {
+        sample.clear();
+        sample.limit((int) Math.max(0, length));
+        while (sample.hasRemaining()) {
+            if (channel.read(sample, position + sample.position()) < 0) {
+                throw new IOException("Log shrank while it was sampled");
+            }
+        }
+        crc.update(sample.array(), 0, sample.position());
+    }
+
+    private static List<UserBillingSummary> read(Path entry) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(entry);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        List<UserBillingSummary> summaries = decode(bytes);
+        if (summaries == null) {
+            Files.deleteIfExists(entry);
+            return null;
+        }
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            // Evicted by another process after it was read; the summaries are still valid.
+        }
+        return summaries;
+    }
+
+    private void write(Path entry, String key, List<UserBillingSummary> summaries) throws IOException {
+        byte[] bytes = encode(summaries);
+        Path temporary = Files.createTempFile(directory, key, ".tmp");
+        try {
+            Files.write(temporary, bytes);
+            Files.move(temporary, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        evict();
+    }
+
+    static byte[] encode(List<UserBillingSummary> summaries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + summaries.size() * 24);
+        CRC32 crc = new CRC32();
+        DataOutputStream output = new DataOutputStream(new CheckedOutputStream(bytes, crc));
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(summaries.size());
+        for (UserBillingSummary summary : summaries) {
+            byte[] name = summary.getUsername().getBytes(StandardCharsets.UTF_8);
+            output.writeInt(name.length);
+            output.write(name);
+            output.writeInt(summary.getSessionCount());
+            output.writeInt(summary.getTotalDurationSeconds());
+        }
+        // Read before writing it, since the checksum also sees its own bytes go by.
+        output.writeInt((int) crc.getValue());
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes an entry, or returns {@code null} when it is truncated, corrupt or from another format version.
+     */
+    static List<UserBillingSummary> decode(byte[] bytes) {
+        int payload = bytes.length - Integer.BYTES;
+        if (payload < 3 * Integer.BYTES) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, payload);
+        if ((int) crc.getValue() != ByteBuffer.wrap(bytes, payload, Integer.BYTES).getInt()) {
+            return null;
+        }
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes, 0, payload))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                return null;
+            }
+            int count = input.readInt();
+            if (count < 0 || count > payload) {
+                return null;
+            }
+            List<UserBillingSummary> summaries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int nameLength = input.readInt();
+                if (nameLength < 0 || nameLength > input.available()) {
+                    return null;
+                }
+                byte[] name = new byte[nameLength];
+                input.readFully(name);
+                summaries.add(new UserBillingSummary(new String(name, StandardCharsets.UTF_8), input.readInt(),
+                        input.readInt()));
+            }
+            return input.available() == 0 ? summaries : null;
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the directory fits in {@code maxBytes}.
+     */
+    private synchronized void evict() throws IOException {
+        List<CachedEntry> entries = new ArrayList<>();
+        long totalBytes = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    entries.add(new CachedEntry(file, attributes.size(), attributes.lastModifiedTime().toMillis()));
+                    totalBytes += attributes.size();
+                } catch (NoSuchFileException e) {
+                    // Evicted concurrently.
+                }
+            }
+        }
+        if (totalBytes <= maxBytes) {
+            return;
+        }
+        entries.sort(Comparator.comparingLong(entry -> entry.lastUsed));
+        for (int i = 0; i < entries.size() && totalBytes > maxBytes; i++) {
+            Files.deleteIfExists(entries.get(i).file);
+            totalBytes -= entries.get(i).size;
+        }
+    }
+
+    private static final class CachedEntry {
+        private final Path file;
+        private final long size;
+        private final long lastUsed;
+
+        private CachedEntry(Path file, long size, long lastUsed) {
+            this.file = file;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.fairbilling.app;
+
+import java.util.List;
+import java.util.Objects;
+
+import com.fairbilling.domain.EntryBatch;
+import com.fairbilling.domain.PartitionedBatch;
+import com.fairbilling.domain.PartitionedEntryConsumer;
+import com.fairbilling.domain.SummaryCollector;
+import com.fairbilling.domain.UserBillingSummary;
+import com.fairbilling.metrics.BillingMetrics;
+import com.fairbilling.service.BillingAggregator;
+
+/**
+ * Feeds batches to a {@link BillingAggregator} and splits the elapsed time into parse and calculate phases.
+ *
+ * <p>Parsing and billing interleave on the same thread, so time spent inside the session is measured once per batch
+ * and everything else since construction counts as parsing.
+ */
+final class TimedBilling implements PartitionedEntryConsumer {
+
+    private final BillingAggregator session;
+    private final BillingMetrics metrics;
+    private final long started = System.nanoTime();
+    private long billingNanos;
+
+    TimedBilling(BillingAggregator session, BillingMetrics metrics) {
+        this.session = Objects.requireNonNull(session, "session");
+        this.metrics = Objects.requireNonNull(metrics, "metrics");
+    }
+
+    @Override
+    public void accept(EntryBatch batch) {
+        long start = System.nanoTime();
+        session.accept(batch);
+        billingNanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public int partitionCount() {
+        return session.partitionCount();
+    }
+
+    @Override
+    public int partitionOf(int usernameHash) {
+        return session.partitionOf(usernameHash);
+    }
+
+    @Override
+    public void accept(PartitionedBatch batch) {
+        long start = System.nanoTime();
+        session.accept(batch);
+        billingNanos += System.nanoTime() - start;
+    }
+
+    List<UserBillingSummary> finish() {
+        return finish(SummaryCollector.all());
+    }
+
+    List<UserBillingSummary> finish(SummaryCollector collector) {
+        long finishing = System.nanoTime();
+        List<UserBillingSummary> summaries = session.finish(collector);
+        long finished = System.nanoTime();
+        metrics.addParseNanos(finishing - started - billingNanos);
+        metrics.addCalculateNanos(billingNanos + finished - finishing);
+        metrics.recordSession(session.getUsernames().size(), session.getPeakOpenSessions());
+        return summaries;
+    }
+}
@@ -0,0 +1,100 @@
+package com.fairbilling.domain;
+
+import java.util.Arrays;
+
+/**
+ * Columnar batch of log entries exchanged between parsers and the billing calculator.
+ *
+ * <p>Entries are stored as parallel primitive arrays (timestamp, user id and event type) instead of one
+ * {@link LogEntry} object per line. User ids refer to the {@link com.fairbilling.util.UsernameTable} the producer
+ * resolved them against. Batches are reusable: consumers must not retain a batch after the call that received it.
+ */
+public final class EntryBatch {
+
+    private static final byte START = 1;
+    private static final byte END = 0;
+
+    private int[] seconds;
+    private int[] userIds;
+    private byte[] eventTypes;
+    private int size;
+
+    public EntryBatch(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.seconds = new int[capacity];
+        this.userIds = new int[capacity];
+        this.eventTypes = new byte[capacity];
+    }
+
+    public void add(int secondsSinceMidnight, int userId, boolean startEvent) {
+        if (size == seconds.length) {
+            int capacity = size * 2;
+            seconds = Arrays.copyOf(seconds, capacity);
+            userIds = Arrays.copyOf(userIds, capacity);
+            eventTypes = Arrays.copyOf(eventTypes, capacity);
+        }
+        seconds[size] = secondsSinceMidnight;
+        userIds[size] = userId;
+        eventTypes[size] = startEvent ? START : END;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return seconds.length;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isFull() {
+        return size == seconds.length;
+    }
+
+    public int getSecondsSinceMidnight(int index) {
+        checkIndex(index);
+        return seconds[index];
+    }
+
+    public int getUserId(int index) {
+        checkIndex(index);
+        return userIds[index];
+    }
+
+    public void setUserId(int index, int userId) {
+        checkIndex(index);
+        userIds[index] = userId;
+    }
+
+    public boolean isStartEvent(int index) {
+        checkIndex(index);
+        return eventTypes[index] == START;
+    }
+
+    public void removeFirst(int count) {
+        if (count < 0 || count > size) {
+            throw new IndexOutOfBoundsException("Cannot remove " + count + " of " + size + " entries");
+        }
+        int remaining = size - count;
+        System.arraycopy(seconds, count, seconds, 0, remaining);
+        System.arraycopy(userIds, count, userIds, 0, remaining);
+        System.arraycopy(eventTypes, count, eventTypes, 0, remaining);
+        size = remaining;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " outside batch of " + size);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.fairbilling.domain;
+
+import java.util.Objects;
+
+/**
+ * Entries of one stretch of a log, already split into the parts a {@link PartitionedEntryConsumer} bills
+ * independently.
+ *
+ * <p>Each part keeps its entries in log order. User ids in the parts are local to the producer, which numbered the
+ * users of the stretch densely; {@link #userId(int)} translates a local id into the consumer's
+ * {@link com.fairbilling.util.UsernameTable}, so the consumer maps ids once per user rather than once per entry.
+ */
+public final class PartitionedBatch {
+
+    private final EntryBatch[] parts;
+    private final int[] userIds;
+
+    /**
+     * @param parts   the entries of every part, indexed by {@link PartitionedEntryConsumer#partitionOf(int)}
+     * @param userIds the consumer's id of every local user id, or -1 for users without entries in any part
+     */
+    public PartitionedBatch(EntryBatch[] parts, int[] userIds) {
+        this.parts = Objects.requireNonNull(parts, "parts");
+        this.userIds = Objects.requireNonNull(userIds, "userIds");
+    }
+
+    public int partCount() {
+        return parts.length;
+    }
+
+    public EntryBatch part(int partition) {
+        return parts[partition];
+    }
+
+    /**
+     * Number of local user ids, including those without entries.
+     */
+    public int userCount() {
+        return userIds.length;
+    }
+
+    public int userId(int localId) {
+        return userIds[localId];
+    }
+}
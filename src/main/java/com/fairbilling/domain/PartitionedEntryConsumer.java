@@ -0,0 +1,26 @@
+package com.fairbilling.domain;
+
+import java.util.function.Consumer;
+
+/**
+ * A batch consumer that bills users in independent partitions and also takes entries a producer has already split
+ * by partition, so that parallel producers do the splitting instead of the thread that delivers batches in order.
+ */
+public interface PartitionedEntryConsumer extends Consumer<EntryBatch> {
+
+    /**
+     * Number of partitions; 1 when users are not partitioned and only plain batches are useful.
+     */
+    int partitionCount();
+
+    /**
+     * The partition of a user, chosen from the hash {@link com.fairbilling.util.UsernameTable#hashOf(int)} keeps for
+     * its name. Any thread may call this.
+     */
+    int partitionOf(int usernameHash);
+
+    /**
+     * Takes the next entries in log order, split into {@link #partitionCount()} parts.
+     */
+    void accept(PartitionedBatch batch);
+}
@@ -0,0 +1,53 @@
+package com.fairbilling.domain;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Receives users in first-appearance order as a billing run settles them, and keeps the summaries it wants.
+ *
+ * <p>Each user is first offered as bare totals through {@link #wants(int, int)}; only when the collector wants it is
+ * the {@link UserBillingSummary}, with its name and buckets, built and passed to {@link #add(UserBillingSummary)}. A
+ * collector that keeps a few rows, such as a top-N report, therefore never causes the others to be materialised.
+ */
+public interface SummaryCollector {
+
+    /**
+     * Whether to build the summary of the next user, whose totals are given. Called once per user, in order.
+     */
+    boolean wants(int sessionCount, int totalDurationSeconds);
+
+    /**
+     * Takes the summary of the user last offered to {@link #wants(int, int)}, if it was wanted.
+     */
+    void add(UserBillingSummary summary);
+
+    /**
+     * The kept summaries, once every user has been offered.
+     */
+    List<UserBillingSummary> summaries();
+
+    /**
+     * A collector that keeps every summary in first-appearance order.
+     */
+    static SummaryCollector all() {
+        return new SummaryCollector() {
+            private final List<UserBillingSummary> summaries = new ArrayList<>();
+
+            @Override
+            public boolean wants(int sessionCount, int totalDurationSeconds) {
+                return true;
+            }
+
+            @Override
+            public void add(UserBillingSummary summary) {
+                summaries.add(summary);
+            }
+
+            @Override
+            public List<UserBillingSummary> summaries() {
+                return summaries;
+            }
+        };
+    }
+}
@@ -4,17 +4,36 @@ import java.util.Objects;
 
 /**
  * Immutable billing summary for a single user.
+ *
+ * <p>A summary may carry a breakdown of its billed seconds into consecutive time-of-day buckets of equal width, the
+ * first starting at midnight. The buckets always add up to the total duration.
  */
 public final class UserBillingSummary {
 
+    private static final int[] NO_BUCKETS = new int[0];
+
     private final String username;
     private final int sessionCount;
     private final int totalDurationSeconds;
+    private final int[] bucketSeconds;
 
     public UserBillingSummary(String username, int sessionCount, int totalDurationSeconds) {
+        this(username, sessionCount, totalDurationSeconds, NO_BUCKETS);
+    }
+
+    public UserBillingSummary(String username, int sessionCount, int totalDurationSeconds, int[] bucketSeconds) {
         this.username = Objects.requireNonNull(username, "username");
         this.sessionCount = validateNonNegative(sessionCount, "sessionCount");
         this.totalDurationSeconds = validateNonNegative(totalDurationSeconds, "totalDurationSeconds");
+        this.bucketSeconds = Objects.requireNonNull(bucketSeconds, "bucketSeconds").length == 0
+                ? NO_BUCKETS : bucketSeconds.clone();
+        long sum = 0;
+        for (int seconds : this.bucketSeconds) {
+            sum += validateNonNegative(seconds, "bucketSeconds");
+        }
+        if (this.bucketSeconds.length > 0 && sum != totalDurationSeconds) {
+            throw new IllegalArgumentException("bucketSeconds must add up to totalDurationSeconds");
+        }
     }
 
     public String getUsername() {
@@ -29,6 +48,17 @@ public final class UserBillingSummary {
         return totalDurationSeconds;
     }
 
+    /**
+     * The number of time-of-day buckets, or 0 without a breakdown.
+     */
+    public int getBucketCount() {
+        return bucketSeconds.length;
+    }
+
+    public int getBucketSeconds(int bucket) {
+        return bucketSeconds[bucket];
+    }
+
     private static int validateNonNegative(int value, String fieldName) {
         if (value < 0) {
             throw new IllegalArgumentException(fieldName + " cannot be negative");
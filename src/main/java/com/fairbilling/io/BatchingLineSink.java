@@ -0,0 +1,39 @@
+package com.fairbilling.io;
+
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import com.fairbilling.domain.EntryBatch;
+import com.fairbilling.util.UsernameTable;
+
+/**
+ * Collects scanned lines into a reusable {@link EntryBatch} and hands it downstream whenever it fills up.
+ */
+final class BatchingLineSink implements Consumer<ParsedLine> {
+
+    private final UsernameTable usernames;
+    private final Consumer<? super EntryBatch> downstream;
+    private final EntryBatch batch;
+
+    BatchingLineSink(UsernameTable usernames, Consumer<? super EntryBatch> downstream, int batchSize) {
+        this.usernames = Objects.requireNonNull(usernames, "usernames");
+        this.downstream = Objects.requireNonNull(downstream, "downstream");
+        this.batch = new EntryBatch(batchSize);
+    }
+
+    @Override
+    public void accept(ParsedLine line) {
+        int userId = usernames.resolve(line.getBuffer(), line.getUsernameStart(), line.getUsernameEnd());
+        batch.add(line.getSecondsSinceMidnight(), userId, line.isStartEvent());
+        if (batch.isFull()) {
+            flush();
+        }
+    }
+
+    void flush() {
+        if (!batch.isEmpty()) {
+            downstream.accept(batch);
+            batch.clear();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.fairbilling.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Layout of the pre-parsed binary log written by {@link BinaryLogWriter} and read by {@link BinaryLogReader}.
+ *
+ * <p>All integers are big-endian. The header holds the magic {@code FBLB}, the format version, the record count, the
+ * user count and then the username dictionary in id order, each name as a varint byte length followed by its UTF-8
+ * bytes. Every record is an {@code int} timestamp followed by a varint of {@code (userId << 1) | start}. Records hold
+ * only entries that passed validation and the monotonic timestamp rule, so they are replayed without any checks.
+ */
+final class BinaryLogFormat {
+
+    static final int MAGIC = 0x46424C42;
+    static final int VERSION = 1;
+    /** Magic, version, record count and user count. */
+    static final int FIXED_HEADER_SIZE = 4 + 4 + 8 + 4;
+    static final int MAX_VARINT_SIZE = 5;
+    static final int MAX_RECORD_SIZE = 4 + MAX_VARINT_SIZE;
+
+    private BinaryLogFormat() {
+    }
+
+    static boolean isBinaryLog(Path filePath) throws IOException {
+        byte[] magic = new byte[4];
+        int length = 0;
+        try (InputStream input = Files.newInputStream(filePath)) {
+            int read;
+            while (length < magic.length && (read = input.read(magic, length, magic.length - length)) > 0) {
+                length += read;
+            }
+        }
+        return length == magic.length
+                && ((magic[0] & 0xFF) << 24 | (magic[1] & 0xFF) << 16 | (magic[2] & 0xFF) << 8 | magic[3] & 0xFF)
+                == MAGIC;
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static int writeVarint(byte[] target, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            target[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        target[offset++] = (byte) value;
+        return offset;
+    }
+}
@@ -0,0 +1,166 @@
+package com.fairbilling.io;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import com.fairbilling.domain.EntryBatch;
+import com.fairbilling.util.UsernameTable;
+
+/**
+ * Replays a binary log written by {@link BinaryLogWriter} as {@link EntryBatch} instances.
+ *
+ * <p>The file is memory-mapped in windows and decoded straight into a reusable batch, so no object is created per
+ * record. The dictionary is resolved into the caller's {@link UsernameTable} before any record is delivered; into an
+ * empty table this reproduces the ids, and therefore the report order, of billing the original text log.
+ */
+public final class BinaryLogReader {
+
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final int BATCH_SIZE = 4096;
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+    public static boolean isBinaryLog(Path filePath) throws IOException {
+        Objects.requireNonNull(filePath, "filePath");
+        return BinaryLogFormat.isBinaryLog(filePath);
+    }
+
+    /**
+     * @return the number of records replayed
+     */
+    public long read(Path filePath, UsernameTable usernames, Consumer<? super EntryBatch> consumer)
+            throws IOException {
+        Objects.requireNonNull(filePath, "filePath");
+        Objects.requireNonNull(usernames, "usernames");
+        Objects.requireNonNull(consumer, "consumer");
+
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            Window window = new Window(channel, filePath);
+            window.require(BinaryLogFormat.FIXED_HEADER_SIZE);
+            if (window.buffer.getInt() != BinaryLogFormat.MAGIC) {
+                throw new IOException("Not a binary log: " + filePath);
+            }
+            int version = window.buffer.getInt();
+            if (version != BinaryLogFormat.VERSION) {
+                throw new IOException("Unsupported binary log version " + version + ": " + filePath);
+            }
+            long recordCount = window.buffer.getLong();
+            int userCount = window.buffer.getInt();
+            if (recordCount < 0 || userCount < 0) {
+                throw window.corrupt();
+            }
+
+            int[] userIds = readDictionary(window, userCount, usernames);
+            readRecords(window, recordCount, userIds, consumer);
+            return recordCount;
+        }
+    }
+
+    private static int[] readDictionary(Window window, int userCount, UsernameTable usernames) throws IOException {
+        int[] userIds = new int[userCount];
+        byte[] name = new byte[64];
+        for (int id = 0; id < userCount; id++) {
+            window.require(Math.min(BinaryLogFormat.MAX_VARINT_SIZE, window.remainingInFile()));
+            int length = window.readVarint();
+            if (length < 0) {
+                throw window.corrupt();
+            }
+            if (length > name.length) {
+                name = new byte[Math.max(length, name.length * 2)];
+            }
+            window.require(length);
+            window.buffer.get(name, 0, length);
+            userIds[id] = usernames.resolve(name, 0, length);
+        }
+        return userIds;
+    }
+
+    private static void readRecords(Window window, long recordCount, int[] userIds,
+            Consumer<? super EntryBatch> consumer) throws IOException {
+        EntryBatch batch = new EntryBatch(BATCH_SIZE);
+        for (long record = 0; record < recordCount; record++) {
+            if (window.buffer.remaining() < BinaryLogFormat.MAX_RECORD_SIZE) {
+                window.require(Math.max(Integer.BYTES + 1,
+                        Math.min(BinaryLogFormat.MAX_RECORD_SIZE, window.remainingInFile())));
+            }
+            int seconds = window.buffer.getInt();
+            int key = window.readVarint();
+            int userId = key >>> 1;
+            if (seconds < 0 || seconds >= SECONDS_PER_DAY || userId >= userIds.length) {
+                throw window.corrupt();
+            }
+            batch.add(seconds, userIds[userId], (key & 1) != 0);
+            if (batch.isFull()) {
+                consumer.accept(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            consumer.accept(batch);
+        }
+    }
+
+    /**
+     * Read-only mapping of part of the file that slides forward on demand.
+     */
+    private static final class Window {
+        private final FileChannel channel;
+        private final Path filePath;
+        private final long fileSize;
+        private MappedByteBuffer buffer;
+        private long bufferStart;
+
+        private Window(FileChannel channel, Path filePath) throws IOException {
+            this.channel = channel;
+            this.filePath = filePath;
+            this.fileSize = channel.size();
+            map(0, 0);
+        }
+
+        private long remainingInFile() {
+            return fileSize - bufferStart - buffer.position();
+        }
+
+        /**
+         * Ensures at least {@code length} bytes are mapped from the current position.
+         */
+        private void require(long length) throws IOException {
+            if (buffer.remaining() >= length) {
+                return;
+            }
+            if (remainingInFile() < length) {
+                throw corrupt();
+            }
+            map(bufferStart + buffer.position(), length);
+        }
+
+        private void map(long position, long minimumLength) throws IOException {
+            long length = Math.min(fileSize - position, Math.max(WINDOW_SIZE, minimumLength));
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            bufferStart = position;
+        }
+
+        private int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                if (!buffer.hasRemaining()) {
+                    throw corrupt();
+                }
+                byte next = buffer.get();
+                value |= (next & 0x7F) << shift;
+                if (next >= 0) {
+                    return value;
+                }
+            }
+            throw corrupt();
+        }
+
+        private IOException corrupt() {
+            return new IOException("Truncated or corrupt binary log: " + filePath);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.fairbilling.io;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+import com.fairbilling.domain.EntryBatch;
+import com.fairbilling.util.UsernameTable;
+
+/**
+ * Converts a text log into the pre-parsed binary form described by {@link BinaryLogFormat}.
+ *
+ * <p>The dictionary is only complete once the whole log has been scanned, so records are first written to a temporary
+ * file next to the target and appended after the header. The binary log is assembled in another temporary file and
+ * moved over the target atomically, so an interrupted conversion never leaves a truncated log in its place.
+ */
+public final class BinaryLogWriter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final LogFileParser logFileParser;
+
+    public BinaryLogWriter() {
+        this(new LogFileParser());
+    }
+
+    public BinaryLogWriter(LogFileParser logFileParser) {
+        this.logFileParser = Objects.requireNonNull(logFileParser, "logFileParser");
+    }
+
+    /**
+     * Writes every entry the text parser accepts from {@code source} to {@code target}, replacing it.
+     *
+     * @return the number of records written
+     */
+    public long convert(Path source, Path target) throws IOException {
+        Objects.requireNonNull(source, "source");
+        Objects.requireNonNull(target, "target");
+
+        Path directory = target.toAbsolutePath().getParent();
+        Path records = Files.createTempFile(directory, target.getFileName().toString(), ".records");
+        try {
+            UsernameTable usernames = new UsernameTable();
+            RecordSink sink;
+            try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(records), BUFFER_SIZE)) {
+                sink = new RecordSink(output);
+                try {
+                    logFileParser.scan(source, usernames, sink::write);
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            }
+            writeTarget(target, usernames, sink.count, records);
+            return sink.count;
+        } finally {
+            Files.deleteIfExists(records);
+        }
+    }
+
+    private static void writeTarget(Path target, UsernameTable usernames, long recordCount, Path records)
+            throws IOException {
+        Path temporary = Files.createTempFile(records.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel output = FileChannel.open(temporary, StandardOpenOption.WRITE);
+                 FileChannel input = FileChannel.open(records, StandardOpenOption.READ)) {
+                writeFully(output, header(usernames, recordCount));
+                long size = input.size();
+                long position = 0;
+                while (position < size) {
+                    position += input.transferTo(position, size - position, output);
+                }
+                output.force(true);
+            }
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static ByteBuffer header(UsernameTable usernames, long recordCount) {
+        byte[][] names = new byte[usernames.size()][];
+        int size = BinaryLogFormat.FIXED_HEADER_SIZE;
+        for (int id = 0; id < names.length; id++) {
+            names[id] = usernames.username(id).getBytes(StandardCharsets.UTF_8);
+            size += BinaryLogFormat.varintSize(names[id].length) + names[id].length;
+        }
+
+        byte[] header = new byte[size];
+        ByteBuffer fixed = ByteBuffer.wrap(header);
+        fixed.putInt(BinaryLogFormat.MAGIC)
+                .putInt(BinaryLogFormat.VERSION)
+                .putLong(recordCount)
+                .putInt(names.length);
+        int offset = fixed.position();
+        for (byte[] name : names) {
+            offset = BinaryLogFormat.writeVarint(header, offset, name.length);
+            System.arraycopy(name, 0, header, offset, name.length);
+            offset += name.length;
+        }
+        return ByteBuffer.wrap(header);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Encodes batches into record bytes; I/O failures are tunnelled through the batch consumer unchecked.
+     */
+    private static final class RecordSink {
+        private final OutputStream output;
+        private final byte[] scratch = new byte[BinaryLogFormat.MAX_RECORD_SIZE];
+        private long count;
+
+        private RecordSink(OutputStream output) {
+            this.output = output;
+        }
+
+        private void write(EntryBatch batch) {
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    int seconds = batch.getSecondsSinceMidnight(i);
+                    scratch[0] = (byte) (seconds >>> 24);
+                    scratch[1] = (byte) (seconds >>> 16);
+                    scratch[2] = (byte) (seconds >>> 8);
+                    scratch[3] = (byte) seconds;
+                    int key = batch.getUserId(i) << 1 | (batch.isStartEvent(i) ? 1 : 0);
+                    int length = BinaryLogFormat.writeVarint(scratch, 4, key);
+                    output.write(scratch, 0, length);
+                }
+                count += batch.size();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.fairbilling.io;
+
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import com.fairbilling.metrics.BillingMetrics;
+
+/**
+ * Splits byte buffers into lines, scans them and forwards entries whose timestamps do not go backwards.
+ *
+ * <p>Both {@code \n} and {@code \r} terminate a line, mirroring {@link java.io.BufferedReader#readLine()}, and a
+ * {@code \r\n} pair ends a single line. Line counts are tallied in plain fields and published to the
+ * {@link BillingMetrics} once per call.
+ */
+final class LineFeed {
+
+    private final LogLineScanner scanner;
+    private final ScanKernel kernel;
+    private final Consumer<? super ParsedLine> consumer;
+    private final BillingMetrics metrics;
+    private final ParsedLine line = new ParsedLine();
+    private int lastTimestamp;
+    private boolean afterCarriageReturn;
+    private long lines;
+    private long bytes;
+    private long malformed;
+    private long invalidTime;
+    private long outOfOrder;
+    private long accepted;
+
+    LineFeed(LogLineScanner scanner, Consumer<? super ParsedLine> consumer, BillingMetrics metrics) {
+        this(scanner, consumer, -1, metrics);
+    }
+
+    /**
+     * Continues a scan whose previously accepted entries ended at {@code lastTimestamp}.
+     */
+    LineFeed(LogLineScanner scanner, Consumer<? super ParsedLine> consumer, int lastTimestamp,
+            BillingMetrics metrics) {
+        this.scanner = Objects.requireNonNull(scanner, "scanner");
+        this.kernel = scanner.getKernel();
+        this.consumer = Objects.requireNonNull(consumer, "consumer");
+        this.metrics = Objects.requireNonNull(metrics, "metrics");
+        this.lastTimestamp = lastTimestamp;
+    }
+
+    /**
+     * Processes every complete line in the range and returns the offset of the first byte of the unterminated tail.
+     */
+    int feed(byte[] buffer, int from, int to) {
+        int lineStart = from;
+        int lineEnd;
+        while ((lineEnd = kernel.indexOfLineEnd(buffer, lineStart, to)) < to) {
+            byte terminator = buffer[lineEnd];
+            if (terminator == '\n' && afterCarriageReturn && lineStart == lineEnd) {
+                afterCarriageReturn = false;
+            } else {
+                accept(buffer, lineStart, lineEnd);
+                afterCarriageReturn = terminator == '\r';
+            }
+            lineStart = lineEnd + 1;
+        }
+        bytes += lineStart - from;
+        publish();
+        return lineStart;
+    }
+
+    int getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    void finish(byte[] buffer, int from, int to) {
+        if (from < to) {
+            accept(buffer, from, to);
+            bytes += to - from;
+        }
+        publish();
+    }
+
+    private void accept(byte[] buffer, int from, int to) {
+        lines++;
+        int status = scanner.scanStatus(buffer, from, to, line);
+        if (status != LogLineScanner.ACCEPTED) {
+            if (status == LogLineScanner.INVALID_TIME) {
+                invalidTime++;
+            } else {
+                malformed++;
+            }
+            return;
+        }
+        int timestamp = line.getSecondsSinceMidnight();
+        if (lastTimestamp <= timestamp) {
+            lastTimestamp = timestamp;
+            accepted++;
+            consumer.accept(line);
+        } else {
+            outOfOrder++;
+        }
+    }
+
+    private void publish() {
+        if (lines == 0 && bytes == 0) {
+            return;
+        }
+        metrics.recordLines(lines, bytes, malformed, invalidTime, outOfOrder, accepted);
+        lines = 0;
+        bytes = 0;
+        malformed = 0;
+        invalidTime = 0;
+        outOfOrder = 0;
+        accepted = 0;
+    }
+}
@@ -0,0 +1,146 @@
+package com.fairbilling.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Compressed log formats readable with the JDK alone, recognised by their leading magic bytes.
+ */
+public enum LogCompression {
+    NONE,
+    /** gzip, including concatenated members as written by {@code cat a.gz b.gz}. */
+    GZIP,
+    /** zip archive; entries are read in order, each followed by a line break. */
+    ZIP;
+
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    public static LogCompression detect(Path filePath) throws IOException {
+        byte[] magic = new byte[4];
+        int length = 0;
+        try (InputStream input = Files.newInputStream(filePath)) {
+            int read;
+            while (length < magic.length && (read = input.read(magic, length, magic.length - length)) > 0) {
+                length += read;
+            }
+        }
+        if (length >= 2 && (magic[0] & 0xFF) == 0x1F && (magic[1] & 0xFF) == 0x8B) {
+            return GZIP;
+        }
+        if (length == 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4) {
+            return ZIP;
+        }
+        return NONE;
+    }
+
+    /**
+     * Opens the file, decompressing it on the calling thread.
+     */
+    public InputStream open(Path filePath) throws IOException {
+        InputStream raw = Files.newInputStream(filePath);
+        try {
+            switch (this) {
+                case GZIP:
+                    return new GZIPInputStream(raw, STREAM_BUFFER_SIZE);
+                case ZIP:
+                    return new SequenceInputStream(new ZipEntries(new ZipInputStream(raw)));
+                default:
+                    return raw;
+            }
+        } catch (IOException | RuntimeException e) {
+            raw.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Enumerates the entries of a zip stream as separate streams, separated by line breaks.
+     */
+    private static final class ZipEntries implements Enumeration<InputStream> {
+        private static final byte[] LINE_BREAK = {'\n'};
+
+        private final ZipInputStream zip;
+        private ZipEntry next;
+        private boolean separatorPending;
+
+        private ZipEntries(ZipInputStream zip) {
+            this.zip = zip;
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            if (separatorPending || next != null) {
+                return true;
+            }
+            try {
+                do {
+                    next = zip.getNextEntry();
+                } while (next != null && next.isDirectory());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (next == null) {
+                closeQuietly();
+            }
+            return next != null;
+        }
+
+        @Override
+        public InputStream nextElement() {
+            if (!hasMoreElements()) {
+                throw new NoSuchElementException();
+            }
+            if (separatorPending) {
+                separatorPending = false;
+                return new ByteArrayInputStream(LINE_BREAK);
+            }
+            next = null;
+            separatorPending = true;
+            return new EntryStream(zip);
+        }
+
+        private void closeQuietly() {
+            try {
+                zip.close();
+            } catch (IOException ignored) {
+                // Nothing left to read.
+            }
+        }
+    }
+
+    /**
+     * View of the current zip entry that does not close the archive when the entry is exhausted.
+     */
+    private static final class EntryStream extends InputStream {
+        private final ZipInputStream zip;
+
+        private EntryStream(ZipInputStream zip) {
+            this.zip = zip;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return zip.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return zip.read(buffer, offset, length);
+        }
+
+        @Override
+        public void close() {
+            // The archive is closed once all entries have been read.
+        }
+    }
+}
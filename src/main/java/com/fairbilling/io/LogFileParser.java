@@ -1,52 +1,575 @@
 package com.fairbilling.io;
 
 import java.io.BufferedReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
 
+import com.fairbilling.domain.EntryBatch;
 import com.fairbilling.domain.LogEntry;
+import com.fairbilling.domain.PartitionedEntryConsumer;
+import com.fairbilling.metrics.BillingMetrics;
+import com.fairbilling.util.UsernameTable;
 
 /**
- * Reads log files and produces a collection of {@link LogEntry} instances.
+ * Reads log files and produces {@link LogEntry} instances, either collected or streamed to a consumer.
+ *
+ * <p>gzip and zip compressed logs are detected by their magic bytes and decompressed while they are read. The batch
+ * methods also accept binary logs written by {@link BinaryLogWriter} and replay them without parsing.
  */
 public class LogFileParser {
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final int BATCH_SIZE = 4096;
+    private static final int PIPELINE_DEPTH = 4;
+    private static final int MIN_READ_SIZE = 64;
+    private static final int TIME_INDEX_STRIDE = 256 * 1024;
+    private static final int MAP_SIZE = 64 * 1024 * 1024;
+
     private final LogEntryParser entryParser;
+    private final BillingMetrics metrics;
+    private final LogLineScanner lineScanner = new LogLineScanner();
+    private final BinaryLogReader binaryLogReader = new BinaryLogReader();
 
     public LogFileParser() {
         this(new LogEntryParser());
     }
 
     public LogFileParser(LogEntryParser entryParser) {
+        this(entryParser, new BillingMetrics());
+    }
+
+    public LogFileParser(LogEntryParser entryParser, BillingMetrics metrics) {
         this.entryParser = Objects.requireNonNull(entryParser, "entryParser");
+        this.metrics = Objects.requireNonNull(metrics, "metrics");
+        metrics.recordScanKernel(lineScanner.getKernel().name());
+    }
+
+    public BillingMetrics getMetrics() {
+        return metrics;
     }
 
     public List<LogEntry> parse(Path filePath) throws IOException {
+        List<LogEntry> entries = new ArrayList<>();
+        parse(filePath, entries::add);
+        return entries;
+    }
+
+    public void parse(Path filePath, Consumer<? super LogEntry> consumer) throws IOException {
         Objects.requireNonNull(filePath, "filePath");
+        Objects.requireNonNull(consumer, "consumer");
 
-        List<LogEntry> entries = new ArrayList<>();
-        try (BufferedReader reader = Files.newBufferedReader(filePath)) {
+        long lines = 0;
+        long malformed = 0;
+        long invalidTime = 0;
+        long outOfOrder = 0;
+        long accepted = 0;
+        RejectionClassifier rejections = new RejectionClassifier();
+        CountingInputStream input = new CountingInputStream(openInput(filePath));
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(input, StandardCharsets.UTF_8.newDecoder()))) {
             String line;
             int lastTimestamp = -1;
             while ((line = reader.readLine()) != null) {
+                lines++;
                 Optional<LogEntry> maybeEntry = entryParser.parse(line);
                 if (!maybeEntry.isPresent()) {
+                    if (rejections.classify(line) == LogLineScanner.INVALID_TIME) {
+                        invalidTime++;
+                    } else {
+                        malformed++;
+                    }
                     continue;
                 }
 
                 LogEntry entry = maybeEntry.get();
                 int timestamp = entry.getSecondsSinceMidnight();
                 if (lastTimestamp <= timestamp) {
-                    entries.add(entry);
+                    consumer.accept(entry);
                     lastTimestamp = timestamp;
+                    accepted++;
+                } else {
+                    outOfOrder++;
                 }
             }
+        } finally {
+            metrics.recordLines(lines, input.count, malformed, invalidTime, outOfOrder, accepted);
+        }
+    }
+
+    /**
+     * Streams accepted lines of a text log through the byte-level scanner; the supplied {@link ParsedLine} is reused
+     * per call.
+     */
+    public void scan(Path filePath, Consumer<? super ParsedLine> consumer) throws IOException {
+        Objects.requireNonNull(filePath, "filePath");
+        Objects.requireNonNull(consumer, "consumer");
+        if (BinaryLogFormat.isBinaryLog(filePath)) {
+            throw new IOException("Binary logs hold no text lines: " + filePath);
+        }
+
+        try (InputStream input = openInput(filePath)) {
+            scan(input, consumer);
+        }
+    }
+
+    void scan(InputStream input, Consumer<? super ParsedLine> consumer) throws IOException {
+        LineFeed feed = new LineFeed(lineScanner, consumer, metrics);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int length = 0;
+        int read;
+        while ((read = input.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+            int tail = feed.feed(buffer, 0, length);
+            length -= tail;
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            } else {
+                System.arraycopy(buffer, tail, buffer, 0, length);
+            }
+        }
+        feed.finish(buffer, 0, length);
+    }
+
+    /**
+     * Streams accepted entries as reusable {@link EntryBatch} instances with user ids resolved against
+     * {@code usernames} in first-appearance order.
+     */
+    public void scan(Path filePath, UsernameTable usernames, Consumer<? super EntryBatch> consumer)
+            throws IOException {
+        Objects.requireNonNull(filePath, "filePath");
+        Objects.requireNonNull(usernames, "usernames");
+        Objects.requireNonNull(consumer, "consumer");
+
+        if (BinaryLogFormat.isBinaryLog(filePath)) {
+            long records = binaryLogReader.read(filePath, usernames, consumer);
+            metrics.recordLines(records, Files.size(filePath), 0, 0, 0, records);
+            return;
+        }
+        BatchingLineSink sink = new BatchingLineSink(usernames, consumer, BATCH_SIZE);
+        try (InputStream input = openInput(filePath)) {
+            scan(input, sink);
+        }
+        sink.flush();
+    }
+
+    /**
+     * Streams batches from a text log that is not a file, such as an upload. The stream is read to its end but not
+     * closed.
+     */
+    public void scan(InputStream input, UsernameTable usernames, Consumer<? super EntryBatch> consumer)
+            throws IOException {
+        Objects.requireNonNull(input, "input");
+        Objects.requireNonNull(usernames, "usernames");
+        Objects.requireNonNull(consumer, "consumer");
+
+        BatchingLineSink sink = new BatchingLineSink(usernames, consumer, BATCH_SIZE);
+        scan(input, sink);
+        sink.flush();
+    }
+
+    /**
+     * Streams the same batches as {@link #scan(Path, UsernameTable, Consumer)}, but reads, parses and delivers them on
+     * three threads connected by queues of {@code queueDepth} elements; {@code consumer} runs on the calling thread.
+     */
+    public void scanPipelined(Path filePath, UsernameTable usernames, Consumer<? super EntryBatch> consumer,
+            int queueDepth, int batchSize) throws IOException {
+        Objects.requireNonNull(filePath, "filePath");
+        Objects.requireNonNull(usernames, "usernames");
+        Objects.requireNonNull(consumer, "consumer");
+
+        PipelinedLogScanner pipeline = new PipelinedLogScanner(lineScanner, metrics, BUFFER_SIZE, queueDepth,
+                batchSize);
+        if (BinaryLogFormat.isBinaryLog(filePath)) {
+            scan(filePath, usernames, consumer);
+            return;
+        }
+        // The reader stage already runs on its own thread, so compressed input is inflated there directly.
+        try (InputStream input = LogCompression.detect(filePath).open(filePath)) {
+            pipeline.scan(input, usernames, consumer);
+        }
+    }
+
+    /**
+     * Streams batches from {@code from} onwards and reports a resumable {@link ScanPosition} after at least every
+     * {@code checkpointBytes} bytes, once every entry before that position has been delivered to {@code consumer}.
+     *
+     * @return the position at the end of the file
+     */
+    public ScanPosition scan(Path filePath, ScanPosition from, UsernameTable usernames,
+            Consumer<? super EntryBatch> consumer, long checkpointBytes, Consumer<? super ScanPosition> onCheckpoint)
+            throws IOException {
+        Objects.requireNonNull(filePath, "filePath");
+        Objects.requireNonNull(from, "from");
+        Objects.requireNonNull(usernames, "usernames");
+        Objects.requireNonNull(consumer, "consumer");
+        Objects.requireNonNull(onCheckpoint, "onCheckpoint");
+        if (checkpointBytes <= 0) {
+            throw new IllegalArgumentException("checkpointBytes must be positive");
+        }
+        if (BinaryLogFormat.isBinaryLog(filePath)) {
+            throw new IOException("Binary logs cannot be scanned from a position: " + filePath);
+        }
+
+        BatchingLineSink sink = new BatchingLineSink(usernames, consumer, BATCH_SIZE);
+        LineFeed feed = new LineFeed(lineScanner, sink, from.getLastTimestamp(), metrics);
+        try (InputStream input = openInput(filePath)) {
+            skipFully(input, from.getOffset(), filePath);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long bufferOffset = from.getOffset();
+            long nextCheckpoint = bufferOffset + checkpointBytes;
+            int length = 0;
+            int read;
+            while ((read = input.read(buffer, length, readLimit(buffer, length, nextCheckpoint - bufferOffset)))
+                    != -1) {
+                length += read;
+                int tail = feed.feed(buffer, 0, length);
+                bufferOffset += tail;
+                length -= tail;
+                if (bufferOffset >= nextCheckpoint) {
+                    sink.flush();
+                    onCheckpoint.accept(new ScanPosition(bufferOffset, feed.getLastTimestamp()));
+                    nextCheckpoint = bufferOffset + checkpointBytes;
+                }
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                } else {
+                    System.arraycopy(buffer, tail, buffer, 0, length);
+                }
+            }
+            feed.finish(buffer, 0, length);
+            sink.flush();
+            return new ScanPosition(bufferOffset + length, feed.getLastTimestamp());
+        }
+    }
+
+    /**
+     * Opens the {@link TimeIndex} of a plain text log, building and saving it to {@code indexFile} with one scan of the
+     * log when it is missing or stale.
+     */
+    public TimeIndex openTimeIndex(Path filePath, Path indexFile) throws IOException {
+        return openTimeIndex(filePath, indexFile, TIME_INDEX_STRIDE);
+    }
+
+    TimeIndex openTimeIndex(Path filePath, Path indexFile, long stride) throws IOException {
+        Objects.requireNonNull(filePath, "filePath");
+        Objects.requireNonNull(indexFile, "indexFile");
+        if (LogCompression.detect(filePath) != LogCompression.NONE || BinaryLogFormat.isBinaryLog(filePath)) {
+            throw new IOException("Only plain text logs can be indexed: " + filePath);
+        }
+        TimeIndex index = TimeIndex.open(indexFile, filePath);
+        if (index != null) {
+            return index;
+        }
+
+        long size = Files.size(filePath);
+        long modified = Files.getLastModifiedTime(filePath).toMillis();
+        List<ScanPosition> positions = new ArrayList<>();
+        positions.add(ScanPosition.START);
+        int[] firstTimestamp = {-1};
+        ScanPosition end = scan(filePath, ScanPosition.START, new UsernameTable(), batch -> {
+            if (firstTimestamp[0] < 0 && batch.size() > 0) {
+                firstTimestamp[0] = batch.getSecondsSinceMidnight(0);
+            }
+        }, stride, positions::add);
+        if (size != Files.size(filePath) || modified != Files.getLastModifiedTime(filePath).toMillis()) {
+            throw new IOException("Log changed while it was being indexed: " + filePath);
+        }
+        TimeIndex.write(indexFile, positions, size, modified, firstTimestamp[0],
+                firstTimestamp[0] < 0 ? -1 : end.getLastTimestamp());
+        return TimeIndex.open(indexFile, filePath);
+    }
+
+    /**
+     * Streams the accepted entries from {@code windowStart} to {@code windowEnd} inclusive, the same entries a full
+     * scan would deliver for that window. Only the part of the log that {@code index} locates for the window is
+     * mapped and parsed.
+     */
+    public void scanWindow(Path filePath, TimeIndex index, int windowStart, int windowEnd, UsernameTable usernames,
+            Consumer<? super EntryBatch> consumer) throws IOException {
+        Objects.requireNonNull(filePath, "filePath");
+        Objects.requireNonNull(index, "index");
+        Objects.requireNonNull(usernames, "usernames");
+        Objects.requireNonNull(consumer, "consumer");
+        if (windowStart > windowEnd) {
+            throw new IllegalArgumentException("windowStart must not be after windowEnd");
+        }
+
+        ScanPosition start = index.startOf(windowStart);
+        long end = index.endOf(windowEnd);
+        BatchingLineSink sink = new BatchingLineSink(usernames, consumer, BATCH_SIZE);
+        // Lines before the window still advance the last accepted timestamp, so they are filtered after the feed.
+        LineFeed feed = new LineFeed(lineScanner, line -> {
+            int timestamp = line.getSecondsSinceMidnight();
+            if (timestamp >= windowStart && timestamp <= windowEnd) {
+                sink.accept(line);
+            }
+        }, start.getLastTimestamp(), metrics);
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            if (channel.size() != index.getLogSize()) {
+                throw new IOException("Time index does not match the log: " + filePath);
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int length = 0;
+            for (long position = start.getOffset(); position < end; position += MAP_SIZE) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAP_SIZE, end - position));
+                while (mapped.hasRemaining()) {
+                    int read = Math.min(mapped.remaining(), buffer.length - length);
+                    mapped.get(buffer, length, read);
+                    length += read;
+                    int tail = feed.feed(buffer, 0, length);
+                    length -= tail;
+                    if (length == buffer.length) {
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    } else {
+                        System.arraycopy(buffer, tail, buffer, 0, length);
+                    }
+                }
+            }
+            feed.finish(buffer, 0, length);
+        }
+        sink.flush();
+    }
+
+    /**
+     * Scans a memory-mapped file in parallel chunks and delivers batches in file order, holding exactly the entries
+     * {@link #scan(Path, UsernameTable, Consumer)} would. Compressed files cannot be split and are scanned
+     * sequentially; binary logs need no scanning and are replayed directly.
+     */
+    public void scanParallel(Path filePath, UsernameTable usernames, Consumer<? super EntryBatch> consumer)
+            throws IOException {
+        scanParallel(filePath, usernames, consumer, ForkJoinPool.commonPool(), CHUNK_SIZE);
+    }
+
+    void scanParallel(Path filePath, UsernameTable usernames, Consumer<? super EntryBatch> consumer,
+            ForkJoinPool pool, int chunkSize) throws IOException {
+        Objects.requireNonNull(filePath, "filePath");
+        Objects.requireNonNull(usernames, "usernames");
+        Objects.requireNonNull(consumer, "consumer");
+
+        if (LogCompression.detect(filePath) != LogCompression.NONE || BinaryLogFormat.isBinaryLog(filePath)) {
+            scan(filePath, usernames, consumer);
+            return;
+        }
+        new MappedChunkScanner(lineScanner, pool, chunkSize, metrics).scan(filePath, usernames, consumer);
+    }
+
+    /**
+     * Scans like {@link #scanParallel(Path, UsernameTable, Consumer)}, but when {@code consumer} bills users in several
+     * partitions every chunk is split by partition on the thread that scanned it, so the thread delivering chunks in
+     * order only translates user ids once per user and chunk.
+     */
+    public void scanParallel(Path filePath, UsernameTable usernames, PartitionedEntryConsumer consumer)
+            throws IOException {
+        scanParallel(filePath, usernames, consumer, ForkJoinPool.commonPool(), CHUNK_SIZE);
+    }
+
+    void scanParallel(Path filePath, UsernameTable usernames, PartitionedEntryConsumer consumer, ForkJoinPool pool,
+            int chunkSize) throws IOException {
+        Objects.requireNonNull(filePath, "filePath");
+        Objects.requireNonNull(usernames, "usernames");
+        Objects.requireNonNull(consumer, "consumer");
+
+        if (LogCompression.detect(filePath) != LogCompression.NONE || BinaryLogFormat.isBinaryLog(filePath)) {
+            scan(filePath, usernames, consumer);
+            return;
+        }
+        new MappedChunkScanner(lineScanner, pool, chunkSize, metrics).scan(filePath, usernames, consumer);
+    }
+
+    /**
+     * Scans several time-ordered text logs, such as those of different gateways, as one log in timestamp order.
+     * Entries are merged with a heap over one buffered reader per file, and equal timestamps keep the order the files
+     * are given in. Each file is filtered for entries going backwards on its own, exactly as if it were scanned alone.
+     * User ids are resolved in merged order, so summaries list users by their first appearance across all files.
+     */
+    public void scanMerged(List<Path> filePaths, UsernameTable usernames, Consumer<? super EntryBatch> consumer)
+            throws IOException {
+        Objects.requireNonNull(filePaths, "filePaths");
+        Objects.requireNonNull(usernames, "usernames");
+        Objects.requireNonNull(consumer, "consumer");
+
+        List<MergeSource> sources = new ArrayList<>(filePaths.size());
+        Throwable failure = null;
+        try {
+            for (Path filePath : filePaths) {
+                if (BinaryLogFormat.isBinaryLog(filePath)) {
+                    throw new IOException("Not a text log: " + filePath);
+                }
+                sources.add(new MergeSource(openInput(filePath), sources.size(), lineScanner, metrics, BUFFER_SIZE));
+            }
+            PriorityQueue<MergeSource> heap = new PriorityQueue<>(Math.max(1, sources.size()), MergeSource::compareTo);
+            for (MergeSource source : sources) {
+                if (source.advance()) {
+                    heap.add(source);
+                }
+            }
+            BatchingLineSink sink = new BatchingLineSink(usernames, consumer, BATCH_SIZE);
+            ParsedLine line = new ParsedLine();
+            MergeSource source;
+            while ((source = heap.poll()) != null) {
+                // Keep draining the same log while it stays ahead, which skips the heap for runs of entries.
+                boolean more;
+                do {
+                    source.current(line);
+                    sink.accept(line);
+                    more = source.advance();
+                } while (more && (heap.isEmpty() || source.compareTo(heap.peek()) < 0));
+                if (more) {
+                    heap.add(source);
+                }
+            }
+            sink.flush();
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            closeAll(sources, failure);
+        }
+    }
+
+    /**
+     * Closes every merge source. A close failure is added to {@code failure} when the scan already failed, so that it
+     * never replaces the exception that stopped the scan, and is thrown otherwise.
+     */
+    private static void closeAll(List<MergeSource> sources, Throwable failure) throws IOException {
+        IOException closeFailure = null;
+        for (MergeSource source : sources) {
+            try {
+                source.close();
+            } catch (IOException e) {
+                if (failure != null) {
+                    failure.addSuppressed(e);
+                } else if (closeFailure != null) {
+                    closeFailure.addSuppressed(e);
+                } else {
+                    closeFailure = e;
+                }
+            }
+        }
+        if (closeFailure != null) {
+            throw closeFailure;
+        }
+    }
+
+    /**
+     * Opens a follower that delivers lines as they are appended to a growing file; see {@link LogFollower}.
+     */
+    public LogFollower follow(Path filePath, Consumer<? super ParsedLine> consumer, Runnable onReset)
+            throws IOException {
+        return new LogFollower(filePath, lineScanner, consumer, onReset, metrics);
+    }
+
+    /**
+     * Opens the file for sequential reading. Compressed files are inflated on a separate thread that hands buffers
+     * to the caller through a bounded queue, so decompression overlaps with parsing.
+     */
+    private static InputStream openInput(Path filePath) throws IOException {
+        LogCompression compression = LogCompression.detect(filePath);
+        if (compression == LogCompression.NONE) {
+            return Files.newInputStream(filePath);
+        }
+        return new PipelinedInputStream(compression.open(filePath), BUFFER_SIZE, PIPELINE_DEPTH);
+    }
+
+    /**
+     * Stops reads near the next checkpoint so that checkpoints stay close to their interval even when it is smaller
+     * than the buffer.
+     */
+    private static int readLimit(byte[] buffer, int length, long untilCheckpoint) {
+        long wanted = Math.max(MIN_READ_SIZE, untilCheckpoint - length);
+        return (int) Math.min(buffer.length - length, wanted);
+    }
+
+    private static void skipFully(InputStream input, long count, Path filePath) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            long skipped = input.skip(remaining);
+            if (skipped <= 0) {
+                if (input.read() < 0) {
+                    throw new IOException("File is shorter than the scan position: " + filePath);
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    /**
+     * Classifies lines the regex parser rejected with the byte scanner, which accepts exactly the same lines. One
+     * buffer and {@link ParsedLine} are reused for every line of a parse.
+     */
+    private final class RejectionClassifier {
+        private final ParsedLine parsed = new ParsedLine();
+        private byte[] bytes = new byte[128];
+
+        int classify(String line) {
+            int length = line.length();
+            if (length > bytes.length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            for (int i = 0; i < length; i++) {
+                char c = line.charAt(i);
+                if (c >= 0x80) {
+                    // Log lines are ASCII, so only the time of an ASCII line can be out of range.
+                    return LogLineScanner.MALFORMED;
+                }
+                bytes[i] = (byte) c;
+            }
+            return lineScanner.scanStatus(bytes, 0, length, parsed);
+        }
+    }
+
+    /**
+     * Counts the bytes read through it, so that the regex path reports the bytes of the log rather than characters.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream input) {
+            super(input);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value >= 0) {
+                count++;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
         }
-        return entries;
     }
 }
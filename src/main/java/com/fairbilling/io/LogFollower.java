@@ -0,0 +1,161 @@
+package com.fairbilling.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import com.fairbilling.metrics.BillingMetrics;
+
+/**
+ * Follows a growing log file, delivering only lines appended since the previous poll.
+ *
+ * <p>The file stays open and is read from the last consumed offset, so the cost of a poll is proportional to the
+ * newly appended bytes. An unterminated last line is held back until its terminator arrives. When the file is
+ * replaced by a different file at the same path (rotation), the old file is first read to its end. When it is
+ * truncated, detected by its size dropping below the offset or by its first bytes changing, the data already read is
+ * all that is left of it. Either way the held-back line is delivered, the reset callback runs and reading starts
+ * again from the beginning of the current file with a fresh timestamp history.
+ */
+public final class LogFollower implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int HEAD_SIZE = 256;
+
+    private final Path filePath;
+    private final LogLineScanner lineScanner;
+    private final Consumer<? super ParsedLine> consumer;
+    private final Runnable onReset;
+    private final BillingMetrics metrics;
+    private FileChannel channel;
+    private Object fileKey;
+    private LineFeed feed;
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int length;
+    private long offset;
+    private final byte[] head = new byte[HEAD_SIZE];
+    private int headLength;
+    private final ByteBuffer headCheck = ByteBuffer.allocate(HEAD_SIZE);
+
+    LogFollower(Path filePath, LogLineScanner lineScanner, Consumer<? super ParsedLine> consumer, Runnable onReset,
+            BillingMetrics metrics) throws IOException {
+        this.filePath = Objects.requireNonNull(filePath, "filePath");
+        this.lineScanner = Objects.requireNonNull(lineScanner, "lineScanner");
+        this.consumer = Objects.requireNonNull(consumer, "consumer");
+        this.onReset = Objects.requireNonNull(onReset, "onReset");
+        this.metrics = Objects.requireNonNull(metrics, "metrics");
+        this.channel = FileChannel.open(filePath, StandardOpenOption.READ);
+        this.fileKey = fileKey(filePath);
+        this.feed = new LineFeed(lineScanner, consumer, metrics);
+    }
+
+    /**
+     * Reads and dispatches every complete line appended since the last poll.
+     *
+     * @return the number of bytes consumed from the file
+     */
+    public long poll() throws IOException {
+        return detectReplacement() + readToEnd();
+    }
+
+    private long readToEnd() throws IOException {
+        long consumed = 0;
+        while (true) {
+            int read = channel.read(ByteBuffer.wrap(buffer, length, buffer.length - length), offset);
+            if (read <= 0) {
+                return consumed;
+            }
+            if (offset < HEAD_SIZE) {
+                int copied = (int) Math.min(read, HEAD_SIZE - offset);
+                System.arraycopy(buffer, length, head, (int) offset, copied);
+                headLength += copied;
+            }
+            offset += read;
+            consumed += read;
+            length += read;
+            int tail = feed.feed(buffer, 0, length);
+            length -= tail;
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            } else {
+                System.arraycopy(buffer, tail, buffer, 0, length);
+            }
+        }
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Switches to the start of the current file if the followed one was rotated or truncated, returning the bytes
+     * still read from a rotated file.
+     */
+    private long detectReplacement() throws IOException {
+        Object currentKey;
+        try {
+            currentKey = fileKey(filePath);
+        } catch (NoSuchFileException e) {
+            // Mid-rotation: keep reading the old file until the new one appears.
+            return 0;
+        }
+        if (currentKey != null && !currentKey.equals(fileKey)) {
+            FileChannel replacement = FileChannel.open(filePath, StandardOpenOption.READ);
+            long consumed = readToEnd();
+            channel.close();
+            channel = replacement;
+            fileKey = currentKey;
+            reset();
+            return consumed;
+        }
+        if (channel.size() < offset || headChanged()) {
+            reset();
+        }
+        return 0;
+    }
+
+    /**
+     * Whether the bytes read from the start of the file are no longer there, as after a truncation followed by
+     * writes that grew the file past the old offset.
+     */
+    private boolean headChanged() throws IOException {
+        headCheck.clear().limit(headLength);
+        while (headCheck.hasRemaining()) {
+            if (channel.read(headCheck, headCheck.position()) <= 0) {
+                return true;
+            }
+        }
+        for (int i = 0; i < headLength; i++) {
+            if (headCheck.get(i) != head[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void reset() {
+        feed.finish(buffer, 0, length);
+        offset = 0;
+        length = 0;
+        headLength = 0;
+        feed = new LineFeed(lineScanner, consumer, metrics);
+        onReset.run();
+    }
+
+    private static Object fileKey(Path path) throws IOException {
+        return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+    }
+}
@@ -0,0 +1,128 @@
+package com.fairbilling.io;
+
+import java.util.Objects;
+
+/**
+ * Allocation-free parser that recognises log lines directly in raw ASCII bytes.
+ *
+ * <p>Accepts exactly the lines accepted by {@link LogEntryParser}: two-digit {@code HH:MM:SS} within a single day,
+ * whitespace, a word-character username, whitespace, a case-sensitive {@code Start} or {@code End} token and optional
+ * trailing whitespace. Whitespace and word characters follow the ASCII definitions of {@code \s} and {@code \w}.
+ *
+ * <p>Times are parsed, and line ends found by {@link LineFeed}, with the fastest {@link ScanKernel} on this JDK.
+ */
+public final class LogLineScanner {
+
+    static final int ACCEPTED = 0;
+    static final int MALFORMED = 1;
+    static final int INVALID_TIME = 2;
+
+    private static final int TIME_LENGTH = 8;
+    private static final byte[] START_TOKEN = {'S', 't', 'a', 'r', 't'};
+    private static final byte[] END_TOKEN = {'E', 'n', 'd'};
+
+    private final ScanKernel kernel;
+
+    public LogLineScanner() {
+        this(ScanKernels.DEFAULT);
+    }
+
+    LogLineScanner(ScanKernel kernel) {
+        this.kernel = Objects.requireNonNull(kernel, "kernel");
+    }
+
+    ScanKernel getKernel() {
+        return kernel;
+    }
+
+    public boolean scan(byte[] buffer, int from, int to, ParsedLine target) {
+        return scanStatus(buffer, from, to, target) == ACCEPTED;
+    }
+
+    /**
+     * Scans like {@link #scan} and tells why a line was rejected: {@link #MALFORMED} when it does not have the shape
+     * of a log line, {@link #INVALID_TIME} when only the time is out of range.
+     */
+    int scanStatus(byte[] buffer, int from, int to, ParsedLine target) {
+        Objects.requireNonNull(buffer, "buffer");
+        Objects.requireNonNull(target, "target");
+        if (to - from <= TIME_LENGTH) {
+            return MALFORMED;
+        }
+
+        int time = kernel.parseTime(buffer, from);
+        if (time < 0) {
+            return MALFORMED;
+        }
+        int hours = time >>> 16;
+        int minutes = (time >>> 8) & 0xFF;
+        int seconds = time & 0xFF;
+
+        int usernameStart = skipWhitespace(buffer, from + TIME_LENGTH, to);
+        if (usernameStart == from + TIME_LENGTH) {
+            return MALFORMED;
+        }
+        int usernameEnd = usernameStart;
+        while (usernameEnd < to && isWordCharacter(buffer[usernameEnd])) {
+            usernameEnd++;
+        }
+        if (usernameEnd == usernameStart) {
+            return MALFORMED;
+        }
+
+        int tokenStart = skipWhitespace(buffer, usernameEnd, to);
+        if (tokenStart == usernameEnd) {
+            return MALFORMED;
+        }
+        boolean startEvent;
+        int tokenEnd;
+        if (regionMatches(buffer, tokenStart, to, START_TOKEN)) {
+            startEvent = true;
+            tokenEnd = tokenStart + START_TOKEN.length;
+        } else if (regionMatches(buffer, tokenStart, to, END_TOKEN)) {
+            startEvent = false;
+            tokenEnd = tokenStart + END_TOKEN.length;
+        } else {
+            return MALFORMED;
+        }
+        if (skipWhitespace(buffer, tokenEnd, to) != to) {
+            return MALFORMED;
+        }
+
+        if (hours > 23 || minutes > 59 || seconds > 59) {
+            return INVALID_TIME;
+        }
+        target.set(buffer, hours * 3600 + minutes * 60 + seconds, usernameStart, usernameEnd, startEvent);
+        return ACCEPTED;
+    }
+
+    private static int skipWhitespace(byte[] buffer, int index, int to) {
+        while (index < to && isWhitespace(buffer[index])) {
+            index++;
+        }
+        return index;
+    }
+
+    private static boolean regionMatches(byte[] buffer, int index, int to, byte[] token) {
+        if (to - index < token.length) {
+            return false;
+        }
+        for (int i = 0; i < token.length; i++) {
+            if (buffer[index + i] != token[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean isWhitespace(byte value) {
+        return value == ' ' || (value >= '\t' && value <= '\r');
+    }
+
+    static boolean isWordCharacter(byte value) {
+        return (value >= 'a' && value <= 'z')
+                || (value >= 'A' && value <= 'Z')
+                || (value >= '0' && value <= '9')
+                || value == '_';
+    }
+}
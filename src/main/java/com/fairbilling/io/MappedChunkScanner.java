@@ -0,0 +1,324 @@
+package com.fairbilling.io;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+
+import com.fairbilling.domain.EntryBatch;
+import com.fairbilling.domain.PartitionedBatch;
+import com.fairbilling.domain.PartitionedEntryConsumer;
+import com.fairbilling.metrics.BillingMetrics;
+import com.fairbilling.util.UsernameTable;
+
+/**
+ * Scans a memory-mapped log file in newline-aligned chunks on a fork-join pool.
+ *
+ * <p>Each chunk applies the monotonic timestamp rule locally, starting from an empty history. Because the last
+ * accepted timestamp always equals the running maximum of every valid timestamp seen so far, a chunk's true survivors
+ * are exactly its local survivors at or after the maximum carried over from earlier chunks; local survivors are
+ * non-decreasing, so the merge only has to skip a prefix.
+ *
+ * <p>Chunks resolve usernames against their own {@link UsernameTable}; the merge translates those local ids into the
+ * caller's table in file order, hashing each distinct user only once per chunk and preserving first-appearance order.
+ *
+ * <p>For a {@link PartitionedEntryConsumer} with several partitions each chunk also splits its entries by partition,
+ * so the merge neither copies nor translates entries: it cuts the prefix from every part, translates each distinct
+ * user once, and hands the parts over as one {@link PartitionedBatch}.
+ */
+final class MappedChunkScanner {
+
+    private static final int BOUNDARY_PROBE_SIZE = 4 * 1024;
+    private static final int ESTIMATED_LINE_LENGTH = 24;
+    private static final int WINDOW_SIZE = 64 * 1024;
+
+    private final LogLineScanner lineScanner;
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+    private final BillingMetrics metrics;
+
+    MappedChunkScanner(LogLineScanner lineScanner, ForkJoinPool pool, int chunkSize, BillingMetrics metrics) {
+        this.lineScanner = Objects.requireNonNull(lineScanner, "lineScanner");
+        this.pool = Objects.requireNonNull(pool, "pool");
+        this.metrics = Objects.requireNonNull(metrics, "metrics");
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    void scan(Path filePath, UsernameTable usernames, Consumer<? super EntryBatch> consumer) throws IOException {
+        scan(filePath, usernames, consumer, null);
+    }
+
+    void scan(Path filePath, UsernameTable usernames, PartitionedEntryConsumer consumer) throws IOException {
+        scan(filePath, usernames, consumer, consumer.partitionCount() > 1 ? consumer : null);
+    }
+
+    private void scan(Path filePath, UsernameTable usernames, Consumer<? super EntryBatch> consumer,
+            PartitionedEntryConsumer partitioned) throws IOException {
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            long[] boundaries = chunkBoundaries(channel);
+            int window = Math.max(2, pool.getParallelism() * 2);
+            Deque<ForkJoinTask<ChunkResult>> pending = new ArrayDeque<>();
+            int carriedTimestamp = -1;
+            int next = 0;
+            int chunkCount = boundaries.length - 1;
+
+            while (next < chunkCount || !pending.isEmpty()) {
+                while (next < chunkCount && pending.size() < window) {
+                    pending.addLast(pool.submit(
+                            new ChunkTask(channel, boundaries[next], boundaries[next + 1], partitioned)));
+                    next++;
+                }
+                ChunkResult result = join(pending.removeFirst());
+                carriedTimestamp = partitioned == null
+                        ? result.emit(carriedTimestamp, usernames, consumer, metrics)
+                        : result.emitPartitioned(carriedTimestamp, usernames, partitioned, metrics);
+            }
+        }
+    }
+
+    private long[] chunkBoundaries(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<Long> boundaries = new ArrayList<>();
+        boundaries.add(0L);
+        ByteBuffer probe = ByteBuffer.allocate(BOUNDARY_PROBE_SIZE);
+        long position = 0;
+        while (size - position > chunkSize) {
+            long boundary = nextLineStart(channel, position + chunkSize, size, probe);
+            if (boundary >= size) {
+                break;
+            }
+            boundaries.add(boundary);
+            position = boundary;
+        }
+        boundaries.add(size);
+
+        long[] result = new long[boundaries.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = boundaries.get(i);
+        }
+        return result;
+    }
+
+    private static long nextLineStart(FileChannel channel, long from, long size, ByteBuffer probe) throws IOException {
+        long position = from;
+        while (position < size) {
+            probe.clear();
+            int read = channel.read(probe, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (probe.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private static ChunkResult join(ForkJoinTask<ChunkResult> task) throws IOException {
+        try {
+            return task.join();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private final class ChunkTask implements Callable<ChunkResult> {
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private final PartitionedEntryConsumer partitioned;
+
+        private ChunkTask(FileChannel channel, long start, long end, PartitionedEntryConsumer partitioned) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.partitioned = partitioned;
+        }
+
+        @Override
+        public ChunkResult call() {
+            long length = end - start;
+            if (length > Integer.MAX_VALUE) {
+                throw new UncheckedIOException(new IOException("Log line exceeds the maximum chunk size"));
+            }
+            MappedByteBuffer mapped;
+            try {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            UsernameTable localUsernames = new UsernameTable();
+            int estimatedEntries = (int) Math.max(16, length / ESTIMATED_LINE_LENGTH);
+            ChunkResult result = partitioned == null
+                    ? new ChunkResult(localUsernames, new EntryBatch(estimatedEntries))
+                    : new ChunkResult(localUsernames, estimatedEntries, partitioned);
+            LineFeed feed = new LineFeed(lineScanner, line -> result.add(line.getSecondsSinceMidnight(),
+                    localUsernames.resolve(line.getBuffer(), line.getUsernameStart(), line.getUsernameEnd()),
+                    line.isStartEvent()), metrics);
+            // Lines are scanned through a small window copied from the mapping, so the chunk never lands on the heap.
+            byte[] window = new byte[(int) Math.min(WINDOW_SIZE, Math.max(1, length))];
+            int filled = 0;
+            while (mapped.hasRemaining()) {
+                if (filled == window.length) {
+                    window = Arrays.copyOf(window, window.length * 2);
+                }
+                int read = Math.min(mapped.remaining(), window.length - filled);
+                mapped.get(window, filled, read);
+                filled += read;
+                int tail = feed.feed(window, 0, filled);
+                filled -= tail;
+                System.arraycopy(window, tail, window, 0, filled);
+            }
+            feed.finish(window, 0, filled);
+            return result;
+        }
+    }
+
+    /**
+     * A chunk's local survivors, with ids from its own table: one batch in chunk order, or one batch per partition
+     * plus the local id of every entry in chunk order, which is only read when the merge cuts a prefix.
+     */
+    private static final class ChunkResult {
+        private final UsernameTable localUsernames;
+        private final EntryBatch batch;
+        private final EntryBatch[] parts;
+        private final PartitionedEntryConsumer partitioned;
+        private int[] partitionsByUser;
+        private int userCount;
+        private int[] userOrder;
+        private int size;
+        private int lastTimestamp;
+
+        private ChunkResult(UsernameTable localUsernames, EntryBatch batch) {
+            this.localUsernames = localUsernames;
+            this.batch = batch;
+            this.parts = null;
+            this.partitioned = null;
+        }
+
+        private ChunkResult(UsernameTable localUsernames, int estimatedEntries, PartitionedEntryConsumer partitioned) {
+            this.localUsernames = localUsernames;
+            this.batch = null;
+            this.partitioned = partitioned;
+            parts = new EntryBatch[partitioned.partitionCount()];
+            for (int i = 0; i < parts.length; i++) {
+                parts[i] = new EntryBatch(Math.max(16, estimatedEntries / parts.length));
+            }
+            partitionsByUser = new int[64];
+            userOrder = new int[estimatedEntries];
+        }
+
+        private void add(int secondsSinceMidnight, int localId, boolean startEvent) {
+            if (parts == null) {
+                batch.add(secondsSinceMidnight, localId, startEvent);
+                return;
+            }
+            // Local ids are dense, so a new user always takes the next one.
+            if (localId == userCount) {
+                if (userCount == partitionsByUser.length) {
+                    partitionsByUser = Arrays.copyOf(partitionsByUser, userCount * 2);
+                }
+                partitionsByUser[userCount++] = partitioned.partitionOf(localUsernames.hashOf(localId));
+            }
+            parts[partitionsByUser[localId]].add(secondsSinceMidnight, localId, startEvent);
+            if (size == userOrder.length) {
+                userOrder = Arrays.copyOf(userOrder, size * 2);
+            }
+            userOrder[size++] = localId;
+            lastTimestamp = secondsSinceMidnight;
+        }
+
+        private int emit(int carriedTimestamp, UsernameTable usernames, Consumer<? super EntryBatch> consumer,
+                BillingMetrics metrics) {
+            int size = batch.size();
+            if (size == 0) {
+                return carriedTimestamp;
+            }
+            int chunkMaximum = batch.getSecondsSinceMidnight(size - 1);
+            int first = 0;
+            while (first < size && batch.getSecondsSinceMidnight(first) < carriedTimestamp) {
+                first++;
+            }
+            batch.removeFirst(first);
+            if (first > 0) {
+                metrics.recordLateOutOfOrder(first);
+            }
+
+            int[] globalIds = new int[localUsernames.size()];
+            Arrays.fill(globalIds, -1);
+            for (int i = 0; i < batch.size(); i++) {
+                int localId = batch.getUserId(i);
+                int globalId = globalIds[localId];
+                if (globalId < 0) {
+                    globalId = usernames.resolve(localUsernames, localId);
+                    globalIds[localId] = globalId;
+                }
+                batch.setUserId(i, globalId);
+            }
+            if (!batch.isEmpty()) {
+                consumer.accept(batch);
+            }
+            return Math.max(carriedTimestamp, chunkMaximum);
+        }
+
+        private int emitPartitioned(int carriedTimestamp, UsernameTable usernames, PartitionedEntryConsumer consumer,
+                BillingMetrics metrics) {
+            if (size == 0) {
+                return carriedTimestamp;
+            }
+            // The cut entries are a prefix of every part and, together, a prefix of the chunk.
+            int cut = 0;
+            for (EntryBatch part : parts) {
+                int first = 0;
+                while (first < part.size() && part.getSecondsSinceMidnight(first) < carriedTimestamp) {
+                    first++;
+                }
+                part.removeFirst(first);
+                cut += first;
+            }
+            if (cut > 0) {
+                metrics.recordLateOutOfOrder(cut);
+            }
+
+            int[] globalIds = new int[localUsernames.size()];
+            Arrays.fill(globalIds, -1);
+            if (cut == 0) {
+                // Local ids already follow first appearance among the survivors.
+                for (int localId = 0; localId < globalIds.length; localId++) {
+                    globalIds[localId] = usernames.resolve(localUsernames, localId);
+                }
+            } else {
+                for (int i = cut; i < size; i++) {
+                    int localId = userOrder[i];
+                    if (globalIds[localId] < 0) {
+                        globalIds[localId] = usernames.resolve(localUsernames, localId);
+                    }
+                }
+            }
+            if (cut < size) {
+                consumer.accept(new PartitionedBatch(parts, globalIds));
+            }
+            return Math.max(carriedTimestamp, lastTimestamp);
+        }
+    }
+}
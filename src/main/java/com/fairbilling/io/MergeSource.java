@@ -0,0 +1,119 @@
+package com.fairbilling.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import com.fairbilling.metrics.BillingMetrics;
+
+/**
+ * One input of a k-way merge: a time-ordered log read a buffer at a time, exposing its accepted entries one by one.
+ *
+ * <p>Each refill reads the next block and runs it through a {@link LineFeed}, so the log gets the same line splitting,
+ * rejection counts and monotonic filter as a scan of that file alone. The accepted entries of the block are kept as
+ * columns whose usernames point into the buffer, which is only compacted once they have all been consumed. Memory is
+ * therefore one buffer and the entries of one block per input, whatever the size of the logs.
+ */
+final class MergeSource implements Consumer<ParsedLine>, Closeable {
+
+    private static final int INITIAL_ENTRIES = 1024;
+
+    private final InputStream input;
+    private final int index;
+    private final LineFeed feed;
+    private byte[] buffer;
+    private int length;
+    private int tail;
+    private boolean exhausted;
+    private int[] timestamps = new int[INITIAL_ENTRIES];
+    private int[] usernameStarts = new int[INITIAL_ENTRIES];
+    private int[] usernameEnds = new int[INITIAL_ENTRIES];
+    private boolean[] startEvents = new boolean[INITIAL_ENTRIES];
+    private int count;
+    private int position = -1;
+
+    MergeSource(InputStream input, int index, LogLineScanner scanner, BillingMetrics metrics, int bufferSize) {
+        this.input = Objects.requireNonNull(input, "input");
+        this.index = index;
+        this.feed = new LineFeed(scanner, this, metrics);
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Moves to the next accepted entry, or returns {@code false} once the log is exhausted.
+     */
+    boolean advance() throws IOException {
+        position++;
+        while (position >= count) {
+            if (!refill()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean refill() throws IOException {
+        if (exhausted) {
+            return false;
+        }
+        count = 0;
+        position = 0;
+        length -= tail;
+        if (length == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        } else {
+            System.arraycopy(buffer, tail, buffer, 0, length);
+        }
+        tail = 0;
+        int read = input.read(buffer, length, buffer.length - length);
+        if (read < 0) {
+            exhausted = true;
+            feed.finish(buffer, 0, length);
+            tail = length;
+            return count > 0;
+        }
+        length += read;
+        tail = feed.feed(buffer, 0, length);
+        return true;
+    }
+
+    @Override
+    public void accept(ParsedLine line) {
+        if (count == timestamps.length) {
+            int capacity = count * 2;
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            usernameStarts = Arrays.copyOf(usernameStarts, capacity);
+            usernameEnds = Arrays.copyOf(usernameEnds, capacity);
+            startEvents = Arrays.copyOf(startEvents, capacity);
+        }
+        timestamps[count] = line.getSecondsSinceMidnight();
+        usernameStarts[count] = line.getUsernameStart();
+        usernameEnds[count] = line.getUsernameEnd();
+        startEvents[count] = line.isStartEvent();
+        count++;
+    }
+
+    /**
+     * Orders sources by the timestamp of their current entry, and equal timestamps by the order the logs were given.
+     */
+    int compareTo(MergeSource other) {
+        int byTime = Integer.compare(timestamps[position], other.timestamps[other.position]);
+        return byTime != 0 ? byTime : Integer.compare(index, other.index);
+    }
+
+    /**
+     * Points {@code line} at the current entry.
+     */
+    void current(ParsedLine line) {
+        line.set(buffer, timestamps[position], usernameStarts[position], usernameEnds[position],
+                startEvents[position]);
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+}
@@ -0,0 +1,55 @@
+package com.fairbilling.io;
+
+import java.nio.charset.StandardCharsets;
+
+import com.fairbilling.domain.SessionEventType;
+
+/**
+ * Reusable cursor describing the most recent line accepted by {@link LogLineScanner}.
+ *
+ * <p>The username is exposed as a slice of the scanned buffer and is only valid until the buffer is refilled.
+ */
+public final class ParsedLine {
+
+    private byte[] buffer;
+    private int secondsSinceMidnight;
+    private int usernameStart;
+    private int usernameEnd;
+    private boolean startEvent;
+
+    void set(byte[] buffer, int secondsSinceMidnight, int usernameStart, int usernameEnd, boolean startEvent) {
+        this.buffer = buffer;
+        this.secondsSinceMidnight = secondsSinceMidnight;
+        this.usernameStart = usernameStart;
+        this.usernameEnd = usernameEnd;
+        this.startEvent = startEvent;
+    }
+
+    public int getSecondsSinceMidnight() {
+        return secondsSinceMidnight;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getUsernameStart() {
+        return usernameStart;
+    }
+
+    public int getUsernameEnd() {
+        return usernameEnd;
+    }
+
+    public boolean isStartEvent() {
+        return startEvent;
+    }
+
+    public SessionEventType getEventType() {
+        return startEvent ? SessionEventType.START : SessionEventType.END;
+    }
+
+    public String username() {
+        return new String(buffer, usernameStart, usernameEnd - usernameStart, StandardCharsets.US_ASCII);
+    }
+}
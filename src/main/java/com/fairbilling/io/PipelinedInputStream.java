@@ -0,0 +1,141 @@
+package com.fairbilling.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads a source stream on a dedicated thread and hands filled buffers to the consumer through a bounded queue.
+ *
+ * <p>Used for compressed logs so that inflating and parsing overlap: the reader thread inflates into one of a fixed
+ * set of recycled buffers while the parsing thread consumes the previous ones, and blocks once every buffer is full.
+ */
+final class PipelinedInputStream extends InputStream {
+
+    private final InputStream source;
+    private final BlockingQueue<Chunk> filled;
+    private final BlockingQueue<Chunk> free;
+    private final Thread reader;
+    private final byte[] single = new byte[1];
+    private Chunk current;
+    private int position;
+    private boolean ended;
+
+    PipelinedInputStream(InputStream source, int bufferSize, int depth) {
+        this.source = Objects.requireNonNull(source, "source");
+        if (bufferSize <= 0 || depth <= 0) {
+            throw new IllegalArgumentException("bufferSize and depth must be positive");
+        }
+        this.filled = new ArrayBlockingQueue<>(depth + 1);
+        this.free = new ArrayBlockingQueue<>(depth);
+        for (int i = 0; i < depth; i++) {
+            free.add(new Chunk(new byte[bufferSize]));
+        }
+        this.reader = new Thread(this::fill, "fair-billing-input-reader");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] target, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        while (current == null || position == current.length) {
+            if (ended) {
+                return -1;
+            }
+            if (current != null) {
+                free.add(current);
+                current = null;
+            }
+            Chunk next = take();
+            if (next.error != null) {
+                ended = true;
+                throw new IOException("Unable to read input", next.error);
+            }
+            if (next.length < 0) {
+                ended = true;
+                return -1;
+            }
+            current = next;
+            position = 0;
+        }
+        int count = Math.min(length, current.length - position);
+        System.arraycopy(current.data, position, target, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.interrupt();
+        source.close();
+    }
+
+    private Chunk take() throws IOException {
+        try {
+            return filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for input");
+        }
+    }
+
+    private void fill() {
+        try {
+            while (true) {
+                Chunk chunk = free.take();
+                int length = 0;
+                int read = 0;
+                while (length < chunk.data.length && (read = source.read(chunk.data, length,
+                        chunk.data.length - length)) > 0) {
+                    length += read;
+                }
+                if (length > 0) {
+                    chunk.length = length;
+                    chunk.error = null;
+                    filled.put(chunk);
+                }
+                if (read < 0) {
+                    filled.put(Chunk.end());
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            filled.offer(Chunk.failure(e));
+        }
+    }
+
+    private static final class Chunk {
+        private final byte[] data;
+        private int length;
+        private Exception error;
+
+        private Chunk(byte[] data) {
+            this.data = data;
+        }
+
+        private static Chunk end() {
+            Chunk chunk = new Chunk(null);
+            chunk.length = -1;
+            return chunk;
+        }
+
+        private static Chunk failure(Exception error) {
+            Chunk chunk = end();
+            chunk.error = error;
+            return chunk;
+        }
+    }
+}
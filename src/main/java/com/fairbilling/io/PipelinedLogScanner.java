@@ -0,0 +1,337 @@
+package com.fairbilling.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import com.fairbilling.domain.EntryBatch;
+import com.fairbilling.metrics.BillingMetrics;
+import com.fairbilling.metrics.PipelineStage;
+import com.fairbilling.util.UsernameTable;
+
+/**
+ * Scans a log in three overlapping stages: a reader thread fills byte buffers, a parser thread turns them into entry
+ * batches and the calling thread hands the batches to the consumer.
+ *
+ * <p>Neighbouring stages are connected by {@link SpscQueue}s of at most {@code queueDepth} elements, and emptied
+ * buffers and batches travel back through a second queue to be reused, so a stage that runs ahead blocks once every
+ * buffer is in flight. Waiting stages spin briefly and then park with a growing timeout. Time spent waiting is
+ * recorded per stage in {@link BillingMetrics}, which shows where the pipeline's bottleneck is.
+ */
+final class PipelinedLogScanner {
+
+    private static final int SPINS_BEFORE_PARKING = 64;
+    private static final long MAX_PARK_NANOS = 1_000_000;
+    private static final Chunk END_OF_INPUT = new Chunk(new byte[0]);
+    private static final EntryBatch END_OF_BATCHES = new EntryBatch(1);
+
+    private final LogLineScanner lineScanner;
+    private final BillingMetrics metrics;
+    private final int bufferSize;
+    private final int queueDepth;
+    private final int batchSize;
+
+    PipelinedLogScanner(LogLineScanner lineScanner, BillingMetrics metrics, int bufferSize, int queueDepth,
+            int batchSize) {
+        this.lineScanner = Objects.requireNonNull(lineScanner, "lineScanner");
+        this.metrics = Objects.requireNonNull(metrics, "metrics");
+        if (bufferSize <= 0 || queueDepth <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("bufferSize, queueDepth and batchSize must be positive");
+        }
+        this.bufferSize = bufferSize;
+        this.queueDepth = queueDepth;
+        this.batchSize = batchSize;
+    }
+
+    void scan(InputStream input, UsernameTable usernames, Consumer<? super EntryBatch> consumer) throws IOException {
+        Objects.requireNonNull(input, "input");
+        Objects.requireNonNull(usernames, "usernames");
+        Objects.requireNonNull(consumer, "consumer");
+        new Run(input, usernames).execute(consumer);
+    }
+
+    /**
+     * Queues and threads of a single scan.
+     */
+    private final class Run {
+        private final InputStream input;
+        private final UsernameTable usernames;
+        private final SpscQueue<Chunk> filledChunks = new SpscQueue<>(queueDepth);
+        private final SpscQueue<Chunk> freeChunks = new SpscQueue<>(queueDepth + 2);
+        private final SpscQueue<EntryBatch> filledBatches = new SpscQueue<>(queueDepth);
+        private final SpscQueue<EntryBatch> freeBatches = new SpscQueue<>(queueDepth + 2);
+        private volatile boolean aborted;
+        private volatile Throwable failure;
+
+        private Run(InputStream input, UsernameTable usernames) {
+            this.input = input;
+            this.usernames = usernames;
+            // Every stage may hold one element while the queue between two stages is full.
+            for (int i = 0; i < queueDepth + 2; i++) {
+                freeChunks.offer(new Chunk(new byte[bufferSize]));
+                freeBatches.offer(new EntryBatch(batchSize));
+            }
+        }
+
+        private void execute(Consumer<? super EntryBatch> consumer) throws IOException {
+            Thread reader = start(this::read, "fair-billing-pipeline-reader");
+            Thread parser = start(this::parse, "fair-billing-pipeline-parser");
+            Stage stage = new Stage(PipelineStage.AGGREGATE);
+            try {
+                EntryBatch batch;
+                while ((batch = stage.take(filledBatches)) != END_OF_BATCHES) {
+                    consumer.accept(batch);
+                    batch.clear();
+                    stage.put(freeBatches, batch);
+                }
+            } catch (Aborted e) {
+                // A stage failed; its failure is rethrown below.
+            } catch (RuntimeException | Error e) {
+                aborted = true;
+                throw e;
+            } finally {
+                stage.record();
+                join(reader);
+                join(parser);
+            }
+            rethrowFailure();
+        }
+
+        private void read() {
+            Stage stage = new Stage(PipelineStage.READ);
+            try {
+                while (true) {
+                    Chunk chunk = stage.take(freeChunks);
+                    int length = input.read(chunk.data, 0, chunk.data.length);
+                    if (length < 0) {
+                        stage.put(filledChunks, END_OF_INPUT);
+                        return;
+                    }
+                    chunk.length = length;
+                    stage.put(filledChunks, chunk);
+                }
+            } catch (Aborted e) {
+                // Another stage failed first.
+            } catch (Throwable e) {
+                fail(e);
+            } finally {
+                stage.record();
+            }
+        }
+
+        private void parse() {
+            Stage stage = new Stage(PipelineStage.PARSE);
+            try {
+                BatchHandOff handOff = new BatchHandOff(stage, stage.take(freeBatches));
+                LineFeed feed = new LineFeed(lineScanner, handOff, metrics);
+                byte[] carry = new byte[bufferSize];
+                int carryLength = 0;
+                Chunk chunk;
+                while ((chunk = stage.take(filledChunks)) != END_OF_INPUT) {
+                    int start = 0;
+                    if (carryLength > 0) {
+                        // Complete the line that straddles the previous buffer before scanning this one in place.
+                        int terminator = indexOfTerminator(chunk.data, chunk.length);
+                        int end = terminator < 0 ? chunk.length : terminator + 1;
+                        if (carryLength + end > carry.length) {
+                            carry = Arrays.copyOf(carry, Math.max(carry.length * 2, carryLength + end));
+                        }
+                        System.arraycopy(chunk.data, 0, carry, carryLength, end);
+                        carryLength += end;
+                        if (terminator >= 0) {
+                            feed.feed(carry, 0, carryLength);
+                            carryLength = 0;
+                        }
+                        start = end;
+                    }
+                    int tail = feed.feed(chunk.data, start, chunk.length);
+                    if (tail < chunk.length) {
+                        int remaining = chunk.length - tail;
+                        if (carryLength + remaining > carry.length) {
+                            carry = Arrays.copyOf(carry, Math.max(carry.length * 2, carryLength + remaining));
+                        }
+                        System.arraycopy(chunk.data, tail, carry, carryLength, remaining);
+                        carryLength += remaining;
+                    }
+                    stage.put(freeChunks, chunk);
+                }
+                feed.finish(carry, 0, carryLength);
+                handOff.flush();
+                stage.put(filledBatches, END_OF_BATCHES);
+            } catch (Aborted e) {
+                // Another stage failed first.
+            } catch (Throwable e) {
+                fail(e);
+            } finally {
+                stage.record();
+            }
+        }
+
+        private void fail(Throwable e) {
+            if (failure == null) {
+                failure = e;
+            }
+            aborted = true;
+        }
+
+        private void rethrowFailure() throws IOException {
+            Throwable cause = failure;
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            if (cause != null) {
+                throw new IOException("Pipeline stage failed", cause);
+            }
+        }
+
+        private Thread start(Runnable task, String name) {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            thread.start();
+            return thread;
+        }
+
+        private void join(Thread thread) {
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    aborted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Resolves usernames on the parser thread and passes full batches on to the aggregating stage.
+         */
+        private final class BatchHandOff implements Consumer<ParsedLine> {
+            private final Stage stage;
+            private EntryBatch batch;
+
+            private BatchHandOff(Stage stage, EntryBatch batch) {
+                this.stage = stage;
+                this.batch = batch;
+            }
+
+            @Override
+            public void accept(ParsedLine line) {
+                int userId = usernames.resolve(line.getBuffer(), line.getUsernameStart(), line.getUsernameEnd());
+                batch.add(line.getSecondsSinceMidnight(), userId, line.isStartEvent());
+                if (batch.isFull()) {
+                    stage.put(filledBatches, batch);
+                    batch = stage.take(freeBatches);
+                }
+            }
+
+            private void flush() {
+                if (!batch.isEmpty()) {
+                    stage.put(filledBatches, batch);
+                }
+            }
+        }
+
+        /**
+         * Blocking queue access for one stage, accounting the time spent waiting on its neighbours.
+         */
+        private final class Stage {
+            private final PipelineStage name;
+            private final long started = System.nanoTime();
+            private long waitNanos;
+
+            private Stage(PipelineStage name) {
+                this.name = name;
+            }
+
+            private <E> void put(SpscQueue<E> queue, E element) {
+                if (queue.offer(element)) {
+                    return;
+                }
+                long waitStarted = System.nanoTime();
+                for (int attempt = 0; !queue.offer(element); attempt++) {
+                    backOff(attempt);
+                }
+                waitNanos += System.nanoTime() - waitStarted;
+            }
+
+            private <E> E take(SpscQueue<E> queue) {
+                E element = queue.poll();
+                if (element != null) {
+                    return element;
+                }
+                long waitStarted = System.nanoTime();
+                for (int attempt = 0; (element = queue.poll()) == null; attempt++) {
+                    backOff(attempt);
+                }
+                waitNanos += System.nanoTime() - waitStarted;
+                return element;
+            }
+
+            private void backOff(int attempt) {
+                if (aborted) {
+                    throw new Aborted();
+                }
+                if (attempt < SPINS_BEFORE_PARKING) {
+                    Thread.yield();
+                } else {
+                    int doublings = Math.min(20, attempt - SPINS_BEFORE_PARKING);
+                    LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1000L << doublings));
+                }
+            }
+
+            private void record() {
+                long elapsed = System.nanoTime() - started;
+                metrics.recordStage(name, Math.max(0, elapsed - waitNanos), waitNanos);
+            }
+        }
+    }
+
+    private static int indexOfTerminator(byte[] data, int length) {
+        for (int i = 0; i < length; i++) {
+            if (data[i] == '\n' || data[i] == '\r') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A reusable buffer and the number of valid bytes in it.
+     */
+    private static final class Chunk {
+        private final byte[] data;
+        private int length;
+
+        private Chunk(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    /**
+     * Unwinds a stage once another stage has failed.
+     */
+    private static final class Aborted extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private Aborted() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.fairbilling.io;
+
+/**
+ * Byte-at-a-time {@link ScanKernel}; the reference every other kernel must match.
+ */
+final class ScalarScanKernel implements ScanKernel {
+
+    @Override
+    public String name() {
+        return "scalar";
+    }
+
+    @Override
+    public int indexOfLineEnd(byte[] data, int from, int to) {
+        for (int i = from; i < to; i++) {
+            byte value = data[i];
+            if (value == '\n' || value == '\r') {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    @Override
+    public int parseTime(byte[] data, int from) {
+        int hours = twoDigits(data, from);
+        int minutes = twoDigits(data, from + 3);
+        int seconds = twoDigits(data, from + 6);
+        if (hours < 0 || minutes < 0 || seconds < 0 || data[from + 2] != ':' || data[from + 5] != ':') {
+            return -1;
+        }
+        return hours << 16 | minutes << 8 | seconds;
+    }
+
+    private static int twoDigits(byte[] data, int index) {
+        int tens = data[index] - '0';
+        int units = data[index + 1] - '0';
+        if (tens < 0 || tens > 9 || units < 0 || units > 9) {
+            return -1;
+        }
+        return tens * 10 + units;
+    }
+}
@@ -0,0 +1,27 @@
+package com.fairbilling.io;
+
+/**
+ * Byte-level primitives behind line splitting and time parsing.
+ *
+ * <p>{@link ScalarScanKernel} works on any JDK. The multi-release JAR adds faster kernels for Java 17 and later, which
+ * {@link ScanKernels} picks at runtime. Every kernel returns exactly what the scalar one does.
+ */
+interface ScanKernel {
+
+    /**
+     * Name used to request this kernel through {@link ScanKernels#PROPERTY}.
+     */
+    String name();
+
+    /**
+     * Index of the first {@code \n} or {@code \r} in {@code [from, to)}, or {@code to} when there is none.
+     */
+    int indexOfLineEnd(byte[] data, int from, int to);
+
+    /**
+     * Parses the eight bytes at {@code from} as two-digit fields in {@code HH:MM:SS} form, without range checks.
+     *
+     * @return {@code hours << 16 | minutes << 8 | seconds}, or {@code -1} when the bytes do not have that shape
+     */
+    int parseTime(byte[] data, int from);
+}
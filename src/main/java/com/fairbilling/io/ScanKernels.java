@@ -0,0 +1,77 @@
+package com.fairbilling.io;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the {@link ScanKernel}s available on the running JDK and picks the default one.
+ *
+ * <p>Only the scalar kernel is compiled for Java 8. The multi-release JAR adds {@code SwarScanKernel} and
+ * {@code VectorScanKernel} under {@code META-INF/versions/17}, so older JDKs never see them. The vector kernel also
+ * needs the incubating {@code jdk.incubator.vector} module, which a JVM only resolves when started with
+ * {@code --add-modules jdk.incubator.vector}. Kernels are therefore loaded by name, and one that cannot be loaded is
+ * treated as unavailable. The {@value #PROPERTY} system property requests a kernel by name. By default, or when the
+ * requested kernel is unavailable, the vector kernel is used if it loads and the scalar one otherwise. Log lines are
+ * only a few words long, so the SWAR kernel alone measured no faster than the scalar one and is used only on request.
+ * The vector kernel still uses SWAR for times and short tails.
+ */
+final class ScanKernels {
+
+    static final String PROPERTY = "fairbilling.scanKernel";
+
+    private static final String[] NAMES = {"vector", "swar", "scalar"};
+    private static final String[] CLASS_NAMES = {
+        "com.fairbilling.io.VectorScanKernel", "com.fairbilling.io.SwarScanKernel", ScalarScanKernel.class.getName()};
+    private static final String[] AUTOMATIC = {"vector", "scalar"};
+
+    static final ScanKernel DEFAULT = select(System.getProperty(PROPERTY));
+
+    private ScanKernels() {
+    }
+
+    /**
+     * The requested kernel if it is available, otherwise the fastest one that is.
+     */
+    static ScanKernel select(String requested) {
+        if (requested != null) {
+            ScanKernel kernel = named(requested);
+            if (kernel != null) {
+                return kernel;
+            }
+        }
+        for (String name : AUTOMATIC) {
+            ScanKernel kernel = named(name);
+            if (kernel != null) {
+                return kernel;
+            }
+        }
+        return new ScalarScanKernel();
+    }
+
+    /**
+     * Loads a kernel by name, or returns {@code null} when this JDK or JVM cannot run it.
+     */
+    static ScanKernel named(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equals(name)) {
+                try {
+                    return (ScanKernel) Class.forName(CLASS_NAMES[i]).getDeclaredConstructor().newInstance();
+                } catch (ReflectiveOperationException | LinkageError e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    static List<ScanKernel> available() {
+        List<ScanKernel> kernels = new ArrayList<>();
+        for (String name : NAMES) {
+            ScanKernel kernel = named(name);
+            if (kernel != null) {
+                kernels.add(kernel);
+            }
+        }
+        return kernels;
+    }
+}
@@ -0,0 +1,31 @@
+package com.fairbilling.io;
+
+/**
+ * Point in a text log from which a scan can continue: the offset of the next unread line and the timestamp of the
+ * last accepted entry, which the monotonic timestamp rule needs to filter the remaining lines.
+ *
+ * <p>Offsets count decompressed bytes for compressed logs.
+ */
+public final class ScanPosition {
+
+    public static final ScanPosition START = new ScanPosition(0, -1);
+
+    private final long offset;
+    private final int lastTimestamp;
+
+    public ScanPosition(long offset, int lastTimestamp) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must not be negative");
+        }
+        this.offset = offset;
+        this.lastTimestamp = lastTimestamp;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getLastTimestamp() {
+        return lastTimestamp;
+    }
+}
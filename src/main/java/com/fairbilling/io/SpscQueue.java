@@ -0,0 +1,74 @@
+package com.fairbilling.io;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free ring buffer for exactly one producer thread and one consumer thread.
+ *
+ * <p>Each side publishes its index with an ordered store and caches the other side's index, so the shared counters
+ * are only read when the cached value says the queue looks full or empty. Blocking and backoff are left to callers.
+ */
+final class SpscQueue<E> {
+
+    private final Object[] elements;
+    private final int mask;
+    private final int capacity;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private long cachedHead;
+    private long cachedTail;
+
+    SpscQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.elements = new Object[size];
+        this.mask = size - 1;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Producer side: adds the element unless the queue already holds {@code capacity} elements.
+     */
+    boolean offer(E element) {
+        Objects.requireNonNull(element, "element");
+        long index = tail.get();
+        if (index - cachedHead >= capacity) {
+            cachedHead = head.get();
+            if (index - cachedHead >= capacity) {
+                return false;
+            }
+        }
+        elements[(int) index & mask] = element;
+        tail.lazySet(index + 1);
+        return true;
+    }
+
+    /**
+     * Consumer side: removes the oldest element, or returns {@code null} when the queue is empty.
+     */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        long index = head.get();
+        if (index == cachedTail) {
+            cachedTail = tail.get();
+            if (index == cachedTail) {
+                return null;
+            }
+        }
+        int slot = (int) index & mask;
+        E element = (E) elements[slot];
+        elements[slot] = null;
+        head.lazySet(index + 1);
+        return element;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,192 @@
+package com.fairbilling.io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Sparse index from timestamps to byte offsets of a plain text log, kept in a sidecar file next to it.
+ *
+ * <p>Each entry is a {@link ScanPosition} taken at a line start roughly every few hundred kilobytes: the offset and
+ * the last timestamp accepted before it. Accepted timestamps never decrease, so entries are sorted by timestamp too,
+ * and a scan resumed from any entry accepts exactly the lines that a scan from the start of the file would. The
+ * sidecar is memory-mapped and binary-searched in place. It records the size and modification time of the log it
+ * describes, so a stale index is detected instead of silently used, and the first and last accepted timestamps, which
+ * bound any window billed from the log.
+ */
+public final class TimeIndex {
+
+    private static final int MAGIC = 0x46425449;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES + 2 * Long.BYTES + 3 * Integer.BYTES;
+    private static final int ENTRY_SIZE = Long.BYTES + Integer.BYTES;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ByteBuffer entries;
+    private final int entryCount;
+    private final long logSize;
+    private final long logModified;
+    private final int firstTimestamp;
+    private final int lastTimestamp;
+
+    private TimeIndex(ByteBuffer entries, int entryCount, long logSize, long logModified, int firstTimestamp,
+            int lastTimestamp) {
+        this.entries = entries;
+        this.entryCount = entryCount;
+        this.logSize = logSize;
+        this.logModified = logModified;
+        this.firstTimestamp = firstTimestamp;
+        this.lastTimestamp = lastTimestamp;
+    }
+
+    /**
+     * Writes an index of {@code positions}, which must start at {@link ScanPosition#START} and be in file order,
+     * replacing {@code indexFile} atomically. The first and last accepted timestamps are -1 for a log without entries.
+     */
+    static void write(Path indexFile, List<ScanPosition> positions, long logSize, long logModified, int firstTimestamp,
+            int lastTimestamp) throws IOException {
+        Path temporary = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temporary), BUFFER_SIZE))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(logSize);
+            output.writeLong(logModified);
+            output.writeInt(firstTimestamp);
+            output.writeInt(lastTimestamp);
+            output.writeInt(positions.size());
+            for (ScanPosition position : positions) {
+                output.writeLong(position.getOffset());
+                output.writeInt(position.getLastTimestamp());
+            }
+        }
+        Files.move(temporary, indexFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Maps an index file, or returns {@code null} when it is missing, was written by another version or no longer
+     * matches {@code logFile}.
+     */
+    static TimeIndex open(Path indexFile, Path logFile) throws IOException {
+        Objects.requireNonNull(indexFile, "indexFile");
+        Objects.requireNonNull(logFile, "logFile");
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Truncated or corrupt time index: " + indexFile);
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (mapped.getInt(0) != MAGIC) {
+            throw new IOException("Not a time index: " + indexFile);
+        }
+        if (mapped.getInt(Integer.BYTES) != VERSION) {
+            return null;
+        }
+        long logSize = mapped.getLong(2 * Integer.BYTES);
+        long logModified = mapped.getLong(2 * Integer.BYTES + Long.BYTES);
+        int firstTimestamp = mapped.getInt(2 * Integer.BYTES + 2 * Long.BYTES);
+        int lastTimestamp = mapped.getInt(3 * Integer.BYTES + 2 * Long.BYTES);
+        int entryCount = mapped.getInt(4 * Integer.BYTES + 2 * Long.BYTES);
+        if (entryCount <= 0 || mapped.capacity() != HEADER_SIZE + (long) entryCount * ENTRY_SIZE) {
+            throw new IOException("Truncated or corrupt time index: " + indexFile);
+        }
+        if (logSize != Files.size(logFile) || logModified != Files.getLastModifiedTime(logFile).toMillis()) {
+            return null;
+        }
+        mapped.position(HEADER_SIZE);
+        return new TimeIndex(mapped.slice(), entryCount, logSize, logModified, firstTimestamp, lastTimestamp);
+    }
+
+    public int size() {
+        return entryCount;
+    }
+
+    /**
+     * Size of the log when it was indexed; windows never extend past it.
+     */
+    public long getLogSize() {
+        return logSize;
+    }
+
+    long getLogModified() {
+        return logModified;
+    }
+
+    /**
+     * Timestamp of the log's first accepted entry, or -1 when it has none.
+     */
+    public int getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    /**
+     * Timestamp of the log's last accepted entry, or -1 when it has none.
+     */
+    public int getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    public ScanPosition get(int index) {
+        if (index < 0 || index >= entryCount) {
+            throw new IndexOutOfBoundsException("Index " + index + " outside time index of " + entryCount);
+        }
+        return new ScanPosition(offsetAt(index), timestampAt(index));
+    }
+
+    /**
+     * The latest position before which no accepted entry is at or after {@code windowStart}.
+     */
+    public ScanPosition startOf(int windowStart) {
+        // Entry 0 is the start of the file with no accepted timestamp, so at least one entry always qualifies.
+        return get(countBelow(windowStart) - 1);
+    }
+
+    /**
+     * The earliest offset after which every accepted entry is later than {@code windowEnd}, or the log size.
+     */
+    public long endOf(int windowEnd) {
+        int first = countBelow(windowEnd + 1);
+        while (first < entryCount && timestampAt(first) <= windowEnd) {
+            first++;
+        }
+        return first < entryCount ? offsetAt(first) : logSize;
+    }
+
+    /**
+     * Number of leading entries whose last accepted timestamp is below {@code timestamp}.
+     */
+    private int countBelow(int timestamp) {
+        int low = 0;
+        int high = entryCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (timestampAt(middle) < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private long offsetAt(int index) {
+        return entries.getLong(index * ENTRY_SIZE);
+    }
+
+    private int timestampAt(int index) {
+        return entries.getInt(index * ENTRY_SIZE + Long.BYTES);
+    }
+}
@@ -0,0 +1,271 @@
+package com.fairbilling.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and phase timings of billing runs, shared by every parser and worker thread of the process.
+ *
+ * <p>Scanners tally lines in plain local fields and publish them here once per buffer or chunk, so the striped
+ * {@link LongAdder}s are touched a few times per 64 KiB rather than per line. Distinct users are summed over billed
+ * files; peak open sessions is the largest peak of any single file.
+ */
+public final class BillingMetrics implements BillingMetricsMXBean {
+
+    public static final String OBJECT_NAME = "com.fairbilling:type=BillingMetrics";
+
+    private final LongAdder linesRead = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder malformedLines = new LongAdder();
+    private final LongAdder invalidTimeLines = new LongAdder();
+    private final LongAdder outOfOrderLines = new LongAdder();
+    private final LongAdder entriesAccepted = new LongAdder();
+    private final LongAdder distinctUsers = new LongAdder();
+    private final LongAccumulator peakOpenSessions = new LongAccumulator(Math::max, 0);
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder calculateNanos = new LongAdder();
+    private final LongAdder reportNanos = new LongAdder();
+    private final LongAdder[] stageBusyNanos = newAdders(PipelineStage.values().length);
+    private final LongAdder[] stageWaitNanos = newAdders(PipelineStage.values().length);
+    private final LongAdder requestsServed = new LongAdder();
+    private final LongAdder requestsFailed = new LongAdder();
+    private final LongAdder requestsRejected = new LongAdder();
+    private final LongAdder requestNanos = new LongAdder();
+    private final LongAccumulator maxRequestNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private volatile String scanKernel = "";
+
+    /**
+     * Registers these metrics with the platform MBean server, replacing any earlier registration.
+     */
+    public void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        try {
+            server.registerMBean(this, name);
+        } catch (InstanceAlreadyExistsException e) {
+            server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        }
+    }
+
+    public void recordLines(long lines, long bytes, long malformed, long invalidTime, long outOfOrder,
+            long accepted) {
+        linesRead.add(lines);
+        bytesRead.add(bytes);
+        malformedLines.add(malformed);
+        invalidTimeLines.add(invalidTime);
+        outOfOrderLines.add(outOfOrder);
+        entriesAccepted.add(accepted);
+    }
+
+    /**
+     * Reclassifies entries that a scanner accepted locally but that turned out to precede an earlier timestamp.
+     */
+    public void recordLateOutOfOrder(long entries) {
+        outOfOrderLines.add(entries);
+        entriesAccepted.add(-entries);
+    }
+
+    public void recordSession(int users, int peakOpen) {
+        distinctUsers.add(users);
+        peakOpenSessions.accumulate(peakOpen);
+    }
+
+    public void addParseNanos(long nanos) {
+        parseNanos.add(nanos);
+    }
+
+    public void addCalculateNanos(long nanos) {
+        calculateNanos.add(nanos);
+    }
+
+    public void addReportNanos(long nanos) {
+        reportNanos.add(nanos);
+    }
+
+    /**
+     * Adds time a pipeline stage spent working and time it spent blocked on its neighbours' queues.
+     */
+    public void recordStage(PipelineStage stage, long busyNanos, long waitNanos) {
+        stageBusyNanos[stage.ordinal()].add(busyNanos);
+        stageWaitNanos[stage.ordinal()].add(waitNanos);
+    }
+
+    /**
+     * Records a service request that was admitted, from admission until its response was written.
+     */
+    public void recordRequest(long nanos, boolean succeeded) {
+        (succeeded ? requestsServed : requestsFailed).increment();
+        requestNanos.add(nanos);
+        maxRequestNanos.accumulate(nanos);
+    }
+
+    /**
+     * Records a service request that was turned away because every worker and queue slot was taken.
+     */
+    public void recordRejectedRequest() {
+        requestsRejected.increment();
+    }
+
+    public void recordCacheHit() {
+        cacheHits.increment();
+    }
+
+    public void recordCacheMiss() {
+        cacheMisses.increment();
+    }
+
+    public void recordScanKernel(String name) {
+        scanKernel = name;
+    }
+
+    public long getStageBusyMillis(PipelineStage stage) {
+        return TimeUnit.NANOSECONDS.toMillis(stageBusyNanos[stage.ordinal()].sum());
+    }
+
+    public long getStageWaitMillis(PipelineStage stage) {
+        return TimeUnit.NANOSECONDS.toMillis(stageWaitNanos[stage.ordinal()].sum());
+    }
+
+    @Override
+    public long getLinesRead() {
+        return linesRead.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getMalformedLines() {
+        return malformedLines.sum();
+    }
+
+    @Override
+    public long getInvalidTimeLines() {
+        return invalidTimeLines.sum();
+    }
+
+    @Override
+    public long getOutOfOrderLines() {
+        return outOfOrderLines.sum();
+    }
+
+    @Override
+    public long getEntriesAccepted() {
+        return entriesAccepted.sum();
+    }
+
+    @Override
+    public long getDistinctUsers() {
+        return distinctUsers.sum();
+    }
+
+    @Override
+    public long getPeakOpenSessions() {
+        return peakOpenSessions.get();
+    }
+
+    @Override
+    public long getParseMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(parseNanos.sum());
+    }
+
+    @Override
+    public long getCalculateMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(calculateNanos.sum());
+    }
+
+    @Override
+    public long getReportMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(reportNanos.sum());
+    }
+
+    @Override
+    public long getReadStageBusyMillis() {
+        return getStageBusyMillis(PipelineStage.READ);
+    }
+
+    @Override
+    public long getReadStageWaitMillis() {
+        return getStageWaitMillis(PipelineStage.READ);
+    }
+
+    @Override
+    public long getParseStageBusyMillis() {
+        return getStageBusyMillis(PipelineStage.PARSE);
+    }
+
+    @Override
+    public long getParseStageWaitMillis() {
+        return getStageWaitMillis(PipelineStage.PARSE);
+    }
+
+    @Override
+    public long getAggregateStageBusyMillis() {
+        return getStageBusyMillis(PipelineStage.AGGREGATE);
+    }
+
+    @Override
+    public long getAggregateStageWaitMillis() {
+        return getStageWaitMillis(PipelineStage.AGGREGATE);
+    }
+
+    @Override
+    public long getRequestsServed() {
+        return requestsServed.sum();
+    }
+
+    @Override
+    public long getRequestsFailed() {
+        return requestsFailed.sum();
+    }
+
+    @Override
+    public long getRequestsRejected() {
+        return requestsRejected.sum();
+    }
+
+    @Override
+    public long getRequestMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(requestNanos.sum());
+    }
+
+    @Override
+    public long getMaxRequestMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxRequestNanos.get());
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    @Override
+    public String getScanKernel() {
+        return scanKernel;
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+}
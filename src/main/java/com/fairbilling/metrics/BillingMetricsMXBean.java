@@ -0,0 +1,60 @@
+package com.fairbilling.metrics;
+
+/**
+ * Management view of {@link BillingMetrics}, registered as {@value BillingMetrics#OBJECT_NAME}.
+ */
+public interface BillingMetricsMXBean {
+
+    long getLinesRead();
+
+    long getBytesRead();
+
+    long getMalformedLines();
+
+    long getInvalidTimeLines();
+
+    long getOutOfOrderLines();
+
+    long getEntriesAccepted();
+
+    long getDistinctUsers();
+
+    long getPeakOpenSessions();
+
+    long getParseMillis();
+
+    long getCalculateMillis();
+
+    long getReportMillis();
+
+    long getReadStageBusyMillis();
+
+    long getReadStageWaitMillis();
+
+    long getParseStageBusyMillis();
+
+    long getParseStageWaitMillis();
+
+    long getAggregateStageBusyMillis();
+
+    long getAggregateStageWaitMillis();
+
+    long getRequestsServed();
+
+    long getRequestsFailed();
+
+    long getRequestsRejected();
+
+    long getRequestMillis();
+
+    long getMaxRequestMillis();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    /**
+     * Name of the kernel that finds line ends and parses times, such as {@code vector} or {@code scalar}.
+     */
+    String getScanKernel();
+}
@@ -0,0 +1,13 @@
+package com.fairbilling.metrics;
+
+/**
+ * Stages of a pipelined scan, each running on its own thread.
+ */
+public enum PipelineStage {
+    /** Fills byte buffers from the file. */
+    READ,
+    /** Splits buffers into lines and scans them into entry batches. */
+    PARSE,
+    /** Feeds entry batches to the billing session on the calling thread. */
+    AGGREGATE
+}
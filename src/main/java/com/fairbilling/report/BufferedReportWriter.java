@@ -0,0 +1,146 @@
+package com.fairbilling.report;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Objects;
+
+import com.fairbilling.domain.UserBillingSummary;
+
+/**
+ * Base for report writers that format into a reusable byte buffer and write it to the channel in large blocks.
+ *
+ * <p>Integers are formatted by hand and ASCII text is copied without going through an encoder, so a row costs a few
+ * array stores instead of a format-string interpretation. Instances are not thread-safe.
+ */
+abstract class BufferedReportWriter implements ReportWriter {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_INT_DIGITS = 11;
+
+    private final Charset charset;
+    private final byte[] buffer;
+    private final ByteBuffer wrapped;
+    private WritableByteChannel channel;
+    private int position;
+
+    BufferedReportWriter(Charset charset, int bufferSize) {
+        this.charset = Objects.requireNonNull(charset, "charset");
+        if (bufferSize < MAX_INT_DIGITS) {
+            throw new IllegalArgumentException("bufferSize must be at least " + MAX_INT_DIGITS);
+        }
+        this.buffer = new byte[bufferSize];
+        this.wrapped = ByteBuffer.wrap(buffer);
+    }
+
+    @Override
+    public final void write(Collection<UserBillingSummary> summaries, WritableByteChannel channel)
+            throws IOException {
+        Objects.requireNonNull(summaries, "summaries");
+        this.channel = Objects.requireNonNull(channel, "channel");
+        position = 0;
+        try {
+            Iterator<UserBillingSummary> rows = summaries.iterator();
+            UserBillingSummary first = rows.hasNext() ? rows.next() : null;
+            writeHeader(first);
+            if (first != null) {
+                writeSummary(first);
+                while (rows.hasNext()) {
+                    writeSummary(rows.next());
+                }
+            }
+            flush();
+        } finally {
+            this.channel = null;
+        }
+    }
+
+    /**
+     * Writes anything that precedes the rows, given the first row or {@code null} for an empty report; nothing by
+     * default.
+     */
+    void writeHeader(UserBillingSummary first) throws IOException {
+    }
+
+    abstract void writeSummary(UserBillingSummary summary) throws IOException;
+
+    final void writeByte(int value) throws IOException {
+        if (position == buffer.length) {
+            flush();
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    final void writeBytes(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (position == buffer.length) {
+                flush();
+            }
+            int length = Math.min(bytes.length - offset, buffer.length - position);
+            System.arraycopy(bytes, offset, buffer, position, length);
+            position += length;
+            offset += length;
+        }
+    }
+
+    final void writeInt(int value) throws IOException {
+        if (buffer.length - position < MAX_INT_DIGITS) {
+            flush();
+        }
+        long remaining = value;
+        if (remaining < 0) {
+            buffer[position++] = '-';
+            remaining = -remaining;
+        }
+        int end = position + digitCount(remaining);
+        for (int index = end - 1; index >= position; index--) {
+            buffer[index] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        }
+        position = end;
+    }
+
+    /**
+     * Writes text in the writer's charset, copying pure ASCII directly into the buffer.
+     */
+    final void writeText(String text) throws IOException {
+        int length = text.length();
+        if (length > buffer.length - position) {
+            flush();
+        }
+        if (length <= buffer.length - position) {
+            int start = position;
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                if (c >= 0x80) {
+                    position = start;
+                    writeBytes(text.getBytes(charset));
+                    return;
+                }
+                buffer[position++] = (byte) c;
+            }
+            return;
+        }
+        writeBytes(text.getBytes(charset));
+    }
+
+    private void flush() throws IOException {
+        wrapped.clear().limit(position);
+        while (wrapped.hasRemaining()) {
+            channel.write(wrapped);
+        }
+        position = 0;
+    }
+
+    private static int digitCount(long value) {
+        int digits = 1;
+        for (long limit = 10; value >= limit && digits < 19; limit *= 10) {
+            digits++;
+        }
+        return digits;
+    }
+}
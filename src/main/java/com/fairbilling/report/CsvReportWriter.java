@@ -0,0 +1,68 @@
+package com.fairbilling.report;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import com.fairbilling.domain.UserBillingSummary;
+
+/**
+ * Writes a UTF-8 CSV report with a header row and CRLF line endings as in RFC 4180. Usernames are quoted only when
+ * they contain a separator, quote or line break. Time-of-day buckets, if any, add a {@code bucket_<i>_seconds}
+ * column each, sized from the first row.
+ */
+final class CsvReportWriter extends BufferedReportWriter {
+
+    private static final String HEADER = "username,session_count,total_duration_seconds";
+
+    CsvReportWriter() {
+        this(BUFFER_SIZE);
+    }
+
+    CsvReportWriter(int bufferSize) {
+        super(StandardCharsets.UTF_8, bufferSize);
+    }
+
+    @Override
+    void writeHeader(UserBillingSummary first) throws IOException {
+        writeText(HEADER);
+        for (int bucket = 0; first != null && bucket < first.getBucketCount(); bucket++) {
+            writeText(",bucket_");
+            writeInt(bucket);
+            writeText("_seconds");
+        }
+        writeByte('\r');
+        writeByte('\n');
+    }
+
+    @Override
+    void writeSummary(UserBillingSummary summary) throws IOException {
+        String username = summary.getUsername();
+        if (needsQuotes(username)) {
+            writeByte('"');
+            writeText(username.replace("\"", "\"\""));
+            writeByte('"');
+        } else {
+            writeText(username);
+        }
+        writeByte(',');
+        writeInt(summary.getSessionCount());
+        writeByte(',');
+        writeInt(summary.getTotalDurationSeconds());
+        for (int bucket = 0; bucket < summary.getBucketCount(); bucket++) {
+            writeByte(',');
+            writeInt(summary.getBucketSeconds(bucket));
+        }
+        writeByte('\r');
+        writeByte('\n');
+    }
+
+    private static boolean needsQuotes(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\r' || c == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,78 @@
+package com.fairbilling.report;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import com.fairbilling.domain.UserBillingSummary;
+
+/**
+ * Writes one UTF-8 JSON object per user, each terminated by a line feed. Time-of-day buckets, if any, are a
+ * {@code bucketSeconds} array.
+ */
+final class JsonLinesReportWriter extends BufferedReportWriter {
+
+    private static final String USERNAME = "{\"username\":\"";
+    private static final String SESSION_COUNT = "\",\"sessionCount\":";
+    private static final String TOTAL_DURATION = ",\"totalDurationSeconds\":";
+    private static final String BUCKET_SECONDS = ",\"bucketSeconds\":[";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    JsonLinesReportWriter() {
+        this(BUFFER_SIZE);
+    }
+
+    JsonLinesReportWriter(int bufferSize) {
+        super(StandardCharsets.UTF_8, bufferSize);
+    }
+
+    @Override
+    void writeSummary(UserBillingSummary summary) throws IOException {
+        writeText(USERNAME);
+        writeString(summary.getUsername());
+        writeText(SESSION_COUNT);
+        writeInt(summary.getSessionCount());
+        writeText(TOTAL_DURATION);
+        writeInt(summary.getTotalDurationSeconds());
+        if (summary.getBucketCount() > 0) {
+            writeText(BUCKET_SECONDS);
+            for (int bucket = 0; bucket < summary.getBucketCount(); bucket++) {
+                if (bucket > 0) {
+                    writeByte(',');
+                }
+                writeInt(summary.getBucketSeconds(bucket));
+            }
+            writeByte(']');
+        }
+        writeByte('}');
+        writeByte('\n');
+    }
+
+    private void writeString(String value) throws IOException {
+        int plain = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            writeText(value.substring(plain, i));
+            writeByte('\\');
+            if (c == '"' || c == '\\') {
+                writeByte(c);
+            } else if (c == '\n') {
+                writeByte('n');
+            } else if (c == '\r') {
+                writeByte('r');
+            } else if (c == '\t') {
+                writeByte('t');
+            } else {
+                writeByte('u');
+                writeByte('0');
+                writeByte('0');
+                writeByte(HEX_DIGITS[c >> 4]);
+                writeByte(HEX_DIGITS[c & 0xF]);
+            }
+            plain = i + 1;
+        }
+        writeText(plain == 0 ? value : value.substring(plain));
+    }
+}
@@ -0,0 +1,74 @@
+package com.fairbilling.report;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * Output formats for billing reports.
+ */
+public enum ReportFormat {
+
+    /**
+     * {@code username sessions seconds} per line, separated by spaces.
+     */
+    TEXT("text/plain") {
+        @Override
+        public ReportWriter newWriter() {
+            return new TextReportWriter();
+        }
+    },
+
+    /**
+     * RFC 4180 comma-separated values with a header row.
+     */
+    CSV("text/csv") {
+        @Override
+        public ReportWriter newWriter() {
+            return new CsvReportWriter();
+        }
+    },
+
+    /**
+     * One JSON object per line.
+     */
+    JSONL("application/x-ndjson") {
+        @Override
+        public ReportWriter newWriter() {
+            return new JsonLinesReportWriter();
+        }
+    };
+
+    private final String mediaType;
+
+    ReportFormat(String mediaType) {
+        this.mediaType = mediaType;
+    }
+
+    public String getMediaType() {
+        return mediaType;
+    }
+
+    /**
+     * Media type with the charset the writer encodes usernames in.
+     */
+    public String getContentType() {
+        Charset charset = this == TEXT ? Charset.defaultCharset() : StandardCharsets.UTF_8;
+        return mediaType + "; charset=" + charset.name();
+    }
+
+    /**
+     * Creates a writer for this format. Writers reuse their buffer and must not be shared between threads.
+     */
+    public abstract ReportWriter newWriter();
+
+    public static ReportFormat fromName(String name) {
+        Objects.requireNonNull(name, "name");
+        try {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown report format: " + name, e);
+        }
+    }
+}
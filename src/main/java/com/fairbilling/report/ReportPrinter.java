@@ -1,25 +1,55 @@
 package com.fairbilling.report;
 
+import java.io.IOException;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
 import java.util.Collection;
 import java.util.Objects;
 
+import com.fairbilling.domain.SummaryCollector;
 import com.fairbilling.domain.UserBillingSummary;
 
 /**
- * Produces human-readable billing reports.
+ * Produces billing reports on a print stream, in the text format unless another {@link ReportWriter} is given.
+ * A {@link SummaryQuery} can narrow and rank the rows before they are written.
  */
 public class ReportPrinter {
 
+    private final ReportWriter writer;
+    private final SummaryQuery query;
+
+    public ReportPrinter() {
+        this(ReportFormat.TEXT.newWriter());
+    }
+
+    public ReportPrinter(ReportWriter writer) {
+        this(writer, SummaryQuery.all());
+    }
+
+    public ReportPrinter(ReportWriter writer, SummaryQuery query) {
+        this.writer = Objects.requireNonNull(writer, "writer");
+        this.query = Objects.requireNonNull(query, "query");
+    }
+
+    /**
+     * A collector that applies this printer's query while a billing run settles its users; see
+     * {@link SummaryQuery#newCollector()}. Printing what it keeps gives the same report as printing every summary.
+     */
+    public SummaryCollector newCollector() {
+        return query.newCollector();
+    }
+
     public void print(Collection<UserBillingSummary> summaries, PrintStream output) {
         Objects.requireNonNull(summaries, "summaries");
         Objects.requireNonNull(output, "output");
 
-        for (UserBillingSummary summary : summaries) {
-            output.printf("%s %d %d%n",
-                    summary.getUsername(),
-                    summary.getSessionCount(),
-                    summary.getTotalDurationSeconds());
+        try {
+            writer.write(query.selectsAll() ? summaries : query.select(summaries), Channels.newChannel(output));
+        } catch (IOException e) {
+            // A print stream records its own errors, so only a failing writer ends up here.
+            throw new UncheckedIOException(e);
         }
+        output.flush();
     }
 }
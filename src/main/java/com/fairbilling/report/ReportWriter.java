@@ -0,0 +1,15 @@
+package com.fairbilling.report;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+
+import com.fairbilling.domain.UserBillingSummary;
+
+/**
+ * Writes billing summaries to a channel in one output format; see {@link ReportFormat}.
+ */
+public interface ReportWriter {
+
+    void write(Collection<UserBillingSummary> summaries, WritableByteChannel channel) throws IOException;
+}
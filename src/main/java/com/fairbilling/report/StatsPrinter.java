@@ -0,0 +1,65 @@
+package com.fairbilling.report;
+
+import java.io.PrintStream;
+import java.util.Objects;
+
+import com.fairbilling.metrics.BillingMetricsMXBean;
+
+/**
+ * Prints run metrics as aligned {@code name: value} lines.
+ */
+public class StatsPrinter {
+
+    public void print(BillingMetricsMXBean metrics, PrintStream output) {
+        Objects.requireNonNull(metrics, "metrics");
+        Objects.requireNonNull(output, "output");
+
+        line(output, "lines read", metrics.getLinesRead());
+        line(output, "bytes read", metrics.getBytesRead());
+        line(output, "rejected malformed", metrics.getMalformedLines());
+        line(output, "rejected bad time", metrics.getInvalidTimeLines());
+        line(output, "rejected out of order", metrics.getOutOfOrderLines());
+        line(output, "entries accepted", metrics.getEntriesAccepted());
+        line(output, "distinct users", metrics.getDistinctUsers());
+        line(output, "peak open sessions", metrics.getPeakOpenSessions());
+        long parseMillis = metrics.getParseMillis();
+        output.printf("%-22s %d ms (%.1f MB/s)%n", "parse:", parseMillis,
+                parseMillis == 0 ? 0.0 : metrics.getBytesRead() / 1000.0 / parseMillis);
+        output.printf("%-22s %d ms%n", "calculate:", metrics.getCalculateMillis());
+        output.printf("%-22s %d ms%n", "report:", metrics.getReportMillis());
+        stage(output, "read stage:", metrics.getReadStageBusyMillis(), metrics.getReadStageWaitMillis());
+        stage(output, "parse stage:", metrics.getParseStageBusyMillis(), metrics.getParseStageWaitMillis());
+        stage(output, "aggregate stage:", metrics.getAggregateStageBusyMillis(),
+                metrics.getAggregateStageWaitMillis());
+        long requests = metrics.getRequestsServed() + metrics.getRequestsFailed();
+        if (requests + metrics.getRequestsRejected() > 0) {
+            output.printf("%-22s %d served, %d failed, %d rejected%n", "requests:", metrics.getRequestsServed(),
+                    metrics.getRequestsFailed(), metrics.getRequestsRejected());
+            output.printf("%-22s %d ms mean, %d ms max%n", "request latency:",
+                    requests == 0 ? 0 : metrics.getRequestMillis() / requests, metrics.getMaxRequestMillis());
+        }
+        if (metrics.getCacheHits() + metrics.getCacheMisses() > 0) {
+            output.printf("%-22s %d hits, %d misses%n", "result cache:", metrics.getCacheHits(),
+                    metrics.getCacheMisses());
+        }
+        if (!metrics.getScanKernel().isEmpty()) {
+            output.printf("%-22s %s%n", "scan kernel:", metrics.getScanKernel());
+        }
+    }
+
+    /**
+     * Prints a pipeline stage's utilisation; stages that never ran are skipped.
+     */
+    private static void stage(PrintStream output, String name, long busyMillis, long waitMillis) {
+        long total = busyMillis + waitMillis;
+        if (total == 0) {
+            return;
+        }
+        output.printf("%-22s %d ms busy, %d ms waiting (%d%% utilised)%n", name, busyMillis, waitMillis,
+                busyMillis * 100 / total);
+    }
+
+    private static void line(PrintStream output, String name, long value) {
+        output.printf("%-22s %d%n", name + ":", value);
+    }
+}
@@ -0,0 +1,41 @@
+package com.fairbilling.report;
+
+import java.util.Locale;
+import java.util.Objects;
+
+import com.fairbilling.domain.UserBillingSummary;
+
+/**
+ * Keys by which report rows can be ranked, largest first.
+ */
+public enum SummaryOrder {
+
+    SECONDS {
+        @Override
+        public int keyOf(int sessionCount, int totalDurationSeconds) {
+            return totalDurationSeconds;
+        }
+    },
+
+    SESSIONS {
+        @Override
+        public int keyOf(int sessionCount, int totalDurationSeconds) {
+            return sessionCount;
+        }
+    };
+
+    public abstract int keyOf(int sessionCount, int totalDurationSeconds);
+
+    public int keyOf(UserBillingSummary summary) {
+        return keyOf(summary.getSessionCount(), summary.getTotalDurationSeconds());
+    }
+
+    public static SummaryOrder fromName(String name) {
+        Objects.requireNonNull(name, "name");
+        try {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown summary order: " + name, e);
+        }
+    }
+}
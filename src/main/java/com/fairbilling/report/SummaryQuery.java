@@ -0,0 +1,254 @@
+package com.fairbilling.report;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+
+import com.fairbilling.domain.SummaryCollector;
+import com.fairbilling.domain.UserBillingSummary;
+
+/**
+ * Selects the rows of a report: threshold filters, then optionally the top N or a full ranking by a
+ * {@link SummaryOrder}.
+ *
+ * <p>Rows are ranked largest first, with ties kept in their original first-appearance order. Filters are applied in
+ * the same single pass that ranks, so dropped users are never copied. A top-N query keeps only N rows in a bounded
+ * min-heap; a full ranking packs each row's key and position into one {@code long} and sorts those with
+ * {@link Arrays#parallelSort(long[])}. Through {@link #newCollector()} a query can be applied while a billing run
+ * settles its users, so that summaries it drops are never built. Queries are immutable.
+ */
+public final class SummaryQuery {
+
+    private static final SummaryQuery ALL = new SummaryQuery(0, 0, null, 0);
+    private static final int INITIAL_ROWS = 64;
+
+    private final int minSessions;
+    private final int minSeconds;
+    private final SummaryOrder order;
+    private final int limit;
+
+    private SummaryQuery(int minSessions, int minSeconds, SummaryOrder order, int limit) {
+        this.minSessions = minSessions;
+        this.minSeconds = minSeconds;
+        this.order = order;
+        this.limit = limit;
+    }
+
+    /**
+     * Every row in first-appearance order.
+     */
+    public static SummaryQuery all() {
+        return ALL;
+    }
+
+    public SummaryQuery withMinSessions(int sessions) {
+        return new SummaryQuery(requireNonNegative(sessions, "sessions"), minSeconds, order, limit);
+    }
+
+    public SummaryQuery withMinSeconds(int seconds) {
+        return new SummaryQuery(minSessions, requireNonNegative(seconds, "seconds"), order, limit);
+    }
+
+    public SummaryQuery sortedBy(SummaryOrder by) {
+        return new SummaryQuery(minSessions, minSeconds, Objects.requireNonNull(by, "by"), limit);
+    }
+
+    /**
+     * Keeps only the first {@code count} rows of the ranking, by {@link SummaryOrder#SECONDS} unless another order
+     * is given.
+     */
+    public SummaryQuery top(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("count must be positive");
+        }
+        return new SummaryQuery(minSessions, minSeconds, order, count);
+    }
+
+    public boolean selectsAll() {
+        return minSessions == 0 && minSeconds == 0 && order == null && limit == 0;
+    }
+
+    public List<UserBillingSummary> select(Collection<UserBillingSummary> summaries) {
+        Objects.requireNonNull(summaries, "summaries");
+        if (limit == 0 && order != null) {
+            return selectSorted(summaries, order);
+        }
+        SummaryCollector collector = newCollector();
+        for (UserBillingSummary summary : summaries) {
+            if (collector.wants(summary.getSessionCount(), summary.getTotalDurationSeconds())) {
+                collector.add(summary);
+            }
+        }
+        return collector.summaries();
+    }
+
+    /**
+     * A collector that applies this query while a billing run settles its users, so that a top-N query only ever
+     * builds the summaries that could still be among the first N. A full ranking is not applied: the collector only
+     * filters, and {@link #select(Collection)} still has to sort what it keeps.
+     */
+    public SummaryCollector newCollector() {
+        if (limit > 0) {
+            return new TopCollector(order == null ? SummaryOrder.SECONDS : order);
+        }
+        return new FilterCollector();
+    }
+
+    private boolean matches(int sessionCount, int totalDurationSeconds) {
+        return sessionCount >= minSessions && totalDurationSeconds >= minSeconds;
+    }
+
+    private List<UserBillingSummary> selectSorted(Collection<UserBillingSummary> summaries, SummaryOrder by) {
+        UserBillingSummary[] rows = new UserBillingSummary[summaries.size()];
+        long[] ranks = new long[rows.length];
+        int size = 0;
+        for (UserBillingSummary summary : summaries) {
+            if (matches(summary.getSessionCount(), summary.getTotalDurationSeconds())) {
+                rows[size] = summary;
+                ranks[size] = rank(by.keyOf(summary), size);
+                size++;
+            }
+        }
+        long[] sorted = Arrays.copyOf(ranks, size);
+        Arrays.parallelSort(sorted);
+        List<UserBillingSummary> selected = new ArrayList<>(size);
+        for (int i = size - 1; i >= 0; i--) {
+            selected.add(rows[indexOf(sorted[i])]);
+        }
+        return selected;
+    }
+
+    private final class FilterCollector implements SummaryCollector {
+        private final List<UserBillingSummary> selected = new ArrayList<>();
+
+        @Override
+        public boolean wants(int sessionCount, int totalDurationSeconds) {
+            return matches(sessionCount, totalDurationSeconds);
+        }
+
+        @Override
+        public void add(UserBillingSummary summary) {
+            selected.add(summary);
+        }
+
+        @Override
+        public List<UserBillingSummary> summaries() {
+            return selected;
+        }
+    }
+
+    /**
+     * Keeps the {@code limit} highest ranked rows in a min-heap whose root is the row to evict next. Rows that would
+     * not enter the heap are turned down from their totals, before their summaries exist.
+     */
+    private final class TopCollector implements SummaryCollector {
+        private final SummaryOrder by;
+        private long[] heap = new long[Math.min(limit, INITIAL_ROWS)];
+        private UserBillingSummary[] rows = new UserBillingSummary[heap.length];
+        private int size;
+        private int position;
+        private long offered;
+
+        private TopCollector(SummaryOrder by) {
+            this.by = by;
+        }
+
+        @Override
+        public boolean wants(int sessionCount, int totalDurationSeconds) {
+            int index = position++;
+            if (!matches(sessionCount, totalDurationSeconds)) {
+                return false;
+            }
+            offered = rank(by.keyOf(sessionCount, totalDurationSeconds), index);
+            return size < limit || offered > heap[0];
+        }
+
+        @Override
+        public void add(UserBillingSummary summary) {
+            if (size < limit) {
+                if (size == heap.length) {
+                    int capacity = (int) Math.min(limit, heap.length * 2L);
+                    heap = Arrays.copyOf(heap, capacity);
+                    rows = Arrays.copyOf(rows, capacity);
+                }
+                heap[size] = offered;
+                rows[size] = summary;
+                siftUp(heap, rows, size++);
+            } else {
+                heap[0] = offered;
+                rows[0] = summary;
+                siftDown(heap, rows, size);
+            }
+        }
+
+        @Override
+        public List<UserBillingSummary> summaries() {
+            // Repeatedly moving the smallest rank to the end leaves the heap ordered from largest to smallest.
+            for (int end = size - 1; end > 0; end--) {
+                swap(heap, rows, 0, end);
+                siftDown(heap, rows, end);
+            }
+            return Arrays.asList(rows).subList(0, size);
+        }
+    }
+
+    /**
+     * Orders by key and, for equal keys, puts the earlier row higher; both keys and positions are non-negative.
+     */
+    private static long rank(int key, int index) {
+        return (long) key << 32 | (Integer.MAX_VALUE - index);
+    }
+
+    private static int indexOf(long rank) {
+        return Integer.MAX_VALUE - (int) rank;
+    }
+
+    private static void siftUp(long[] heap, UserBillingSummary[] rows, int index) {
+        int child = index;
+        while (child > 0) {
+            int parent = (child - 1) >>> 1;
+            if (heap[parent] <= heap[child]) {
+                return;
+            }
+            swap(heap, rows, parent, child);
+            child = parent;
+        }
+    }
+
+    private static void siftDown(long[] heap, UserBillingSummary[] rows, int size) {
+        int parent = 0;
+        while (true) {
+            int smallest = parent;
+            int left = 2 * parent + 1;
+            if (left < size && heap[left] < heap[smallest]) {
+                smallest = left;
+            }
+            if (left + 1 < size && heap[left + 1] < heap[smallest]) {
+                smallest = left + 1;
+            }
+            if (smallest == parent) {
+                return;
+            }
+            swap(heap, rows, parent, smallest);
+            parent = smallest;
+        }
+    }
+
+    private static void swap(long[] heap, UserBillingSummary[] rows, int first, int second) {
+        long rank = heap[first];
+        heap[first] = heap[second];
+        heap[second] = rank;
+        UserBillingSummary row = rows[first];
+        rows[first] = rows[second];
+        rows[second] = row;
+    }
+
+    private static int requireNonNegative(int value, String name) {
+        if (value < 0) {
+            throw new IllegalArgumentException(name + " cannot be negative");
+        }
+        return value;
+    }
+}
@@ -0,0 +1,39 @@
+package com.fairbilling.report;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import com.fairbilling.domain.UserBillingSummary;
+
+/**
+ * Writes the default {@code username sessions seconds} report, byte for byte what
+ * {@code printf("%s %d %d%n", ...)} prints to a stream in the platform charset. Time-of-day buckets, if any, follow
+ * as further space-separated seconds.
+ */
+final class TextReportWriter extends BufferedReportWriter {
+
+    private final byte[] lineSeparator;
+
+    TextReportWriter() {
+        this(Charset.defaultCharset(), BUFFER_SIZE);
+    }
+
+    TextReportWriter(Charset charset, int bufferSize) {
+        super(charset, bufferSize);
+        this.lineSeparator = System.lineSeparator().getBytes(charset);
+    }
+
+    @Override
+    void writeSummary(UserBillingSummary summary) throws IOException {
+        writeText(summary.getUsername());
+        writeByte(' ');
+        writeInt(summary.getSessionCount());
+        writeByte(' ');
+        writeInt(summary.getTotalDurationSeconds());
+        for (int bucket = 0; bucket < summary.getBucketCount(); bucket++) {
+            writeByte(' ');
+            writeInt(summary.getBucketSeconds(bucket));
+        }
+        writeBytes(lineSeparator);
+    }
+}
@@ -0,0 +1,74 @@
+package com.fairbilling.service;
+
+import java.io.Closeable;
+import java.util.List;
+
+import com.fairbilling.domain.EntryBatch;
+import com.fairbilling.domain.PartitionedBatch;
+import com.fairbilling.domain.SummaryCollector;
+import com.fairbilling.domain.UserBillingSummary;
+import com.fairbilling.util.UsernameTable;
+
+/**
+ * Consumes batches of resolved log entries and settles them into per-user summaries once the input ends.
+ */
+public interface BillingAggregator extends Closeable {
+
+    UsernameTable getUsernames();
+
+    void accept(EntryBatch batch);
+
+    /**
+     * Number of partitions whose users are billed independently; see
+     * {@link com.fairbilling.domain.PartitionedEntryConsumer}. By default users are not partitioned.
+     */
+    default int partitionCount() {
+        return 1;
+    }
+
+    /**
+     * The partition of a user with the given {@link UsernameTable#hashOf(int) name hash}. Any thread may call this.
+     */
+    default int partitionOf(int usernameHash) {
+        return 0;
+    }
+
+    /**
+     * Bills entries split by {@link #partitionOf(int)}. By default the single part is translated into this
+     * aggregator's user ids and billed like a batch.
+     */
+    default void accept(PartitionedBatch batch) {
+        if (batch.partCount() != 1) {
+            throw new IllegalArgumentException("Expected 1 part but got " + batch.partCount());
+        }
+        EntryBatch part = batch.part(0);
+        for (int i = 0; i < part.size(); i++) {
+            part.setUserId(i, batch.userId(part.getUserId(i)));
+        }
+        accept(part);
+    }
+
+    /**
+     * Settles every user and returns the summaries in order of first appearance. No entries may follow.
+     */
+    List<UserBillingSummary> finish();
+
+    /**
+     * Settles every user like {@link #finish()}, but offers the users to {@code collector} in order of first
+     * appearance and builds only the summaries it wants. Returns the collector's summaries.
+     */
+    List<UserBillingSummary> finish(SummaryCollector collector);
+
+    /**
+     * Largest number of starts that were waiting for their end at the same time.
+     */
+    int getPeakOpenSessions();
+
+    /**
+     * Releases resources such as worker threads of an aggregator that will not be finished, for example because its
+     * input failed. Does nothing after {@link #finish()}; by default it does nothing at all.
+     */
+    @Override
+    default void close() {
+    }
+}
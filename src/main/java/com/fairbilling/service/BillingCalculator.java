@@ -1,105 +1,109 @@
 package com.fairbilling.service;
 
-import java.util.ArrayDeque;
-import java.util.ArrayList;
-import java.util.Deque;
-import java.util.LinkedHashMap;
+import java.nio.file.Path;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 
+import com.fairbilling.domain.EntryBatch;
 import com.fairbilling.domain.LogEntry;
 import com.fairbilling.domain.UserBillingSummary;
+import com.fairbilling.util.UsernameTable;
 
 /**
  * Coordinates session aggregation and produces per-user billing summaries.
  */
 public class BillingCalculator {
 
-    public List<UserBillingSummary> calculate(List<LogEntry> logEntries) {
-        Objects.requireNonNull(logEntries, "logEntries");
-        if (logEntries.isEmpty()) {
-            return new ArrayList<>();
-        }
+    private static final int BATCH_SIZE = 4096;
 
-        int earliest = logEntries.stream().mapToInt(LogEntry::getSecondsSinceMidnight).min().orElse(0);
-        int latest = logEntries.stream().mapToInt(LogEntry::getSecondsSinceMidnight).max().orElse(0);
+    private final int bucketWidthSeconds;
 
-        Map<String, List<LogEntry>> entriesByUser = groupEntriesByUser(logEntries);
-        List<UserBillingSummary> summaries = new ArrayList<>(entriesByUser.size());
+    public BillingCalculator() {
+        this(0);
+    }
 
-        for (Map.Entry<String, List<LogEntry>> entry : entriesByUser.entrySet()) {
-            UserSessionAccumulator accumulator = new UserSessionAccumulator(earliest, latest);
-            entry.getValue().forEach(accumulator::accept);
-            summaries.add(accumulator.toSummary(entry.getKey()));
+    /**
+     * A calculator whose sessions also break each user's billed seconds down into time-of-day buckets of
+     * {@code bucketWidthSeconds}, or not when it is 0.
+     */
+    public BillingCalculator(int bucketWidthSeconds) {
+        if (bucketWidthSeconds < 0 || bucketWidthSeconds > 24 * 60 * 60) {
+            throw new IllegalArgumentException("bucketWidthSeconds must be between 0 and one day");
         }
+        this.bucketWidthSeconds = bucketWidthSeconds;
+    }
 
-        return summaries;
+    public int getBucketWidthSeconds() {
+        return bucketWidthSeconds;
     }
 
-    private Map<String, List<LogEntry>> groupEntriesByUser(List<LogEntry> entries) {
-        Map<String, List<LogEntry>> grouped = new LinkedHashMap<>();
-        for (LogEntry entry : entries) {
-            grouped.computeIfAbsent(entry.getUsername(), key -> new ArrayList<>()).add(entry);
+    public List<UserBillingSummary> calculate(List<LogEntry> logEntries) {
+        Objects.requireNonNull(logEntries, "logEntries");
+
+        BillingSession session = newSession();
+        for (LogEntry entry : logEntries) {
+            session.accept(entry);
         }
-        return grouped;
+        return session.finish();
     }
 
-    private static final class UserSessionAccumulator {
-        private final int earliestTimestamp;
-        private final int latestTimestamp;
-        private final Deque<Integer> unmatchedStarts = new ArrayDeque<>();
-        private final Deque<Integer> unmatchedEnds = new ArrayDeque<>();
-        private int sessionCount;
-        private int totalDurationSeconds;
-
-        private UserSessionAccumulator(int earliestTimestamp, int latestTimestamp) {
-            this.earliestTimestamp = earliestTimestamp;
-            this.latestTimestamp = latestTimestamp;
-        }
+    /**
+     * Calculates the same summaries as {@link #calculate(List)} with users partitioned across {@code shards} worker
+     * threads; see {@link ShardedBillingSession}.
+     */
+    public List<UserBillingSummary> calculate(List<LogEntry> logEntries, int shards) {
+        Objects.requireNonNull(logEntries, "logEntries");
 
-        private void accept(LogEntry entry) {
-            int timestamp = entry.getSecondsSinceMidnight();
-            if (entry.isStartEvent()) {
-                unmatchedStarts.push(timestamp);
-            } else {
-                if (!unmatchedStarts.isEmpty()) {
-                    int startTimestamp = unmatchedStarts.pop();
-                    addSession(durationBetween(startTimestamp, timestamp));
-                } else {
-                    unmatchedEnds.push(timestamp);
+        UsernameTable usernames = new UsernameTable();
+        try (BillingAggregator aggregator = newSession(usernames, shards)) {
+            EntryBatch batch = new EntryBatch(BATCH_SIZE);
+            for (LogEntry entry : logEntries) {
+                batch.add(entry.getSecondsSinceMidnight(), usernames.resolve(entry.getUsername()),
+                        entry.getEventType().isStart());
+                if (batch.isFull()) {
+                    aggregator.accept(batch);
+                    batch.clear();
                 }
             }
+            aggregator.accept(batch);
+            return aggregator.finish();
         }
+    }
 
-        private UserBillingSummary toSummary(String username) {
-            Objects.requireNonNull(username, "username");
-            settleOrphanedEnds();
-            settleOrphanedStarts();
-            return new UserBillingSummary(username, sessionCount, totalDurationSeconds);
-        }
+    public BillingSession newSession() {
+        return newSession(new UsernameTable());
+    }
 
-        private void settleOrphanedEnds() {
-            while (!unmatchedEnds.isEmpty()) {
-                int endTimestamp = unmatchedEnds.pop();
-                addSession(durationBetween(earliestTimestamp, endTimestamp));
-            }
-        }
+    public BillingSession newSession(UsernameTable usernames) {
+        return new BillingSession(usernames, bucketWidthSeconds);
+    }
 
-        private void settleOrphanedStarts() {
-            while (!unmatchedStarts.isEmpty()) {
-                int startTimestamp = unmatchedStarts.pop();
-                addSession(durationBetween(startTimestamp, latestTimestamp));
-            }
+    /**
+     * A single session for one shard, or a {@link ShardedBillingSession} with the given number of worker threads.
+     */
+    public BillingAggregator newSession(UsernameTable usernames, int shards) {
+        if (shards <= 0) {
+            throw new IllegalArgumentException("shards must be positive");
         }
+        return shards == 1 ? newSession(usernames) : new ShardedBillingSession(usernames, shards, bucketWidthSeconds);
+    }
 
-        private void addSession(int duration) {
-            sessionCount++;
-            totalDurationSeconds += Math.max(0, duration);
-        }
+    /**
+     * A session that bills the window from {@code windowStart} to {@code windowEnd}, clipping sessions at its edges.
+     */
+    public BillingSession newWindowSession(UsernameTable usernames, int windowStart, int windowEnd) {
+        return new BillingSession(usernames, windowStart, windowEnd, bucketWidthSeconds);
+    }
 
-        private int durationBetween(int start, int end) {
-            return end - start;
-        }
+    /**
+     * A session that keeps its state within {@code memoryBudget} bytes by spilling entries under
+     * {@code spillDirectory}; see {@link SpillingBillingSession}.
+     */
+    public SpillingBillingSession newSpillingSession(long memoryBudget, Path spillDirectory) {
+        return new SpillingBillingSession(memoryBudget, spillDirectory);
+    }
+
+    public BillingSession restoreSession(BillingState state) {
+        return BillingSession.restore(state);
     }
 }
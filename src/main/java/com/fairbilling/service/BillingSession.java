@@ -0,0 +1,473 @@
+package com.fairbilling.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import com.fairbilling.domain.EntryBatch;
+import com.fairbilling.domain.LogEntry;
+import com.fairbilling.domain.SessionEventType;
+import com.fairbilling.domain.SummaryCollector;
+import com.fairbilling.domain.UserBillingSummary;
+import com.fairbilling.util.UsernameTable;
+
+/**
+ * Single-pass billing state that consumes log entries as they are parsed.
+ *
+ * <p>Memory grows with the number of users and open sessions rather than with the number of entries, which allows
+ * arbitrarily long logs to be billed without materialising them. Users are keyed by their {@link UsernameTable} id,
+ * and summaries are reported in id order, which is the order in which users were first resolved.
+ *
+ * <p>Per-user state is held in primitive columns. Unmatched starts live in a shared {@link IntStackArena}; orphaned
+ * ends are always settled against the earliest timestamp, so only their count and timestamp sum are retained.
+ *
+ * <p>With a bucket width, each user's billed seconds are also split into time-of-day buckets of that width as sessions
+ * close, in one flat column of {@code users * buckets} counters. An orphaned end is billed from the start of its own
+ * bucket and counted in that bucket; once the earliest timestamp is known, every earlier bucket it reaches is filled
+ * from those counts.
+ */
+public final class BillingSession implements BillingAggregator {
+
+    private static final int INITIAL_USERS = 64;
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+    // Largest array length that virtual machines reliably allocate.
+    private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    private final UsernameTable usernames;
+    private final int bucketWidth;
+    private final int bucketCount;
+    private final int maxUsers;
+    private final IntStackArena openStarts = new IntStackArena(INITIAL_USERS);
+    private boolean[] active = new boolean[INITIAL_USERS];
+    private int[] openStartHeads = newHeads(INITIAL_USERS);
+    private int[] sessionCounts = new int[INITIAL_USERS];
+    private int[] totalDurations = new int[INITIAL_USERS];
+    private int[] orphanEndCounts = new int[INITIAL_USERS];
+    private long[] orphanEndSums = new long[INITIAL_USERS];
+    private int[] bucketSeconds;
+    private int[] orphanEndBuckets;
+    private int earliestTimestamp = Integer.MAX_VALUE;
+    private int latestTimestamp = Integer.MIN_VALUE;
+    private int openSessions;
+    private int peakOpenSessions;
+    private boolean finished;
+
+    public BillingSession() {
+        this(new UsernameTable());
+    }
+
+    public BillingSession(UsernameTable usernames) {
+        this(usernames, 0);
+    }
+
+    /**
+     * Also breaks each user's billed seconds down into time-of-day buckets of {@code bucketWidthSeconds}, the first
+     * starting at midnight, unless the width is 0.
+     */
+    public BillingSession(UsernameTable usernames, int bucketWidthSeconds) {
+        this.usernames = Objects.requireNonNull(usernames, "usernames");
+        if (bucketWidthSeconds < 0 || bucketWidthSeconds > SECONDS_PER_DAY) {
+            throw new IllegalArgumentException("bucketWidthSeconds must be between 0 and " + SECONDS_PER_DAY);
+        }
+        bucketWidth = bucketWidthSeconds;
+        bucketCount = bucketWidthSeconds == 0 ? 0 : (SECONDS_PER_DAY + bucketWidthSeconds - 1) / bucketWidthSeconds;
+        maxUsers = bucketCount == 0 ? MAX_ARRAY_LENGTH : MAX_ARRAY_LENGTH / bucketCount;
+        bucketSeconds = new int[INITIAL_USERS * bucketCount];
+        orphanEndBuckets = new int[INITIAL_USERS * bucketCount];
+    }
+
+    /**
+     * Bills only the window from {@code windowStart} to {@code windowEnd}: sessions that cross either edge are clipped
+     * to it, exactly like sessions that cross the edges of the log, so entries must lie inside the window.
+     */
+    public BillingSession(UsernameTable usernames, int windowStart, int windowEnd) {
+        this(usernames, windowStart, windowEnd, 0);
+    }
+
+    /**
+     * Bills a window like {@link #BillingSession(UsernameTable, int, int)} with time-of-day buckets like
+     * {@link #BillingSession(UsernameTable, int)}.
+     */
+    public BillingSession(UsernameTable usernames, int windowStart, int windowEnd, int bucketWidthSeconds) {
+        this(usernames, bucketWidthSeconds);
+        if (windowStart > windowEnd) {
+            throw new IllegalArgumentException("windowStart must not be after windowEnd");
+        }
+        earliestTimestamp = windowStart;
+        latestTimestamp = windowEnd;
+    }
+
+    /**
+     * Rebuilds a session, together with a fresh {@link UsernameTable}, from a previously captured state.
+     */
+    public static BillingSession restore(BillingState state) {
+        Objects.requireNonNull(state, "state");
+        BillingSession session = new BillingSession();
+        int userCount = state.getUserCount();
+        if (userCount > session.active.length) {
+            session.grow(userCount);
+        }
+        session.earliestTimestamp = state.getEarliestTimestamp();
+        session.latestTimestamp = state.getLatestTimestamp();
+        int openStart = 0;
+        for (int userId = 0; userId < userCount; userId++) {
+            if (session.usernames.resolve(state.getUsername(userId)) != userId) {
+                throw new IllegalArgumentException("Duplicate username in billing state: " + state.getUsername(userId));
+            }
+            session.active[userId] = state.isActive(userId);
+            session.sessionCounts[userId] = state.getSessionCount(userId);
+            session.totalDurations[userId] = state.getTotalDuration(userId);
+            session.orphanEndCounts[userId] = state.getOrphanEndCount(userId);
+            session.orphanEndSums[userId] = state.getOrphanEndSum(userId);
+            for (int i = state.getOpenStartCount(userId); i > 0; i--) {
+                int head = session.openStartHeads[userId];
+                session.openStartHeads[userId] = session.openStarts.push(head, state.getOpenStart(openStart++));
+            }
+        }
+        session.openSessions = openStart;
+        session.peakOpenSessions = openStart;
+        return session;
+    }
+
+    @Override
+    public UsernameTable getUsernames() {
+        return usernames;
+    }
+
+    @Override
+    public int getPeakOpenSessions() {
+        return peakOpenSessions;
+    }
+
+    public void accept(LogEntry entry) {
+        Objects.requireNonNull(entry, "entry");
+        accept(entry.getSecondsSinceMidnight(), entry.getUsername(), entry.getEventType());
+    }
+
+    public void accept(int secondsSinceMidnight, String username, SessionEventType eventType) {
+        Objects.requireNonNull(eventType, "eventType");
+        accept(secondsSinceMidnight, usernames.resolve(username), eventType.isStart());
+    }
+
+    @Override
+    public void accept(EntryBatch batch) {
+        Objects.requireNonNull(batch, "batch");
+        for (int i = 0; i < batch.size(); i++) {
+            accept(batch.getSecondsSinceMidnight(i), batch.getUserId(i), batch.isStartEvent(i));
+        }
+    }
+
+    public void accept(int secondsSinceMidnight, int userId, boolean startEvent) {
+        ensureNotFinished();
+
+        earliestTimestamp = Math.min(earliestTimestamp, secondsSinceMidnight);
+        latestTimestamp = Math.max(latestTimestamp, secondsSinceMidnight);
+
+        if (userId >= active.length) {
+            grow(userId + 1);
+        }
+        active[userId] = true;
+        if (startEvent) {
+            openStartHeads[userId] = openStarts.push(openStartHeads[userId], secondsSinceMidnight);
+            if (++openSessions > peakOpenSessions) {
+                peakOpenSessions = openSessions;
+            }
+        } else if (openStartHeads[userId] != IntStackArena.EMPTY) {
+            openSessions--;
+            int head = openStartHeads[userId];
+            int startTimestamp = openStarts.peek(head);
+            openStartHeads[userId] = openStarts.pop(head);
+            addSession(userId, secondsSinceMidnight - startTimestamp);
+            if (bucketCount != 0 && secondsSinceMidnight > startTimestamp) {
+                addSpan(bucketSeconds, userId * bucketCount, startTimestamp, secondsSinceMidnight);
+            }
+        } else {
+            orphanEndCounts[userId]++;
+            orphanEndSums[userId] += secondsSinceMidnight;
+            if (bucketCount != 0) {
+                int bucket = bucketOf(secondsSinceMidnight);
+                orphanEndBuckets[userId * bucketCount + bucket]++;
+                bucketSeconds[userId * bucketCount + bucket] += secondsSinceMidnight - bucket * bucketWidth;
+            }
+        }
+    }
+
+    /**
+     * Provisional summaries as if the input ended now: open starts are settled at the latest timestamp seen so far.
+     * The session stays open for further entries.
+     */
+    public List<UserBillingSummary> snapshot() {
+        ensureNotFinished();
+        return settleAll(SummaryCollector.all());
+    }
+
+    /**
+     * Copies the current state, including every resolved username, without affecting the session.
+     */
+    public BillingState captureState() {
+        ensureNotFinished();
+        if (bucketCount != 0) {
+            throw new IllegalStateException("billing state does not hold time buckets");
+        }
+        int userCount = usernames.size();
+        if (userCount > active.length) {
+            grow(userCount);
+        }
+        String[] names = new String[userCount];
+        int[] openStartCounts = new int[userCount];
+        int openStartTotal = 0;
+        for (int userId = 0; userId < userCount; userId++) {
+            names[userId] = usernames.username(userId);
+            for (int node = openStartHeads[userId]; node != IntStackArena.EMPTY; node = openStarts.next(node)) {
+                openStartCounts[userId]++;
+            }
+            openStartTotal += openStartCounts[userId];
+        }
+
+        // Stacks are linked from newest to oldest; fill each user's range backwards to store them oldest first.
+        int[] flattened = new int[openStartTotal];
+        int end = 0;
+        for (int userId = 0; userId < userCount; userId++) {
+            end += openStartCounts[userId];
+            int index = end;
+            for (int node = openStartHeads[userId]; node != IntStackArena.EMPTY; node = openStarts.next(node)) {
+                flattened[--index] = openStarts.peek(node);
+            }
+        }
+        return new BillingState(earliestTimestamp, latestTimestamp, names,
+                Arrays.copyOf(active, userCount),
+                Arrays.copyOf(sessionCounts, userCount),
+                Arrays.copyOf(totalDurations, userCount),
+                Arrays.copyOf(orphanEndCounts, userCount),
+                Arrays.copyOf(orphanEndSums, userCount),
+                openStartCounts, flattened);
+    }
+
+    @Override
+    public List<UserBillingSummary> finish() {
+        return finish(SummaryCollector.all());
+    }
+
+    @Override
+    public List<UserBillingSummary> finish(SummaryCollector collector) {
+        Objects.requireNonNull(collector, "collector");
+        ensureNotFinished();
+        finished = true;
+        return settleAll(collector);
+    }
+
+    int getEarliestTimestamp() {
+        return earliestTimestamp;
+    }
+
+    int getLatestTimestamp() {
+        return latestTimestamp;
+    }
+
+    /**
+     * Finishes a session that saw only part of the users, settling them against bounds taken over the whole input.
+     * Each summary is stored at its user id.
+     */
+    void finishInto(UserBillingSummary[] summaries, int earliest, int latest) {
+        ensureNotFinished();
+        finished = true;
+        for (int userId = 0; userId < active.length; userId++) {
+            if (active[userId]) {
+                summaries[userId] = settle(userId, usernames.username(userId), earliest, latest);
+            }
+        }
+    }
+
+    /**
+     * Finishes a session whose user ids are local to it, like {@link #finishInto(UserBillingSummary[], int, int)}.
+     * Local id {@code i} stands for the user with id {@code userIds[i]} in the session's {@link UsernameTable}, and
+     * its summary is stored at that id.
+     */
+    void finishInto(UserBillingSummary[] summaries, int[] userIds, int earliest, int latest) {
+        ensureNotFinished();
+        finished = true;
+        for (int localId = 0; localId < active.length; localId++) {
+            if (active[localId]) {
+                int userId = userIds[localId];
+                summaries[userId] = settle(localId, usernames.username(userId), earliest, latest);
+            }
+        }
+    }
+
+    /**
+     * Finishes a session whose user ids are local to it without building any summaries: the settled totals of local
+     * id {@code i} are stored at {@code userIds[i]}, packed as by {@link #settleTotals(int, int, int)}. Users without
+     * entries keep 0. Summaries can then be built with {@link #summarize(int, String, long, int, int)}.
+     */
+    void finishTotalsInto(long[] totals, int[] userIds, int earliest, int latest) {
+        ensureNotFinished();
+        finished = true;
+        for (int localId = 0; localId < active.length; localId++) {
+            if (active[localId]) {
+                totals[userIds[localId]] = settleTotals(localId, earliest, latest);
+            }
+        }
+    }
+
+    /**
+     * Adds state captured for a user by another session, as if the entries behind it had been accepted here. The
+     * first {@code openStartCount} values of {@code openStarts} are the user's unmatched starts, oldest first.
+     */
+    void restoreUser(int userId, int sessionCount, int totalDuration, int orphanEndCount, long orphanEndSum,
+            int[] openStarts, int openStartCount) {
+        ensureNotFinished();
+        if (userId >= active.length) {
+            grow(userId + 1);
+        }
+        active[userId] = true;
+        sessionCounts[userId] += sessionCount;
+        totalDurations[userId] += totalDuration;
+        orphanEndCounts[userId] += orphanEndCount;
+        orphanEndSums[userId] += orphanEndSum;
+        for (int i = 0; i < openStartCount; i++) {
+            openStartHeads[userId] = this.openStarts.push(openStartHeads[userId], openStarts[i]);
+        }
+        openSessions += openStartCount;
+        peakOpenSessions = Math.max(peakOpenSessions, openSessions);
+    }
+
+    private List<UserBillingSummary> settleAll(SummaryCollector collector) {
+        for (int userId = 0; userId < active.length; userId++) {
+            if (active[userId]) {
+                long totals = settleTotals(userId, earliestTimestamp, latestTimestamp);
+                if (collector.wants(sessionsOf(totals), durationOf(totals))) {
+                    collector.add(summarize(userId, usernames.username(userId), totals, earliestTimestamp,
+                            latestTimestamp));
+                }
+            }
+        }
+        return collector.summaries();
+    }
+
+    private UserBillingSummary settle(int userId, String username, int earliest, int latest) {
+        return summarize(userId, username, settleTotals(userId, earliest, latest), earliest, latest);
+    }
+
+    /**
+     * The user's session count and billed seconds, packed into the high and low half of a {@code long}.
+     */
+    long settleTotals(int userId, int earliest, int latest) {
+        // Every orphaned end lies at or after the earliest timestamp, so the clamped per-session durations add up to
+        // the difference of the sums.
+        int orphanEnds = orphanEndCounts[userId];
+        int sessions = sessionCounts[userId] + orphanEnds;
+        int duration = totalDurations[userId]
+                + (int) (orphanEndSums[userId] - (long) orphanEnds * earliest);
+
+        for (int node = openStartHeads[userId]; node != IntStackArena.EMPTY; node = openStarts.next(node)) {
+            sessions++;
+            duration += Math.max(0, latest - openStarts.peek(node));
+        }
+        return (long) sessions << 32 | duration & 0xFFFFFFFFL;
+    }
+
+    static int sessionsOf(long totals) {
+        return (int) (totals >>> 32);
+    }
+
+    static int durationOf(long totals) {
+        return (int) totals;
+    }
+
+    /**
+     * Builds the summary of a user from its settled totals, adding the time buckets if the session keeps them.
+     */
+    UserBillingSummary summarize(int userId, String username, long totals, int earliest, int latest) {
+        if (bucketCount == 0) {
+            return new UserBillingSummary(username, sessionsOf(totals), durationOf(totals));
+        }
+        return new UserBillingSummary(username, sessionsOf(totals), durationOf(totals),
+                settleBuckets(userId, earliest, latest));
+    }
+
+    private int[] settleBuckets(int userId, int earliest, int latest) {
+        int offset = userId * bucketCount;
+        int[] buckets = Arrays.copyOfRange(bucketSeconds, offset, offset + bucketCount);
+
+        // Orphaned ends were billed from the start of their own bucket. Each also spans every bucket back to the
+        // earliest one, and in the earliest bucket it starts at the earliest timestamp rather than the bucket start.
+        if (orphanEndCounts[userId] != 0) {
+            int earliestBucket = bucketOf(earliest);
+            int later = 0;
+            for (int bucket = bucketCount - 1; bucket > earliestBucket; bucket--) {
+                later += orphanEndBuckets[offset + bucket];
+                buckets[bucket - 1] += later * (bucket - 1 == earliestBucket ? bucket * bucketWidth - earliest
+                        : bucketWidth);
+            }
+            buckets[earliestBucket] -= orphanEndBuckets[offset + earliestBucket]
+                    * (earliest - earliestBucket * bucketWidth);
+        }
+        for (int node = openStartHeads[userId]; node != IntStackArena.EMPTY; node = openStarts.next(node)) {
+            if (latest > openStarts.peek(node)) {
+                addSpan(buckets, 0, openStarts.peek(node), latest);
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * Adds the seconds from {@code from} to {@code to} to the buckets they fall in, starting at {@code offset}.
+     */
+    private void addSpan(int[] buckets, int offset, int from, int to) {
+        int first = bucketOf(from);
+        int last = bucketOf(to);
+        if (first == last) {
+            buckets[offset + first] += to - from;
+            return;
+        }
+        buckets[offset + first] += (first + 1) * bucketWidth - from;
+        for (int bucket = first + 1; bucket < last; bucket++) {
+            buckets[offset + bucket] += bucketWidth;
+        }
+        buckets[offset + last] += to - last * bucketWidth;
+    }
+
+    private int bucketOf(int secondsSinceMidnight) {
+        return Math.min(secondsSinceMidnight / bucketWidth, bucketCount - 1);
+    }
+
+    private void addSession(int userId, int duration) {
+        sessionCounts[userId]++;
+        totalDurations[userId] += Math.max(0, duration);
+    }
+
+    /**
+     * Grows the per-user columns to hold at least {@code minimumUsers}. With time buckets the flat bucket columns hold
+     * {@code users * buckets} counters, which limits the number of users to what fits in one array.
+     */
+    private void grow(int minimumUsers) {
+        if (minimumUsers > maxUsers) {
+            throw new IllegalStateException("Too many users for " + bucketCount + " time buckets of " + bucketWidth
+                    + " seconds: at most " + maxUsers + " users fit, use wider buckets");
+        }
+        int capacity = (int) Math.min(Math.max(active.length * 2L, minimumUsers), maxUsers);
+        int previous = active.length;
+        active = Arrays.copyOf(active, capacity);
+        openStartHeads = Arrays.copyOf(openStartHeads, capacity);
+        Arrays.fill(openStartHeads, previous, capacity, IntStackArena.EMPTY);
+        sessionCounts = Arrays.copyOf(sessionCounts, capacity);
+        totalDurations = Arrays.copyOf(totalDurations, capacity);
+        orphanEndCounts = Arrays.copyOf(orphanEndCounts, capacity);
+        orphanEndSums = Arrays.copyOf(orphanEndSums, capacity);
+        bucketSeconds = Arrays.copyOf(bucketSeconds, capacity * bucketCount);
+        orphanEndBuckets = Arrays.copyOf(orphanEndBuckets, capacity * bucketCount);
+    }
+
+    private void ensureNotFinished() {
+        if (finished) {
+            throw new IllegalStateException("billing session has already been finished");
+        }
+    }
+
+    private static int[] newHeads(int capacity) {
+        int[] heads = new int[capacity];
+        Arrays.fill(heads, IntStackArena.EMPTY);
+        return heads;
+    }
+}
@@ -0,0 +1,153 @@
+package com.fairbilling.service;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Detached copy of a {@link BillingSession}'s state from which an equivalent session can be restored.
+ *
+ * <p>Users are stored in id order together with their usernames, so a restored session resolves every name to the
+ * same id and reports in the same order. Open starts are flattened per user from oldest to newest.
+ */
+public final class BillingState {
+
+    private final int earliestTimestamp;
+    private final int latestTimestamp;
+    private final String[] usernames;
+    private final boolean[] active;
+    private final int[] sessionCounts;
+    private final int[] totalDurations;
+    private final int[] orphanEndCounts;
+    private final long[] orphanEndSums;
+    private final int[] openStartCounts;
+    private final int[] openStarts;
+
+    BillingState(int earliestTimestamp, int latestTimestamp, String[] usernames, boolean[] active,
+            int[] sessionCounts, int[] totalDurations, int[] orphanEndCounts, long[] orphanEndSums,
+            int[] openStartCounts, int[] openStarts) {
+        this.earliestTimestamp = earliestTimestamp;
+        this.latestTimestamp = latestTimestamp;
+        this.usernames = Objects.requireNonNull(usernames, "usernames");
+        this.active = Objects.requireNonNull(active, "active");
+        this.sessionCounts = Objects.requireNonNull(sessionCounts, "sessionCounts");
+        this.totalDurations = Objects.requireNonNull(totalDurations, "totalDurations");
+        this.orphanEndCounts = Objects.requireNonNull(orphanEndCounts, "orphanEndCounts");
+        this.orphanEndSums = Objects.requireNonNull(orphanEndSums, "orphanEndSums");
+        this.openStartCounts = Objects.requireNonNull(openStartCounts, "openStartCounts");
+        this.openStarts = Objects.requireNonNull(openStarts, "openStarts");
+    }
+
+    public int getUserCount() {
+        return usernames.length;
+    }
+
+    public void writeTo(DataOutput output) throws IOException {
+        Objects.requireNonNull(output, "output");
+        output.writeInt(earliestTimestamp);
+        output.writeInt(latestTimestamp);
+        output.writeInt(usernames.length);
+        output.writeInt(openStarts.length);
+        for (int userId = 0; userId < usernames.length; userId++) {
+            byte[] name = usernames[userId].getBytes(StandardCharsets.UTF_8);
+            output.writeInt(name.length);
+            output.write(name);
+            output.writeBoolean(active[userId]);
+            output.writeInt(sessionCounts[userId]);
+            output.writeInt(totalDurations[userId]);
+            output.writeInt(orphanEndCounts[userId]);
+            output.writeLong(orphanEndSums[userId]);
+            output.writeInt(openStartCounts[userId]);
+        }
+        for (int openStart : openStarts) {
+            output.writeInt(openStart);
+        }
+    }
+
+    public static BillingState readFrom(DataInput input) throws IOException {
+        Objects.requireNonNull(input, "input");
+        int earliestTimestamp = input.readInt();
+        int latestTimestamp = input.readInt();
+        int userCount = input.readInt();
+        int openStartTotal = input.readInt();
+        if (userCount < 0 || openStartTotal < 0) {
+            throw new IOException("Corrupt billing state");
+        }
+
+        String[] usernames = new String[userCount];
+        boolean[] active = new boolean[userCount];
+        int[] sessionCounts = new int[userCount];
+        int[] totalDurations = new int[userCount];
+        int[] orphanEndCounts = new int[userCount];
+        long[] orphanEndSums = new long[userCount];
+        int[] openStartCounts = new int[userCount];
+        long countedOpenStarts = 0;
+        for (int userId = 0; userId < userCount; userId++) {
+            int nameLength = input.readInt();
+            if (nameLength < 0) {
+                throw new IOException("Corrupt billing state");
+            }
+            byte[] name = new byte[nameLength];
+            input.readFully(name);
+            usernames[userId] = new String(name, StandardCharsets.UTF_8);
+            active[userId] = input.readBoolean();
+            sessionCounts[userId] = input.readInt();
+            totalDurations[userId] = input.readInt();
+            orphanEndCounts[userId] = input.readInt();
+            orphanEndSums[userId] = input.readLong();
+            openStartCounts[userId] = input.readInt();
+            countedOpenStarts += openStartCounts[userId];
+        }
+        if (countedOpenStarts != openStartTotal) {
+            throw new IOException("Corrupt billing state");
+        }
+        int[] openStarts = new int[openStartTotal];
+        for (int i = 0; i < openStartTotal; i++) {
+            openStarts[i] = input.readInt();
+        }
+        return new BillingState(earliestTimestamp, latestTimestamp, usernames, active, sessionCounts,
+                totalDurations, orphanEndCounts, orphanEndSums, openStartCounts, openStarts);
+    }
+
+    int getEarliestTimestamp() {
+        return earliestTimestamp;
+    }
+
+    int getLatestTimestamp() {
+        return latestTimestamp;
+    }
+
+    String getUsername(int userId) {
+        return usernames[userId];
+    }
+
+    boolean isActive(int userId) {
+        return active[userId];
+    }
+
+    int getSessionCount(int userId) {
+        return sessionCounts[userId];
+    }
+
+    int getTotalDuration(int userId) {
+        return totalDurations[userId];
+    }
+
+    int getOrphanEndCount(int userId) {
+        return orphanEndCounts[userId];
+    }
+
+    long getOrphanEndSum(int userId) {
+        return orphanEndSums[userId];
+    }
+
+    int getOpenStartCount(int userId) {
+        return openStartCounts[userId];
+    }
+
+    int getOpenStart(int index) {
+        return openStarts[index];
+    }
+}
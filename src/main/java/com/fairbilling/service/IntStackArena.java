@@ -0,0 +1,56 @@
+package com.fairbilling.service;
+
+import java.util.Arrays;
+
+/**
+ * Pool of singly linked {@code int} stack nodes shared by every user of a billing session.
+ *
+ * <p>A stack is identified by the index of its head node, or {@link #EMPTY}. Popped nodes go onto a free list and are
+ * reused, so the arena only grows with the peak number of values held at once and never boxes a timestamp.
+ */
+final class IntStackArena {
+
+    static final int EMPTY = -1;
+
+    private int[] values;
+    private int[] next;
+    private int allocated;
+    private int freeHead = EMPTY;
+
+    IntStackArena(int initialCapacity) {
+        values = new int[initialCapacity];
+        next = new int[initialCapacity];
+    }
+
+    int push(int head, int value) {
+        int node = freeHead;
+        if (node != EMPTY) {
+            freeHead = next[node];
+        } else {
+            if (allocated == values.length) {
+                int capacity = allocated * 2;
+                values = Arrays.copyOf(values, capacity);
+                next = Arrays.copyOf(next, capacity);
+            }
+            node = allocated++;
+        }
+        values[node] = value;
+        next[node] = head;
+        return node;
+    }
+
+    int peek(int head) {
+        return values[head];
+    }
+
+    int next(int node) {
+        return next[node];
+    }
+
+    int pop(int head) {
+        int rest = next[head];
+        next[head] = freeHead;
+        freeHead = head;
+        return rest;
+    }
+}
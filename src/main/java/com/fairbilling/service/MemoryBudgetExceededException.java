@@ -0,0 +1,16 @@
+package com.fairbilling.service;
+
+import java.io.IOException;
+
+/**
+ * Signals that spilled users could not be billed within the memory budget even after splitting their partition as
+ * often as allowed.
+ */
+public final class MemoryBudgetExceededException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    MemoryBudgetExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,438 @@
+package com.fairbilling.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.fairbilling.domain.EntryBatch;
+import com.fairbilling.domain.PartitionedBatch;
+import com.fairbilling.domain.SummaryCollector;
+import com.fairbilling.domain.UserBillingSummary;
+import com.fairbilling.util.UsernameTable;
+
+/**
+ * Billing state partitioned across worker threads by user.
+ *
+ * <p>Users are independent of each other except for the earliest and latest timestamps, which are only needed when
+ * summaries are settled. Every user therefore belongs to exactly one shard, and each shard is a private
+ * {@link BillingSession} fed by its own worker thread through a bounded queue. The shard follows from the top bits of
+ * the user's {@linkplain UsernameTable#hashOf(int) name hash}, which pick one of a power-of-two number of slots dealt
+ * round-robin to the shards, so producers that have not resolved global ids yet can split entries in parallel and
+ * hand them over as a {@link PartitionedBatch}. Plain batches are split on the calling thread instead, and emptied
+ * batches come back to be refilled. Each shard numbers its users densely in arrival order, so its columns only hold
+ * the users it owns; the ids of a partitioned batch are translated once per user on the calling thread and per entry
+ * by the worker. On {@link #finish()} the shards'
+ * bounds are combined and every shard settles its users against them, so the summaries equal those of a single
+ * session and are reported in the same first-appearance order. A session that will not be finished must be
+ * {@linkplain #close() closed} to stop its workers.
+ */
+public final class ShardedBillingSession implements BillingAggregator {
+
+    private static final int QUEUE_DEPTH = 4;
+    private static final int SHARD_BATCH_SIZE = 4096;
+    private static final Work END_OF_ENTRIES = new Work(new EntryBatch(1), null);
+    private static final int INITIAL_USERS = 64;
+    // Slots per shard, rounded up to a power of two; enough that shard counts that are not one stay within 2% of even.
+    private static final int SLOTS_PER_SHARD = 64;
+
+    private final UsernameTable usernames;
+    private final Shard[] shards;
+    private final int[] shardsBySlot;
+    private final int slotShift;
+    private int[] localIds = new int[INITIAL_USERS];
+    private boolean finished;
+
+    public ShardedBillingSession(UsernameTable usernames, int shardCount) {
+        this(usernames, shardCount, 0);
+    }
+
+    /**
+     * Also breaks billed seconds down into time-of-day buckets; see {@link BillingSession#BillingSession(UsernameTable,
+     * int)}.
+     */
+    public ShardedBillingSession(UsernameTable usernames, int shardCount, int bucketWidthSeconds) {
+        this.usernames = Objects.requireNonNull(usernames, "usernames");
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount must be positive");
+        }
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(new BillingSession(usernames, bucketWidthSeconds), "fair-billing-shard-" + i);
+        }
+        int slotCount = Integer.highestOneBit(shardCount * SLOTS_PER_SHARD - 1) << 1;
+        shardsBySlot = new int[slotCount];
+        for (int slot = 0; slot < slotCount; slot++) {
+            shardsBySlot[slot] = slot % shardCount;
+        }
+        slotShift = Integer.numberOfLeadingZeros(slotCount) + 1;
+    }
+
+    @Override
+    public UsernameTable getUsernames() {
+        return usernames;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    @Override
+    public int partitionCount() {
+        return shards.length;
+    }
+
+    @Override
+    public int partitionOf(int usernameHash) {
+        return shardsBySlot[usernameHash >>> slotShift];
+    }
+
+    @Override
+    public void accept(EntryBatch batch) {
+        Objects.requireNonNull(batch, "batch");
+        ensureNotFinished();
+        for (int i = 0; i < batch.size(); i++) {
+            int userId = batch.getUserId(i);
+            int shardLocalId = localIds(userId)[userId] - 1;
+            Shard shard = shards[partitionOf(usernames.hashOf(userId))];
+            if (shardLocalId < 0) {
+                shardLocalId = addUser(userId, shard);
+            }
+            shard.pending.add(batch.getSecondsSinceMidnight(i), shardLocalId, batch.isStartEvent(i));
+            if (shard.pending.isFull()) {
+                handOff(shard);
+            }
+        }
+    }
+
+    /**
+     * Hands every part to its shard, after the plain entries still pending there. The parts belong to the session
+     * from now on.
+     */
+    @Override
+    public void accept(PartitionedBatch batch) {
+        Objects.requireNonNull(batch, "batch");
+        ensureNotFinished();
+        if (batch.partCount() != shards.length) {
+            throw new IllegalArgumentException("Expected " + shards.length + " parts but got " + batch.partCount());
+        }
+        int[] shardLocalIds = new int[batch.userCount()];
+        for (int localId = 0; localId < shardLocalIds.length; localId++) {
+            int userId = batch.userId(localId);
+            if (userId >= 0) {
+                shardLocalIds[localId] = localId(userId);
+            }
+        }
+        for (int i = 0; i < shards.length; i++) {
+            EntryBatch part = batch.part(i);
+            if (!part.isEmpty()) {
+                Shard shard = shards[i];
+                if (!shard.pending.isEmpty()) {
+                    handOff(shard);
+                }
+                handOff(shard, new Work(part, shardLocalIds));
+            }
+        }
+    }
+
+    @Override
+    public List<UserBillingSummary> finish() {
+        int[] bounds = endShards();
+
+        // Shards own disjoint users, so they can settle into one array indexed by user id without coordination.
+        UserBillingSummary[] byUserId = new UserBillingSummary[usernames.size()];
+        Arrays.stream(shards).parallel()
+                .forEach(shard -> shard.session.finishInto(byUserId, shard.userIds, bounds[0], bounds[1]));
+
+        List<UserBillingSummary> summaries = new ArrayList<>();
+        for (UserBillingSummary summary : byUserId) {
+            if (summary != null) {
+                summaries.add(summary);
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * Settles every user's totals in parallel, then offers them to the collector in id order and has the owning
+     * shard build only the summaries it wants.
+     */
+    @Override
+    public List<UserBillingSummary> finish(SummaryCollector collector) {
+        Objects.requireNonNull(collector, "collector");
+        int[] bounds = endShards();
+
+        // Every user with entries has at least one session, so 0 marks the ids no shard saw.
+        long[] totals = new long[usernames.size()];
+        Arrays.stream(shards).parallel()
+                .forEach(shard -> shard.session.finishTotalsInto(totals, shard.userIds, bounds[0], bounds[1]));
+
+        for (int userId = 0; userId < totals.length; userId++) {
+            long userTotals = totals[userId];
+            if (userTotals != 0 && collector.wants(BillingSession.sessionsOf(userTotals),
+                    BillingSession.durationOf(userTotals))) {
+                Shard shard = shards[partitionOf(usernames.hashOf(userId))];
+                collector.add(shard.session.summarize(localIds[userId] - 1, usernames.username(userId), userTotals,
+                        bounds[0], bounds[1]));
+            }
+        }
+        return collector.summaries();
+    }
+
+    /**
+     * Stops the worker threads unless the session has been finished. Entries handed over but not yet billed are
+     * discarded.
+     */
+    @Override
+    public void close() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        for (Shard shard : shards) {
+            shard.thread.interrupt();
+        }
+        for (Shard shard : shards) {
+            shard.awaitExit();
+        }
+    }
+
+    /**
+     * Sum of the shards' peaks. Shards may peak at different times, so this bounds the true peak from above.
+     */
+    @Override
+    public int getPeakOpenSessions() {
+        int peak = 0;
+        for (Shard shard : shards) {
+            peak += shard.session.getPeakOpenSessions();
+        }
+        return peak;
+    }
+
+    /**
+     * The id of {@code userId} within its shard, assigned densely on first sight.
+     */
+    private int localId(int userId) {
+        int localId = localIds(userId)[userId] - 1;
+        return localId >= 0 ? localId : addUser(userId, shards[partitionOf(usernames.hashOf(userId))]);
+    }
+
+    /**
+     * Shard-local ids by global id, stored off by one so that 0 marks a user not seen yet; grown to hold
+     * {@code userId}.
+     */
+    private int[] localIds(int userId) {
+        if (userId >= localIds.length) {
+            localIds = Arrays.copyOf(localIds, Math.max(localIds.length * 2, userId + 1));
+        }
+        return localIds;
+    }
+
+    private int addUser(int userId, Shard shard) {
+        int localId = shard.addUser(userId);
+        localIds[userId] = localId + 1;
+        return localId;
+    }
+
+    /**
+     * Hands the last entries to the shards and waits for them to bill everything, returning the earliest and latest
+     * timestamp over all shards.
+     */
+    private int[] endShards() {
+        ensureNotFinished();
+        finished = true;
+        for (Shard shard : shards) {
+            if (!shard.pending.isEmpty()) {
+                handOff(shard);
+            }
+            Shard.put(shard.filled, END_OF_ENTRIES);
+        }
+        int earliest = Integer.MAX_VALUE;
+        int latest = Integer.MIN_VALUE;
+        for (Shard shard : shards) {
+            shard.join();
+            earliest = Math.min(earliest, shard.session.getEarliestTimestamp());
+            latest = Math.max(latest, shard.session.getLatestTimestamp());
+        }
+        return new int[] {earliest, latest};
+    }
+
+    private void handOff(Shard shard) {
+        handOff(shard, null);
+    }
+
+    /**
+     * Hands {@code work} to the shard, or its pending batch when {@code work} is null.
+     */
+    private void handOff(Shard shard, Work work) {
+        try {
+            if (work == null) {
+                shard.handOff();
+            } else {
+                shard.handOff(work);
+            }
+        } catch (RuntimeException | Error e) {
+            // Stop the remaining workers; the session cannot be finished any more.
+            finished = true;
+            for (Shard other : shards) {
+                other.thread.interrupt();
+            }
+            throw e;
+        }
+    }
+
+    private void ensureNotFinished() {
+        if (finished) {
+            throw new IllegalStateException("billing session has already been finished");
+        }
+    }
+
+    /**
+     * Entries handed to a shard: a batch of its own, whose ids are already shard-local and which is reused, or a
+     * part of a {@link PartitionedBatch} with the shard-local id of every user local to that batch.
+     */
+    private static final class Work {
+        private final EntryBatch entries;
+        private final int[] shardLocalIds;
+
+        private Work(EntryBatch entries, int[] shardLocalIds) {
+            this.entries = entries;
+            this.shardLocalIds = shardLocalIds;
+        }
+
+        private void billInto(BillingSession session) {
+            if (shardLocalIds == null) {
+                session.accept(entries);
+                return;
+            }
+            for (int i = 0; i < entries.size(); i++) {
+                session.accept(entries.getSecondsSinceMidnight(i), shardLocalIds[entries.getUserId(i)],
+                        entries.isStartEvent(i));
+            }
+        }
+
+        private boolean isReusable() {
+            return shardLocalIds == null;
+        }
+    }
+
+    /**
+     * One worker thread and the session it exclusively owns.
+     */
+    private static final class Shard implements Runnable {
+        private final BillingSession session;
+        private final BlockingQueue<Work> filled = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+        private final BlockingQueue<EntryBatch> free = new ArrayBlockingQueue<>(QUEUE_DEPTH + 1);
+        private final Thread thread;
+        private EntryBatch pending = new EntryBatch(SHARD_BATCH_SIZE);
+        // Global ids by local id; only touched by the dispatching thread.
+        private int[] userIds = new int[INITIAL_USERS];
+        private int userCount;
+        private volatile Throwable failure;
+
+        private Shard(BillingSession session, String name) {
+            this.session = session;
+            // The dispatcher holds one batch and the worker another while the queue between them is full.
+            for (int i = 0; i < QUEUE_DEPTH; i++) {
+                free.add(new EntryBatch(SHARD_BATCH_SIZE));
+            }
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                Work work;
+                while ((work = filled.take()) != END_OF_ENTRIES) {
+                    // After a failure keep draining, so that the dispatcher never blocks on a full queue.
+                    if (failure == null) {
+                        try {
+                            work.billInto(session);
+                        } catch (RuntimeException | Error e) {
+                            failure = e;
+                        }
+                    }
+                    if (work.isReusable()) {
+                        work.entries.clear();
+                        free.add(work.entries);
+                    }
+                }
+            } catch (InterruptedException e) {
+                failure = e;
+            }
+        }
+
+        private int addUser(int userId) {
+            if (userCount == userIds.length) {
+                userIds = Arrays.copyOf(userIds, userCount * 2);
+            }
+            userIds[userCount] = userId;
+            return userCount++;
+        }
+
+        private void handOff() {
+            rethrowFailure();
+            put(filled, new Work(pending, null));
+            pending = take(free);
+        }
+
+        private void handOff(Work work) {
+            rethrowFailure();
+            put(filled, work);
+        }
+
+        private void join() {
+            awaitExit();
+            rethrowFailure();
+        }
+
+        private void awaitExit() {
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void rethrowFailure() {
+            Throwable cause = failure;
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            if (cause != null) {
+                throw new IllegalStateException("Billing shard " + thread.getName() + " was interrupted", cause);
+            }
+        }
+
+        private static void put(BlockingQueue<Work> queue, Work work) {
+            try {
+                queue.put(work);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while handing entries to a billing shard", e);
+            }
+        }
+
+        private static EntryBatch take(BlockingQueue<EntryBatch> queue) {
+            try {
+                return queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a billing shard", e);
+            }
+        }
+    }
+}
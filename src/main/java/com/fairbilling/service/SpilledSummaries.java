@@ -0,0 +1,234 @@
+package com.fairbilling.service;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import com.fairbilling.domain.UserBillingSummary;
+
+/**
+ * Summaries of a {@link SpillingBillingSession} in first-appearance order.
+ *
+ * <p>When the session spilled, the summaries stay in one result file per partition, each sorted by first appearance,
+ * and every iteration merges them lazily so that reports stream without holding all users in memory. A partition
+ * that was split has its parts' results merged into one file by {@link #merge(List, Path, int)} first, so an
+ * iteration reads one file per top-level partition. Closing the summaries deletes the spill directory; summaries of a
+ * session that never spilled are an ordinary list.
+ */
+public final class SpilledSummaries extends AbstractCollection<UserBillingSummary> implements Closeable {
+
+    private final List<UserBillingSummary> summaries;
+    private final Path directory;
+    private final List<Path> results;
+    private final long count;
+    private final int bufferSize;
+    private final List<DataInputStream> inputs = new ArrayList<>();
+
+    SpilledSummaries(List<UserBillingSummary> summaries) {
+        this.summaries = summaries;
+        this.directory = null;
+        this.results = Collections.emptyList();
+        this.count = summaries.size();
+        this.bufferSize = 0;
+    }
+
+    SpilledSummaries(Path directory, List<Path> results, long count, int bufferSize) {
+        this.summaries = null;
+        this.directory = directory;
+        this.results = results;
+        this.count = count;
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public Iterator<UserBillingSummary> iterator() {
+        if (summaries != null) {
+            return summaries.iterator();
+        }
+        try {
+            return new MergingIterator();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Number of result files an iteration merges; 0 when the session never spilled.
+     */
+    int resultFileCount() {
+        return results.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (DataInputStream input : inputs) {
+            input.close();
+        }
+        inputs.clear();
+        if (directory != null) {
+            delete(directory);
+        }
+    }
+
+    static void write(DataOutputStream output, long key, UserBillingSummary summary) throws IOException {
+        byte[] name = summary.getUsername().getBytes(StandardCharsets.UTF_8);
+        output.writeLong(key);
+        output.writeInt(name.length);
+        output.write(name);
+        output.writeInt(summary.getSessionCount());
+        output.writeInt(summary.getTotalDurationSeconds());
+    }
+
+    /**
+     * Merges result files, each sorted by first-appearance key, into one such file at {@code target} and deletes them.
+     */
+    static void merge(List<Path> results, Path target, int bufferSize) throws IOException {
+        List<DataInputStream> opened = new ArrayList<>(results.size());
+        try {
+            PriorityQueue<ResultReader> readers = newQueue(results.size());
+            long count = 0;
+            for (Path result : results) {
+                DataInputStream input = SpillingBillingSession.open(result, bufferSize);
+                opened.add(input);
+                ResultReader reader = new ResultReader(input);
+                count += reader.remaining;
+                if (reader.advance()) {
+                    readers.add(reader);
+                }
+            }
+            try (DataOutputStream output = SpillingBillingSession.create(target, bufferSize)) {
+                output.writeInt(Math.toIntExact(count));
+                while (!readers.isEmpty()) {
+                    ResultReader reader = readers.poll();
+                    write(output, reader.key, reader.summary);
+                    if (reader.advance()) {
+                        readers.add(reader);
+                    }
+                }
+            }
+        } finally {
+            for (DataInputStream input : opened) {
+                input.close();
+            }
+        }
+        for (Path result : results) {
+            Files.delete(result);
+        }
+    }
+
+    static void delete(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    private static PriorityQueue<ResultReader> newQueue(int files) {
+        return new PriorityQueue<>(Math.max(1, files), Comparator.comparingLong(reader -> reader.key));
+    }
+
+    private synchronized DataInputStream open(Path result) throws IOException {
+        DataInputStream input = SpillingBillingSession.open(result, bufferSize);
+        inputs.add(input);
+        return input;
+    }
+
+    private synchronized void release(DataInputStream input) throws IOException {
+        inputs.remove(input);
+        input.close();
+    }
+
+    /**
+     * Merges the result files on the first-appearance key of their next summary.
+     */
+    private final class MergingIterator implements Iterator<UserBillingSummary> {
+        private final PriorityQueue<ResultReader> readers = newQueue(results.size());
+
+        MergingIterator() throws IOException {
+            for (Path result : results) {
+                ResultReader reader = new ResultReader(open(result));
+                if (reader.advance()) {
+                    readers.add(reader);
+                } else {
+                    release(reader.input);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !readers.isEmpty();
+        }
+
+        @Override
+        public UserBillingSummary next() {
+            ResultReader reader = readers.poll();
+            if (reader == null) {
+                throw new NoSuchElementException();
+            }
+            UserBillingSummary summary = reader.summary;
+            try {
+                if (reader.advance()) {
+                    readers.add(reader);
+                } else {
+                    release(reader.input);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return summary;
+        }
+    }
+
+    /**
+     * Reads one result file; the caller closes it.
+     */
+    private static final class ResultReader {
+        private final DataInputStream input;
+        private int remaining;
+        private long key;
+        private UserBillingSummary summary;
+
+        ResultReader(DataInputStream input) throws IOException {
+            this.input = input;
+            this.remaining = input.readInt();
+        }
+
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            key = input.readLong();
+            byte[] name = new byte[input.readInt()];
+            input.readFully(name);
+            summary = new UserBillingSummary(new String(name, StandardCharsets.UTF_8), input.readInt(),
+                    input.readInt());
+            return true;
+        }
+    }
+}
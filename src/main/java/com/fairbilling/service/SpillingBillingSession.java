@@ -0,0 +1,454 @@
+package com.fairbilling.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import com.fairbilling.domain.UserBillingSummary;
+import com.fairbilling.util.UsernameTable;
+
+/**
+ * Billing with a memory budget for logs with more distinct users than fit in memory.
+ *
+ * <p>Entries are billed by an ordinary {@link BillingSession} until the estimated size of its users and open starts
+ * exceeds the budget. The session's state is then written to {@value #PARTITIONS} spill files partitioned by a hash
+ * of the username, and every later entry is appended to its user's partition instead of being billed. On
+ * {@link #finish()} each partition is billed on its own, since no session spans two users, and settled against the
+ * earliest and latest timestamps of the whole log. A partition that still exceeds the budget is split again with
+ * another hash seed, up to {@value #MAX_SPLIT_DEPTH} times, and the results of its parts are merged back into one
+ * result for it, so that at most {@value #PARTITIONS} result files exist at the top.
+ *
+ * <p>The budget includes the stream buffers: up to {@value #PARTITIONS} spill files are written while one is read,
+ * and {@value #PARTITIONS} results are read while one is written, so room for that many buffers is set aside and the
+ * billing state gets the rest. Buffers shrink from 64 KiB for small budgets.
+ *
+ * <p>Every spilled record carries the position at which its user first appeared: the user id for users billed before
+ * the spill and the entry's sequence number after it. The partitions' summaries are merged on that key, so they are
+ * reported in first-appearance order, exactly like {@link BillingSession#finish()}.
+ */
+public final class SpillingBillingSession implements Closeable {
+
+    static final int PARTITIONS = 64;
+
+    // UsernameTable and session columns per user, with headroom for their arrays doubling, plus twice the name for
+    // its pooled bytes and String copy.
+    private static final long BYTES_PER_USER = 160;
+    private static final long BYTES_PER_OPEN_START = 8;
+    private static final int MAX_SPLIT_DEPTH = 4;
+    private static final int MAX_BUFFER_SIZE = 64 * 1024;
+    private static final int MIN_BUFFER_SIZE = 512;
+    private static final int OPEN_BUFFERS = PARTITIONS + 1;
+
+    /**
+     * The smallest budget, which leaves as much room for billing state as for the smallest stream buffers.
+     */
+    public static final long MIN_MEMORY_BUDGET = 2L * OPEN_BUFFERS * MIN_BUFFER_SIZE;
+    private static final byte ENTRY = 0;
+    private static final byte STATE = 1;
+
+    private final long memoryBudget;
+    private final long stateBudget;
+    private final int bufferSize;
+    private final Path spillDirectory;
+    private UsernameTable usernames = new UsernameTable();
+    private BillingSession session = new BillingSession(usernames);
+    private long estimatedBytes;
+    private int earliestTimestamp = Integer.MAX_VALUE;
+    private int latestTimestamp = Integer.MIN_VALUE;
+    private int peakOpenSessions;
+    private Path directory;
+    private Partitions partitions;
+    private long nextKey;
+    private long billedUsers;
+    private boolean spilled;
+    private boolean finished;
+
+    /**
+     * @param memoryBudget bytes the billing state and spill buffers may use, at least {@value #MIN_MEMORY_BUDGET}
+     * @param spillDirectory directory in which a temporary directory for spill files is created when needed
+     */
+    public SpillingBillingSession(long memoryBudget, Path spillDirectory) {
+        if (memoryBudget < MIN_MEMORY_BUDGET) {
+            throw new IllegalArgumentException("memoryBudget must be at least " + MIN_MEMORY_BUDGET + " bytes");
+        }
+        this.memoryBudget = memoryBudget;
+        // Buffers take at most a quarter of the budget until they reach their full size.
+        bufferSize = (int) Math.max(MIN_BUFFER_SIZE, Math.min(MAX_BUFFER_SIZE, memoryBudget / (4 * OPEN_BUFFERS)));
+        stateBudget = memoryBudget - (long) OPEN_BUFFERS * bufferSize;
+        this.spillDirectory = Objects.requireNonNull(spillDirectory, "spillDirectory");
+    }
+
+    /**
+     * Bills, or spills, one entry whose username is {@code buffer[usernameStart..usernameEnd)}.
+     *
+     * @throws UncheckedIOException if a spill file cannot be written
+     */
+    public void accept(int secondsSinceMidnight, byte[] buffer, int usernameStart, int usernameEnd,
+            boolean startEvent) {
+        if (finished) {
+            throw new IllegalStateException("billing session has already been finished");
+        }
+        earliestTimestamp = Math.min(earliestTimestamp, secondsSinceMidnight);
+        latestTimestamp = Math.max(latestTimestamp, secondsSinceMidnight);
+        try {
+            if (partitions != null) {
+                SpillRecord.writeEntry(partitions.of(buffer, usernameStart, usernameEnd), nextKey++, buffer,
+                        usernameStart, usernameEnd, secondsSinceMidnight, startEvent);
+                return;
+            }
+            int users = usernames.size();
+            int userId = usernames.resolve(buffer, usernameStart, usernameEnd);
+            session.accept(secondsSinceMidnight, userId, startEvent);
+            if (userId == users) {
+                estimatedBytes += BYTES_PER_USER + 2L * (usernameEnd - usernameStart);
+                if (estimatedBytes + BYTES_PER_OPEN_START * session.getPeakOpenSessions() > stateBudget) {
+                    spill();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public boolean hasSpilled() {
+        return spilled;
+    }
+
+    /**
+     * The most sessions open at once in memory: before the spill, or within one partition after it.
+     */
+    public int getPeakOpenSessions() {
+        return session != null ? session.getPeakOpenSessions() : peakOpenSessions;
+    }
+
+    /**
+     * Writes the billing state to spill files and drops it, so that later entries are spilled.
+     */
+    private void spill() throws IOException {
+        spilled = true;
+        directory = Files.createTempDirectory(spillDirectory, "fair-billing-spill");
+        partitions = new Partitions(directory, "partition-", 0, bufferSize);
+        BillingState state = session.captureState();
+        int openStart = 0;
+        int[] openStarts = new int[16];
+        for (int userId = 0; userId < state.getUserCount(); userId++) {
+            int openStartCount = state.getOpenStartCount(userId);
+            if (openStartCount > openStarts.length) {
+                openStarts = new int[Math.max(openStartCount, openStarts.length * 2)];
+            }
+            for (int i = 0; i < openStartCount; i++) {
+                openStarts[i] = state.getOpenStart(openStart++);
+            }
+            if (state.isActive(userId)) {
+                byte[] name = state.getUsername(userId).getBytes(StandardCharsets.UTF_8);
+                SpillRecord.writeState(partitions.of(name, 0, name.length), userId, name,
+                        state.getSessionCount(userId), state.getTotalDuration(userId),
+                        state.getOrphanEndCount(userId), state.getOrphanEndSum(userId), openStarts,
+                        openStartCount);
+            }
+        }
+        nextKey = state.getUserCount();
+        peakOpenSessions = session.getPeakOpenSessions();
+        session = null;
+        usernames = null;
+    }
+
+    /**
+     * Settles every user against the bounds of all accepted entries. The summaries must be closed once read to delete
+     * the spill files; they stay on disk until then.
+     *
+     * @throws MemoryBudgetExceededException if the users of a partition exceed the budget after every split
+     */
+    public SpilledSummaries finish() throws IOException {
+        if (finished) {
+            throw new IllegalStateException("billing session has already been finished");
+        }
+        finished = true;
+        if (partitions == null) {
+            return new SpilledSummaries(session.finish());
+        }
+        List<Path> spilled = partitions.close();
+        partitions = null;
+        List<Path> results = new ArrayList<>();
+        for (Path partition : spilled) {
+            results.add(billOrSplit(partition, 0));
+        }
+        SpilledSummaries summaries = new SpilledSummaries(directory, results, billedUsers, bufferSize);
+        directory = null;
+        return summaries;
+    }
+
+    /**
+     * Deletes the spill files of a session that was not finished, such as after a failed scan.
+     */
+    @Override
+    public void close() throws IOException {
+        finished = true;
+        if (partitions != null) {
+            partitions.close();
+            partitions = null;
+        }
+        if (directory != null) {
+            SpilledSummaries.delete(directory);
+            directory = null;
+        }
+    }
+
+    /**
+     * Bills one partition into a result file, splitting it first when its users exceed the budget, and returns the
+     * result file.
+     */
+    private Path billOrSplit(Path partition, int depth) throws IOException {
+        Path result = bill(partition);
+        if (result != null) {
+            return result;
+        }
+        if (depth == MAX_SPLIT_DEPTH) {
+            throw new MemoryBudgetExceededException("Memory budget of " + memoryBudget + " bytes is too small: the"
+                    + " users of " + partition.getFileName() + " do not fit after " + MAX_SPLIT_DEPTH + " splits");
+        }
+        return split(partition, depth + 1);
+    }
+
+    /**
+     * Bills one partition into a result file, or returns {@code null} without billing it when its users exceed the
+     * budget.
+     */
+    private Path bill(Path partition) throws IOException {
+        UsernameTable partitionUsers = new UsernameTable();
+        BillingSession partitionSession = new BillingSession(partitionUsers);
+        long[] firstKeys = new long[64];
+        long partitionBytes = 0;
+        SpillRecord record = new SpillRecord();
+        try (DataInputStream input = open(partition, bufferSize)) {
+            while (record.read(input)) {
+                int users = partitionUsers.size();
+                int userId = partitionUsers.resolve(record.name, 0, record.nameLength);
+                if (userId == users) {
+                    if (userId == firstKeys.length) {
+                        firstKeys = Arrays.copyOf(firstKeys, userId * 2);
+                    }
+                    firstKeys[userId] = record.key;
+                    partitionBytes += BYTES_PER_USER + 2L * record.nameLength;
+                    if (partitionBytes > stateBudget) {
+                        return null;
+                    }
+                }
+                if (record.kind == ENTRY) {
+                    partitionSession.accept(record.secondsSinceMidnight, userId, record.startEvent);
+                } else {
+                    partitionSession.restoreUser(userId, record.sessionCount, record.totalDuration,
+                            record.orphanEndCount, record.orphanEndSum, record.openStarts, record.openStartCount);
+                }
+            }
+        }
+        peakOpenSessions = Math.max(peakOpenSessions, partitionSession.getPeakOpenSessions());
+
+        UserBillingSummary[] summaries = new UserBillingSummary[partitionUsers.size()];
+        partitionSession.finishInto(summaries, earliestTimestamp, latestTimestamp);
+        Path result = resultOf(partition);
+        try (DataOutputStream output = create(result, bufferSize)) {
+            output.writeInt(summaries.length);
+            for (int userId = 0; userId < summaries.length; userId++) {
+                SpilledSummaries.write(output, firstKeys[userId], summaries[userId]);
+            }
+        }
+        Files.delete(partition);
+        billedUsers += summaries.length;
+        return result;
+    }
+
+    /**
+     * Splits a partition with the hash seed of {@code depth}, bills the parts and merges their results into the
+     * partition's own result file.
+     */
+    private Path split(Path partition, int depth) throws IOException {
+        Partitions split = new Partitions(directory, partition.getFileName() + "-", depth, bufferSize);
+        SpillRecord record = new SpillRecord();
+        try (DataInputStream input = open(partition, bufferSize)) {
+            while (record.read(input)) {
+                record.write(split.of(record.name, 0, record.nameLength));
+            }
+        } finally {
+            split.close();
+        }
+        Files.delete(partition);
+        List<Path> results = new ArrayList<>(PARTITIONS);
+        for (Path part : split.files) {
+            results.add(billOrSplit(part, depth));
+        }
+        Path result = resultOf(partition);
+        SpilledSummaries.merge(results, result, bufferSize);
+        return result;
+    }
+
+    private static Path resultOf(Path partition) {
+        return partition.resolveSibling(partition.getFileName() + ".result");
+    }
+
+    static DataInputStream open(Path file, int bufferSize) throws IOException {
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(file), bufferSize));
+    }
+
+    static DataOutputStream create(Path file, int bufferSize) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), bufferSize));
+    }
+
+    /**
+     * One spill file per partition, chosen by a seeded hash of the username.
+     */
+    private static final class Partitions {
+        private final List<Path> files = new ArrayList<>();
+        private final DataOutputStream[] outputs = new DataOutputStream[PARTITIONS];
+        private final int seed;
+
+        Partitions(Path directory, String prefix, int seed, int bufferSize) throws IOException {
+            this.seed = seed;
+            try {
+                for (int i = 0; i < PARTITIONS; i++) {
+                    Path file = directory.resolve(prefix + i);
+                    files.add(file);
+                    outputs[i] = create(file, bufferSize);
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        DataOutputStream of(byte[] bytes, int from, int to) {
+            int hash = 0x811C9DC5 ^ seed * 0x9E3779B9;
+            for (int i = from; i < to; i++) {
+                hash = (hash ^ (bytes[i] & 0xFF)) * 0x01000193;
+            }
+            // Finish with a full avalanche, so that seeds split a partition's users independently of the parent hash.
+            hash ^= hash >>> 16;
+            hash *= 0x85EBCA6B;
+            hash ^= hash >>> 13;
+            hash *= 0xC2B2AE35;
+            hash ^= hash >>> 16;
+            return outputs[(int) (((hash & 0xFFFFFFFFL) * PARTITIONS) >>> 32)];
+        }
+
+        List<Path> close() throws IOException {
+            IOException failure = null;
+            for (int i = 0; i < outputs.length; i++) {
+                if (outputs[i] != null) {
+                    try {
+                        outputs[i].close();
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                    outputs[i] = null;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return files;
+        }
+    }
+
+    /**
+     * A spilled entry, or the state of a user billed before the spill.
+     */
+    private static final class SpillRecord {
+        private byte kind;
+        private long key;
+        private byte[] name = new byte[32];
+        private int nameLength;
+        private int secondsSinceMidnight;
+        private boolean startEvent;
+        private int sessionCount;
+        private int totalDuration;
+        private int orphanEndCount;
+        private long orphanEndSum;
+        private int[] openStarts = new int[16];
+        private int openStartCount;
+
+        static void writeEntry(DataOutputStream output, long key, byte[] name, int from, int to,
+                int secondsSinceMidnight, boolean startEvent) throws IOException {
+            output.writeByte(ENTRY);
+            output.writeLong(key);
+            output.writeInt(to - from);
+            output.write(name, from, to - from);
+            output.writeInt(secondsSinceMidnight << 1 | (startEvent ? 1 : 0));
+        }
+
+        static void writeState(DataOutputStream output, long key, byte[] name, int sessionCount, int totalDuration,
+                int orphanEndCount, long orphanEndSum, int[] openStarts, int openStartCount) throws IOException {
+            output.writeByte(STATE);
+            output.writeLong(key);
+            output.writeInt(name.length);
+            output.write(name);
+            output.writeInt(sessionCount);
+            output.writeInt(totalDuration);
+            output.writeInt(orphanEndCount);
+            output.writeLong(orphanEndSum);
+            output.writeInt(openStartCount);
+            for (int i = 0; i < openStartCount; i++) {
+                output.writeInt(openStarts[i]);
+            }
+        }
+
+        /**
+         * Reads the next record, or returns {@code false} at the end of the file.
+         */
+        boolean read(DataInputStream input) throws IOException {
+            int next = input.read();
+            if (next < 0) {
+                return false;
+            }
+            try {
+                kind = (byte) next;
+                key = input.readLong();
+                nameLength = input.readInt();
+                if (nameLength > name.length) {
+                    name = new byte[Math.max(nameLength, name.length * 2)];
+                }
+                input.readFully(name, 0, nameLength);
+                if (kind == ENTRY) {
+                    int packed = input.readInt();
+                    secondsSinceMidnight = packed >>> 1;
+                    startEvent = (packed & 1) != 0;
+                    return true;
+                }
+                sessionCount = input.readInt();
+                totalDuration = input.readInt();
+                orphanEndCount = input.readInt();
+                orphanEndSum = input.readLong();
+                openStartCount = input.readInt();
+                if (openStartCount > openStarts.length) {
+                    openStarts = new int[Math.max(openStartCount, openStarts.length * 2)];
+                }
+                for (int i = 0; i < openStartCount; i++) {
+                    openStarts[i] = input.readInt();
+                }
+                return true;
+            } catch (EOFException e) {
+                throw new IOException("Truncated spill file", e);
+            }
+        }
+
+        void write(DataOutputStream output) throws IOException {
+            if (kind == ENTRY) {
+                writeEntry(output, key, name, 0, nameLength, secondsSinceMidnight, startEvent);
+            } else {
+                writeState(output, key, Arrays.copyOf(name, nameLength), sessionCount, totalDuration, orphanEndCount,
+                        orphanEndSum, openStarts, openStartCount);
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.fairbilling.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Symbol table that maps usernames to dense integer ids in order of first appearance.
+ *
+ * <p>Lookups hash the raw username bytes in place, so a {@link String} is only created the first time a user is
+ * seen. Names are stored as UTF-8 in a shared byte pool and probed with open addressing.
+ */
+public final class UsernameTable {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private int[] slots = new int[INITIAL_CAPACITY * 2];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private int[] offsets = new int[INITIAL_CAPACITY + 1];
+    private String[] names = new String[INITIAL_CAPACITY];
+    private byte[] pool = new byte[INITIAL_CAPACITY * 16];
+    private int size;
+
+    public int resolve(byte[] bytes, int from, int to) {
+        Objects.requireNonNull(bytes, "bytes");
+        return resolveBytes(bytes, from, to, null);
+    }
+
+    public int resolve(String username) {
+        Objects.requireNonNull(username, "username");
+        if (!isAscii(username)) {
+            byte[] encoded = username.getBytes(StandardCharsets.UTF_8);
+            return resolveBytes(encoded, 0, encoded.length, username);
+        }
+
+        int hash = hash(username);
+        int mask = slots.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if (id < 0) {
+                byte[] encoded = username.getBytes(StandardCharsets.US_ASCII);
+                return insert(slot, hash, encoded, 0, encoded.length, username);
+            }
+            if (hashes[id] == hash && equalsChars(id, username)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * Resolves a user known to another table, reusing its stored bytes, hash and name.
+     */
+    public int resolve(UsernameTable source, int sourceId) {
+        Objects.requireNonNull(source, "source");
+        String name = source.username(sourceId);
+        int from = source.offsets[sourceId];
+        int to = source.offsets[sourceId + 1];
+        return resolveBytes(source.pool, from, to, source.hashes[sourceId], name);
+    }
+
+    public String username(int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("Unknown user id: " + id);
+        }
+        return names[id];
+    }
+
+    /**
+     * The well-mixed hash of a user's name, equal in every table that knows the name.
+     */
+    public int hashOf(int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("Unknown user id: " + id);
+        }
+        return hashes[id];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int resolveBytes(byte[] bytes, int from, int to, String name) {
+        return resolveBytes(bytes, from, to, hash(bytes, from, to), name);
+    }
+
+    private int resolveBytes(byte[] bytes, int from, int to, int hash, String name) {
+        int mask = slots.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if (id < 0) {
+                return insert(slot, hash, bytes, from, to, name);
+            }
+            if (hashes[id] == hash && equalsBytes(id, bytes, from, to)) {
+                return id;
+            }
+        }
+    }
+
+    private int insert(int slot, int hash, byte[] bytes, int from, int to, String name) {
+        int id = size;
+        if (id == hashes.length) {
+            int capacity = id * 2;
+            hashes = Arrays.copyOf(hashes, capacity);
+            offsets = Arrays.copyOf(offsets, capacity + 1);
+            names = Arrays.copyOf(names, capacity);
+        }
+        int length = to - from;
+        int offset = offsets[id];
+        if (offset + length > pool.length) {
+            pool = Arrays.copyOf(pool, Math.max(pool.length * 2, offset + length));
+        }
+        System.arraycopy(bytes, from, pool, offset, length);
+        offsets[id + 1] = offset + length;
+        hashes[id] = hash;
+        names[id] = name != null ? name : new String(bytes, from, length, StandardCharsets.UTF_8);
+        slots[slot] = id + 1;
+        size++;
+
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        return id;
+    }
+
+    private void rehash(int capacity) {
+        int[] rehashed = new int[capacity];
+        int mask = capacity - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while (rehashed[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            rehashed[slot] = id + 1;
+        }
+        slots = rehashed;
+    }
+
+    private boolean equalsBytes(int id, byte[] bytes, int from, int to) {
+        int offset = offsets[id];
+        int length = offsets[id + 1] - offset;
+        if (length != to - from) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (pool[offset + i] != bytes[from + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean equalsChars(int id, String username) {
+        int offset = offsets[id];
+        int length = offsets[id + 1] - offset;
+        if (length != username.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (pool[offset + i] != username.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] bytes, int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + (bytes[i] & 0xFF);
+        }
+        return mix(hash);
+    }
+
+    private static int hash(String value) {
+        int hash = 0;
+        for (int i = 0; i < value.length(); i++) {
+            hash = 31 * hash + value.charAt(i);
+        }
+        return mix(hash);
+    }
+
+    private static int mix(int hash) {
+        int mixed = hash * 0x9E3779B9;
+        return mixed ^ (mixed >>> 16);
+    }
+
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
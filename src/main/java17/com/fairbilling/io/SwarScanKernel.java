@@ -0,0 +1,75 @@
+package com.fairbilling.io;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * {@link ScanKernel} that tests eight bytes per step in a {@code long} (SIMD within a register).
+ *
+ * <p>Bytes are read little-endian, so the lowest flagged byte of a word is the first match in the array. The zero-byte
+ * test {@code (v - 0x01..) & ~v & 0x80..} can also flag bytes above a true match, but never below one, which makes
+ * its lowest flag exact.
+ */
+final class SwarScanKernel implements ScanKernel {
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long NEWLINES = ONES * '\n';
+    private static final long CARRIAGE_RETURNS = ONES * '\r';
+
+    // HH:MM:SS: digits in bytes 0, 1, 3, 4, 6 and 7, colons in bytes 2 and 5.
+    private static final long COLON_MASK = 0x0000FF0000FF0000L;
+    private static final long COLONS = 0x00003A00003A0000L;
+    private static final long DIGIT_MASK = 0xFFFF00FFFF00FFFFL;
+    private static final long ZEROS = 0x3030003030003030L;
+    private static final long ABOVE_NINE = 0x4646004646004646L;
+    private static final long DIGIT_HIGH_BITS = 0x8080008080008080L;
+
+    @Override
+    public String name() {
+        return "swar";
+    }
+
+    @Override
+    public int indexOfLineEnd(byte[] data, int from, int to) {
+        int i = from;
+        for (int last = to - Long.BYTES; i <= last; i += Long.BYTES) {
+            long word = (long) LONGS.get(data, i);
+            long found = zeroBytes(word ^ NEWLINES) | zeroBytes(word ^ CARRIAGE_RETURNS);
+            if (found != 0) {
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+        for (; i < to; i++) {
+            byte value = data[i];
+            if (value == '\n' || value == '\r') {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    @Override
+    public int parseTime(byte[] data, int from) {
+        long word = (long) LONGS.get(data, from);
+        if ((word & COLON_MASK) != COLONS) {
+            return -1;
+        }
+        long digits = word & DIGIT_MASK;
+        long values = digits - ZEROS;
+        // A byte below '0' sets its high bit when '0' is subtracted, one above '9' when 0x46 is added. Carries only
+        // start at an invalid byte, so the lowest invalid byte is always flagged.
+        if (((values | (digits + ABOVE_NINE)) & DIGIT_HIGH_BITS) != 0) {
+            return -1;
+        }
+        // Adds ten times each tens digit to the units digit after it; every field fits in its tens byte.
+        long fields = values * 10 + (values >>> 8);
+        return (int) (fields & 0xFF) << 16 | (int) ((fields >>> 24) & 0xFF) << 8 | (int) ((fields >>> 48) & 0xFF);
+    }
+
+    private static long zeroBytes(long value) {
+        return (value - ONES) & ~value & HIGH_BITS;
+    }
+}
@@ -0,0 +1,42 @@
+package com.fairbilling.io;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link ScanKernel} that searches for line ends a full vector register at a time with the incubating Vector API.
+ *
+ * <p>Only usable when the JVM resolves {@code jdk.incubator.vector}; otherwise loading this class fails and
+ * {@link ScanKernels} skips it. Times are only eight bytes wide, so they are parsed as in {@link SwarScanKernel}, as
+ * are tails shorter than a vector.
+ */
+final class VectorScanKernel implements ScanKernel {
+
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+    private final SwarScanKernel words = new SwarScanKernel();
+
+    @Override
+    public String name() {
+        return "vector";
+    }
+
+    @Override
+    public int indexOfLineEnd(byte[] data, int from, int to) {
+        int i = from;
+        for (int last = to - SPECIES.length(); i <= last; i += SPECIES.length()) {
+            ByteVector bytes = ByteVector.fromArray(SPECIES, data, i);
+            VectorMask<Byte> found = bytes.eq((byte) '\n').or(bytes.eq((byte) '\r'));
+            if (found.anyTrue()) {
+                return i + found.firstTrue();
+            }
+        }
+        return words.indexOfLineEnd(data, i, to);
+    }
+
+    @Override
+    public int parseTime(byte[] data, int from) {
+        return words.parseTime(data, from);
+    }
+}
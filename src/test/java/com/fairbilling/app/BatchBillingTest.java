@@ -0,0 +1,107 @@
+package com.fairbilling.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BatchBillingTest {
+
+    private Path directory;
+    private Path first;
+    private Path second;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("fair-billing-batch");
+        first = directory.resolve("a.log");
+        second = directory.resolve("b.log");
+        Files.write(first, Arrays.asList(
+                "10:00:00 ALICE Start",
+                "10:00:30 ALICE End",
+                "10:01:00 BOB End"));
+        Files.write(second, Arrays.asList(
+                "12:00:00 BOB Start",
+                "12:00:10 CAROL Start",
+                "12:00:40 BOB End"));
+        Files.write(directory.resolve("notes.txt"), Arrays.asList("12:00:00 DAVE Start"));
+    }
+
+    @Test
+    public void billsEachFileIndependentlyAndAggregates() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+
+        int exitCode = new FairBilling().execute(new String[] {"--batch", "--aggregate", "--threads=2",
+            first.toString(), second.toString()}, new PrintStream(output), new PrintStream(errors));
+
+        assertEquals(0, exitCode);
+        assertEquals(Arrays.asList(
+                "== " + first + " ==",
+                "ALICE 1 30",
+                "BOB 1 60",
+                "== " + second + " ==",
+                "BOB 1 40",
+                "CAROL 1 30",
+                "== TOTAL ==",
+                "ALICE 1 30",
+                "BOB 2 100",
+                "CAROL 1 30"), lines(output));
+        assertTrue(errors.toString().isEmpty());
+    }
+
+    @Test
+    public void expandsDirectoriesAndGlobsInSortedOrder() throws IOException {
+        assertEquals(Arrays.asList(first, second, directory.resolve("notes.txt")),
+                BatchBilling.expand(directory.toString()));
+        assertEquals(Arrays.asList(first, second), BatchBilling.expand(directory + "/*.log"));
+    }
+
+    @Test
+    public void reportsMissingInputsButBillsTheRest() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+
+        int exitCode = new FairBilling().execute(new String[] {"--batch", "/path/to/missing.log", first.toString()},
+                new PrintStream(output), new PrintStream(errors));
+
+        assertEquals(1, exitCode);
+        assertEquals(Arrays.asList("== " + first + " ==", "ALICE 1 30", "BOB 1 60"), lines(output));
+        assertTrue(errors.toString().contains("Error: File not found: /path/to/missing.log"));
+    }
+
+    @Test
+    public void reportsAggregateTotalsThatOverflow() throws IOException {
+        List<String> log = new ArrayList<>();
+        for (int i = 0; i < 12500; i++) {
+            log.add("00:00:00 HEAVY Start");
+        }
+        log.add("23:59:59 LIGHT Start");
+        Files.write(first, log);
+        Files.write(second, log);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+
+        int exitCode = new FairBilling().execute(new String[] {"--batch", "--aggregate", first.toString(),
+            second.toString()}, new PrintStream(output), new PrintStream(errors));
+
+        assertEquals(1, exitCode);
+        List<String> lines = lines(output);
+        assertEquals(Arrays.asList("== TOTAL ==", "LIGHT 2 0"), lines.subList(lines.size() - 2, lines.size()));
+        assertTrue(errors.toString().contains("Error: Total exceeds the reportable range for user: HEAVY"));
+    }
+
+    private static List<String> lines(ByteArrayOutputStream output) {
+        return Arrays.asList(output.toString().trim().split(System.lineSeparator()));
+    }
+}
@@ -0,0 +1,85 @@
+package com.fairbilling.app;
+
+import static com.fairbilling.domain.SummaryDescriptions.describe;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.fairbilling.domain.EntryBatch;
+
+public class BillingEngineTest {
+
+    private static final List<String> LINES = Arrays.asList(
+            "14:02:03 ALICE99 Start", "14:02:05 CHARLIE End", "not a line", "14:02:34 ALICE99 End",
+            "14:02:00 BOB Start", "14:02:58 CHARLIE Start", "14:03:02 CHARLIE End", "14:03:33 ALICE99 Start",
+            "14:03:35 ALICE99 End", "14:04:05 ALICE99 End", "14:04:23 ALICE99 End", "14:04:41 CHARLIE Start");
+
+    @Test
+    public void billsPushedLinesLikeTheLogFile() throws IOException {
+        Path file = Files.createTempFile("fair-billing", ".log");
+        Files.write(file, LINES);
+        BillingEngine engine = new BillingEngine();
+        byte[] buffer = String.join("\n", LINES).getBytes(StandardCharsets.US_ASCII);
+
+        int lineStart = 0;
+        for (int i = 0; i <= buffer.length; i++) {
+            if (i == buffer.length || buffer[i] == '\n') {
+                engine.acceptLine(buffer, lineStart, i);
+                lineStart = i + 1;
+            }
+        }
+
+        assertEquals(describe(new FairBilling().bill(file)), describe(engine.finish()));
+        assertEquals(10, engine.getAcceptedEvents());
+        assertEquals(2, engine.getRejectedEvents());
+    }
+
+    @Test
+    public void acceptsEventsByNameIdAndBatch() {
+        BillingEngine engine = new BillingEngine();
+        int bob = engine.userId("BOB");
+        byte[] alice = "xALICEx".getBytes(StandardCharsets.US_ASCII);
+        EntryBatch batch = new EntryBatch(4);
+        batch.add(300, bob, true);
+        batch.add(200, bob, false);
+        batch.add(400, engine.userId("ALICE"), false);
+
+        assertTrue(engine.accept(100, alice, 1, 6, true));
+        assertTrue(engine.accept(150, bob, false));
+        assertEquals(2, engine.accept(batch));
+        assertFalse(engine.accept(350, bob, false));
+
+        assertEquals(Arrays.asList("BOB 2 150", "ALICE 1 300"), describe(engine.snapshot()));
+        assertEquals(Arrays.asList("BOB 2 150", "ALICE 1 300"), describe(engine.finish()));
+    }
+
+    @Test
+    public void startsOverAfterReset() {
+        BillingEngine engine = new BillingEngine();
+        engine.accept(500, engine.userId("ALICE"), true);
+        engine.finish();
+
+        engine.reset();
+        engine.accept(100, engine.userId("BOB"), true);
+        engine.accept(160, engine.userId("BOB"), false);
+
+        assertEquals(Arrays.asList("BOB 1 60"), describe(engine.finish()));
+        assertEquals(2, engine.getAcceptedEvents());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsEventsAfterFinishUntilReset() {
+        BillingEngine engine = new BillingEngine();
+        engine.finish();
+        engine.accept(100, engine.userId("ALICE"), true);
+    }
+}
@@ -0,0 +1,188 @@
+package com.fairbilling.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BillingServerTest {
+
+    private static final String LOG = "14:02:03 ALICE99 Start\n14:02:05 CHARLIE End\n14:02:34 ALICE99 End\n"
+            + "14:03:02 CHARLIE Start\n";
+    private static final String REPORT = "ALICE99 1 31" + System.lineSeparator() + "CHARLIE 2 2"
+            + System.lineSeparator();
+
+    private Path root;
+    private FairBilling application;
+    private BillingServer server;
+
+    @Before
+    public void startServer() throws IOException {
+        root = Files.createTempDirectory("fair-billing-server");
+        Files.write(root.resolve("day.log"), LOG.getBytes(StandardCharsets.US_ASCII));
+        application = new FairBilling();
+        server = start(2, 2, root);
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void billsUploadedLog() throws IOException {
+        HttpURLConnection connection = post("/bill", LOG.getBytes(StandardCharsets.US_ASCII), null);
+
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(REPORT, body(connection));
+        assertTrue(connection.getHeaderField("Server-Timing").startsWith("bill;dur="));
+        assertTrue(connection.getContentType().startsWith("text/plain"));
+    }
+
+    @Test
+    public void billsGzipUploadInRequestedFormat() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(LOG.getBytes(StandardCharsets.US_ASCII));
+        }
+
+        HttpURLConnection connection = post("/bill?format=jsonl&top=1&sort=sessions", compressed.toByteArray(),
+                "gzip");
+
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("{\"username\":\"CHARLIE\",\"sessionCount\":2,\"totalDurationSeconds\":2}\n", body(connection));
+        assertEquals("application/x-ndjson; charset=UTF-8", connection.getContentType());
+    }
+
+    @Test
+    public void billsLocalFileBelowRoot() throws IOException {
+        HttpURLConnection connection = get("/bill?path=day.log&format=csv");
+
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("username,session_count,total_duration_seconds\r\nALICE99,1,31\r\nCHARLIE,2,2\r\n",
+                body(connection));
+    }
+
+    @Test
+    public void refusesFilesOutsideRootAndBadRequests() throws IOException {
+        Path outside = Files.createTempFile(root.getParent(), "fair-billing-outside", ".log");
+        String escape = URLEncoder.encode("../" + outside.getFileName(), "UTF-8");
+
+        assertEquals(403, get("/bill?path=" + escape).getResponseCode());
+        assertEquals(403, get("/bill?path=..%2Fmissing.log").getResponseCode());
+        assertEquals(404, get("/bill?path=missing.log").getResponseCode());
+        assertEquals(400, get("/bill?path=day.log&format=xml").getResponseCode());
+        assertEquals(400, get("/bill?path=day.log&colour=blue").getResponseCode());
+        assertEquals(405, get("/bill").getResponseCode());
+        assertEquals(6, application.getMetrics().getRequestsFailed());
+    }
+
+    @Test
+    public void refusesLinksThatLeadOutsideRoot() throws IOException {
+        Path outside = Files.createTempFile(root.getParent(), "fair-billing-outside", ".log");
+        Path link = Files.createSymbolicLink(root.resolve("link.log"), outside);
+        try {
+            assertEquals(403, get("/bill?path=link.log").getResponseCode());
+        } finally {
+            Files.delete(link);
+            Files.delete(outside);
+        }
+    }
+
+    @Test
+    public void rejectsRequestsBeyondWorkersAndQueue() throws Exception {
+        server.close();
+        server = start(1, 0, null);
+
+        // Hold the only worker by sending a body that never ends until the test says so.
+        HttpURLConnection blocking = (HttpURLConnection) url("/bill").openConnection();
+        blocking.setRequestMethod("POST");
+        blocking.setDoOutput(true);
+        blocking.setChunkedStreamingMode(16);
+        OutputStream upload = blocking.getOutputStream();
+        upload.write("14:02:03 ALICE99 Start\n".getBytes(StandardCharsets.US_ASCII));
+        upload.flush();
+
+        int status = 0;
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (status != 503 && System.currentTimeMillis() < deadline) {
+            status = post("/bill", LOG.getBytes(StandardCharsets.US_ASCII), null).getResponseCode();
+        }
+        assertEquals(503, status);
+
+        upload.write("14:02:13 ALICE99 End\n".getBytes(StandardCharsets.US_ASCII));
+        upload.close();
+        assertEquals(200, blocking.getResponseCode());
+        assertEquals("ALICE99 1 10" + System.lineSeparator(), body(blocking));
+        assertTrue(application.getMetrics().getRequestsRejected() >= 1);
+    }
+
+    @Test
+    public void reportsMetrics() throws IOException {
+        assertEquals(REPORT, body(post("/bill", LOG.getBytes(StandardCharsets.US_ASCII), null)));
+
+        HttpURLConnection connection = get("/metrics");
+
+        assertEquals(200, connection.getResponseCode());
+        String stats = body(connection);
+        assertTrue(stats, stats.contains("lines read:            4"));
+        assertTrue(stats, stats.contains("requests:              1 served, 0 failed, 0 rejected"));
+        assertEquals("text/plain; charset=UTF-8", connection.getContentType());
+    }
+
+    private BillingServer start(int threads, int maxQueued, Path directory) throws IOException {
+        BillingServer started = new BillingServer(application,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), threads, maxQueued, directory);
+        started.start();
+        return started;
+    }
+
+    private URL url(String path) throws IOException {
+        return new URL("http://127.0.0.1:" + server.getPort() + path);
+    }
+
+    private HttpURLConnection get(String path) throws IOException {
+        return (HttpURLConnection) url(path).openConnection();
+    }
+
+    private HttpURLConnection post(String path, byte[] body, String encoding) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url(path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        if (encoding != null) {
+            connection.setRequestProperty("Content-Encoding", encoding);
+        }
+        try (OutputStream output = connection.getOutputStream()) {
+            output.write(body);
+        }
+        return connection;
+    }
+
+    private static String body(HttpURLConnection connection) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream input = connection.getInputStream()) {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,131 @@
+package com.fairbilling.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fairbilling.io.LogFileParser;
+import com.fairbilling.io.ScanPosition;
+import com.fairbilling.service.BillingCalculator;
+import com.fairbilling.service.BillingSession;
+
+public class CheckpointedBillingTest {
+
+    private Path logFile;
+    private Path checkpointFile;
+
+    @Before
+    public void setUp() throws IOException {
+        logFile = Files.createTempFile("fair-billing", ".log");
+        checkpointFile = Files.createTempFile("fair-billing", ".checkpoint");
+        Files.delete(checkpointFile);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            int seconds = 36000 + i * 7;
+            String time = String.format("%02d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+            lines.add(time + " USER" + (i * 31 % 13) + (i % 3 == 0 ? " End" : " Start"));
+        }
+        Files.write(logFile, lines);
+    }
+
+    @Test
+    public void resumedRunReportsLikeUninterruptedRun() throws IOException {
+        crashAfterCheckpoints(3);
+        assertTrue(Files.exists(checkpointFile));
+
+        FairBilling application = new FairBilling();
+        ByteArrayOutputStream resumed = new ByteArrayOutputStream();
+        ByteArrayOutputStream uninterrupted = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        assertEquals(0, application.execute(
+                new String[] {"--resume", "--checkpoint=" + checkpointFile, logFile.toString()},
+                new PrintStream(resumed), new PrintStream(errors)));
+        application.run(logFile.toString(), new PrintStream(uninterrupted), new PrintStream(errors));
+
+        assertEquals("", errors.toString());
+        assertEquals(uninterrupted.toString(), resumed.toString());
+        assertFalse(Files.exists(checkpointFile));
+    }
+
+    @Test
+    public void writesCheckpointsInTheBackgroundAndRemovesThemOnCompletion() throws IOException {
+        FairBilling application = new FairBilling();
+        ByteArrayOutputStream checkpointed = new ByteArrayOutputStream();
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+
+        assertEquals(0, application.runCheckpointed(logFile.toString(), checkpointFile.toString(), false, 64,
+                new PrintStream(checkpointed), new PrintStream(errors)));
+        application.run(logFile.toString(), new PrintStream(plain), new PrintStream(errors));
+
+        assertEquals(plain.toString(), checkpointed.toString());
+        assertFalse(Files.exists(checkpointFile));
+    }
+
+    @Test
+    public void refusesToResumeAgainstAChangedLog() throws IOException {
+        crashAfterCheckpoints(3);
+        Files.write(logFile, Arrays.asList("10:00:00 MALLORY Start"), StandardOpenOption.APPEND);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+
+        int exitCode = new FairBilling().execute(
+                new String[] {"--resume", "--checkpoint=" + checkpointFile, logFile.toString()},
+                new PrintStream(output), new PrintStream(errors));
+
+        assertEquals(1, exitCode);
+        assertEquals("", output.toString());
+        assertTrue(errors.toString().contains("was taken from a different version of " + logFile));
+        assertTrue(Files.exists(checkpointFile));
+    }
+
+    @Test
+    public void storesUsernamesLongerThanModifiedUtf8Allows() throws IOException {
+        char[] name = new char[70000];
+        Arrays.fill(name, 'Z');
+        String longName = new String(name);
+        BillingSession session = new BillingSession();
+        session.accept(100, session.getUsernames().resolve(longName), true);
+        new Checkpoint(new ScanPosition(10, 100), session.captureState(), 10, 0).write(checkpointFile);
+
+        BillingSession restored = new BillingCalculator().restoreSession(Checkpoint.read(checkpointFile).getState());
+
+        assertEquals(longName, restored.finish().get(0).getUsername());
+    }
+
+    private void crashAfterCheckpoints(int checkpoints) throws IOException {
+        BillingSession session = new BillingSession();
+        int[] written = new int[1];
+        try {
+            new LogFileParser().scan(logFile, ScanPosition.START, session.getUsernames(), session::accept, 256,
+                    position -> {
+                        try {
+                            new Checkpoint(position, session.captureState(), Files.size(logFile),
+                                    Files.getLastModifiedTime(logFile).toMillis()).write(checkpointFile);
+                        } catch (IOException e) {
+                            throw new AssertionError(e);
+                        }
+                        if (++written[0] == checkpoints) {
+                            throw new IllegalStateException("simulated crash");
+                        }
+                    });
+            fail("Expected the simulated crash");
+        } catch (IllegalStateException e) {
+            assertEquals("simulated crash", e.getMessage());
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.fairbilling.app;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayOutputStream;
@@ -8,10 +9,13 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
 
 import org.junit.Test;
 
+import com.fairbilling.service.SpillingBillingSession;
+
 public class FairBillingIntegrationTest {
 
     @Test
@@ -57,4 +61,364 @@ public class FairBillingIntegrationTest {
         assertTrue(output.toString().isEmpty());
         assertTrue(errors.toString().contains("Error: File not found"));
     }
+
+    @Test
+    public void printsUsageForUnexpectedArguments() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        FairBilling application = new FairBilling();
+
+        int exitCode = application.execute(new String[] {"a.log", "b.log"},
+                new PrintStream(output), new PrintStream(errors));
+
+        assertEquals(1, exitCode);
+        assertTrue(output.toString().isEmpty());
+        assertTrue(errors.toString(), errors.toString().startsWith("Error: expected a single log file path"
+                + System.lineSeparator() + "Usage:"));
+    }
+
+    @Test
+    public void printsWhyOptionsWereRejected() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+
+        int cacheSizeExitCode = new FairBilling().execute(new String[] {"--cache-size=5", "x.log"},
+                new PrintStream(output), new PrintStream(errors));
+        int indexExitCode = new FairBilling().execute(new String[] {"--index=x.tidx", "x.log"},
+                new PrintStream(output), new PrintStream(errors));
+
+        assertEquals(1, cacheSizeExitCode);
+        assertEquals(1, indexExitCode);
+        assertTrue(output.toString().isEmpty());
+        String[] lines = errors.toString().split(System.lineSeparator());
+        assertEquals("Error: --cache-size requires --cache", lines[0]);
+        assertTrue(errors.toString().contains("Error: --index requires --window" + System.lineSeparator()
+                + "Usage:"));
+    }
+
+    @Test
+    public void printsWhyReportOptionsWereRejected() {
+        String[][] commands = {
+            {"--bogus", "x.log"},
+            {"--top=0", "x.log"},
+            {"--sort=foo", "x.log"},
+            {"--buckets=abc", "x.log"}};
+        String[] reasons = {
+            "Error: Unrecognised option: --bogus",
+            "Error: --top must be positive",
+            "Error: Unknown summary order: foo",
+            "Error: --buckets must be a number: abc"};
+
+        for (int i = 0; i < commands.length; i++) {
+            ByteArrayOutputStream errors = new ByteArrayOutputStream();
+            int exitCode = new FairBilling().execute(commands[i], new PrintStream(new ByteArrayOutputStream()),
+                    new PrintStream(errors));
+
+            assertEquals(1, exitCode);
+            assertTrue(errors.toString(), errors.toString().startsWith(reasons[i] + System.lineSeparator() + "Usage:"));
+        }
+    }
+
+    @Test
+    public void followModePrintsProvisionalReport() throws IOException {
+        Path tempFile = Files.createTempFile("fair-billing", ".log");
+        Files.write(tempFile, Arrays.asList("14:02:03 ALICE99 Start", "14:02:13 BOB End"));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+
+        int exitCode = new FairBilling().follow(tempFile.toString(), 1, 1,
+                new PrintStream(output), new PrintStream(errors));
+
+        assertEquals(0, exitCode);
+        assertEquals("== provisional ==" + System.lineSeparator()
+                + "ALICE99 1 10" + System.lineSeparator()
+                + "BOB 1 10" + System.lineSeparator(), output.toString());
+    }
+
+    @Test
+    public void billsConvertedBinaryLogIdentically() throws IOException {
+        Path textFile = Files.createTempFile("fair-billing", ".log");
+        Path binaryFile = Files.createTempFile("fair-billing", ".fbl");
+        Files.write(textFile, Arrays.asList(
+                "14:02:03 ALICE99 Start",
+                "14:02:05 CHARLIE End",
+                "14:02:34 ALICE99 End",
+                "14:02:58 ALICE99 Start",
+                "14:03:02 CHARLIE Start",
+                "14:03:33 ALICE99 Start",
+                "14:03:35 ALICE99 End",
+                "14:03:37 CHARLIE End",
+                "14:04:05 ALICE99 End",
+                "14:04:23 ALICE99 End",
+                "14:04:41 CHARLIE Start"));
+        FairBilling application = new FairBilling();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+
+        assertEquals(0, application.execute(new String[] {"--convert=" + binaryFile, textFile.toString()},
+                new PrintStream(new ByteArrayOutputStream()), new PrintStream(errors)));
+        ByteArrayOutputStream fromText = new ByteArrayOutputStream();
+        ByteArrayOutputStream fromBinary = new ByteArrayOutputStream();
+        application.run(textFile.toString(), new PrintStream(fromText), new PrintStream(errors));
+        application.run(binaryFile.toString(), new PrintStream(fromBinary), new PrintStream(errors));
+
+        assertEquals("", errors.toString());
+        assertEquals(fromText.toString(), fromBinary.toString());
+        assertTrue(fromBinary.toString().startsWith("ALICE99 4 240"));
+    }
+
+    @Test
+    public void shardedAggregationMatchesSequentialReport() throws IOException {
+        Path tempFile = Files.createTempFile("fair-billing", ".log");
+        Files.write(tempFile, Arrays.asList("14:02:03 ALICE99 Start", "14:02:05 CHARLIE End", "14:02:09 BOB Start",
+                "14:02:34 ALICE99 End", "14:03:02 CHARLIE Start"));
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ByteArrayOutputStream sharded = new ByteArrayOutputStream();
+        ByteArrayOutputStream pipelined = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+
+        new FairBilling().run(tempFile.toString(), new PrintStream(expected), new PrintStream(errors));
+        int shardedExit = new FairBilling().execute(new String[] {"--shards=3", tempFile.toString()},
+                new PrintStream(sharded), new PrintStream(errors));
+        int pipelinedExit = new FairBilling().execute(new String[] {"--pipeline", "--shards=2", tempFile.toString()},
+                new PrintStream(pipelined), new PrintStream(errors));
+
+        assertEquals(0, shardedExit);
+        assertEquals(0, pipelinedExit);
+        assertEquals(expected.toString(), sharded.toString());
+        assertEquals(expected.toString(), pipelined.toString());
+        assertTrue(errors.toString().isEmpty());
+    }
+
+    @Test
+    public void writesReportInRequestedFormat() throws IOException {
+        Path tempFile = Files.createTempFile("fair-billing", ".log");
+        Files.write(tempFile, Arrays.asList("14:02:03 ALICE99 Start", "14:02:34 ALICE99 End"));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+
+        int exitCode = new FairBilling().execute(new String[] {"--format=csv", tempFile.toString()},
+                new PrintStream(output), new PrintStream(errors));
+        int unknownExitCode = new FairBilling().execute(new String[] {"--format=xml", tempFile.toString()},
+                new PrintStream(output), new PrintStream(errors));
+
+        assertEquals(0, exitCode);
+        assertEquals("username,session_count,total_duration_seconds\r\nALICE99,1,31\r\n", output.toString());
+        assertEquals(1, unknownExitCode);
+        assertTrue(errors.toString().startsWith("Error: Unknown report format: xml" + System.lineSeparator()
+                + "Usage:"));
+    }
+
+    @Test
+    public void clipsWindowWiderThanTheLogToTheLog() throws IOException {
+        Path tempFile = Files.createTempFile("fair-billing", ".log");
+        Files.write(tempFile, Arrays.asList("14:00:00 ALICE Start", "14:00:02 CHARLIE End", "14:00:05 ALICE End",
+                "14:00:07 BOB Start"));
+        Path indexFile = Paths.get(tempFile + ".tidx");
+        try {
+            for (String option : new String[] {"--format=text", "--buckets=3600"}) {
+                ByteArrayOutputStream expected = new ByteArrayOutputStream();
+                ByteArrayOutputStream windowed = new ByteArrayOutputStream();
+                ByteArrayOutputStream errors = new ByteArrayOutputStream();
+
+                int exitCode = new FairBilling().execute(new String[] {option, tempFile.toString()},
+                        new PrintStream(expected), new PrintStream(errors));
+                int windowExitCode = new FairBilling().execute(new String[] {option, "--window=00:00:00-23:59:59",
+                        tempFile.toString()}, new PrintStream(windowed), new PrintStream(errors));
+
+                assertEquals(0, exitCode);
+                assertEquals(0, windowExitCode);
+                assertTrue(expected.toString().contains("CHARLIE 1 2"));
+                assertEquals(expected.toString(), windowed.toString());
+            }
+        } finally {
+            Files.deleteIfExists(indexFile);
+            Files.delete(tempFile);
+        }
+    }
+
+    @Test
+    public void rejectsServiceWithSingleRunOptions() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+
+        int shardsExitCode = new FairBilling().execute(new String[] {"--serve", "--shards=2"},
+                new PrintStream(output), new PrintStream(errors));
+        int pipelineExitCode = new FairBilling().execute(new String[] {"--serve", "--pipeline"},
+                new PrintStream(output), new PrintStream(errors));
+
+        assertEquals(1, shardsExitCode);
+        assertEquals(1, pipelineExitCode);
+        assertTrue(errors.toString().startsWith("Error: --serve takes no log file and runs on its own"));
+        assertTrue(output.toString().isEmpty());
+    }
+
+    @Test
+    public void printsTopUsersAboveThreshold() throws IOException {
+        Path tempFile = Files.createTempFile("fair-billing", ".log");
+        Files.write(tempFile, Arrays.asList("14:02:03 ALICE99 Start", "14:02:05 CHARLIE Start", "14:02:09 BOB Start",
+                "14:02:34 ALICE99 End", "14:03:02 CHARLIE End", "14:03:05 DAVE End"));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+
+        int exitCode = new FairBilling().execute(new String[] {"--top=2", "--min-seconds=30", tempFile.toString()},
+                new PrintStream(output), new PrintStream(errors));
+
+        assertEquals(0, exitCode);
+        assertEquals("DAVE 1 62" + System.lineSeparator() + "CHARLIE 1 57" + System.lineSeparator(),
+                output.toString());
+    }
+
+    @Test
+    public void billsWindowWithSidecarIndex() throws IOException {
+        Path tempFile = Files.createTempFile("fair-billing", ".log");
+        Files.write(tempFile, Arrays.asList("14:00:00 ALICE Start", "14:10:00 ALICE End", "14:20:00 BOB Start",
+                "14:25:00 BOB End", "14:40:00 ALICE Start", "14:50:00 ALICE End"));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+
+        int exitCode = new FairBilling().execute(new String[] {"--window=14:05:00-14:45:00", tempFile.toString()},
+                new PrintStream(output), new PrintStream(errors));
+        int invalidExitCode = new FairBilling().execute(new String[] {"--window=14:45:00-14:05:00",
+                tempFile.toString()}, new PrintStream(output), new PrintStream(errors));
+
+        assertEquals(0, exitCode);
+        assertEquals("ALICE 2 600" + System.lineSeparator() + "BOB 1 300" + System.lineSeparator(),
+                output.toString());
+        assertTrue(Files.exists(Paths.get(tempFile + ".tidx")));
+        assertEquals(1, invalidExitCode);
+        assertTrue(errors.toString().startsWith("Error: invalid --window: 14:45:00-14:05:00"));
+    }
+
+    @Test
+    public void billsWithinMemoryBudgetBySpillingUsers() throws IOException {
+        Path tempFile = Files.createTempFile("fair-billing", ".log");
+        Files.write(tempFile, Arrays.asList("14:02:03 ALICE99 Start", "14:02:34 CHARLIE End", "14:02:58 BOB Start",
+                "14:03:02 ALICE99 End", "14:03:33 BOB End", "14:04:05 DAVE Start"));
+        Path spillDirectory = Files.createTempDirectory("fair-billing-spill");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+
+        int exitCode = new FairBilling().runSpilling(tempFile.toString(), SpillingBillingSession.MIN_MEMORY_BUDGET,
+                spillDirectory, new PrintStream(output), new PrintStream(errors));
+        int invalidExitCode = new FairBilling().execute(new String[] {"--memory-budget=64", "--pipeline",
+                tempFile.toString()}, new PrintStream(output), new PrintStream(errors));
+
+        assertEquals(0, exitCode);
+        assertEquals("ALICE99 1 59" + System.lineSeparator() + "CHARLIE 1 31" + System.lineSeparator()
+                + "BOB 1 35" + System.lineSeparator() + "DAVE 1 0" + System.lineSeparator(), output.toString());
+        assertEquals(0, spillDirectory.toFile().list().length);
+        assertEquals(1, invalidExitCode);
+    }
+
+    @Test
+    public void reportsUsersThatDoNotFitTheMemoryBudget() throws IOException {
+        char[] name = new char[(int) SpillingBillingSession.MIN_MEMORY_BUDGET / 3];
+        Arrays.fill(name, 'X');
+        Path tempFile = Files.createTempFile("fair-billing", ".log");
+        Files.write(tempFile, Arrays.asList("14:02:03 " + new String(name) + " Start"));
+        Path spillDirectory = Files.createTempDirectory("fair-billing-spill");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+
+        int exitCode = new FairBilling().runSpilling(tempFile.toString(), SpillingBillingSession.MIN_MEMORY_BUDGET,
+                spillDirectory, new PrintStream(output), new PrintStream(errors));
+
+        assertEquals(1, exitCode);
+        assertTrue(errors.toString(), errors.toString().startsWith("Error: Memory budget of "));
+        assertEquals(0, spillDirectory.toFile().list().length);
+    }
+
+    @Test
+    public void billsSessionsSpanningMergedLogs() throws IOException {
+        Path firstGateway = Files.createTempFile("fair-billing", ".log");
+        Files.write(firstGateway, Arrays.asList("14:02:03 ALICE99 Start", "14:02:58 BOB End", "14:04:05 ALICE99 End"));
+        Path secondGateway = Files.createTempFile("fair-billing", ".log");
+        Files.write(secondGateway, Arrays.asList("14:02:34 ALICE99 End", "14:03:33 BOB Start"));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+
+        int exitCode = new FairBilling().execute(new String[] {"--merge", firstGateway.toString(),
+                secondGateway.toString()}, new PrintStream(output), new PrintStream(errors));
+        int invalidExitCode = new FairBilling().execute(new String[] {"--merge", "--pipeline",
+                firstGateway.toString()}, new PrintStream(output), new PrintStream(errors));
+
+        assertEquals(0, exitCode);
+        assertEquals("ALICE99 2 153" + System.lineSeparator() + "BOB 2 87" + System.lineSeparator(),
+                output.toString());
+        assertEquals(1, invalidExitCode);
+    }
+
+    @Test
+    public void namesTheLogThatCannotBeMerged() throws IOException {
+        Path textFile = Files.createTempFile("fair-billing", ".log");
+        Files.write(textFile, Arrays.asList("14:02:03 ALICE99 Start", "14:02:34 ALICE99 End"));
+        Path binaryFile = Files.createTempFile("fair-billing", ".bin");
+        FairBilling application = new FairBilling();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        assertEquals(0, application.execute(new String[] {"--convert=" + binaryFile, textFile.toString()},
+                new PrintStream(output), new PrintStream(errors)));
+
+        int exitCode = application.execute(new String[] {"--merge", textFile.toString(), binaryFile.toString()},
+                new PrintStream(output), new PrintStream(errors));
+
+        assertEquals(1, exitCode);
+        assertEquals("Error: Unable to merge files: Not a text log: " + binaryFile + System.lineSeparator(),
+                errors.toString());
+    }
+
+    @Test
+    public void breaksSecondsDownIntoTimeBuckets() throws IOException {
+        Path tempFile = Files.createTempFile("fair-billing", ".log");
+        Files.write(tempFile, Arrays.asList("11:00:00 ALICE Start", "13:00:00 ALICE End", "14:00:00 BOB End"));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+
+        int exitCode = new FairBilling().execute(new String[] {"--buckets=43200", "--format=csv",
+                tempFile.toString()}, new PrintStream(output), new PrintStream(errors));
+        int invalidExitCode = new FairBilling().execute(new String[] {"--buckets", "--checkpoint=x",
+                tempFile.toString()}, new PrintStream(output), new PrintStream(errors));
+
+        assertEquals(0, exitCode);
+        assertEquals("username,session_count,total_duration_seconds,bucket_0_seconds,bucket_1_seconds\r\n"
+                + "ALICE,1,7200,3600,3600\r\nBOB,1,10800,3600,7200\r\n", output.toString());
+        assertEquals(1, invalidExitCode);
+    }
+
+    @Test
+    public void stopsShardWorkersWhenTheInputFails() throws IOException {
+        Path tempFile = Files.createTempFile("fair-billing", ".log");
+        Files.write(tempFile, Arrays.asList("14:02:03 ALICE99 Start", "14:02:13 ALICE99 End"));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+
+        int exitCode = new FairBilling().execute(new String[] {"--merge", "--shards=3", tempFile.toString(),
+                "/path/to/missing.log"}, new PrintStream(output), new PrintStream(errors));
+
+        assertEquals(1, exitCode);
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            assertFalse(thread.getName(), thread.getName().startsWith("fair-billing-shard-") && thread.isAlive());
+        }
+    }
+
+    @Test
+    public void printsStatsToStandardError() throws IOException {
+        Path tempFile = Files.createTempFile("fair-billing", ".log");
+        Files.write(tempFile, Arrays.asList("14:02:03 ALICE99 Start", "oops", "14:02:13 BOB End", "14:02:01 BOB End"));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+
+        int exitCode = new FairBilling().execute(new String[] {"--stats", tempFile.toString()},
+                new PrintStream(output), new PrintStream(errors));
+
+        assertEquals(0, exitCode);
+        assertEquals("ALICE99 1 10" + System.lineSeparator() + "BOB 1 10" + System.lineSeparator(),
+                output.toString());
+        String stats = errors.toString();
+        assertTrue(stats.contains("lines read:            4"));
+        assertTrue(stats.contains("rejected malformed:    1"));
+        assertTrue(stats.contains("rejected out of order: 1"));
+        assertTrue(stats.contains("distinct users:        2"));
+        assertTrue(stats.contains("peak open sessions:    1"));
+    }
 }
@@ -0,0 +1,77 @@
+package com.fairbilling.app;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class LogGeneratorTest {
+
+    private final List<Path> tempFiles = new ArrayList<>();
+
+    @After
+    public void deleteTempFiles() throws IOException {
+        for (Path tempFile : tempFiles) {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    @Test
+    public void generatedLogBillsToExpectedReport() throws IOException {
+        Path log = tempFile(".log");
+        Path expected = tempFile(".txt");
+        LogGenerator.Options options = LogGenerator.Options.parse(new String[] {
+            "--output=" + log, "--expected=" + expected, "--lines=600000", "--users=500", "--seed=7",
+            "--zipf=1.1", "--max-depth=4", "--orphan-start-rate=0.2", "--orphan-end-rate=0.05",
+            "--invalid-rate=0.01", "--out-of-order-rate=0.01", "--threads=3"});
+
+        new LogGenerator().generate(options);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int exitCode = new FairBilling().run(log.toString(), new PrintStream(output), System.err);
+        assertEquals(0, exitCode);
+        String report = new String(output.toByteArray(), StandardCharsets.US_ASCII);
+        assertTrue(report.startsWith("USER"));
+        assertEquals(new String(Files.readAllBytes(expected), StandardCharsets.US_ASCII), report);
+    }
+
+    @Test
+    public void outputDependsOnlyOnOptionsNotThreadCount() throws IOException {
+        Path single = tempFile(".log");
+        Path parallel = tempFile(".log");
+
+        new LogGenerator().generate(LogGenerator.Options.parse(new String[] {
+            "--output=" + single, "--lines=300000", "--seed=11", "--threads=1"}));
+        new LogGenerator().generate(LogGenerator.Options.parse(new String[] {
+            "--output=" + parallel, "--lines=300000", "--seed=11", "--threads=4"}));
+
+        assertArrayEquals(Files.readAllBytes(single), Files.readAllBytes(parallel));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requiresOutputPath() {
+        LogGenerator.Options.parse(new String[] {"--lines=10"});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBothLinesAndSize() {
+        LogGenerator.Options.parse(new String[] {"--output=x.log", "--lines=10", "--size=1M"});
+    }
+
+    private Path tempFile(String suffix) throws IOException {
+        Path tempFile = Files.createTempFile("fair-billing-generated", suffix);
+        tempFiles.add(tempFile);
+        return tempFile;
+    }
+}
@@ -0,0 +1,138 @@
+package com.fairbilling.app;
+
+import static com.fairbilling.domain.SummaryDescriptions.describe;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fairbilling.metrics.BillingMetrics;
+
+public class ResultCacheTest {
+
+    private Path directory;
+    private BillingMetrics metrics;
+    private FairBilling application;
+    private AtomicInteger billed;
+    private FairBilling.Biller biller;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("fair-billing-cache");
+        metrics = new BillingMetrics();
+        application = new FairBilling();
+        billed = new AtomicInteger();
+        biller = path -> {
+            billed.incrementAndGet();
+            return application.bill(path);
+        };
+    }
+
+    @Test
+    public void returnsCachedSummariesUntilLogChanges() throws IOException {
+        Path log = log("14:02:03 ALICE99 Start", "14:02:34 ALICE99 End", "14:03:02 CHARLIE End");
+        ResultCache cache = new ResultCache(directory, 1024 * 1024, metrics);
+
+        List<String> first = describe(cache.bill(log, biller));
+        List<String> second = describe(cache.bill(log, biller));
+        Files.write(log, Arrays.asList("14:04:00 ALICE99 Start"), StandardOpenOption.APPEND);
+        List<String> changed = describe(cache.bill(log, biller));
+
+        assertEquals(Arrays.asList("ALICE99 1 31", "CHARLIE 1 59"), first);
+        assertEquals(first, second);
+        assertEquals(Arrays.asList("ALICE99 2 31", "CHARLIE 1 59"), changed);
+        assertEquals(2, billed.get());
+        assertEquals(1, metrics.getCacheHits());
+        assertEquals(2, metrics.getCacheMisses());
+    }
+
+    @Test
+    public void detectsAndReplacesCorruptEntries() throws IOException {
+        Path log = log("14:02:03 ALICE99 Start", "14:02:34 ALICE99 End");
+        ResultCache cache = new ResultCache(directory, 1024 * 1024, metrics);
+        cache.bill(log, biller);
+        Path entry = entries().get(0);
+        byte[] bytes = Files.readAllBytes(entry);
+        bytes[bytes.length / 2] ^= 0x20;
+        Files.write(entry, bytes);
+
+        assertNull(ResultCache.decode(bytes));
+        assertEquals(Arrays.asList("ALICE99 1 31"), describe(cache.bill(log, biller)));
+        assertEquals(2, billed.get());
+        assertEquals(Arrays.asList("ALICE99 1 31"), describe(ResultCache.decode(Files.readAllBytes(entry))));
+    }
+
+    @Test
+    public void cachesUsernamesOfAnyLength() throws IOException {
+        // Longer than the 65,535 bytes a modified UTF-8 string may take.
+        StringBuilder longName = new StringBuilder();
+        for (int i = 0; i < 70_000; i++) {
+            longName.append('A');
+        }
+        Path log = log("10:00:00 " + longName + " Start", "10:00:05 " + longName + " End");
+        ResultCache cache = new ResultCache(directory, 1024 * 1024, metrics);
+
+        List<String> first = describe(cache.bill(log, biller));
+        List<String> second = describe(cache.bill(log, biller));
+
+        assertEquals(Arrays.asList(longName + " 1 5"), first);
+        assertEquals(first, second);
+        assertEquals(1, billed.get());
+        assertEquals(1, metrics.getCacheHits());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedEntriesBeyondSizeBound() throws IOException {
+        Path first = log("10:00:00 FIRST Start");
+        Path second = log("10:00:00 SECOND Start");
+        Path third = log("10:00:00 THIRD Start");
+        long entrySize = ResultCache.encode(application.bill(first)).length;
+        ResultCache cache = new ResultCache(directory, 2 * entrySize + entrySize / 2, metrics);
+
+        cache.bill(first, biller);
+        cache.bill(second, biller);
+        // Age both entries, so that using the first again leaves the second least recently used even on coarse clocks.
+        for (Path entry : entries()) {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+        }
+        cache.bill(first, biller);
+        cache.bill(third, biller);
+
+        assertEquals(2, entries().size());
+        assertEquals(3, billed.get());
+        cache.bill(first, biller);
+        assertEquals(3, billed.get());
+        cache.bill(second, biller);
+        assertEquals(4, billed.get());
+        assertFalse(entries().isEmpty());
+        assertTrue(metrics.getCacheHits() >= 2);
+    }
+
+    private Path log(String... lines) throws IOException {
+        Path file = Files.createTempFile("fair-billing", ".log");
+        Files.write(file, Arrays.asList(lines));
+        return file;
+    }
+
+    private List<Path> entries() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.fbr")) {
+            files.forEach(entries::add);
+        }
+        return entries;
+    }
+}
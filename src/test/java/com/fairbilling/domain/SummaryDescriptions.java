@@ -0,0 +1,23 @@
+package com.fairbilling.domain;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Renders summaries as "username sessions seconds" lines, so that tests can compare them with {@code assertEquals}.
+ * Public because the tests of several packages share it.
+ */
+public final class SummaryDescriptions {
+
+    private SummaryDescriptions() {
+    }
+
+    public static List<String> describe(Iterable<UserBillingSummary> summaries) {
+        List<String> lines = new ArrayList<>();
+        for (UserBillingSummary summary : summaries) {
+            lines.add(summary.getUsername() + " " + summary.getSessionCount() + " "
+                    + summary.getTotalDurationSeconds());
+        }
+        return lines;
+    }
+}
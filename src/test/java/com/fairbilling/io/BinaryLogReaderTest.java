@@ -0,0 +1,107 @@
+package com.fairbilling.io;
+
+import static com.fairbilling.io.EntryDescriptions.describe;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fairbilling.util.UsernameTable;
+
+public class BinaryLogReaderTest {
+
+    private Path textFile;
+    private Path binaryFile;
+
+    @Before
+    public void setUp() throws IOException {
+        textFile = Files.createTempFile("fair-billing", ".log");
+        binaryFile = Files.createTempFile("fair-billing", ".fbl");
+        Files.write(textFile, Arrays.asList(
+                "10:00:00 ALICE Start",
+                "garbage",
+                "09:00:00 BOB Start",
+                "10:00:05 BOB End",
+                "11:30:00 ALICE End"));
+    }
+
+    @Test
+    public void replaysExactlyTheEntriesTheTextScannerAccepts() throws IOException {
+        long records = new BinaryLogWriter().convert(textFile, binaryFile);
+
+        UsernameTable textUsernames = new UsernameTable();
+        List<String> fromText = new ArrayList<>();
+        new LogFileParser().scan(textFile, textUsernames, batch -> describe(batch, textUsernames, fromText));
+        UsernameTable binaryUsernames = new UsernameTable();
+        List<String> fromBinary = new ArrayList<>();
+        new BinaryLogReader().read(binaryFile, binaryUsernames, batch -> describe(batch, binaryUsernames, fromBinary));
+
+        assertEquals(3, records);
+        assertEquals(Arrays.asList("36000 ALICE true", "36005 BOB false", "41400 ALICE false"), fromBinary);
+        assertEquals(fromText, fromBinary);
+        assertTrue(BinaryLogReader.isBinaryLog(binaryFile));
+        assertFalse(BinaryLogReader.isBinaryLog(textFile));
+    }
+
+    @Test
+    public void resolvesDictionaryIntoPopulatedTable() throws IOException {
+        new BinaryLogWriter().convert(textFile, binaryFile);
+        UsernameTable usernames = new UsernameTable();
+        usernames.resolve("BOB");
+        List<Integer> userIds = new ArrayList<>();
+
+        new BinaryLogReader().read(binaryFile, usernames, batch -> {
+            for (int i = 0; i < batch.size(); i++) {
+                userIds.add(batch.getUserId(i));
+            }
+        });
+
+        assertEquals(Arrays.asList(1, 0, 1), userIds);
+        assertEquals("ALICE", usernames.username(1));
+    }
+
+    @Test
+    public void rejectsTruncatedFile() throws IOException {
+        new BinaryLogWriter().convert(textFile, binaryFile);
+        byte[] bytes = Files.readAllBytes(binaryFile);
+        Files.write(binaryFile, Arrays.copyOf(bytes, bytes.length - 3));
+
+        try {
+            new BinaryLogReader().read(binaryFile, new UsernameTable(), batch -> { });
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Truncated or corrupt binary log"));
+        }
+    }
+
+    @Test
+    public void keepsPreviousBinaryLogWhenConversionFails() throws IOException {
+        new BinaryLogWriter().convert(textFile, binaryFile);
+        byte[] previous = Files.readAllBytes(binaryFile);
+        Files.delete(textFile);
+
+        try {
+            new BinaryLogWriter().convert(textFile, binaryFile);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertArrayEquals(previous, Files.readAllBytes(binaryFile));
+        }
+        String name = binaryFile.getFileName().toString();
+        try (Stream<Path> siblings = Files.list(binaryFile.getParent())) {
+            assertFalse(siblings.anyMatch(sibling -> !sibling.equals(binaryFile)
+                    && sibling.getFileName().toString().startsWith(name)));
+        }
+    }
+}
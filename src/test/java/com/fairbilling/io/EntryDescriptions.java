@@ -0,0 +1,29 @@
+package com.fairbilling.io;
+
+import java.util.List;
+
+import com.fairbilling.domain.EntryBatch;
+import com.fairbilling.util.UsernameTable;
+
+/**
+ * Renders entries as "seconds username start" lines, so that tests can compare what different read paths produce.
+ */
+final class EntryDescriptions {
+
+    private EntryDescriptions() {
+    }
+
+    static String describe(int seconds, String username, boolean start) {
+        return seconds + " " + username + " " + start;
+    }
+
+    /**
+     * Appends every entry of {@code batch}, naming users from {@code usernames}.
+     */
+    static void describe(EntryBatch batch, UsernameTable usernames, List<String> target) {
+        for (int i = 0; i < batch.size(); i++) {
+            target.add(describe(batch.getSecondsSinceMidnight(i), usernames.username(batch.getUserId(i)),
+                    batch.isStartEvent(i)));
+        }
+    }
+}
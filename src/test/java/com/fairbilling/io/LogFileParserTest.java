@@ -1,18 +1,34 @@
 package com.fairbilling.io;
 
+import static com.fairbilling.io.EntryDescriptions.describe;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import com.fairbilling.domain.EntryBatch;
 import com.fairbilling.domain.LogEntry;
+import com.fairbilling.domain.PartitionedBatch;
+import com.fairbilling.domain.PartitionedEntryConsumer;
+import com.fairbilling.metrics.BillingMetrics;
+import com.fairbilling.util.UsernameTable;
 
 public class LogFileParserTest {
 
@@ -37,4 +53,336 @@ public class LogFileParserTest {
         assertEquals(86399, entries.get(0).getSecondsSinceMidnight());
         assertTrue(entries.get(0).isEndEvent());
     }
+
+    @Test
+    public void streamsAcceptedEntriesToConsumer() throws IOException {
+        Path tempFile = Files.createTempFile("fair-billing", ".log");
+        Files.write(tempFile, Arrays.asList(
+                "10:00:00 ALICE Start",
+                "not a log line",
+                "09:00:00 BOB Start",
+                "10:00:05 ALICE End"));
+
+        List<LogEntry> streamed = new ArrayList<>();
+        parser.parse(tempFile, streamed::add);
+
+        assertEquals(2, streamed.size());
+        assertTrue(streamed.get(0).isStartEvent());
+        assertEquals(36005, streamed.get(1).getSecondsSinceMidnight());
+    }
+
+    @Test
+    public void parallelScanMatchesSequentialParseAcrossChunkBoundaries() throws IOException {
+        List<String> lines = randomLog(new Random(42), 5000);
+        Path tempFile = Files.createTempFile("fair-billing", ".log");
+        Files.write(tempFile, lines);
+
+        List<String> expected = new ArrayList<>();
+        for (LogEntry entry : parser.parse(tempFile)) {
+            expected.add(entry.getSecondsSinceMidnight() + " " + entry.getUsername() + " " + entry.isStartEvent());
+        }
+        UsernameTable sequentialUsernames = new UsernameTable();
+        List<String> sequential = new ArrayList<>();
+        parser.scan(tempFile, sequentialUsernames, batch -> describe(batch, sequentialUsernames, sequential));
+        UsernameTable parallelUsernames = new UsernameTable();
+        List<String> actual = new ArrayList<>();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            parser.scanParallel(tempFile, parallelUsernames,
+                    batch -> describe(batch, parallelUsernames, actual), pool, 97);
+        } finally {
+            pool.shutdown();
+        }
+
+        assertEquals(expected, sequential);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void partitionedParallelScanSplitsSequentialEntriesByPartition() throws IOException {
+        Path tempFile = Files.createTempFile("fair-billing", ".log");
+        Files.write(tempFile, randomLog(new Random(42), 5000));
+        LogFileParser sequentialParser = new LogFileParser();
+        UsernameTable sequentialUsernames = new UsernameTable();
+        List<String> sequential = new ArrayList<>();
+        sequentialParser.scan(tempFile, sequentialUsernames, batch -> describe(batch, sequentialUsernames, sequential));
+
+        for (int partitions : new int[] {2, 3}) {
+            LogFileParser parallelParser = new LogFileParser();
+            UsernameTable parallelUsernames = new UsernameTable();
+            RecordingPartitions consumer = new RecordingPartitions(partitions, parallelUsernames);
+            ForkJoinPool pool = new ForkJoinPool(4);
+            try {
+                parallelParser.scanParallel(tempFile, parallelUsernames, consumer, pool, 97);
+            } finally {
+                pool.shutdown();
+            }
+
+            for (int partition = 0; partition < partitions; partition++) {
+                List<String> expected = new ArrayList<>();
+                for (String entry : sequential) {
+                    int userId = sequentialUsernames.resolve(entry.split(" ")[1]);
+                    if (consumer.partitionOf(sequentialUsernames.hashOf(userId)) == partition) {
+                        expected.add(entry);
+                    }
+                }
+                assertEquals(expected, consumer.parts.get(partition));
+            }
+            assertEquals(sequentialUsernames.size(), parallelUsernames.size());
+            for (int userId = 0; userId < sequentialUsernames.size(); userId++) {
+                assertEquals(sequentialUsernames.username(userId), parallelUsernames.username(userId));
+            }
+            assertEquals(sequentialParser.getMetrics().getOutOfOrderLines(),
+                    parallelParser.getMetrics().getOutOfOrderLines());
+        }
+    }
+
+    @Test
+    public void windowScanMatchesFilteredFullScanAndRebuildsStaleIndex() throws IOException {
+        Random random = new Random(7);
+        Path file = Files.createTempFile("fair-billing", ".log");
+        Files.write(file, randomLog(random, 5000));
+        Path indexFile = Files.createTempFile("fair-billing", ".tidx");
+        Files.delete(indexFile);
+
+        TimeIndex index = parser.openTimeIndex(file, indexFile, 512);
+        assertTrue(index.size() > 100);
+        assertEquals(ScanPosition.START.getOffset(), index.get(0).getOffset());
+        List<String> all = scanAll(file);
+        assertEquals(timestampOf(all.get(0)), index.getFirstTimestamp());
+        assertEquals(timestampOf(all.get(all.size() - 1)), index.getLastTimestamp());
+        for (int round = 0; round < 50; round++) {
+            int windowStart = 3500 + random.nextInt(7000);
+            int windowEnd = windowStart + random.nextInt(round % 5 == 0 ? 6000 : 300);
+            assertEquals(window(all, windowStart, windowEnd), scanWindow(file, index, windowStart, windowEnd));
+        }
+
+        Files.write(file, Arrays.asList("23:00:00 LATE Start", "23:00:09 LATE End"), StandardOpenOption.APPEND);
+        TimeIndex rebuilt = parser.openTimeIndex(file, indexFile, 512);
+        assertEquals(Files.size(file), rebuilt.getLogSize());
+        assertEquals(index.getFirstTimestamp(), rebuilt.getFirstTimestamp());
+        assertEquals(82809, rebuilt.getLastTimestamp());
+        assertEquals(Arrays.asList("82800 LATE true", "82809 LATE false"),
+                scanWindow(file, rebuilt, 82800, 86399));
+    }
+
+    @Test
+    public void readsGzipAndZipCompressedLogs() throws IOException {
+        List<String> lines = Arrays.asList(
+                "10:00:00 ALICE Start",
+                "garbage",
+                "10:00:30 BOB End",
+                "09:59:59 CAROL Start",
+                "10:01:00 ALICE End");
+        Path plain = Files.createTempFile("fair-billing", ".log");
+        Files.write(plain, lines);
+        Path gzip = Files.createTempFile("fair-billing", ".log.gz");
+        try (OutputStream output = new GZIPOutputStream(Files.newOutputStream(gzip))) {
+            output.write(Files.readAllBytes(plain));
+        }
+        Path zip = Files.createTempFile("fair-billing", ".zip");
+        try (ZipOutputStream output = new ZipOutputStream(Files.newOutputStream(zip))) {
+            output.putNextEntry(new ZipEntry("part1.log"));
+            output.write("10:00:00 ALICE Start\ngarbage\n10:00:30 BOB End".getBytes(StandardCharsets.US_ASCII));
+            output.putNextEntry(new ZipEntry("part2.log"));
+            output.write("09:59:59 CAROL Start\n10:01:00 ALICE End\n".getBytes(StandardCharsets.US_ASCII));
+        }
+
+        assertEquals(LogCompression.GZIP, LogCompression.detect(gzip));
+        assertEquals(LogCompression.ZIP, LogCompression.detect(zip));
+        assertEquals(LogCompression.NONE, LogCompression.detect(plain));
+        List<String> expected = scanAll(plain);
+        assertEquals(3, expected.size());
+        assertEquals(expected, scanAll(gzip));
+        assertEquals(expected, scanAll(zip));
+        assertEquals(3, parser.parse(gzip).size());
+    }
+
+    @Test
+    public void resumesFromEveryReportedPosition() throws IOException {
+        Path file = Files.createTempFile("fair-billing", ".log");
+        Files.write(file, Arrays.asList(
+                "10:00:00 ALICE Start",
+                "garbage",
+                "10:00:30 BOB End",
+                "09:59:59 CAROL Start",
+                "10:01:00 ALICE End",
+                "10:02:00 CAROL End"));
+        List<String> expected = scanAll(file);
+        List<ScanPosition> positions = new ArrayList<>();
+        List<Integer> deliveredAtPosition = new ArrayList<>();
+        List<String> delivered = new ArrayList<>();
+        UsernameTable usernames = new UsernameTable();
+
+        ScanPosition end = parser.scan(file, ScanPosition.START, usernames,
+                batch -> describe(batch, usernames, delivered), 1, position -> {
+                    positions.add(position);
+                    deliveredAtPosition.add(delivered.size());
+                });
+
+        assertEquals(expected, delivered);
+        assertEquals(Files.size(file), end.getOffset());
+        assertFalse(positions.isEmpty());
+        for (int i = 0; i < positions.size(); i++) {
+            UsernameTable resumedUsernames = new UsernameTable();
+            List<String> resumed = new ArrayList<>();
+            parser.scan(file, positions.get(i), resumedUsernames, batch -> describe(batch, resumedUsernames, resumed),
+                    Long.MAX_VALUE, position -> { });
+            assertEquals(expected.subList(deliveredAtPosition.get(i), expected.size()), resumed);
+        }
+    }
+
+    @Test
+    public void countsLinesByOutcomeOnEveryReadPath() throws IOException {
+        Path file = Files.createTempFile("fair-billing", ".log");
+        Files.write(file, "10:00:00 ALICE Start\r\n25:00:00 BOB Start\r\ngarbage\r\n09:00:00 BOB End\r\n"
+                .concat("10:00:10 ALICE End\n12:00:00 CAROL Start\n11:00:00 ALICE Start\n12:00:01 BOB End")
+                .getBytes(StandardCharsets.US_ASCII));
+
+        LogFileParser regex = new LogFileParser();
+        regex.parse(file);
+        LogFileParser sequential = new LogFileParser();
+        sequential.scan(file, new UsernameTable(), batch -> { });
+        LogFileParser parallel = new LogFileParser();
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            parallel.scanParallel(file, new UsernameTable(), batch -> { }, pool, 30);
+        } finally {
+            pool.shutdown();
+        }
+
+        for (LogFileParser used : Arrays.asList(regex, sequential, parallel)) {
+            BillingMetrics metrics = used.getMetrics();
+            assertEquals(8, metrics.getLinesRead());
+            assertEquals(1, metrics.getMalformedLines());
+            assertEquals(1, metrics.getInvalidTimeLines());
+            assertEquals(2, metrics.getOutOfOrderLines());
+            assertEquals(4, metrics.getEntriesAccepted());
+        }
+        assertEquals(Files.size(file), regex.getMetrics().getBytesRead());
+        assertEquals(Files.size(file), sequential.getMetrics().getBytesRead());
+        assertEquals(Files.size(file), parallel.getMetrics().getBytesRead());
+    }
+
+    @Test
+    public void mergesTimeOrderedLogsLikeTheirCombinedLog() throws IOException {
+        Random random = new Random(11);
+        List<String> combined = new ArrayList<>();
+        List<List<String>> parts = Arrays.asList(new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+        int clock = 0;
+        for (int i = 0; i < 20000; i++) {
+            clock += 1 + random.nextInt(3);
+            String line = String.format("%02d:%02d:%02d USER%d %s", clock / 3600, (clock / 60) % 60, clock % 60,
+                    random.nextInt(500), random.nextBoolean() ? "Start" : "End");
+            combined.add(line);
+            parts.get(random.nextInt(3)).add(line);
+        }
+        parts.get(1).add(2, "corrupted entry");
+        Path combinedFile = Files.createTempFile("fair-billing", ".log");
+        Files.write(combinedFile, combined);
+        List<Path> partFiles = new ArrayList<>();
+        for (List<String> part : parts) {
+            Path partFile = Files.createTempFile("fair-billing", ".log");
+            Files.write(partFile, part);
+            partFiles.add(partFile);
+        }
+
+        LogFileParser merging = new LogFileParser();
+        UsernameTable usernames = new UsernameTable();
+        List<String> merged = new ArrayList<>();
+        merging.scanMerged(partFiles, usernames, batch -> describe(batch, usernames, merged));
+
+        assertEquals(scanAll(combinedFile), merged);
+        assertEquals(20001, merging.getMetrics().getLinesRead());
+        assertEquals(1, merging.getMetrics().getMalformedLines());
+        assertEquals(20000, merging.getMetrics().getEntriesAccepted());
+    }
+
+    private static int timestampOf(String entry) {
+        return Integer.parseInt(entry.substring(0, entry.indexOf(' ')));
+    }
+
+    private static List<String> randomLog(Random random, int entries) {
+        List<String> lines = new ArrayList<>();
+        int clock = 3600;
+        for (int i = 0; i < entries; i++) {
+            clock += random.nextInt(3);
+            int jitter = random.nextInt(10) == 0 ? -random.nextInt(120) : 0;
+            int timestamp = Math.max(0, clock + jitter);
+            String event = random.nextBoolean() ? "Start" : "End";
+            lines.add(String.format("%02d:%02d:%02d USER%d %s",
+                    timestamp / 3600, (timestamp / 60) % 60, timestamp % 60, random.nextInt(40), event));
+            if (random.nextInt(25) == 0) {
+                lines.add("corrupted entry");
+            }
+        }
+        return lines;
+    }
+
+    private List<String> scanWindow(Path file, TimeIndex index, int windowStart, int windowEnd) throws IOException {
+        UsernameTable usernames = new UsernameTable();
+        List<String> entries = new ArrayList<>();
+        parser.scanWindow(file, index, windowStart, windowEnd, usernames,
+                batch -> describe(batch, usernames, entries));
+        return entries;
+    }
+
+    private static List<String> window(List<String> entries, int windowStart, int windowEnd) {
+        List<String> selected = new ArrayList<>();
+        for (String entry : entries) {
+            int timestamp = Integer.parseInt(entry.substring(0, entry.indexOf(' ')));
+            if (timestamp >= windowStart && timestamp <= windowEnd) {
+                selected.add(entry);
+            }
+        }
+        return selected;
+    }
+
+    private List<String> scanAll(Path file) throws IOException {
+        UsernameTable usernames = new UsernameTable();
+        List<String> entries = new ArrayList<>();
+        parser.scanParallel(file, usernames, batch -> describe(batch, usernames, entries));
+        return entries;
+    }
+
+    /**
+     * Records the entries of every part in the order they arrive, with the names their translated ids resolve to.
+     */
+    private static final class RecordingPartitions implements PartitionedEntryConsumer {
+        private final UsernameTable usernames;
+        private final List<List<String>> parts = new ArrayList<>();
+
+        private RecordingPartitions(int partitions, UsernameTable usernames) {
+            this.usernames = usernames;
+            for (int i = 0; i < partitions; i++) {
+                parts.add(new ArrayList<>());
+            }
+        }
+
+        @Override
+        public int partitionCount() {
+            return parts.size();
+        }
+
+        @Override
+        public int partitionOf(int usernameHash) {
+            return (usernameHash >>> 1) % parts.size();
+        }
+
+        @Override
+        public void accept(PartitionedBatch batch) {
+            for (int partition = 0; partition < batch.partCount(); partition++) {
+                EntryBatch part = batch.part(partition);
+                for (int i = 0; i < part.size(); i++) {
+                    parts.get(partition).add(describe(part.getSecondsSinceMidnight(i),
+                            usernames.username(batch.userId(part.getUserId(i))), part.isStartEvent(i)));
+                }
+            }
+        }
+
+        @Override
+        public void accept(EntryBatch batch) {
+            throw new AssertionError("expected only partitioned batches");
+        }
+    }
 }
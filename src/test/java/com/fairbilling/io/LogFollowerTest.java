@@ -0,0 +1,120 @@
+package com.fairbilling.io;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class LogFollowerTest {
+
+    private final List<String> received = new ArrayList<>();
+    private final AtomicInteger resets = new AtomicInteger();
+
+    @Test
+    public void deliversOnlyNewlyAppendedCompleteLines() throws IOException {
+        Path log = Files.createTempFile("fair-billing-follow", ".log");
+        Files.write(log, Arrays.asList("10:00:00 ALICE Start"));
+
+        try (LogFollower follower = new LogFileParser().follow(log, this::record, resets::incrementAndGet)) {
+            assertEquals(21, follower.poll());
+            assertEquals(Arrays.asList("36000 ALICE true"), received);
+
+            append(log, "10:00:05 ALICE End\n10:00:0");
+            follower.poll();
+            assertEquals(2, received.size());
+
+            append(log, "9 BOB Start\n09:00:00 CAROL End\n");
+            follower.poll();
+            assertEquals(Arrays.asList("36000 ALICE true", "36005 ALICE false", "36009 BOB true"), received);
+            assertEquals(0, follower.poll());
+            assertEquals(0, resets.get());
+        }
+    }
+
+    @Test
+    public void restartsFromBeginningAfterTruncation() throws IOException {
+        Path log = Files.createTempFile("fair-billing-follow", ".log");
+        Files.write(log, Arrays.asList("10:00:00 ALICE Start", "11:00:00 ALICE End"));
+
+        try (LogFollower follower = new LogFileParser().follow(log, this::record, resets::incrementAndGet)) {
+            follower.poll();
+            Files.write(log, Arrays.asList("08:00:00 BOB Start"));
+            follower.poll();
+
+            assertEquals(1, resets.get());
+            assertEquals("28800 BOB true", received.get(received.size() - 1));
+        }
+    }
+
+    @Test
+    public void reopensRotatedFile() throws IOException {
+        Path directory = Files.createTempDirectory("fair-billing-follow");
+        Path log = directory.resolve("current.log");
+        Files.write(log, Arrays.asList("10:00:00 ALICE Start"));
+
+        try (LogFollower follower = new LogFileParser().follow(log, this::record, resets::incrementAndGet)) {
+            follower.poll();
+            Path replacement = directory.resolve("next.log");
+            Files.write(replacement, Arrays.asList("07:00:00 CAROL Start", "07:00:01 CAROL End"));
+            Files.move(replacement, log, StandardCopyOption.REPLACE_EXISTING);
+            follower.poll();
+
+            assertEquals(1, resets.get());
+            assertEquals(Arrays.asList("36000 ALICE true", "25200 CAROL true", "25201 CAROL false"), received);
+        }
+    }
+
+    @Test
+    public void readsLinesAppendedBeforeRotation() throws IOException {
+        Path directory = Files.createTempDirectory("fair-billing-follow");
+        Path log = directory.resolve("current.log");
+        Files.write(log, Arrays.asList("10:00:00 ALICE Start"));
+        List<Integer> receivedAtReset = new ArrayList<>();
+
+        try (LogFollower follower = new LogFileParser().follow(log, this::record,
+                () -> receivedAtReset.add(received.size()))) {
+            follower.poll();
+            append(log, "10:00:05 ALICE End\n10:00:09 BOB Start");
+            Files.move(log, directory.resolve("current.log.1"));
+            Files.write(log, Arrays.asList("07:00:00 CAROL Start"));
+            follower.poll();
+
+            assertEquals(Arrays.asList(3), receivedAtReset);
+            assertEquals(Arrays.asList("36000 ALICE true", "36005 ALICE false", "36009 BOB true",
+                    "25200 CAROL true"), received);
+        }
+    }
+
+    @Test
+    public void restartsAfterTruncationThatGrewPastTheOffset() throws IOException {
+        Path log = Files.createTempFile("fair-billing-follow", ".log");
+        Files.write(log, Arrays.asList("10:00:00 ALICE Start"));
+
+        try (LogFollower follower = new LogFileParser().follow(log, this::record, resets::incrementAndGet)) {
+            follower.poll();
+            Files.write(log, Arrays.asList("08:00:00 BOB Start", "08:00:10 BOB End"));
+            follower.poll();
+
+            assertEquals(1, resets.get());
+            assertEquals(Arrays.asList("36000 ALICE true", "28800 BOB true", "28810 BOB false"), received);
+        }
+    }
+
+    private void record(ParsedLine line) {
+        received.add(line.getSecondsSinceMidnight() + " " + line.username() + " " + line.isStartEvent());
+    }
+
+    private static void append(Path log, String text) throws IOException {
+        Files.write(log, text.getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+    }
+}
@@ -0,0 +1,138 @@
+package com.fairbilling.io;
+
+import static com.fairbilling.io.EntryDescriptions.describe;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fairbilling.domain.LogEntry;
+
+public class LogLineScannerTest {
+
+    private LogLineScanner scanner;
+    private LogEntryParser entryParser;
+
+    @Before
+    public void setUp() {
+        scanner = new LogLineScanner();
+        entryParser = new LogEntryParser();
+    }
+
+    @Test
+    public void decodesFieldsWithoutAllocatingStrings() {
+        byte[] bytes = "xx14:02:03 ALICE99 Start".getBytes(StandardCharsets.US_ASCII);
+        ParsedLine line = new ParsedLine();
+
+        assertTrue(scanner.scan(bytes, 2, bytes.length, line));
+        assertEquals(50523, line.getSecondsSinceMidnight());
+        assertEquals(11, line.getUsernameStart());
+        assertEquals(18, line.getUsernameEnd());
+        assertTrue(line.isStartEvent());
+        assertEquals("ALICE99", line.username());
+    }
+
+    @Test
+    public void agreesWithRegexParserOnEdgeCases() {
+        List<String> lines = Arrays.asList(
+                "14:02:03 ALICE99 Start",
+                "14:02:03\tALICE99\tEnd\t ",
+                "14:02:03 \u000bUSER_1 \fEnd",
+                "14:02:03 ALICE99 start",
+                "14:02:03 ALICE99 Started",
+                "14:02:03 ALICE99 End x",
+                "14:02:03ALICE99 End",
+                "14:02:03 ALICE99End",
+                " 14:02:03 ALICE99 End",
+                "24:00:00 ALICE99 End",
+                "23:60:00 ALICE99 End",
+                "23:59:60 ALICE99 End",
+                "1:02:03 ALICE99 End",
+                "14-02-03 ALICE99 End",
+                "14:02:03 ALICE-99 End",
+                "14:02:03 ÉLISE End",
+                "١٤:02:03 ALICE End",
+                "14:02:03 End End",
+                "14:02:03  Start   Start  ",
+                "",
+                "14:02:03");
+
+        for (String line : lines) {
+            assertAgreement(line);
+        }
+    }
+
+    @Test
+    public void agreesWithRegexParserOnEveryTestDataFile() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get("test-data"), "*.log")) {
+            for (Path file : files) {
+                for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    assertAgreement(line);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void fileScanMatchesLineReaderAcrossTerminatorsAndBufferRefills() throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            String time = String.format("%02d:%02d:%02d", (i / 3600) % 24, (i / 60) % 60, i % 60);
+            String terminator = i % 3 == 0 ? "\r\n" : (i % 3 == 1 ? "\n" : "\r");
+            content.append(time).append(" USER").append(i % 7).append(i % 2 == 0 ? " Start" : " End")
+                    .append(terminator);
+            if (i % 11 == 0) {
+                content.append("garbage line").append('\n');
+            }
+        }
+        content.append("23:59:59 LAST End");
+        byte[] bytes = content.toString().getBytes(StandardCharsets.US_ASCII);
+        Path tempFile = Files.createTempFile("fair-billing", ".log");
+        Files.write(tempFile, bytes);
+
+        LogFileParser fileParser = new LogFileParser();
+        List<LogEntry> expected = fileParser.parse(tempFile);
+        List<String> actual = new ArrayList<>();
+        fileParser.scan(new ByteArrayInputStream(bytes), line -> actual.add(describe(
+                line.getSecondsSinceMidnight(), line.username(), line.isStartEvent())));
+
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            LogEntry entry = expected.get(i);
+            assertEquals(describe(entry.getSecondsSinceMidnight(), entry.getUsername(), entry.isStartEvent()),
+                    actual.get(i));
+        }
+    }
+
+    private void assertAgreement(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ParsedLine line = new ParsedLine();
+        Optional<LogEntry> expected = entryParser.parse(text);
+
+        boolean accepted = scanner.scan(bytes, 0, bytes.length, line);
+
+        assertEquals("acceptance of [" + text + "]", expected.isPresent(), accepted);
+        if (accepted) {
+            LogEntry entry = expected.get();
+            assertEquals(entry.getSecondsSinceMidnight(), line.getSecondsSinceMidnight());
+            assertEquals(entry.getUsername(), line.username());
+            assertEquals(entry.getEventType(), line.getEventType());
+        } else {
+            assertFalse(expected.isPresent());
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.fairbilling.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PipelinedInputStreamTest {
+
+    @Test
+    public void deliversSourceBytesInOrderThroughRecycledBuffers() throws IOException {
+        byte[] data = new byte[100000];
+        new Random(3).nextBytes(data);
+
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        try (InputStream input = new PipelinedInputStream(new ByteArrayInputStream(data), 777, 2)) {
+            byte[] buffer = new byte[1000];
+            int read;
+            while ((read = input.read(buffer, 0, buffer.length)) != -1) {
+                copy.write(buffer, 0, read);
+            }
+            assertEquals(-1, input.read());
+        }
+
+        assertArrayEquals(data, copy.toByteArray());
+    }
+
+    @Test
+    public void propagatesSourceFailuresToTheReader() {
+        InputStream failing = new InputStream() {
+            private int remaining = 10;
+
+            @Override
+            public int read() throws IOException {
+                if (remaining-- <= 0) {
+                    throw new IOException("corrupt stream");
+                }
+                return 'x';
+            }
+        };
+
+        try (InputStream input = new PipelinedInputStream(failing, 4, 1)) {
+            while (input.read() != -1) {
+                continue;
+            }
+            fail("expected the source failure to surface");
+        } catch (IOException e) {
+            assertEquals("corrupt stream", e.getCause().getMessage());
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.fairbilling.io;
+
+import static com.fairbilling.io.EntryDescriptions.describe;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.fairbilling.metrics.BillingMetrics;
+import com.fairbilling.metrics.PipelineStage;
+import com.fairbilling.util.UsernameTable;
+
+public class PipelinedLogScannerTest {
+
+    @Test
+    public void matchesSequentialScanWithLinesStraddlingBuffers() throws IOException {
+        Random random = new Random(11);
+        StringBuilder log = new StringBuilder();
+        int clock = 0;
+        for (int i = 0; i < 3000; i++) {
+            clock += random.nextInt(3) - (random.nextInt(20) == 0 ? 5 : 0);
+            int timestamp = Math.max(0, clock);
+            log.append(String.format("%02d:%02d:%02d USER%d %s", timestamp / 3600, timestamp / 60 % 60,
+                    timestamp % 60, random.nextInt(50), random.nextBoolean() ? "Start" : "End"));
+            log.append(random.nextInt(10) == 0 ? "\r\n" : "\n");
+            if (random.nextInt(40) == 0) {
+                log.append("a rather long corrupted line that spans more than one of the tiny buffers\n");
+            }
+        }
+        byte[] bytes = log.toString().getBytes(StandardCharsets.US_ASCII);
+
+        UsernameTable sequentialUsernames = new UsernameTable();
+        List<String> expected = new ArrayList<>();
+        BatchingLineSink sink = new BatchingLineSink(sequentialUsernames,
+                batch -> describe(batch, sequentialUsernames, expected), 64);
+        new LogFileParser().scan(new ByteArrayInputStream(bytes), sink);
+        sink.flush();
+
+        BillingMetrics metrics = new BillingMetrics();
+        UsernameTable usernames = new UsernameTable();
+        List<String> actual = new ArrayList<>();
+        new PipelinedLogScanner(new LogLineScanner(), metrics, 37, 2, 5)
+                .scan(new ByteArrayInputStream(bytes), usernames, batch -> describe(batch, usernames, actual));
+
+        assertEquals(expected, actual);
+        assertEquals(bytes.length, metrics.getBytesRead());
+        assertEquals(expected.size(), metrics.getEntriesAccepted());
+    }
+
+    @Test
+    public void attributesTimeToTheStageThatSpentIt() throws IOException {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            int timestamp = i / 4;
+            log.append(String.format("%02d:%02d:%02d USER%d %s%n", timestamp / 3600, timestamp / 60 % 60,
+                    timestamp % 60, i % 300, i % 2 == 0 ? "Start" : "End"));
+        }
+        byte[] bytes = log.toString().getBytes(StandardCharsets.US_ASCII);
+        int bufferSize = 64 * 1024;
+        int reads = (bytes.length + bufferSize - 1) / bufferSize;
+        InputStream slowInput = new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(byte[] target, int offset, int length) {
+                sleep(2);
+                return super.read(target, offset, length);
+            }
+        };
+        int[] batches = new int[1];
+        BillingMetrics metrics = new BillingMetrics();
+
+        new PipelinedLogScanner(new LogLineScanner(), metrics, bufferSize, 2, 4096)
+                .scan(slowInput, new UsernameTable(), batch -> {
+                    batches[0]++;
+                    sleep(1);
+                });
+
+        // The sleeps set lower bounds that scheduler delays can only raise; no ratio to the wall time is asserted.
+        assertTrue(metrics.getStageBusyMillis(PipelineStage.READ) >= 2L * reads);
+        assertTrue(metrics.getStageBusyMillis(PipelineStage.PARSE) > 0);
+        assertTrue(metrics.getStageBusyMillis(PipelineStage.AGGREGATE) >= batches[0]);
+        assertTrue(metrics.getStageWaitMillis(PipelineStage.PARSE) > 0);
+    }
+
+    @Test
+    public void surfacesReaderFailureOnTheCallingThread() {
+        InputStream failing = new InputStream() {
+            private int remaining = 100;
+
+            @Override
+            public int read() throws IOException {
+                if (remaining-- <= 0) {
+                    throw new IOException("disk went away");
+                }
+                return remaining % 20 == 0 ? '\n' : 'x';
+            }
+        };
+
+        try {
+            new PipelinedLogScanner(new LogLineScanner(), new BillingMetrics(), 8, 1, 2)
+                    .scan(failing, new UsernameTable(), batch -> { });
+            fail("expected the reader failure to surface");
+        } catch (IOException e) {
+            assertEquals("disk went away", e.getMessage());
+        }
+    }
+
+    @Test
+    public void stopsStagesWhenTheConsumerFails() throws IOException {
+        byte[] bytes = "10:00:00 ALICE Start\n10:00:01 BOB Start\n10:00:02 CAROL Start\n"
+                .getBytes(StandardCharsets.US_ASCII);
+        try {
+            new PipelinedLogScanner(new LogLineScanner(), new BillingMetrics(), 4, 1, 1)
+                    .scan(new ByteArrayInputStream(bytes), new UsernameTable(), batch -> {
+                        throw new IllegalStateException("consumer failed");
+                    });
+            fail("expected the consumer failure to surface");
+        } catch (IllegalStateException e) {
+            assertEquals("consumer failed", e.getMessage());
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.fairbilling.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+
+public class ScanKernelTest {
+
+    private static final String VECTOR_PROPERTY = "fairbilling.test.vectorModule";
+    private static final byte[] ALPHABET = "0123456789:/;\n\r \tAZaz_\u007f".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final ScanKernel scalar = new ScalarScanKernel();
+
+    @Test
+    public void everyAvailableKernelMatchesScalarKernel() {
+        Random random = new Random(11);
+        for (ScanKernel kernel : ScanKernels.available()) {
+            for (int round = 0; round < 20_000; round++) {
+                byte[] data = randomBytes(random, 1 + random.nextInt(100));
+                int from = random.nextInt(data.length);
+                int to = from + random.nextInt(data.length - from + 1);
+                if (data.length - from >= 8 && random.nextBoolean()) {
+                    nearTime(random, data, from);
+                }
+                assertEquals(kernel.name(), scalar.indexOfLineEnd(data, from, to),
+                        kernel.indexOfLineEnd(data, from, to));
+                if (data.length - from >= 8) {
+                    assertEquals(kernel.name() + " " + new String(data, from, 8, StandardCharsets.ISO_8859_1),
+                            scalar.parseTime(data, from), kernel.parseTime(data, from));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void parsesTimeFieldsAndRejectsOtherShapes() {
+        for (ScanKernel kernel : ScanKernels.available()) {
+            assertEquals(kernel.name(), 23 << 16 | 59 << 8 | 58, parse(kernel, "23:59:58"));
+            assertEquals(kernel.name(), 99 << 16 | 99 << 8 | 99, parse(kernel, "99:99:99"));
+            assertEquals(kernel.name(), 0, parse(kernel, "00:00:00"));
+            assertEquals(kernel.name(), -1, parse(kernel, "0:00:000"));
+            assertEquals(kernel.name(), -1, parse(kernel, "12-00:00"));
+            assertEquals(kernel.name(), -1, parse(kernel, "12:0/:00"));
+            assertEquals(kernel.name(), -1, parse(kernel, "12:00:0:"));
+            assertEquals(kernel.name(), -1, parse(kernel, "ÿ2:00:00"));
+        }
+    }
+
+    @Test
+    public void selectsRequestedKernelOrFallsBack() {
+        String automatic = ScanKernels.named("vector") != null ? "vector" : "scalar";
+        if (System.getProperty(VECTOR_PROPERTY) != null) {
+            assertEquals("vector", automatic);
+        }
+
+        assertEquals("scalar", ScanKernels.select("scalar").name());
+        assertEquals(automatic, ScanKernels.select(null).name());
+        assertEquals(automatic, ScanKernels.select("unknown").name());
+        assertNotNull(ScanKernels.DEFAULT);
+    }
+
+    @Test
+    public void loadsSwarKernelOnJava17AndLater() {
+        Assume.assumeTrue(isJava17OrLater());
+        List<String> names = new ArrayList<>();
+        for (ScanKernel kernel : ScanKernels.available()) {
+            names.add(kernel.name());
+        }
+        assertTrue(names.toString(), names.contains("swar"));
+    }
+
+    /**
+     * Runs this class again in a JVM that resolves the Vector API, so that the vector kernel is compared with the
+     * scalar one without the test run itself printing the incubator module warning.
+     */
+    @Test
+    public void vectorKernelPassesTheseTestsWhenTheModuleIsResolved() throws Exception {
+        Assume.assumeTrue(isJava17OrLater() && System.getProperty(VECTOR_PROPERTY) == null);
+        Process process = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "--add-modules", "jdk.incubator.vector", "-D" + VECTOR_PROPERTY + "=true",
+                "-cp", System.getProperty("java.class.path"), JUnitCore.class.getName(), getClass().getName())
+                .redirectErrorStream(true)
+                .start();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream input = process.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            for (int read; (read = input.read(buffer)) > 0; ) {
+                output.write(buffer, 0, read);
+            }
+        }
+
+        String report = output.toString(StandardCharsets.UTF_8.name());
+        assertEquals(report, 0, process.waitFor());
+        assertTrue(report, report.contains("OK ("));
+    }
+
+    private static boolean isJava17OrLater() {
+        return !System.getProperty("java.specification.version").startsWith("1.")
+                && Integer.parseInt(System.getProperty("java.specification.version")) >= 17;
+    }
+
+    private static int parse(ScanKernel kernel, String time) {
+        return kernel.parseTime(time.getBytes(StandardCharsets.ISO_8859_1), 0);
+    }
+
+    private static void nearTime(Random random, byte[] data, int from) {
+        byte[] time = String.format("%02d:%02d:%02d", random.nextInt(100), random.nextInt(100), random.nextInt(100))
+                .getBytes(StandardCharsets.US_ASCII);
+        if (random.nextBoolean()) {
+            time[random.nextInt(time.length)] = (byte) random.nextInt(256);
+        }
+        System.arraycopy(time, 0, data, from, time.length);
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            // Mostly bytes the kernels look for, so that matches are frequent.
+            data[i] = random.nextInt(4) == 0 ? (byte) random.nextInt(256) : ALPHABET[random.nextInt(ALPHABET.length)];
+        }
+        return data;
+    }
+}
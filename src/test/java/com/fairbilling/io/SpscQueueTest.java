@@ -0,0 +1,54 @@
+package com.fairbilling.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SpscQueueTest {
+
+    @Test
+    public void holdsAtMostItsCapacityInFifoOrder() {
+        SpscQueue<Integer> queue = new SpscQueue<>(3);
+
+        assertTrue(queue.offer(1));
+        assertTrue(queue.offer(2));
+        assertTrue(queue.offer(3));
+        assertFalse(queue.offer(4));
+        assertEquals(Integer.valueOf(1), queue.poll());
+        assertTrue(queue.offer(4));
+        assertEquals(Integer.valueOf(2), queue.poll());
+        assertEquals(Integer.valueOf(3), queue.poll());
+        assertEquals(Integer.valueOf(4), queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void transfersEveryElementBetweenTwoThreads() throws InterruptedException {
+        SpscQueue<Integer> queue = new SpscQueue<>(4);
+        int count = 100000;
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                while (!queue.offer(i)) {
+                    Thread.yield();
+                }
+            }
+        });
+        producer.start();
+
+        long sum = 0;
+        for (int expected = 0; expected < count; expected++) {
+            Integer value;
+            while ((value = queue.poll()) == null) {
+                Thread.yield();
+            }
+            assertEquals(expected, value.intValue());
+            sum += value;
+        }
+        producer.join();
+
+        assertEquals((long) count * (count - 1) / 2, sum);
+    }
+}
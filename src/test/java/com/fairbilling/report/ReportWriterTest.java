@@ -0,0 +1,113 @@
+package com.fairbilling.report;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.fairbilling.domain.UserBillingSummary;
+
+public class ReportWriterTest {
+
+    @Test
+    public void textMatchesPrintfByteForByte() throws IOException {
+        List<UserBillingSummary> summaries = new ArrayList<>();
+        summaries.add(new UserBillingSummary("ALICE99", 4, 240));
+        summaries.add(new UserBillingSummary("CHARLIE", 0, 0));
+        summaries.add(new UserBillingSummary("Zoë", Integer.MAX_VALUE, 86_399));
+        for (int i = 0; i < 5000; i++) {
+            summaries.add(new UserBillingSummary("USER" + i, i, (int) (i * 1_000_003L % 86_400)));
+        }
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        PrintStream printStream = new PrintStream(expected, false, Charset.defaultCharset().name());
+        for (UserBillingSummary summary : summaries) {
+            printStream.printf("%s %d %d%n", summary.getUsername(), summary.getSessionCount(),
+                    summary.getTotalDurationSeconds());
+        }
+        printStream.flush();
+
+        assertArrayEquals(expected.toByteArray(), write(new TextReportWriter(), summaries));
+        assertArrayEquals(expected.toByteArray(),
+                write(new TextReportWriter(Charset.defaultCharset(), 16), summaries));
+    }
+
+    @Test
+    public void csvQuotesOnlyWhenNeeded() throws IOException {
+        List<UserBillingSummary> summaries = Arrays.asList(
+                new UserBillingSummary("ALICE", 2, 30),
+                new UserBillingSummary("O\"Neil, Jr", 1, 5));
+
+        String csv = new String(write(new CsvReportWriter(16), summaries), StandardCharsets.UTF_8);
+
+        assertEquals("username,session_count,total_duration_seconds\r\n"
+                + "ALICE,2,30\r\n"
+                + "\"O\"\"Neil, Jr\",1,5\r\n", csv);
+    }
+
+    @Test
+    public void jsonLinesEscapeUsernames() throws IOException {
+        List<UserBillingSummary> summaries = Arrays.asList(
+                new UserBillingSummary("ALICE", 2, 30),
+                new UserBillingSummary("a\"b\\c\td\u0001é", 1, 5));
+
+        String json = new String(write(ReportFormat.JSONL.newWriter(), summaries), StandardCharsets.UTF_8);
+
+        assertEquals("{\"username\":\"ALICE\",\"sessionCount\":2,\"totalDurationSeconds\":30}\n"
+                + "{\"username\":\"a\\\"b\\\\c\\td\\u0001é\",\"sessionCount\":1,\"totalDurationSeconds\":5}\n", json);
+    }
+
+    @Test
+    public void writesTimeBucketsAfterTotals() throws IOException {
+        List<UserBillingSummary> summaries = Arrays.asList(
+                new UserBillingSummary("ALICE", 2, 30, new int[] {10, 0, 20}),
+                new UserBillingSummary("BOB", 1, 5, new int[] {0, 5, 0}));
+
+        String text = new String(write(new TextReportWriter(StandardCharsets.UTF_8, 16), summaries),
+                StandardCharsets.UTF_8);
+        String csv = new String(write(ReportFormat.CSV.newWriter(), summaries), StandardCharsets.UTF_8);
+        String json = new String(write(ReportFormat.JSONL.newWriter(), summaries.subList(0, 1)),
+                StandardCharsets.UTF_8);
+
+        assertEquals("ALICE 2 30 10 0 20" + System.lineSeparator() + "BOB 1 5 0 5 0" + System.lineSeparator(), text);
+        assertEquals("username,session_count,total_duration_seconds,bucket_0_seconds,bucket_1_seconds,"
+                + "bucket_2_seconds\r\nALICE,2,30,10,0,20\r\nBOB,1,5,0,5,0\r\n", csv);
+        assertEquals("{\"username\":\"ALICE\",\"sessionCount\":2,\"totalDurationSeconds\":30,"
+                + "\"bucketSeconds\":[10,0,20]}\n", json);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBucketsThatDoNotAddUpToTotal() {
+        new UserBillingSummary("ALICE", 1, 30, new int[] {10, 10});
+    }
+
+    @Test
+    public void resolvesFormatNamesCaseInsensitively() {
+        assertEquals(ReportFormat.CSV, ReportFormat.fromName("csv"));
+        assertEquals(ReportFormat.JSONL, ReportFormat.fromName("JsonL"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownFormat() {
+        ReportFormat.fromName("xml");
+    }
+
+    private static byte[] write(ReportWriter writer, List<UserBillingSummary> summaries) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        writer.write(summaries, Channels.newChannel(output));
+        // A second report through the same writer must not see anything left over from the first.
+        ByteArrayOutputStream again = new ByteArrayOutputStream();
+        writer.write(summaries, Channels.newChannel(again));
+        assertArrayEquals(output.toByteArray(), again.toByteArray());
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,115 @@
+package com.fairbilling.report;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import com.fairbilling.domain.SummaryCollector;
+import com.fairbilling.domain.UserBillingSummary;
+
+public class SummaryQueryTest {
+
+    private static final List<UserBillingSummary> SUMMARIES = Arrays.asList(
+            new UserBillingSummary("ALICE", 4, 240),
+            new UserBillingSummary("BOB", 1, 900),
+            new UserBillingSummary("CAROL", 7, 240),
+            new UserBillingSummary("DAVE", 2, 10));
+
+    @Test
+    public void selectsEverythingByDefault() {
+        assertTrue(SummaryQuery.all().selectsAll());
+        assertEquals(SUMMARIES, SummaryQuery.all().select(SUMMARIES));
+    }
+
+    @Test
+    public void dropsUsersBelowThresholdsInOriginalOrder() {
+        SummaryQuery query = SummaryQuery.all().withMinSessions(2).withMinSeconds(100);
+
+        assertEquals(Arrays.asList("ALICE", "CAROL"), names(query.select(SUMMARIES)));
+    }
+
+    @Test
+    public void ranksTopUsersWithTiesInFirstAppearanceOrder() {
+        assertEquals(Arrays.asList("BOB", "ALICE"), names(SummaryQuery.all().top(2).select(SUMMARIES)));
+        assertEquals(Arrays.asList("BOB", "ALICE", "CAROL", "DAVE"),
+                names(SummaryQuery.all().top(10).select(SUMMARIES)));
+        assertEquals(Arrays.asList("CAROL", "ALICE"),
+                names(SummaryQuery.all().sortedBy(SummaryOrder.SESSIONS).top(2).select(SUMMARIES)));
+    }
+
+    @Test
+    public void sortsEveryMatchingUser() {
+        SummaryQuery query = SummaryQuery.all().withMinSessions(2).sortedBy(SummaryOrder.SECONDS);
+
+        assertEquals(Arrays.asList("ALICE", "CAROL", "DAVE"), names(query.select(SUMMARIES)));
+    }
+
+    @Test
+    public void topAndSortAgreeWithStableComparatorSort() {
+        Random random = new Random(7);
+        List<UserBillingSummary> summaries = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            summaries.add(new UserBillingSummary("U" + i, random.nextInt(50), random.nextInt(5000)));
+        }
+        List<UserBillingSummary> expected = summaries.stream()
+                .filter(summary -> summary.getSessionCount() >= 3)
+                .sorted(Comparator.comparingInt(UserBillingSummary::getTotalDurationSeconds).reversed())
+                .collect(Collectors.toList());
+        SummaryQuery query = SummaryQuery.all().withMinSessions(3).sortedBy(SummaryOrder.SECONDS);
+
+        List<UserBillingSummary> sorted = query.select(summaries);
+        List<UserBillingSummary> top = query.top(100).select(summaries);
+
+        assertEquals(expected.size(), sorted.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSame(expected.get(i), sorted.get(i));
+        }
+        assertEquals(expected.subList(0, 100), top);
+    }
+
+    @Test
+    public void collectorTurnsDownUsersThatCannotReachTheTop() {
+        SummaryCollector collector = SummaryQuery.all().top(1).newCollector();
+        List<String> built = new ArrayList<>();
+        for (UserBillingSummary summary : SUMMARIES) {
+            if (collector.wants(summary.getSessionCount(), summary.getTotalDurationSeconds())) {
+                built.add(summary.getUsername());
+                collector.add(summary);
+            }
+        }
+
+        assertEquals(Arrays.asList("ALICE", "BOB"), built);
+        assertEquals(Arrays.asList("BOB"), names(collector.summaries()));
+    }
+
+    @Test
+    public void collectorKeepsWhatSelectKeeps() {
+        SummaryQuery query = SummaryQuery.all().withMinSessions(2).sortedBy(SummaryOrder.SESSIONS);
+        SummaryCollector collector = query.newCollector();
+        for (UserBillingSummary summary : SUMMARIES) {
+            if (collector.wants(summary.getSessionCount(), summary.getTotalDurationSeconds())) {
+                collector.add(summary);
+            }
+        }
+
+        assertEquals(query.select(SUMMARIES), query.select(collector.summaries()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyTop() {
+        SummaryQuery.all().top(0);
+    }
+
+    private static List<String> names(List<UserBillingSummary> summaries) {
+        return summaries.stream().map(UserBillingSummary::getUsername).collect(Collectors.toList());
+    }
+}
@@ -112,6 +112,27 @@ public class BillingCalculatorTest {
         assertEquals(Arrays.asList("CHARLIE", "ALICE", "BOB"), usernames);
     }
 
+    @Test
+    public void shardedCalculationKeepsResultsAndOrder() {
+        List<LogEntry> entries = Arrays.asList(
+                entry(100, "CHARLIE", SessionEventType.START),
+                entry(105, "DAVE", SessionEventType.END),
+                entry(110, "ALICE", SessionEventType.START),
+                entry(120, "BOB", SessionEventType.START),
+                entry(130, "ALICE", SessionEventType.END),
+                entry(140, "CHARLIE", SessionEventType.END));
+
+        List<UserBillingSummary> sequential = calculator.calculate(entries);
+        List<UserBillingSummary> sharded = calculator.calculate(entries, 3);
+
+        assertEquals(sequential.size(), sharded.size());
+        for (int i = 0; i < sequential.size(); i++) {
+            assertEquals(sequential.get(i).getUsername(), sharded.get(i).getUsername());
+            assertEquals(sequential.get(i).getSessionCount(), sharded.get(i).getSessionCount());
+            assertEquals(sequential.get(i).getTotalDurationSeconds(), sharded.get(i).getTotalDurationSeconds());
+        }
+    }
+
     @Test
     public void handlesEmptyInput() {
         Collection<UserBillingSummary> summaries = calculator.calculate(Collections.emptyList());
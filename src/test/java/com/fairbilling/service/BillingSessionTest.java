@@ -0,0 +1,260 @@
+package com.fairbilling.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.fairbilling.domain.EntryBatch;
+import com.fairbilling.domain.SessionEventType;
+import com.fairbilling.domain.UserBillingSummary;
+import com.fairbilling.util.UsernameTable;
+
+public class BillingSessionTest {
+
+    @Test
+    public void settlesOrphansAgainstBoundsSeenAcrossWholeStream() {
+        BillingSession session = new BillingSession();
+        session.accept(500, "ALICE", SessionEventType.END);
+        session.accept(200, "BOB", SessionEventType.START);
+        session.accept(100, "ALICE", SessionEventType.END);
+        session.accept(900, "CAROL", SessionEventType.START);
+
+        List<UserBillingSummary> summaries = session.finish();
+
+        assertEquals(3, summaries.size());
+        assertSummary(summaries.get(0), "ALICE", 2, 400);
+        assertSummary(summaries.get(1), "BOB", 1, 700);
+        assertSummary(summaries.get(2), "CAROL", 1, 0);
+    }
+
+    @Test
+    public void clipsSessionsCrossingWindowEdges() {
+        BillingSession session = new BillingSession(new UsernameTable(), 100, 1000);
+        session.accept(150, "ALICE", SessionEventType.END);
+        session.accept(200, "BOB", SessionEventType.START);
+        session.accept(260, "BOB", SessionEventType.END);
+        session.accept(900, "CAROL", SessionEventType.START);
+
+        List<UserBillingSummary> summaries = session.finish();
+
+        assertSummary(summaries.get(0), "ALICE", 1, 50);
+        assertSummary(summaries.get(1), "BOB", 1, 60);
+        assertSummary(summaries.get(2), "CAROL", 1, 100);
+    }
+
+    @Test
+    public void clampsNegativeMatchedDurationsToZero() {
+        BillingSession session = new BillingSession();
+        session.accept(300, "ALICE", SessionEventType.START);
+        session.accept(100, "ALICE", SessionEventType.END);
+
+        List<UserBillingSummary> summaries = session.finish();
+
+        assertSummary(summaries.get(0), "ALICE", 1, 0);
+    }
+
+    @Test
+    public void acceptsColumnarBatchesWithInterleavedStacks() {
+        UsernameTable usernames = new UsernameTable();
+        int alice = usernames.resolve("ALICE");
+        int bob = usernames.resolve("BOB");
+        EntryBatch batch = new EntryBatch(2);
+        batch.add(100, bob, true);
+        batch.add(110, alice, true);
+        batch.add(120, bob, true);
+        batch.add(130, alice, false);
+        batch.add(140, bob, false);
+        batch.add(150, alice, false);
+        batch.add(160, alice, true);
+
+        BillingSession session = new BillingSession(usernames);
+        session.accept(batch);
+        List<UserBillingSummary> summaries = session.finish();
+
+        assertEquals(2, summaries.size());
+        assertSummary(summaries.get(0), "ALICE", 3, 20 + 50 + 0);
+        assertSummary(summaries.get(1), "BOB", 2, 20 + 60);
+    }
+
+    @Test
+    public void snapshotSettlesOpenStartsWithoutClosingThem() {
+        BillingSession session = new BillingSession();
+        session.accept(100, "ALICE", SessionEventType.START);
+        session.accept(150, "BOB", SessionEventType.END);
+
+        List<UserBillingSummary> provisional = session.snapshot();
+        session.accept(200, "ALICE", SessionEventType.END);
+        List<UserBillingSummary> summaries = session.finish();
+
+        assertSummary(provisional.get(0), "ALICE", 1, 50);
+        assertSummary(provisional.get(1), "BOB", 1, 50);
+        assertSummary(summaries.get(0), "ALICE", 1, 100);
+        assertSummary(summaries.get(1), "BOB", 1, 50);
+    }
+
+    @Test
+    public void restoredStateContinuesLikeTheOriginalSession() throws IOException {
+        BillingSession original = new BillingSession();
+        original.accept(100, "ALICE", SessionEventType.START);
+        original.accept(110, "BOB", SessionEventType.END);
+        original.accept(120, "ALICE", SessionEventType.START);
+        original.accept(130, "CAROL", SessionEventType.START);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        original.captureState().writeTo(new DataOutputStream(bytes));
+
+        BillingSession restored = BillingSession.restore(
+                BillingState.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+        for (BillingSession session : Arrays.asList(original, restored)) {
+            session.accept(150, "ALICE", SessionEventType.END);
+            session.accept(160, "DAVE", SessionEventType.END);
+        }
+        List<UserBillingSummary> expected = original.finish();
+        List<UserBillingSummary> summaries = restored.finish();
+
+        assertEquals(expected.size(), summaries.size());
+        for (int i = 0; i < expected.size(); i++) {
+            UserBillingSummary summary = expected.get(i);
+            assertSummary(summaries.get(i), summary.getUsername(), summary.getSessionCount(),
+                    summary.getTotalDurationSeconds());
+        }
+        assertSummary(summaries.get(0), "ALICE", 2, 30 + 60);
+        assertEquals(3, restored.getUsernames().resolve("DAVE"));
+    }
+
+    @Test
+    public void tracksPeakOpenSessions() {
+        BillingSession session = new BillingSession();
+        session.accept(100, "ALICE", SessionEventType.START);
+        session.accept(110, "BOB", SessionEventType.START);
+        session.accept(120, "ALICE", SessionEventType.START);
+        session.accept(130, "ALICE", SessionEventType.END);
+        session.accept(140, "CAROL", SessionEventType.END);
+        session.accept(150, "CAROL", SessionEventType.START);
+
+        assertEquals(3, session.getPeakOpenSessions());
+    }
+
+    @Test
+    public void splitsBilledSecondsIntoTimeBuckets() {
+        BillingSession session = new BillingSession(new UsernameTable(), 3600);
+        session.accept(1200, "BOB", SessionEventType.START);
+        session.accept(9000, "ALICE", SessionEventType.END);
+        session.accept(10800, "BOB", SessionEventType.END);
+        session.accept(14000, "CAROL", SessionEventType.START);
+        session.accept(14500, "DAVE", SessionEventType.END);
+
+        List<UserBillingSummary> summaries = session.finish();
+
+        assertArrayEquals(Arrays.copyOf(new int[] {2400, 3600, 3600}, 24), buckets(summaries.get(0)));
+        assertArrayEquals(Arrays.copyOf(new int[] {2400, 3600, 1800}, 24), buckets(summaries.get(1)));
+        assertArrayEquals(Arrays.copyOf(new int[] {0, 0, 0, 400, 100}, 24), buckets(summaries.get(2)));
+        assertArrayEquals(Arrays.copyOf(new int[] {2400, 3600, 3600, 3600, 100}, 24), buckets(summaries.get(3)));
+    }
+
+    @Test
+    public void timeBucketsMatchSessionsSplitOneByOne() {
+        Random random = new Random(17);
+        int width = 7000;
+        BillingSession session = new BillingSession(new UsernameTable(), width);
+        int users = 50;
+        List<Deque<Integer>> starts = new ArrayList<>();
+        List<List<int[]>> spans = new ArrayList<>();
+        List<List<Integer>> orphanEnds = new ArrayList<>();
+        for (int user = 0; user < users; user++) {
+            starts.add(new ArrayDeque<>());
+            spans.add(new ArrayList<>());
+            orphanEnds.add(new ArrayList<>());
+        }
+        int earliest = Integer.MAX_VALUE;
+        int latest = Integer.MIN_VALUE;
+        for (int i = 0; i < 2_000; i++) {
+            int user = random.nextInt(users);
+            int timestamp = random.nextInt(86_400);
+            boolean start = random.nextBoolean();
+            session.accept(timestamp, session.getUsernames().resolve("USER" + user), start);
+            earliest = Math.min(earliest, timestamp);
+            latest = Math.max(latest, timestamp);
+            if (start) {
+                starts.get(user).push(timestamp);
+            } else if (!starts.get(user).isEmpty()) {
+                spans.get(user).add(new int[] {starts.get(user).pop(), timestamp});
+            } else {
+                orphanEnds.get(user).add(timestamp);
+            }
+        }
+
+        List<UserBillingSummary> snapshot = session.snapshot();
+        List<UserBillingSummary> summaries = session.finish();
+
+        for (UserBillingSummary summary : summaries) {
+            int user = Integer.parseInt(summary.getUsername().substring(4));
+            int[] expected = new int[13];
+            for (int[] span : spans.get(user)) {
+                addSpan(expected, width, span[0], span[1]);
+            }
+            for (int end : orphanEnds.get(user)) {
+                addSpan(expected, width, earliest, end);
+            }
+            for (int start : starts.get(user)) {
+                addSpan(expected, width, start, latest);
+            }
+            assertArrayEquals(summary.getUsername(), expected, buckets(summary));
+        }
+        for (int i = 0; i < summaries.size(); i++) {
+            assertArrayEquals(buckets(summaries.get(i)), buckets(snapshot.get(i)));
+        }
+    }
+
+    @Test
+    public void rejectsMoreUsersThanOneSecondBucketsCanHold() {
+        BillingSession session = new BillingSession(new UsernameTable(), 1);
+        try {
+            session.accept(100, 30_000, true);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertEquals("Too many users for 86400 time buckets of 1 seconds: at most 24855 users fit, use wider"
+                    + " buckets", e.getMessage());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsEntriesAfterFinish() {
+        BillingSession session = new BillingSession();
+        session.finish();
+        session.accept(100, "ALICE", SessionEventType.START);
+    }
+
+    private static void addSpan(int[] buckets, int width, int from, int to) {
+        for (int second = from; second < to; second++) {
+            buckets[second / width]++;
+        }
+    }
+
+    private static int[] buckets(UserBillingSummary summary) {
+        int[] buckets = new int[summary.getBucketCount()];
+        for (int bucket = 0; bucket < buckets.length; bucket++) {
+            buckets[bucket] = summary.getBucketSeconds(bucket);
+        }
+        return buckets;
+    }
+
+    private void assertSummary(UserBillingSummary summary, String username, int sessions, int seconds) {
+        assertEquals(username, summary.getUsername());
+        assertEquals(sessions, summary.getSessionCount());
+        assertEquals(seconds, summary.getTotalDurationSeconds());
+    }
+}
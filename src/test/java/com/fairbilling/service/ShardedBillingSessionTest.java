@@ -0,0 +1,287 @@
+package com.fairbilling.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.fairbilling.domain.EntryBatch;
+import com.fairbilling.domain.PartitionedBatch;
+import com.fairbilling.domain.SummaryCollector;
+import com.fairbilling.domain.UserBillingSummary;
+import com.fairbilling.util.UsernameTable;
+
+public class ShardedBillingSessionTest {
+
+    @Test
+    public void matchesSingleSessionInFirstAppearanceOrder() {
+        Random random = new Random(42);
+        UsernameTable usernames = new UsernameTable();
+        List<EntryBatch> batches = new ArrayList<>();
+        EntryBatch batch = new EntryBatch(1000);
+        int seconds = 0;
+        for (int i = 0; i < 50_000; i++) {
+            seconds += random.nextInt(3);
+            batch.add(seconds, usernames.resolve("USER" + random.nextInt(700)), random.nextBoolean());
+            if (batch.isFull()) {
+                batches.add(batch);
+                batch = new EntryBatch(1000);
+            }
+        }
+        batches.add(batch);
+
+        for (int bucketWidth : new int[] {0, 3600}) {
+            BillingSession expected = new BillingSession(usernames, bucketWidth);
+            for (EntryBatch each : batches) {
+                expected.accept(each);
+            }
+            List<UserBillingSummary> expectedSummaries = expected.finish();
+
+            for (int shards : new int[] {1, 2, 3, 8}) {
+                ShardedBillingSession session = new ShardedBillingSession(usernames, shards, bucketWidth);
+                for (EntryBatch each : batches) {
+                    session.accept(each);
+                }
+                assertSameSummaries(expectedSummaries, session.finish());
+            }
+        }
+    }
+
+    @Test
+    public void buildsOnlyTheSummariesTheCollectorWants() {
+        Random random = new Random(3);
+        UsernameTable usernames = new UsernameTable();
+        EntryBatch batch = new EntryBatch(1000);
+        int seconds = 0;
+        for (int i = 0; i < 1000; i++) {
+            seconds += random.nextInt(20);
+            batch.add(seconds, usernames.resolve("USER" + random.nextInt(40)), random.nextBoolean());
+        }
+        BillingSession expected = new BillingSession(usernames, 3600);
+        expected.accept(batch);
+        List<UserBillingSummary> all = expected.finish();
+        long totalSeconds = 0;
+        for (UserBillingSummary summary : all) {
+            totalSeconds += summary.getTotalDurationSeconds();
+        }
+        int averageSeconds = (int) (totalSeconds / all.size());
+        List<UserBillingSummary> wanted = new ArrayList<>();
+        for (UserBillingSummary summary : all) {
+            if (summary.getTotalDurationSeconds() > averageSeconds) {
+                wanted.add(summary);
+            }
+        }
+        assertTrue(!wanted.isEmpty() && wanted.size() < all.size());
+
+        for (int shards : new int[] {1, 3}) {
+            ShardedBillingSession session = new ShardedBillingSession(usernames, shards, 3600);
+            session.accept(batch);
+            LongDurations collector = new LongDurations(averageSeconds);
+            List<UserBillingSummary> summaries = session.finish(collector);
+
+            assertEquals(all.size(), collector.offered);
+            assertSameSummaries(wanted, summaries);
+        }
+    }
+
+    @Test
+    public void settlesEveryShardAgainstGlobalBounds() {
+        UsernameTable usernames = new UsernameTable();
+        int alice = usernames.resolve("ALICE");
+        int bob = usernames.resolve("BOB");
+        int carol = usernames.resolve("CAROL");
+        EntryBatch batch = new EntryBatch(4);
+        batch.add(100, alice, true);
+        batch.add(200, bob, false);
+        batch.add(900, carol, true);
+
+        ShardedBillingSession session = new ShardedBillingSession(usernames, 3);
+        session.accept(batch);
+        List<UserBillingSummary> summaries = session.finish();
+
+        assertEquals(3, summaries.size());
+        assertSummary(summaries.get(0), "ALICE", 1, 800);
+        assertSummary(summaries.get(1), "BOB", 1, 100);
+        assertSummary(summaries.get(2), "CAROL", 1, 0);
+    }
+
+    @Test
+    public void billsPartitionedBatchesLikePlainOnes() {
+        Random random = new Random(11);
+        int[] seconds = new int[20_000];
+        String[] names = new String[seconds.length];
+        boolean[] starts = new boolean[seconds.length];
+        int clock = 0;
+        for (int i = 0; i < seconds.length; i++) {
+            clock += random.nextInt(3);
+            seconds[i] = clock;
+            names[i] = "USER" + random.nextInt(500);
+            starts[i] = random.nextBoolean();
+        }
+        UsernameTable expectedUsernames = new UsernameTable();
+        BillingSession expected = new BillingSession(expectedUsernames, 3600);
+        EntryBatch all = new EntryBatch(seconds.length);
+        for (int i = 0; i < seconds.length; i++) {
+            all.add(seconds[i], expectedUsernames.resolve(names[i]), starts[i]);
+        }
+        expected.accept(all);
+        List<UserBillingSummary> expectedSummaries = expected.finish();
+
+        for (int shards : new int[] {2, 3, 8}) {
+            UsernameTable usernames = new UsernameTable();
+            ShardedBillingSession session = new ShardedBillingSession(usernames, shards, 3600);
+            // Alternate plain and partitioned stretches, as a producer falling back to plain batches would.
+            for (int from = 0, stretch = 0; from < seconds.length; from += 1000, stretch++) {
+                int to = Math.min(from + 1000, seconds.length);
+                if (stretch % 2 == 0) {
+                    EntryBatch batch = new EntryBatch(to - from);
+                    for (int i = from; i < to; i++) {
+                        batch.add(seconds[i], usernames.resolve(names[i]), starts[i]);
+                    }
+                    session.accept(batch);
+                } else {
+                    session.accept(partition(session, usernames, seconds, names, starts, from, to));
+                }
+            }
+            assertSameSummaries(expectedSummaries, session.finish());
+        }
+    }
+
+    @Test
+    public void spreadsUsernamesEvenlyAcrossShards() {
+        UsernameTable usernames = new UsernameTable();
+        ShardedBillingSession session = new ShardedBillingSession(usernames, 7);
+        int[] counts = new int[session.getShardCount()];
+        for (int i = 0; i < 70_000; i++) {
+            counts[session.partitionOf(usernames.hashOf(usernames.resolve("USER" + i)))]++;
+        }
+        session.close();
+        for (int count : counts) {
+            assertTrue("unbalanced shard: " + count, Math.abs(count - 10_000) < 500);
+        }
+    }
+
+    @Test
+    public void rejectsEntriesAfterFinish() {
+        ShardedBillingSession session = new ShardedBillingSession(new UsernameTable(), 2);
+        assertTrue(session.finish().isEmpty());
+        try {
+            session.accept(new EntryBatch(1));
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertEquals("billing session has already been finished", e.getMessage());
+        }
+    }
+
+    @Test
+    public void stopsWorkersWhenClosedWithoutFinishing() {
+        Set<Thread> existing = shardThreads();
+        UsernameTable usernames = new UsernameTable();
+        ShardedBillingSession session = new ShardedBillingSession(usernames, 3);
+        Set<Thread> workers = shardThreads();
+        workers.removeAll(existing);
+        EntryBatch batch = new EntryBatch(4);
+        batch.add(100, usernames.resolve("ALICE"), true);
+        session.accept(batch);
+
+        session.close();
+
+        assertEquals(3, workers.size());
+        for (Thread worker : workers) {
+            assertFalse(worker.getName(), worker.isAlive());
+        }
+        try {
+            session.finish();
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertEquals("billing session has already been finished", e.getMessage());
+        }
+    }
+
+    private static Set<Thread> shardThreads() {
+        Set<Thread> threads = new HashSet<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("fair-billing-shard-")) {
+                threads.add(thread);
+            }
+        }
+        return threads;
+    }
+
+    /**
+     * Keeps the users billed for more than a number of seconds, counting every user offered.
+     */
+    private static final class LongDurations implements SummaryCollector {
+        private final int minimumSeconds;
+        private final List<UserBillingSummary> summaries = new ArrayList<>();
+        private int offered;
+
+        private LongDurations(int minimumSeconds) {
+            this.minimumSeconds = minimumSeconds;
+        }
+
+        @Override
+        public boolean wants(int sessionCount, int totalDurationSeconds) {
+            offered++;
+            return totalDurationSeconds > minimumSeconds;
+        }
+
+        @Override
+        public void add(UserBillingSummary summary) {
+            summaries.add(summary);
+        }
+
+        @Override
+        public List<UserBillingSummary> summaries() {
+            return summaries;
+        }
+    }
+
+    /**
+     * Splits entries {@code from} to {@code to} the way a parallel producer does: ids local to the stretch, one part
+     * per shard.
+     */
+    private static PartitionedBatch partition(ShardedBillingSession session, UsernameTable usernames, int[] seconds,
+            String[] names, boolean[] starts, int from, int to) {
+        UsernameTable local = new UsernameTable();
+        EntryBatch[] parts = new EntryBatch[session.partitionCount()];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = new EntryBatch(16);
+        }
+        for (int i = from; i < to; i++) {
+            int localId = local.resolve(names[i]);
+            parts[session.partitionOf(local.hashOf(localId))].add(seconds[i], localId, starts[i]);
+        }
+        int[] userIds = new int[local.size()];
+        for (int localId = 0; localId < userIds.length; localId++) {
+            userIds[localId] = usernames.resolve(local, localId);
+        }
+        return new PartitionedBatch(parts, userIds);
+    }
+
+    private static void assertSameSummaries(List<UserBillingSummary> expected, List<UserBillingSummary> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSummary(actual.get(i), expected.get(i).getUsername(), expected.get(i).getSessionCount(),
+                    expected.get(i).getTotalDurationSeconds());
+            assertEquals(expected.get(i).getBucketCount(), actual.get(i).getBucketCount());
+            for (int bucket = 0; bucket < expected.get(i).getBucketCount(); bucket++) {
+                assertEquals(expected.get(i).getBucketSeconds(bucket), actual.get(i).getBucketSeconds(bucket));
+            }
+        }
+    }
+
+    private static void assertSummary(UserBillingSummary summary, String username, int sessions, int duration) {
+        assertEquals(username, summary.getUsername());
+        assertEquals(sessions, summary.getSessionCount());
+        assertEquals(duration, summary.getTotalDurationSeconds());
+    }
+}
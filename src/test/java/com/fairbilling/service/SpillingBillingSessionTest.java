@@ -0,0 +1,119 @@
+package com.fairbilling.service;
+
+import static com.fairbilling.domain.SummaryDescriptions.describe;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SpillingBillingSessionTest {
+
+    private Path spillDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        spillDirectory = Files.createTempDirectory("fair-billing-spill-test");
+    }
+
+    @Test
+    public void matchesInMemoryBillingAfterSpillingAndSplitting() throws IOException {
+        Random random = new Random(5);
+        BillingSession expected = new BillingSession();
+        // The smallest budget leaves room for about two hundred users, so most entries are spilled and partitions
+        // are split again.
+        SpillingBillingSession session = new SpillingBillingSession(SpillingBillingSession.MIN_MEMORY_BUDGET,
+                spillDirectory);
+        for (int i = 0; i < 60_000; i++) {
+            String username = "USER" + random.nextInt(30_000);
+            int timestamp = 3_600 + random.nextInt(36_000);
+            boolean start = random.nextBoolean();
+            expected.accept(timestamp, expected.getUsernames().resolve(username), start);
+            byte[] line = ("x" + username + "y").getBytes(StandardCharsets.US_ASCII);
+            session.accept(timestamp, line, 1, line.length - 1, start);
+        }
+
+        assertTrue(session.hasSpilled());
+        try (SpilledSummaries summaries = session.finish()) {
+            assertEquals(describe(expected.finish()), describe(summaries));
+            assertEquals(describe(summaries), describe(summaries));
+            assertEquals(expected.getUsernames().size(), summaries.size());
+            assertTrue(summaries.resultFileCount() <= SpillingBillingSession.PARTITIONS);
+        }
+        assertTrue(isEmpty(spillDirectory));
+    }
+
+    @Test
+    public void keepsUsersInMemoryWithinBudget() throws IOException {
+        SpillingBillingSession session = new SpillingBillingSession(1024 * 1024, spillDirectory);
+        accept(session, 100, "ALICE", true);
+        accept(session, 200, "BOB", false);
+        accept(session, 300, "ALICE", false);
+
+        try (SpilledSummaries summaries = session.finish()) {
+            assertFalse(session.hasSpilled());
+            assertEquals("[ALICE 1 200, BOB 1 100]", describe(summaries).toString());
+        }
+        assertTrue(isEmpty(spillDirectory));
+    }
+
+    @Test
+    public void reportsPartitionsThatDoNotFitAfterEverySplit() throws IOException {
+        SpillingBillingSession session = new SpillingBillingSession(SpillingBillingSession.MIN_MEMORY_BUDGET,
+                spillDirectory);
+        char[] name = new char[(int) SpillingBillingSession.MIN_MEMORY_BUDGET / 3];
+        Arrays.fill(name, 'X');
+        accept(session, 100, new String(name), true);
+        assertTrue(session.hasSpilled());
+
+        try {
+            session.finish();
+            fail("expected the partition to exceed the budget");
+        } catch (MemoryBudgetExceededException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("do not fit after 4 splits"));
+        } finally {
+            session.close();
+        }
+        assertTrue(isEmpty(spillDirectory));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBudgetSmallerThanItsBuffers() {
+        new SpillingBillingSession(SpillingBillingSession.MIN_MEMORY_BUDGET - 1, spillDirectory);
+    }
+
+    @Test
+    public void closeDeletesSpillFilesOfUnfinishedSession() throws IOException {
+        SpillingBillingSession session = new SpillingBillingSession(SpillingBillingSession.MIN_MEMORY_BUDGET,
+                spillDirectory);
+        for (int i = 0; !session.hasSpilled(); i++) {
+            accept(session, 100, "USER" + i, true);
+        }
+
+        assertTrue(session.hasSpilled());
+        assertFalse(isEmpty(spillDirectory));
+        session.close();
+        assertTrue(isEmpty(spillDirectory));
+    }
+
+    private static void accept(SpillingBillingSession session, int timestamp, String username, boolean start) {
+        byte[] name = username.getBytes(StandardCharsets.US_ASCII);
+        session.accept(timestamp, name, 0, name.length, start);
+    }
+
+    private static boolean isEmpty(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return !files.findAny().isPresent();
+        }
+    }
+}
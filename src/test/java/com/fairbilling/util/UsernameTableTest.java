@@ -0,0 +1,64 @@
+package com.fairbilling.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class UsernameTableTest {
+
+    @Test
+    public void assignsDenseIdsInFirstAppearanceOrder() {
+        UsernameTable table = new UsernameTable();
+        byte[] line = "10:00:00 ALICE Start 10:00:01 BOB End".getBytes(StandardCharsets.US_ASCII);
+
+        assertEquals(0, table.resolve(line, 9, 14));
+        assertEquals(1, table.resolve(line, 30, 33));
+        assertEquals(0, table.resolve("ALICE"));
+        assertEquals(2, table.resolve("CAROL"));
+        assertEquals(3, table.size());
+        assertEquals("BOB", table.username(1));
+    }
+
+    @Test
+    public void createsNameOnlyOnFirstAppearance() {
+        UsernameTable table = new UsernameTable();
+        byte[] bytes = "ALICE".getBytes(StandardCharsets.US_ASCII);
+
+        int id = table.resolve(bytes, 0, bytes.length);
+        String first = table.username(id);
+        table.resolve(bytes, 0, bytes.length);
+
+        assertSame(first, table.username(id));
+    }
+
+    @Test
+    public void keepsIdsStableAcrossRehashes() {
+        UsernameTable table = new UsernameTable();
+        for (int i = 0; i < 100000; i++) {
+            assertEquals(i, table.resolve("USER" + i));
+        }
+        for (int i = 0; i < 100000; i++) {
+            byte[] bytes = ("USER" + i).getBytes(StandardCharsets.US_ASCII);
+            assertEquals(i, table.resolve(bytes, 0, bytes.length));
+        }
+    }
+
+    @Test
+    public void resolvesNonAsciiNamesConsistently() {
+        UsernameTable table = new UsernameTable();
+        byte[] encoded = "ÉLISE".getBytes(StandardCharsets.UTF_8);
+
+        int id = table.resolve("ÉLISE");
+
+        assertEquals(id, table.resolve(encoded, 0, encoded.length));
+        assertEquals("ÉLISE", table.username(id));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsUnknownIds() {
+        new UsernameTable().username(0);
+    }
+}